@@ -1,22 +1,51 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-public class BTree
+public class BTree implements Iterable<TreeObject>
 {
 	// byte sizes, update if changing what is written to file
 	public static final int METADATA_BYTE_SIZE = 12; // nodeCount=4, degree=4, sequenceLength=4
+	public static final int EXTENDED_METADATA_BYTE_SIZE = 16; // METADATA_BYTE_SIZE + pageSize=4
 
 	// fields
 	// stored on disk
 	private int degree;
 	private int nodeCount;
 	private int sequenceLength;
+	private NodeFormat format;
 
 	// contents
 	private BTreeNode root;
 	private BTreeFile file;
 	private boolean isUsingCache;
-	private Cache<CacheObject> cache;
+	private BoundedCache<CacheObject> cache;
+	private long cacheHits;
+	private long cacheMisses;
+	private BufferPool pool; // replaces the cache in slab mode or with direct I/O
+	// nodes of the top levels kept in memory, sorted by location
+	private int[] pinnedLocations = new int[0];
+	private BTreeNode[] pinnedNodes = new BTreeNode[0];
+	private int pinnedLevels = 1; // the root is always pinned
+	private long pinnedByteSize;
+	private String hotSetFile; // sidecar holding the cached node locations, null if not kept
+	private ExecutorService ioThreads; // reads nodes for batch searches, started on first use
+	private int ioThreadCount;
+	private ThreadLocal<ByteBuffer> ioBuffers; // node read buffer of each I/O thread
+	private NodeFlusher flusher; // writes evicted nodes in the background, null if synchronous
+	// in-memory build: every node by location, written to file on close. null otherwise
+	private BTreeNode[] arena;
+	private int arenaSize;
+	private boolean isSharingSplits; // full nodes move keys to a sibling or split two nodes into three
 
 	// constructors
 
@@ -30,26 +59,7 @@ public class BTree
 	 */
 	public BTree(BTreeFile file, int cacheSize)
 	{
-		DataInputStream in = new DataInputStream(new ByteArrayInputStream(file.readMetaData()));
-
-		try
-		{
-			this.nodeCount = in.readInt();
-			this.degree = in.readInt();
-			this.sequenceLength = in.readInt();
-
-			if (!isEmpty())
-			{
-				this.root = new BTreeNode(file.readNodeData(nodeCount - 1), this.degree);
-			}
-			isUsingCache = true;
-			cache = new Cache<>(cacheSize);
-			this.file = file;
-		}
-		catch (IOException e)
-		{
-			System.err.println("Unable to instantiate BTree from byte array!");
-		}
+		this(file, new CacheOptions(cacheSize));
 	}
 
 	/**
@@ -60,20 +70,30 @@ public class BTree
 	 */
 	public BTree(BTreeFile file)
 	{
-		DataInputStream in = new DataInputStream(new ByteArrayInputStream(file.readMetaData()));
+		this(file, (CacheOptions) null);
+	}
 
+	/**
+	 * Creates a BTree from an already existing BTreeFile with a configured cache
+	 * 
+	 * @param file
+	 *            an existing BTreeFile
+	 * @param options
+	 *            the cache settings, null for no cache
+	 */
+	public BTree(BTreeFile file, CacheOptions options)
+	{
 		try
 		{
-			this.nodeCount = in.readInt();
-			this.degree = in.readInt();
-			this.sequenceLength = in.readInt();
+			readMetaData(file);
 
 			if (!isEmpty())
 			{
-				this.root = new BTreeNode(file.readNodeData(nodeCount - 1), this.degree);
+				this.root = new BTreeNode(file.readNodeData(nodeCount - 1), format);
 			}
-			isUsingCache = false;
 			this.file = file;
+			initCache(options);
+			loadHotSet();
 		}
 		catch (IOException e)
 		{
@@ -93,10 +113,22 @@ public class BTree
 	 */
 	public BTree(BTreeFile file, int sequenceLength, int degree)
 	{
-		init(degree, 0, sequenceLength, false);
-		this.file = file;
+		this(file, sequenceLength, NodeFormat.fixed(degree));
+	}
 
-		file.writeMetaData(this);
+	/**
+	 * Init Btree from empty BTreeFile
+	 * 
+	 * @param file
+	 *            empty file
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @param format
+	 *            the storage format of the nodes
+	 */
+	public BTree(BTreeFile file, int sequenceLength, NodeFormat format)
+	{
+		this(file, sequenceLength, format, (CacheOptions) null);
 	}
 
 	/**
@@ -113,26 +145,289 @@ public class BTree
 	 */
 	public BTree(BTreeFile file, int sequenceLength, int degree, int cacheSize)
 	{
-		init(degree, 0, sequenceLength, true);
-		this.file = file;
+		this(file, sequenceLength, NodeFormat.fixed(degree), cacheSize);
+	}
+
+	/**
+	 * Init BTree from empty BTreeFile with cache
+	 * 
+	 * @param file
+	 *            empty file
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @param format
+	 *            the storage format of the nodes
+	 * @param cacheSize
+	 *            Limit on the size of the cache
+	 */
+	public BTree(BTreeFile file, int sequenceLength, NodeFormat format, int cacheSize)
+	{
+		this(file, sequenceLength, format, new CacheOptions(cacheSize));
+	}
 
-		cache = new Cache<>(cacheSize);
+	/**
+	 * Init BTree from empty BTreeFile with a configured cache
+	 * 
+	 * @param file
+	 *            empty file
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @param format
+	 *            the storage format of the nodes
+	 * @param options
+	 *            the cache settings, null for no cache
+	 */
+	public BTree(BTreeFile file, int sequenceLength, NodeFormat format, CacheOptions options)
+	{
+		init(format, 0, sequenceLength, false);
+		this.file = file;
+		initCache(options);
 
 		file.writeMetaData(this);
 	}
 
+	/**
+	 * Creates an empty BTree that is built entirely in memory. Nodes are kept in
+	 * an arena indexed by location and the file is not touched until close,
+	 * which writes every node in order of location in one sequential pass. The
+	 * file is the same as one built on disk
+	 * 
+	 * @param file
+	 *            empty file
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @param format
+	 *            the storage format of the nodes
+	 * @return the tree
+	 */
+	public static BTree inMemory(BTreeFile file, int sequenceLength, NodeFormat format)
+	{
+		BTree tree = new BTree(file, sequenceLength, format);
+		tree.arena = new BTreeNode[16];
+		return tree;
+	}
+
+	/**
+	 * Opens a tree from an existing BTreeFile to add keys to. The root is taken
+	 * out of the file and held in memory, as in a tree being built, so the nodes
+	 * added take its place and the ones after it, and close writes the root last
+	 * again
+	 * 
+	 * @param file
+	 *            an existing BTreeFile
+	 * @param options
+	 *            the cache settings, null for no cache
+	 * @return the tree
+	 */
+	public static BTree openForAppend(BTreeFile file, CacheOptions options)
+	{
+		BTree tree = new BTree(file, options);
+		if (tree.isEmpty())
+		{
+			return tree;
+		}
+
+		if (!tree.root.isLeafNode())
+		{ // the children of a root held in memory point to it by -1
+			for (int i = 0; i < tree.root.getChildCount(); ++i)
+			{
+				BTreeNode child = tree.getNode(tree.root.getChild(i));
+				child.setParent(-1);
+				tree.writeNode(child);
+			}
+		}
+		file.removeLastNode();
+		tree.root.setLocation(-1);
+		return tree;
+	}
+
 	// public methods
 
+	/**
+	 * Makes the root written by a BTreeBulkLoader the root of this empty tree
+	 *
+	 * @param root
+	 *            the root, written at the last location in file
+	 * @param nodeCount
+	 *            how many nodes were written, root included
+	 */
+	public void attachBulkLoadedRoot(BTreeNode root, int nodeCount)
+	{
+		if (!isEmpty())
+		{
+			throw new IllegalStateException("Only an empty tree can be bulk loaded");
+		}
+
+		this.root = root;
+		this.nodeCount = nodeCount;
+	}
+
+	/**
+	 * Turns B* style inserts on or off. A full node first moves keys to a sibling
+	 * with room, and when the sibling is full too the two are split into three
+	 * nodes each about two thirds full, so nodes are fuller than with halving
+	 * splits. The root still splits in two, and so does every node of a buffered
+	 * tree
+	 * 
+	 * @param isSharingSplits
+	 *            true to share keys with siblings before splitting
+	 */
+	public void setSharingSplits(boolean isSharingSplits)
+	{
+		this.isSharingSplits = isSharingSplits;
+	}
+
+	/**
+	 * Moves every message pending in the buffers of a buffered tree down to the
+	 * nodes holding its key, so every node holds the final count of its keys.
+	 * Called by close and before the tree is iterated or dumped
+	 */
+	public void flushBuffers()
+	{
+		if (!format.isBuffered() || isEmpty())
+		{
+			return;
+		}
+
+		while (!drain(root))
+		{ // the root is full and a child of it has to split
+			split(root, null);
+		}
+	}
+
 	/**
 	 * Writes the contents of the node cache to disk
 	 */
 	public void writeCacheToDisk()
 	{
-		while (!cache.isEmpty())
+		if (pool != null)
+		{
+			pool.flush();
+			return;
+		}
+
+		while (cache != null && !cache.isEmpty())
 		{
 			BTreeNode cur = (cache.removeFirst()).getCacheNode();
-			file.writeNodeData(cur);
+			writeNodeData(cur);
+		}
+
+		if (flusher != null)
+		{
+			flusher.flush();
+		}
+	}
+
+	/**
+	 * Loads the top levels of the tree into memory, where they stay until the
+	 * tree is closed. Pinned nodes are never evicted and bypass the node cache, so
+	 * the cache only holds deeper levels. Levels are read breadth first in order
+	 * of location until the level limit or the byte budget is reached, so the
+	 * last level may only be pinned in part
+	 * 
+	 * @param levels
+	 *            how many levels to pin, counting the root
+	 * @param byteBudget
+	 *            the most bytes the pinned nodes, root included, may take up on
+	 *            the Java heap, 0 for no limit
+	 * @return how many nodes were pinned besides the root
+	 */
+	public int pinTopLevels(int levels, long byteBudget)
+	{
+		if (levels < 1)
+		{
+			throw new IllegalArgumentException("At least the root level is pinned");
+		}
+
+		// pinned nodes are read from file, which must be current
+		if (pool != null)
+		{
+			pool.flush();
+		}
+
+		ArrayList<BTreeNode> pinned = new ArrayList<>();
+		long byteSize = root == null ? 0 : root.getMemoryFootprint();
+		int level = 1;
+		BTreeNode[] parents = root == null ? new BTreeNode[0] : new BTreeNode[] { root };
+		boolean isOverBudget = false;
+
+		while (level < levels && !isOverBudget && parents.length > 0 && !parents[0].isLeafNode())
+		{
+			int childCount = 0;
+			for (BTreeNode parent : parents)
+			{
+				childCount += parent.getChildCount();
+			}
+
+			int[] children = new int[childCount];
+			childCount = 0;
+			for (BTreeNode parent : parents)
+			{
+				for (int i = 0; i < parent.getChildCount(); ++i)
+				{
+					children[childCount++] = parent.getChild(i);
+				}
+			}
+			Arrays.sort(children); // read the level sequentially
+
+			ArrayList<BTreeNode> levelNodes = new ArrayList<>(children.length);
+			for (int location : children)
+			{
+				// a cached node moves to the pinned nodes, so there is only one copy
+				CacheObject cached = cache == null ? null : cache.removeObject(new CacheObject(location));
+				BTreeNode node;
+				if (cached != null)
+				{
+					node = cached.getCacheNode();
+					writeNodeData(node);
+				}
+				else
+				{
+					node = new BTreeNode(readNodeData(location), format);
+				}
+				if (byteBudget > 0 && byteSize + node.getMemoryFootprint() > byteBudget)
+				{
+					isOverBudget = true;
+					break;
+				}
+				byteSize += node.getMemoryFootprint();
+				levelNodes.add(node);
+			}
+
+			pinned.addAll(levelNodes);
+			if (!levelNodes.isEmpty())
+			{
+				level++;
+			}
+			parents = levelNodes.toArray(new BTreeNode[0]);
+		}
+
+		// children of a level are read in order of location, sort across levels
+		pinned.sort((a, b) -> Integer.compare(a.getLocation(), b.getLocation()));
+		pinnedNodes = pinned.toArray(new BTreeNode[0]);
+		pinnedLocations = new int[pinnedNodes.length];
+		for (int i = 0; i < pinnedNodes.length; ++i)
+		{
+			pinnedLocations[i] = pinnedNodes[i].getLocation();
+		}
+		pinnedLevels = level;
+		pinnedByteSize = byteSize;
+
+		return pinnedNodes.length;
+	}
+
+	/**
+	 * @return a description of the pinned top levels, null if only the root is
+	 *         pinned
+	 */
+	public String getPinnedReport()
+	{
+		if (pinnedNodes.length == 0)
+		{
+			return null;
 		}
+		return "pinned: " + (pinnedNodes.length + 1) + " nodes in " + pinnedLevels + " levels, "
+				+ ByteSize.toString(pinnedByteSize);
 	}
 
 	/**
@@ -153,6 +448,7 @@ public class BTree
 		boolean isFound = false;
 		boolean atEnd = false;
 		int tempLocation = -1; // temp variable to store location if the object was found
+		int pending = 0; // count of the key in message buffers along the path
 		BTreeNode current = root;
 
 		while (!isFound && !atEnd)
@@ -167,11 +463,18 @@ public class BTree
 			// did not find the object in the current node
 			else
 			{
+				pending += current.getPendingCount(key);
 				// at the end of the true
 				if (result.location == -1)
 				{
 					atEnd = true;
 				}
+				// below the pinned levels the pages of the pool are searched in place
+				else if (pool != null && pool.canSearchInPlace()
+						&& Arrays.binarySearch(pinnedLocations, result.location) < 0)
+				{
+					return searchPool(result.location, key);
+				}
 				// update the current to the next node
 				else
 				{
@@ -181,11 +484,106 @@ public class BTree
 		}
 		if (!isFound)
 		{
-			return null;
+			return pending == 0 ? null : new TreeObject(key, pending);
+		}
+		if (pending != 0)
+		{
+			return new TreeObject(key, current.getObject(tempLocation).getFrequency() + pending);
 		}
 		return current.getObject(tempLocation);
 	}
 
+	/**
+	 * Searches for many keys at once. The descents of the keys are interleaved
+	 * one level at a time: the nodes the keys need next are first looked up in
+	 * memory, then the ones that are not are read concurrently by a pool of I/O
+	 * threads, so the latencies of the reads overlap instead of adding up. The
+	 * results are the same as calling search for each key
+	 * 
+	 * @param keys
+	 *            the keys to search for, all of them are in flight at once
+	 * @param ioThreadCount
+	 *            how many node reads may be in progress at once
+	 * @return the tree object with the matching key for each key, null where
+	 *         nothing is found
+	 */
+	public TreeObject[] search(long[] keys, int ioThreadCount)
+	{
+		TreeObject[] results = new TreeObject[keys.length];
+		if (isEmpty())
+		{
+			return results;
+		}
+
+		startIoThreads(ioThreadCount);
+
+		BTreeNode[] current = new BTreeNode[keys.length];
+		int[] next = new int[keys.length]; // location each key descends to
+		int[] active = new int[keys.length]; // keys still descending
+		int[] pending = new int[keys.length]; // count of each key in message buffers along its path
+		int activeCount = keys.length;
+		for (int i = 0; i < keys.length; ++i)
+		{
+			current[i] = root;
+			active[i] = i;
+		}
+
+		while (activeCount > 0)
+		{
+			// step every key through its node, issuing reads for missing children
+			HashMap<Integer, Future<byte[]>> reads = new HashMap<>();
+			int remaining = 0;
+			for (int i = 0; i < activeCount; ++i)
+			{
+				int k = active[i];
+				BTreeNode.SearchResult result = current[k].searchNode(new TreeObject(keys[k]));
+
+				if (result.wasFound)
+				{
+					results[k] = current[k].getObject(result.location);
+					if (pending[k] != 0)
+					{
+						results[k] = new TreeObject(keys[k], results[k].getFrequency() + pending[k]);
+					}
+				}
+				else if (result.location != -1)
+				{
+					pending[k] += current[k].getPendingCount(keys[k]);
+					active[remaining++] = k;
+					next[k] = result.location;
+					current[k] = reads.containsKey(result.location) ? null : getNodeInMemory(result.location);
+					if (current[k] == null && !reads.containsKey(result.location))
+					{
+						reads.put(result.location, readNodeAsync(result.location));
+					}
+				}
+				else if (pending[k] != 0)
+				{ // only pending in the buffers above the leaf
+					results[k] = new TreeObject(keys[k], pending[k]);
+				}
+			}
+			activeCount = remaining;
+
+			// collect the reads, each read node is cached once
+			HashMap<Integer, BTreeNode> loaded = new HashMap<>();
+			for (int i = 0; i < activeCount; ++i)
+			{
+				int k = active[i];
+				if (current[k] == null)
+				{
+					current[k] = loaded.get(next[k]);
+				}
+				if (current[k] == null)
+				{
+					current[k] = installNode(next[k], reads.get(next[k]));
+					loaded.put(next[k], current[k]);
+				}
+			}
+		}
+
+		return results;
+	}
+
 	/**
 	 * Adds a key to the BTree
 	 * 
@@ -200,6 +598,10 @@ public class BTree
 		{
 			createRootNode(obj, -1, -1);
 		}
+		else if (format.isBuffered() && !root.isLeafNode())
+		{
+			addMessage(key);
+		}
 		else
 		{
 			BTreeNode parent = null;
@@ -211,7 +613,8 @@ public class BTree
 
 				if (current.isFull() && current != parent)
 				{
-					split(current, parent);
+					if (!isSharingSplits || parent == null || !shareWithSibling(current, parent))
+						split(current, parent);
 					current = parent == null ? root : parent;
 				}
 				else
@@ -248,6 +651,11 @@ public class BTree
 	 */
 	public void close()
 	{
+		flushBuffers();
+		if (hotSetFile != null)
+		{
+			saveHotSet();
+		}
 
 		if (isUsingCache)
 		{
@@ -262,7 +670,7 @@ public class BTree
 			}
 			else
 			{
-				file.appendNodeData(root);
+				appendNode(root);
 			}
 
 			if (!root.isLeafNode())
@@ -275,6 +683,28 @@ public class BTree
 				}
 			}
 		}
+		if (pool != null)
+		{
+			pool.flush();
+		}
+		if (arena != null)
+		{ // the root was appended last, as in a file built on disk
+			for (int i = 0; i < arenaSize; ++i)
+			{
+				file.appendNodeData(arena[i]);
+			}
+			arena = null;
+		}
+
+		if (ioThreads != null)
+		{
+			ioThreads.shutdown();
+		}
+		if (flusher != null)
+		{
+			flusher.close();
+		}
+
 		file.writeMetaData(this);
 		file.close();
 	}
@@ -306,6 +736,44 @@ public class BTree
 		return degree;
 	}
 
+	/**
+	 * @return the storage format of the nodes in the BTree
+	 */
+	public NodeFormat getFormat()
+	{
+		return format;
+	}
+
+	/**
+	 * @return a description of how much memory the node cache takes up, null if
+	 *         the tree has no cache
+	 */
+	public String getCacheReport()
+	{
+		if (pool != null)
+		{
+			long lookups = pool.getHitCount() + pool.getMissCount();
+			return String.format("buffer pool: %d of %d pages used, %s, hit ratio %.1f%%", pool.getUsedFrameCount(),
+					pool.getFrameCount(), ByteSize.toString(pool.getByteSize()),
+					lookups == 0 ? 0.0 : 100.0 * pool.getHitCount() / lookups);
+		}
+		if (cache == null)
+		{
+			return null;
+		}
+
+		String writeBack = flusher == null ? ""
+				: ", " + flusher.getWrittenCount() + " nodes written back in " + flusher.getWriteCount() + " writes";
+		long lookups = cacheHits + cacheMisses;
+		String hitRatio = String.format(", hit ratio %.1f%%", lookups == 0 ? 0.0 : 100.0 * cacheHits / lookups);
+		if (cache.getByteBudget() > 0)
+		{
+			return "cache: " + cache.size() + " nodes, " + ByteSize.toString(cache.getByteSize()) + " of "
+					+ ByteSize.toString(cache.getByteBudget()) + hitRatio + writeBack;
+		}
+		return "cache: " + cache.size() + " of " + cache.getCapacity() + " nodes" + hitRatio + writeBack;
+	}
+
 	/**
 	 * @return true if the BTree is empty, false otherwise
 	 */
@@ -321,17 +789,42 @@ public class BTree
 	 */
 	public byte[] getMetaDataBytes() throws IOException
 	{
-		ByteArrayOutputStream ary = new ByteArrayOutputStream(METADATA_BYTE_SIZE);
+		ByteArrayOutputStream ary = new ByteArrayOutputStream(getMetaDataByteSize(format));
 		DataOutputStream out = new DataOutputStream(ary);
 
 		out.writeInt(nodeCount);
 		out.writeInt(degree);
-		out.writeInt(sequenceLength);
+		out.writeInt(sequenceLength | (format.getFlags() << 16)); // flags in upper half
+
+		if (!format.isLegacy())
+		{
+			out.writeInt(format.getPageSize());
+		}
+
+		// pad an aligned header to its block
+		while (ary.size() < getMetaDataByteSize(format))
+		{
+			out.write(0);
+		}
 
 		return ary.toByteArray();
 
 	}
 
+	/**
+	 * @param format
+	 *            the storage format of the nodes
+	 * @return how many bytes the BTree meta data takes up for the format
+	 */
+	public static int getMetaDataByteSize(NodeFormat format)
+	{
+		if (format.isAligned())
+		{ // meta data takes up the whole first block
+			return format.getPageSize();
+		}
+		return format.isLegacy() ? METADATA_BYTE_SIZE : EXTENDED_METADATA_BYTE_SIZE;
+	}
+
 	/**
 	 * Dumps the tree meta data and sequential node data to file
 	 * 
@@ -345,6 +838,7 @@ public class BTree
 			out.println("nodeCount=" + nodeCount);
 			out.println("degree=" + degree);
 			out.println("sequenceLength=" + sequenceLength);
+			out.println("format=" + format);
 			out.println();
 
 			for (int i = 0; i < nodeCount - 1; ++i)
@@ -375,8 +869,21 @@ public class BTree
 	 */
 	public void dumpInOrderToFile(String fileName)
 	{
+		flushBuffers();
 		try (PrintWriter out = new PrintWriter(new File(fileName)))
 		{
+			if (root == null)
+			{ // an empty tree has no root until a key is added
+				return;
+			}
+			if (format.isBPlusTree())
+			{ // the objects are all in the leaves
+				for (TreeObject obj : this)
+				{
+					out.println(DNAUtil.convertLongToString(obj.getKey(), sequenceLength) + ": " + obj.getFrequency());
+				}
+				return;
+			}
 
 			BTreeNode current = root;
 			Stack<Integer> childLocs = new Stack<>();
@@ -427,11 +934,31 @@ public class BTree
 	// private methods
 
 	/**
-	 * returns a string of each key in a node on a newline
+	 * Searches the rest of the path to a key in the pages of the buffer pool,
+	 * without decoding the nodes on the way
 	 * 
-	 * @param node
-	 *            the node to get string of
-	 * @return the string
+	 * @param location
+	 *            location of the node to continue the search in
+	 * @param key
+	 *            the key to search for
+	 * @return the tree object with the matching key, null if nothing is found
+	 */
+	private TreeObject searchPool(int location, long key)
+	{
+		long result;
+		while ((result = pool.searchNode(location, key)) < 0)
+		{
+			location = (int) (-1 - result);
+		}
+		return result == 0 ? null : new TreeObject(key, (int) result);
+	}
+
+	/**
+	 * returns a string of each key in a node on a newline
+	 * 
+	 * @param node
+	 *            the node to get string of
+	 * @return the string
 	 */
 	private String getNodeContents(BTreeNode node)
 	{
@@ -460,13 +987,26 @@ public class BTree
 	{
 		BTreeNode retVal = null;
 
+		int pinned;
 		if (location == -1)
 		{
 			retVal = root;
 		}
+		else if (arena != null)
+		{
+			retVal = arena[location];
+		}
+		else if ((pinned = Arrays.binarySearch(pinnedLocations, location)) >= 0)
+		{
+			retVal = pinnedNodes[pinned];
+		}
+		else if (pool != null)
+		{
+			retVal = pool.getNode(location);
+		}
 		else if (!isUsingCache)
 		{
-			retVal = new BTreeNode(file.readNodeData(location), degree);
+			retVal = new BTreeNode(readNodeData(location), format);
 		}
 		else
 		{
@@ -474,20 +1014,203 @@ public class BTree
 
 			if (cObj == null)
 			{
-				retVal = new BTreeNode(file.readNodeData(location), degree);
-
-				CacheObject removed = cache.addObject(new CacheObject(retVal));
-				if (removed != null)
-					file.writeNodeData(removed.getCacheNode());
+				cacheMisses++;
+				retVal = new BTreeNode(readNodeData(location), format);
+				addToCache(retVal);
 			}
 			else
 			{
+				cacheHits++;
 				retVal = cObj.getCacheNode();
 			}
 		}
 		return retVal;
 	}
 
+	/**
+	 * Reads the data of a node, from the write back queue if it has not been
+	 * written yet
+	 * 
+	 * @param location
+	 *            location of the node in file
+	 * @return the node data
+	 */
+	private byte[] readNodeData(int location)
+	{
+		byte[] pending = flusher == null ? null : flusher.getPending(location);
+		return pending != null ? pending : file.readNodeData(location);
+	}
+
+	/**
+	 * Writes a node to file, through the write back queue if there is one
+	 * 
+	 * @param node
+	 *            the node to write, its location must be set
+	 */
+	private void writeNodeData(BTreeNode node)
+	{
+		if (flusher != null)
+		{
+			flusher.enqueue(node);
+		}
+		else
+		{
+			file.writeNodeData(node);
+		}
+	}
+
+	/**
+	 * Adds a node read from file to the cache, writing back whatever it pushes
+	 * out
+	 * 
+	 * @param node
+	 *            the node to cache
+	 */
+	private void addToCache(BTreeNode node)
+	{
+		CacheObject removed = cache.addObject(new CacheObject(node));
+		if (removed != null)
+			writeNodeData(removed.getCacheNode());
+
+		while ((removed = cache.removeOverBudget()) != null)
+			writeNodeData(removed.getCacheNode());
+	}
+
+	/**
+	 * Returns the node at a location if it is in memory, without reading the file
+	 * 
+	 * @param location
+	 *            location of the node in file
+	 * @return the node, null if it has to be read from file
+	 */
+	private BTreeNode getNodeInMemory(int location)
+	{
+		if (arena != null)
+		{
+			return arena[location];
+		}
+
+		int pinned = Arrays.binarySearch(pinnedLocations, location);
+		if (pinned >= 0)
+		{
+			return pinnedNodes[pinned];
+		}
+		if (pool != null)
+		{
+			return pool.getNodeIfPresent(location);
+		}
+		if (isUsingCache)
+		{
+			CacheObject cObj = cache.getObject(new CacheObject(location));
+			if (cObj != null)
+			{
+				cacheHits++;
+				return cObj.getCacheNode();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Starts the I/O threads of batch searches, or restarts them with a different
+	 * thread count
+	 * 
+	 * @param count
+	 *            how many threads to run
+	 */
+	private void startIoThreads(int count)
+	{
+		if (count <= 0)
+		{
+			throw new IllegalArgumentException("I/O thread count must be greater than zero");
+		}
+
+		if (ioThreads != null && ioThreadCount != count)
+		{
+			ioThreads.shutdown();
+			ioThreads = null;
+		}
+
+		if (ioThreads == null)
+		{
+			ioThreads = Executors.newFixedThreadPool(count, r ->
+			{
+				Thread thread = new Thread(r, "btree-io");
+				thread.setDaemon(true);
+				return thread;
+			});
+			ioThreadCount = count;
+			ioBuffers = ThreadLocal.withInitial(() -> file.isDirect()
+					? file.allocateAlignedBuffer(file.getNodeDataLength())
+					: ByteBuffer.allocate(file.getNodeDataLength()));
+		}
+	}
+
+	/**
+	 * Reads the data of a node on an I/O thread
+	 * 
+	 * @param location
+	 *            location of the node in file
+	 * @return the pending node data
+	 */
+	private Future<byte[]> readNodeAsync(int location)
+	{
+		return ioThreads.submit(() ->
+		{
+			byte[] pending = flusher == null ? null : flusher.getPending(location);
+			if (pending != null)
+			{
+				return pending;
+			}
+
+			ByteBuffer buffer = ioBuffers.get();
+			buffer.clear();
+			file.readNodeData(location, buffer);
+
+			byte[] data = new byte[buffer.capacity()];
+			buffer.flip();
+			buffer.get(data);
+			return data;
+		});
+	}
+
+	/**
+	 * Waits for a node read by an I/O thread and puts it in the cache or buffer
+	 * pool. Falls back to reading the node on this thread if the read failed
+	 * 
+	 * @param location
+	 *            location of the node in file
+	 * @param read
+	 *            the pending node data
+	 * @return the node
+	 */
+	private BTreeNode installNode(int location, Future<byte[]> read)
+	{
+		byte[] data;
+		try
+		{
+			data = read.get();
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			System.err.println("Unable to read node data at position " + location);
+			return getNode(location);
+		}
+
+		if (pool != null)
+		{
+			pool.install(location, data);
+		}
+
+		BTreeNode node = new BTreeNode(data, format);
+		if (isUsingCache)
+		{
+			cacheMisses++;
+			addToCache(node);
+		}
+		return node;
+	}
+
 	/**
 	 * Writes a node to file. Handles whether or not the tree is using a cache
 	 * 
@@ -496,31 +1219,261 @@ public class BTree
 	 */
 	private void writeNode(BTreeNode node)
 	{
-		if (!isUsingCache)
+		if (arena != null)
+		{ // a split may replace the node at a location
+			arena[node.getLocation()] = node;
+		}
+		else if (pool != null)
 		{
-			file.writeNodeData(node);
+			pool.writeNode(node);
+		}
+		else if (!isUsingCache)
+		{
+			writeNodeData(node);
 		}
 		else
 		{
 			CacheObject obj = cache.getObject(new CacheObject(node));
 			if (obj == null)
 			{
-				file.writeNodeData(node);
+				writeNodeData(node);
+			}
+
+			// the node may have grown since it was weighed
+			CacheObject removed;
+			while ((removed = cache.removeOverBudget()) != null)
+				writeNodeData(removed.getCacheNode());
+		}
+	}
+
+	/**
+	 * Writes a new node to the end of the file, setting its location
+	 * 
+	 * @param node
+	 *            the node to append
+	 */
+	private void appendNode(BTreeNode node)
+	{
+		if (arena != null)
+		{
+			if (arenaSize == arena.length)
+			{
+				arena = Arrays.copyOf(arena, arenaSize * 2);
 			}
+			node.setLocation(arenaSize);
+			arena[arenaSize++] = node;
+		}
+		else if (pool != null)
+		{
+			pool.appendNode(node);
+		}
+		else
+		{
+			file.appendNodeData(node);
 		}
 	}
 
+	/**
+	 * Sets up the node cache. Nodes are cached in an off-heap buffer pool in slab
+	 * mode and whenever the file uses direct I/O, since the pool is then the only
+	 * place nodes are cached
+	 * 
+	 * @param options
+	 *            the cache settings, null for no cache
+	 */
+	private void initCache(CacheOptions options)
+	{
+		hotSetFile = options == null ? null : options.getHotSetFile();
+		if (options != null && options.getWriteBackQueueSize() > 0 && options.getMode() == CacheOptions.Mode.LIST
+				&& !file.isDirect())
+		{
+			flusher = new NodeFlusher(file, options.getWriteBackQueueSize());
+		}
+
+		if (file.isDirect() || (options != null && options.getMode() == CacheOptions.Mode.SLAB))
+		{
+			int frameCount = BufferPool.DEFAULT_FRAME_COUNT;
+			if (options != null)
+			{
+				frameCount = options.getMemoryBudget() > 0
+						? BufferPool.framesForBudget(options.getMemoryBudget(), format.getPageSize())
+						: options.getSize();
+			}
+			pool = new BufferPool(file, format, frameCount);
+			isUsingCache = false;
+		}
+		else if (options != null && options.getPolicy() == CacheOptions.Policy.LRU)
+		{
+			if (options.getMemoryBudget() > 0)
+			{
+				cache = new Cache<>(options.getMemoryBudget(), CacheObject::getMemoryFootprint);
+			}
+			else
+			{
+				cache = new Cache<>(options.getSize());
+			}
+			isUsingCache = true;
+		}
+		else if (options != null)
+		{
+			// the other policies count nodes, size a budget by full nodes
+			int capacity = options.getSize();
+			if (options.getMemoryBudget() > 0)
+			{
+				long nodeFootprint = CacheObject.HEAP_BYTE_SIZE + BTreeNode.getMaxMemoryFootprint(format);
+				capacity = (int) Math.max(1, Math.min(options.getMemoryBudget() / nodeFootprint, Integer.MAX_VALUE));
+			}
+
+			switch (options.getPolicy())
+			{
+			case TWO_QUEUE:
+				cache = new TwoQueueCache<>(capacity, CacheObject::getLocation);
+				break;
+			case CLOCK_PRO:
+				cache = new ClockProCache<>(capacity, CacheObject::getLocation);
+				break;
+			default:
+				cache = new TinyLfuCache<>(capacity, CacheObject::getLocation);
+				break;
+			}
+			isUsingCache = true;
+		}
+		else
+		{
+			isUsingCache = false;
+		}
+	}
+
+	/**
+	 * Prefetches the nodes listed in the hot set sidecar into the cache. The
+	 * hottest nodes the cache can hold are read in order of location, so the
+	 * reads are sequential where the nodes are close together. Nothing is loaded
+	 * if there is no sidecar yet
+	 */
+	private void loadHotSet()
+	{
+		if (hotSetFile == null || isEmpty() || !new File(hotSetFile).exists())
+		{
+			return;
+		}
+
+		int[] locations;
+		int count = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hotSetFile))))
+		{
+			int limit = pool != null ? pool.getFrameCount() : cache.getCapacity();
+			int listed = in.readInt();
+			locations = new int[Math.max(0, Math.min(listed, limit))];
+			for (int i = 0; i < listed && count < locations.length; ++i)
+			{
+				int location = in.readInt();
+				// the root is held separately, locations past the end are stale
+				if (location >= 0 && location < nodeCount - 1)
+				{
+					locations[count++] = location;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to read hot set file " + hotSetFile);
+			return;
+		}
+
+		Arrays.sort(locations, 0, count);
+		for (int i = 0; i < count; ++i)
+		{
+			if (pool != null)
+			{
+				pool.prefetch(locations[i]);
+			}
+			else
+			{
+				BTreeNode node = new BTreeNode(readNodeData(locations[i]), format);
+				// prefetched nodes are clean, anything pushed out need not be written
+				if (cache.addObject(new CacheObject(node)) != null || cache.removeOverBudget() != null)
+				{
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the locations of the nodes in the cache to the hot set sidecar,
+	 * hottest first. A heap cache is written to disk and emptied on the way
+	 */
+	private void saveHotSet()
+	{
+		int[] locations;
+		if (pool != null)
+		{
+			locations = pool.getLocations();
+		}
+		else if (cache != null)
+		{
+			// the cache is drained coldest first
+			locations = new int[cache.size()];
+			for (int i = locations.length - 1; i >= 0; --i)
+			{
+				BTreeNode cur = cache.removeFirst().getCacheNode();
+				locations[i] = cur.getLocation();
+				writeNodeData(cur);
+			}
+		}
+		else
+		{
+			return;
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(hotSetFile))))
+		{
+			out.writeInt(locations.length);
+			for (int location : locations)
+			{
+				out.writeInt(location);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to write hot set file " + hotSetFile);
+		}
+	}
+
+	/**
+	 * Reads the tree meta data from the beginning of the file
+	 * 
+	 * @param file
+	 *            the file to read from
+	 * @throws IOException
+	 *             if the meta data could not be read
+	 */
+	private void readMetaData(BTreeFile file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(file.readMetaData()));
+
+		this.nodeCount = in.readInt();
+		this.degree = in.readInt();
+		int lengthAndFlags = in.readInt();
+		this.sequenceLength = lengthAndFlags & 0xFFFF;
+
+		int flags = lengthAndFlags >>> 16;
+		int pageSize = flags == 0 ? 0 : in.readInt();
+		this.format = NodeFormat.fromMetaData(degree, flags, pageSize);
+	}
+
 	/**
 	 * Inits the objects variables
 	 * 
-	 * @param degree
+	 * @param format
 	 * @param nodeCount
 	 * @param sequenceLength
 	 * @param isUsingCache
 	 */
-	private void init(int degree, int nodeCount, int sequenceLength, boolean isUsingCache)
+	private void init(NodeFormat format, int nodeCount, int sequenceLength, boolean isUsingCache)
 	{
-		this.degree = degree;
+		this.format = format;
+		this.degree = format.getDegree();
 		this.nodeCount = nodeCount;
 		this.sequenceLength = sequenceLength;
 		this.isUsingCache = isUsingCache;
@@ -545,23 +1498,25 @@ public class BTree
 		if (current == root)
 		{
 			if (current.hasLocation())
-			{
+			{ // a root read from file keeps its location
+				left.setLocation(current.getLocation());
 				writeNode(left);
 			}
 			else
 			{
-				file.appendNodeData(left); // append
+				appendNode(left); // append
 			}
 
-			file.appendNodeData(right); // append
+			appendNode(right); // append
 			createRootNode(current.middleFromSplit(), left.getLocation(), right.getLocation());
 		}
 		else
 		{ // handle non root split
 			left.setLocation(current.getLocation());
 			writeNode(left); // by node location
-			file.appendNodeData(right);// append
+			appendNode(right);// append
 			int index = parent.addObject(current.middleFromSplit());
+			parent.absorbMessage(index); // the parent may hold messages for the key that moved up
 
 			// update parent child pointers
 			parent.setChild(parent.left(index), left.getLocation());
@@ -573,30 +1528,331 @@ public class BTree
 
 		}
 
+		if (format.isBPlusTree() && current.isLeafNode())
+		{
+			linkSplitLeaves(current, left, right);
+		}
+
 		// update right node children and parent pointers
 		if (!right.isLeafNode())
 		{
-			int childCount = right.getNumOfKeys() + 1;
-
 			// update children
-			for (int i = 0; i < childCount; ++i)
+			for (int i = 0; i < right.getChildCount(); ++i)
 			{
 				BTreeNode child = getNode(right.getChild(i));
 				child.setParent(right.getLocation());
 				writeNode(child);
+			}
+
+			// update left only if current was root with no location, the halves
+			// differ in size when a full node holds an even number of keys
+			for (int i = 0; !current.hasLocation() && i < left.getChildCount(); ++i)
+			{
+				BTreeNode child = getNode(left.getChild(i));
+				child.setParent(left.getLocation());
+				writeNode(child);
+			}
+		}
+
+		nodeCount++;
+
+	}
+
+	/**
+	 * Adds a key to a buffered tree as a message in the root buffer. When the
+	 * buffer is full, the messages for the child with the most of them are moved
+	 * down to it first
+	 * 
+	 * @param key
+	 *            the key to be added
+	 */
+	private void addMessage(long key)
+	{
+		while (!deliver(root, key, 1))
+		{
+			if (root.isFull())
+			{ // moving messages down may split a child, which needs room here
+				split(root, null);
+			}
+			else
+			{
+				flush(root, root.getFullestChild());
+			}
+		}
+	}
+
+	/**
+	 * Applies a count to a key in a node: to the object if the node holds the key,
+	 * as a new object in a leaf, or as a message in the buffer of an inner node
+	 * 
+	 * @param node
+	 *            the node to apply the count in
+	 * @param key
+	 *            the key
+	 * @param count
+	 *            the count to add to the key
+	 * @return false if the node is full, or its buffer is
+	 */
+	private boolean deliver(BTreeNode node, long key, int count)
+	{
+		int index = node.rank(key);
+		if (index < node.getNumOfKeys() && node.getObject(index).getKey() == key)
+		{
+			node.getObject(index).addFrequency(count);
+			return true;
+		}
+		if (!node.isLeafNode())
+		{
+			return node.addMessage(key, count);
+		}
+		if (node.isFull())
+		{
+			return false;
+		}
+		node.addObject(new TreeObject(key, count));
+		return true;
+	}
 
-				// update left only if current was root with no location
-				if (!current.hasLocation())
+	/**
+	 * Moves the messages of a node for one of its children down in a batch. A
+	 * child that fills up is split, and a child whose buffer fills up first moves
+	 * its own messages down. Stops early if a child has to split while the node
+	 * is full, so its parent can split it first
+	 * 
+	 * @param node
+	 *            an inner node of a buffered tree
+	 * @param child
+	 *            index of the child
+	 * @return true if every message for the child was moved, false if the node is
+	 *         full and has to be split
+	 */
+	private boolean flush(BTreeNode node, int child)
+	{
+		boolean isDone = true;
+		int last = child; // the halves of a split child both get messages
+		while (child <= last)
+		{
+			int from = node.getMessageBound(child);
+			int to = node.getMessageBound(child + 1);
+			if (from == to)
+			{
+				child++;
+				continue;
+			}
+
+			BTreeNode next = getNode(node.getChild(child));
+			int moved = from;
+			while (moved < to && deliver(next, node.getMessageKey(moved), node.getMessageAmount(moved)))
+			{
+				moved++;
+			}
+			node.removeMessages(from, moved);
+			writeNode(next);
+
+			if (moved < to && next.isFull())
+			{
+				if (node.isFull())
 				{
-					child = getNode(left.getChild(i));
-					child.setParent(left.getLocation());
-					writeNode(child);
+					isDone = false;
+					break;
 				}
+				split(next, node);
+				last++;
+			}
+			else if (moved < to)
+			{ // the buffer of the child is full, it either makes room or fills up
+				flush(next, next.getFullestChild());
 			}
 		}
 
-		nodeCount++;
+		if (node != root)
+		{
+			writeNode(node);
+		}
+		return isDone;
+	}
+
+	/**
+	 * Moves every message in the buffers of a subtree down to the leaves or to the
+	 * nodes holding their keys
+	 * 
+	 * @param node
+	 *            the root of the subtree
+	 * @return true if the buffers are empty, false if the node is full and one of
+	 *         its children has to split
+	 */
+	private boolean drain(BTreeNode node)
+	{
+		if (node.isLeafNode())
+		{
+			return true;
+		}
+
+		for (int child = 0; child < node.getChildCount(); ++child)
+		{
+			if (!flush(node, child))
+			{
+				return false;
+			}
+
+			BTreeNode next = getNode(node.getChild(child));
+			if (!drain(next))
+			{
+				if (node.isFull())
+				{
+					return false;
+				}
+				split(next, node);
+				child--; // drain both halves
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Makes room in a full node by spreading its keys over it and a sibling, or
+	 * over it, a sibling and a new node when both are too full to share
+	 * 
+	 * @param current
+	 *            the full node, not the root
+	 * @param parent
+	 *            the parent of the node
+	 * @return true if the node has room now, false if it has to be split
+	 */
+	private boolean shareWithSibling(BTreeNode current, BTreeNode parent)
+	{
+		long first = current.getObject(0).getKey();
+		int child = parent.rank(first);
+		if (child < parent.getNumOfKeys() && parent.getObject(child).getKey() == first)
+		{
+			child++; // a B+ tree leaf right of a copy of its first key
+		}
+
+		BTreeNode right = child < parent.getNumOfKeys() ? getNode(parent.getChild(child + 1)) : null;
+		if (right != null && spread(parent, child, current, right, 2))
+			return true;
+
+		BTreeNode left = child > 0 ? getNode(parent.getChild(child - 1)) : null;
+		if (left != null && spread(parent, child - 1, left, current, 2))
+			return true;
+
+		if (!parent.hasRoomFor(2))
+			return false; // one more separator and a margin for the replaced one
+
+		return right != null ? spread(parent, child, current, right, 3) : spread(parent, child - 1, left, current, 3);
+	}
+
+	/**
+	 * Spreads the objects of two neighbouring nodes evenly over the two nodes or
+	 * over them and a new node between them. Separators in the parent are replaced
+	 * or added, moved children get their new parent and B+ tree leaves are relinked
+	 * 
+	 * @param parent
+	 *            the parent of the nodes
+	 * @param index
+	 *            index of the separator between the nodes in the parent
+	 * @param left
+	 *            the left node
+	 * @param right
+	 *            the right node
+	 * @param count
+	 *            2 to share the objects, 3 to add a node
+	 * @return true if the objects were spread, false if a node would be full
+	 */
+	private boolean spread(BTreeNode parent, int index, BTreeNode left, BTreeNode right, int count)
+	{
+		boolean isLinked = format.isBPlusTree() && left.isLeafNode();
+		int leftChildCount = left.getChildCount();
+
+		BTreeNode middle = null;
+		if (count == 3)
+		{
+			ArrayList<Integer> children = new ArrayList<>();
+			children.add(-1);
+			middle = new BTreeNode(new ArrayList<>(), children, left.getParent(), format, left.isLeafNode());
+		}
+		TreeObject[] separators = left.spreadWith(right, parent.getObject(index), middle);
+		if (separators == null)
+		{
+			return false;
+		}
+
+		// the outer nodes keep their locations, a new node goes between them
+		BTreeNode[] nodes = { left, right };
+		parent.setObject(index, separators[0]);
+		if (middle != null)
+		{
+			nodes = new BTreeNode[] { left, middle, right };
+			appendNode(middle);
+			nodeCount++;
+			parent.addObject(separators[1]);
+			parent.setChild(index + 1, middle.getLocation());
+			parent.setChild(index + 2, right.getLocation());
+
+			if (isLinked)
+			{
+				middle.setPreviousLeaf(left.getLocation());
+				middle.setNextLeaf(right.getLocation());
+				left.setNextLeaf(middle.getLocation());
+				right.setPreviousLeaf(middle.getLocation());
+			}
+		}
+
+		// children that changed nodes point to their new parent, their order is kept
+		if (!left.isLeafNode())
+		{
+			int position = 0;
+			for (BTreeNode node : nodes)
+			{
+				for (int i = 0; i < node.getChildCount(); ++i, ++position)
+				{
+					if (node != (position < leftChildCount ? left : right))
+					{
+						BTreeNode child = getNode(node.getChild(i));
+						child.setParent(node.getLocation());
+						writeNode(child);
+					}
+				}
+			}
+		}
+
+		for (BTreeNode node : nodes)
+		{
+			writeNode(node);
+		}
+		if (parent != root)
+		{
+			writeNode(parent);
+		}
+		return true;
+	}
 
+	/**
+	 * Links the halves of a split B+ tree leaf in place of the leaf between its
+	 * neighbours, and writes them
+	 * 
+	 * @param current
+	 *            the leaf that was split
+	 * @param left
+	 *            the left half, which has taken the place of the leaf
+	 * @param right
+	 *            the right half
+	 */
+	private void linkSplitLeaves(BTreeNode current, BTreeNode left, BTreeNode right)
+	{
+		left.setPreviousLeaf(current.getPreviousLeaf());
+		left.setNextLeaf(right.getLocation());
+		right.setPreviousLeaf(left.getLocation());
+		right.setNextLeaf(current.getNextLeaf());
+		writeNode(left);
+		writeNode(right);
+
+		if (current.getNextLeaf() != -1)
+		{
+			BTreeNode next = getNode(current.getNextLeaf());
+			next.setPreviousLeaf(right.getLocation());
+			writeNode(next);
+		}
 	}
 
 	/**
@@ -609,12 +1865,212 @@ public class BTree
 	{
 		if (isEmpty())
 		{
-			root = new BTreeNode(key, left, right, degree, true);
+			root = new BTreeNode(key, left, right, format, true);
 		}
 		else
 		{
-			root = new BTreeNode(key, left, right, degree, false);
+			root = new BTreeNode(key, left, right, format, false);
 		}
 		nodeCount++;
 	}
+
+	@Override
+	public Iterator<TreeObject> iterator()
+	{
+		return iterator(0);
+	}
+
+	/**
+	 * Iterates over the objects of the tree in order of key, starting at a key.
+	 * The objects of a B+ tree are read by walking its leaves
+	 * 
+	 * @param fromKey
+	 *            the smallest key to return
+	 * @return iterator over the objects with a key of at least fromKey
+	 */
+	public Iterator<TreeObject> iterator(long fromKey)
+	{
+		flushBuffers();
+		return format.isBPlusTree() ? new LeafIterator(fromKey) : new InOrderIterator(fromKey);
+	}
+
+	/**
+	 * Finds every object with a key in a range
+	 * 
+	 * @param low
+	 *            the smallest key of the range
+	 * @param high
+	 *            the largest key of the range
+	 * @return the objects in the range, in order of key
+	 */
+	public ArrayList<TreeObject> searchRange(long low, long high)
+	{
+		ArrayList<TreeObject> objects = new ArrayList<>();
+		Iterator<TreeObject> it = iterator(low);
+		while (it.hasNext())
+		{
+			TreeObject obj = it.next();
+			if (obj.getKey() > high)
+			{
+				break;
+			}
+			objects.add(obj);
+		}
+		return objects;
+	}
+
+	/**
+	 * Iterates over the objects of the tree in order of key. Only the nodes on the
+	 * path to the current object are held, so every node is read once
+	 */
+	private class InOrderIterator implements Iterator<TreeObject>
+	{
+		// fields
+		private Stack<BTreeNode> nodes = new Stack<>();
+		private Stack<Integer> indexes = new Stack<>(); // next object of each node
+
+		// constructor
+		public InOrderIterator(long fromKey)
+		{
+			if (isEmpty())
+			{
+				return;
+			}
+
+			// the path to the first object not less than the key
+			BTreeNode node = root;
+			while (true)
+			{
+				int index = node.rank(fromKey);
+				nodes.push(node);
+				indexes.push(index);
+				if (node.isLeafNode()
+						|| (index < node.getNumOfKeys() && node.getObject(index).getKey() == fromKey))
+				{
+					break;
+				}
+				node = getNode(node.getChild(index));
+			}
+			dropFinished();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return !nodes.empty();
+		}
+
+		@Override
+		public TreeObject next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+
+			BTreeNode node = nodes.peek();
+			int index = indexes.pop();
+			indexes.push(index + 1);
+			TreeObject obj = node.getObject(index);
+
+			if (!node.isLeafNode())
+			{ // the subtree right of the object comes next
+				descend(getNode(node.getChild(index + 1)));
+			}
+
+			dropFinished();
+			return obj;
+		}
+
+		/**
+		 * Drops the nodes whose objects have all been returned
+		 */
+		private void dropFinished()
+		{
+			while (!nodes.empty() && indexes.peek() == nodes.peek().getNumOfKeys())
+			{
+				nodes.pop();
+				indexes.pop();
+			}
+		}
+
+		/**
+		 * Pushes a node and the leftmost path below it
+		 * 
+		 * @param node
+		 *            the node
+		 */
+		private void descend(BTreeNode node)
+		{
+			nodes.push(node);
+			indexes.push(0);
+			while (!node.isLeafNode())
+			{
+				node = getNode(node.getChild(0));
+				nodes.push(node);
+				indexes.push(0);
+			}
+		}
+	}
+
+	/**
+	 * Iterates over the objects of a B+ tree in order of key by walking its
+	 * leaves from one to the next, after one descent to the first leaf
+	 */
+	private class LeafIterator implements Iterator<TreeObject>
+	{
+		// fields
+		private BTreeNode leaf; // null past the last leaf
+		private int index; // next object of the leaf
+
+		// constructor
+		public LeafIterator(long fromKey)
+		{
+			if (isEmpty())
+			{
+				return;
+			}
+
+			leaf = root;
+			TreeObject obj = new TreeObject(fromKey);
+			while (!leaf.isLeafNode())
+			{
+				leaf = getNode(leaf.searchNode(obj).location);
+			}
+			index = leaf.rank(fromKey);
+			skipFinished();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return leaf != null;
+		}
+
+		@Override
+		public TreeObject next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+
+			TreeObject obj = leaf.getObject(index++);
+			skipFinished();
+			return obj;
+		}
+
+		/**
+		 * Moves on to the next leaf once every object of the current one has been
+		 * returned
+		 */
+		private void skipFinished()
+		{
+			while (leaf != null && index == leaf.getNumOfKeys())
+			{
+				leaf = leaf.getNextLeaf() == -1 ? null : getNode(leaf.getNextLeaf());
+				index = 0;
+			}
+		}
+	}
 }
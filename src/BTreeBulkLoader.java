@@ -0,0 +1,362 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Builds a BTree bottom up from keys given in ascending order, without a single
+ * descent from the root. The shape of the tree is planned up front from the
+ * amount of keys: every level is split into as few nodes as fit its keys, and
+ * the keys are spread evenly over the nodes of a level, so every node but the
+ * root is at least half full. Nodes are written as they are completed, a node
+ * is only held in memory until its parent is complete and its parent pointer
+ * is known. The root is completed last and so takes up the last location, the
+ * file is the same as one built with BTree.add.
+ *
+ * Compressed nodes are planned with the amount of keys that fits a page in the
+ * worst case encoding, as the encoded size of a node is not known ahead.
+ */
+public class BTreeBulkLoader
+{
+	// fields
+	private BTreeFile file;
+	private NodeFormat format;
+	private BTree tree;
+	private Level[] levels; // levels[0] holds the leaves, the last level the root
+	private long keyCount;
+	private long addedCount;
+	private long lastKey = -1;
+	private int nodeCount;
+
+	// constructor
+
+	/**
+	 * Creates a loader for an empty BTreeFile
+	 *
+	 * @param file
+	 *            empty file
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @param format
+	 *            the storage format of the nodes
+	 * @param keyCount
+	 *            exactly how many keys will be added
+	 * @throws IllegalArgumentException
+	 *             if the format is of a B+ tree or a buffered tree
+	 */
+	public BTreeBulkLoader(BTreeFile file, int sequenceLength, NodeFormat format, long keyCount)
+	{
+		if (format.isBPlusTree())
+		{
+			throw new IllegalArgumentException("B+ trees can not be bulk loaded");
+		}
+		if (format.isBuffered())
+		{
+			throw new IllegalArgumentException("Buffered trees can not be bulk loaded");
+		}
+
+		this.file = file;
+		this.format = format;
+		this.keyCount = keyCount;
+		tree = new BTree(file, sequenceLength, format);
+
+		int nodeKeys = getNodeKeyLimit(format);
+		ArrayList<Level> planned = new ArrayList<>();
+		if (keyCount > 0)
+		{
+			// leaves take keyCount keys, less one separator per extra leaf
+			long nodes = (keyCount + 1 + nodeKeys) / (nodeKeys + 1);
+			planned.add(new Level(nodes, keyCount - (nodes - 1), true));
+
+			// each further level takes a child per node of the level below
+			while (nodes > 1)
+			{
+				long children = nodes;
+				nodes = (children + nodeKeys) / (nodeKeys + 1);
+				planned.add(new Level(nodes, children, false));
+			}
+		}
+		levels = planned.toArray(new Level[0]);
+	}
+
+	// public methods
+
+	/**
+	 * Adds the next key of the tree
+	 *
+	 * @param key
+	 *            the key, greater than the key added before it
+	 * @param frequency
+	 *            how many times the key occurs
+	 * @throws IllegalStateException
+	 *             if the key is out of order or more keys are added than planned
+	 */
+	public void add(long key, int frequency)
+	{
+		if (addedCount == keyCount)
+		{
+			throw new IllegalStateException("Only " + keyCount + " keys were planned");
+		}
+		if (addedCount > 0 && key <= lastKey)
+		{
+			throw new IllegalStateException("Keys must be added in ascending order");
+		}
+
+		push(0, new TreeObject(key, frequency));
+		lastKey = key;
+		addedCount++;
+	}
+
+	/**
+	 * Completes the last node of every level and hands the tree over. The
+	 * returned tree is the same as one opened from the file, it is closed like
+	 * any other tree
+	 *
+	 * @return the tree
+	 * @throws IllegalStateException
+	 *             if fewer keys were added than planned
+	 */
+	public BTree finish()
+	{
+		if (addedCount != keyCount)
+		{
+			throw new IllegalStateException(addedCount + " of " + keyCount + " planned keys were added");
+		}
+
+		BTreeNode root = null;
+		for (int i = 0; i < levels.length; ++i)
+		{
+			root = complete(i);
+		}
+
+		if (root != null)
+		{
+			file.writeNodeData(root);
+			tree.attachBulkLoadedRoot(root, nodeCount);
+		}
+		return tree;
+	}
+
+	/**
+	 * Builds one tree of the keys of several trees, adding up the frequencies of
+	 * keys found in more than one of them. The trees are read in order twice, to
+	 * count the distinct keys and to load them, so only the nodes being read and
+	 * the nodes being filled are held in memory
+	 *
+	 * @param trees
+	 *            the trees to merge, all of the same sequence length
+	 * @param btf
+	 *            empty file
+	 * @param format
+	 *            the storage format of the nodes
+	 * @return the merged tree, which must be closed
+	 * @throws IllegalArgumentException
+	 *             if the trees have different sequence lengths, or the format is
+	 *             of a B+ tree or a buffered tree
+	 */
+	public static BTree merge(List<BTree> trees, BTreeFile btf, NodeFormat format)
+	{
+		int sequenceLength = trees.isEmpty() ? 1 : trees.get(0).getSequenceLength();
+		for (BTree tree : trees)
+		{
+			if (tree.getSequenceLength() != sequenceLength)
+			{
+				throw new IllegalArgumentException("Trees of sequence length " + sequenceLength + " and "
+						+ tree.getSequenceLength() + " can not be merged");
+			}
+		}
+
+		return merge(trees, sequenceLength, btf, format);
+	}
+
+	/**
+	 * Builds one tree of the keys of several sources read in order of key, such
+	 * as trees and count tables, adding up the frequencies of keys found in more
+	 * than one of them. Each source is read twice, to count the distinct keys
+	 * and to load them
+	 *
+	 * @param sources
+	 *            the sources to merge, all of keys of the sequence length
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @param btf
+	 *            empty file
+	 * @param format
+	 *            the storage format of the nodes
+	 * @return the merged tree, which must be closed
+	 * @throws IllegalArgumentException
+	 *             if the format is of a B+ tree or a buffered tree
+	 */
+	public static BTree merge(List<? extends Iterable<TreeObject>> sources, int sequenceLength, BTreeFile btf,
+			NodeFormat format)
+	{
+		long keyCount = 0;
+		for (MergingIterator it = mergeIterator(sources); it.hasNext(); it.next())
+		{
+			keyCount++;
+		}
+
+		BTreeBulkLoader loader = new BTreeBulkLoader(btf, sequenceLength, format, keyCount);
+		for (MergingIterator it = mergeIterator(sources); it.hasNext();)
+		{
+			TreeObject obj = it.next();
+			loader.add(obj.getKey(), obj.getFrequency());
+		}
+		return loader.finish();
+	}
+
+	/**
+	 * @param format
+	 *            the storage format of the nodes
+	 * @return how many keys a node of the format is planned with
+	 */
+	public static int getNodeKeyLimit(NodeFormat format)
+	{
+		ArrayList<Integer> children = new ArrayList<>();
+		children.add(-1);
+		BTreeNode empty = new BTreeNode(new ArrayList<>(), children, -1, format, false);
+
+		// the largest amount of keys that fits, a fixed node always fits its key limit
+		int low = 1;
+		int high = format.getKeyLimit();
+		while (low < high)
+		{
+			int mid = (low + high + 1) >>> 1;
+			if (empty.hasRoomFor(mid))
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low;
+	}
+
+	// private methods
+
+	/**
+	 * @param sources
+	 *            the sources to merge
+	 * @return an iterator over the keys of all of the sources in order
+	 */
+	private static MergingIterator mergeIterator(List<? extends Iterable<TreeObject>> sources)
+	{
+		ArrayList<Iterator<TreeObject>> iterators = new ArrayList<>();
+		for (Iterable<TreeObject> source : sources)
+		{
+			iterators.add(source.iterator());
+		}
+		return new MergingIterator(iterators);
+	}
+
+	/**
+	 * Adds a key to the current node of a level. If the node already has all of
+	 * its keys, it is complete and the key separates it from the next node of the
+	 * level in the level above
+	 *
+	 * @param level
+	 *            the level of the key
+	 * @param obj
+	 *            the key
+	 */
+	private void push(int level, TreeObject obj)
+	{
+		Level lv = levels[level];
+		if (lv.objects.size() == lv.getKeyCount())
+		{
+			complete(level);
+			push(level + 1, obj);
+		}
+		else
+		{
+			lv.objects.add(obj);
+			if (lv.isLeaf)
+			{
+				lv.children.add(-1);
+			}
+		}
+	}
+
+	/**
+	 * Completes the current node of a level. The node gets the next location in
+	 * file and becomes a child of the current node of the level above. Its own
+	 * children now know their parent and are written
+	 *
+	 * @param level
+	 *            the level of the node
+	 * @return the completed node, which is written once its parent is complete
+	 */
+	private BTreeNode complete(int level)
+	{
+		Level lv = levels[level];
+		BTreeNode node = new BTreeNode(lv.objects, lv.children, -1, format, lv.isLeaf);
+		node.setLocation(file.allocateNodePosition());
+		nodeCount++;
+
+		if (level > 0)
+		{
+			for (BTreeNode child : levels[level - 1].completed)
+			{
+				child.setParent(node.getLocation());
+				file.writeNodeData(child);
+			}
+			levels[level - 1].completed.clear();
+		}
+
+		if (level + 1 < levels.length)
+		{
+			levels[level + 1].children.add(node.getLocation());
+			lv.completed.add(node);
+		}
+
+		lv.nodeIndex++;
+		lv.objects = new ArrayList<>();
+		lv.children = new ArrayList<>();
+		if (lv.isLeaf)
+		{
+			lv.children.add(-1);
+		}
+		return node;
+	}
+
+	/**
+	 * The plan of a level of the tree and the node being filled on it
+	 */
+	private static class Level
+	{
+		long nodes; // how many nodes the level has
+		long entries; // keys of a leaf level, children of an inner level
+		boolean isLeaf;
+		long nodeIndex; // index of the node being filled
+		ArrayList<TreeObject> objects = new ArrayList<>();
+		ArrayList<Integer> children = new ArrayList<>();
+		ArrayList<BTreeNode> completed = new ArrayList<>(); // waiting on their parent
+
+		/**
+		 * @param nodes
+		 *            how many nodes the level has
+		 * @param entries
+		 *            how many keys the leaves, or children the inner nodes, hold
+		 *            in total
+		 * @param isLeaf
+		 *            if the level holds the leaves
+		 */
+		Level(long nodes, long entries, boolean isLeaf)
+		{
+			this.nodes = nodes;
+			this.entries = entries;
+			this.isLeaf = isLeaf;
+			if (isLeaf)
+			{
+				children.add(-1);
+			}
+		}
+
+		/**
+		 * @return how many keys the node being filled gets, entries are spread
+		 *         evenly with the first nodes taking one more
+		 */
+		int getKeyCount()
+		{
+			long share = entries / nodes + (nodeIndex < entries % nodes ? 1 : 0);
+			return (int) (isLeaf ? share : share - 1);
+		}
+	}
+}
@@ -2,6 +2,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.sun.nio.file.ExtendedOpenOption;
 
 /**
  * Handles writing and reading to/from a BTreeFile There is no public
@@ -9,14 +16,43 @@ import java.io.RandomAccessFile;
  * createNewBTreeFile or openBTreeFile. this class abstracts byte offsets to
  * node positions. positions start at 0 and increment from there. eg. third node
  * in file is at position 2.
+ * 
+ * A file of a block aligned format can be opened for direct I/O, bypassing the
+ * OS page cache. All reads and writes are then whole blocks through aligned
+ * direct buffers, so the caller is expected to do its own caching (see
+ * BufferPool).
+ * 
+ * Appended nodes are staged in an in-memory tail buffer and written to file in
+ * large chunks, reads and writes of nodes still in the tail are served from it.
+ * The file is grown ahead of the data in large steps and trimmed on close.
  */
 public class BTreeFile
 {
+	// the most bytes of appended nodes staged before they are written, unless set
+	public static final int DEFAULT_TAIL_BYTE_SIZE = 4 << 20;
+
+	// how many tails ahead of the data the file is grown
+	private static final int PREALLOCATION_TAIL_COUNT = 16;
+
 	// fields
 	private RandomAccessFile file;
 	private int treeMetaDataLength;
 	private int nodeDataLength;
 	private int nextNodePlacement;
+	private NodeFormat format;
+
+	// direct I/O, null unless the file was opened for direct I/O
+	private FileChannel directChannel;
+	private ByteBuffer directBuffer; // aligned scratch buffer for byte array I/O
+	private int ioAlignment = 1;
+
+	// positions from tailStart up to nextNodePlacement are only in the tail,
+	// which is allocated on the first append
+	private final Object tailLock = new Object();
+	private ByteBuffer tail;
+	private int tailByteSize = DEFAULT_TAIL_BYTE_SIZE;
+	private int tailStart;
+	private long fileLength = -1; // length the file was grown to, -1 until known
 
 	// constructor
 	private BTreeFile()
@@ -39,6 +75,7 @@ public class BTreeFile
 		this.treeMetaDataLength = treeMetaDataLength;
 		this.nodeDataLength = nodeDataLength;
 		this.nextNodePlacement = nextNodePlacement;
+		this.tailStart = nextNodePlacement;
 	}
 
 	// public methods
@@ -55,9 +92,16 @@ public class BTreeFile
 		try
 		{
 
-			file.seek(nodeByteOffset(position));
 			retVal = new byte[nodeDataLength];
-			file.read(retVal);
+			synchronized (tailLock)
+			{
+				if (position >= tailStart)
+				{
+					tail.get(tailOffset(position), retVal);
+					return retVal;
+				}
+			}
+			read(nodeByteOffset(position), retVal);
 
 		}
 		catch (IOException e)
@@ -68,6 +112,166 @@ public class BTreeFile
 		return retVal;
 	}
 
+	/**
+	 * Reads node data straight into a buffer, without copying through a byte
+	 * array. In direct I/O mode the buffer must be aligned (see
+	 * allocateAlignedBuffer)
+	 * 
+	 * @param position
+	 *            the node position to read
+	 * @param dst
+	 *            buffer with nodeDataLength bytes remaining
+	 * @throws IOException
+	 *             if unable to read the node data
+	 */
+	public void readNodeData(int position, ByteBuffer dst) throws IOException
+	{
+		if (position < 0 || position >= nextNodePlacement)
+		{
+			throw new IllegalArgumentException("Invalid position argument: " + position);
+		}
+
+		synchronized (tailLock)
+		{
+			if (position >= tailStart)
+			{
+				dst.put(tail.slice(tailOffset(position), nodeDataLength));
+				return;
+			}
+		}
+		readFully(channel(), nodeByteOffset(position), dst);
+	}
+
+	/**
+	 * Writes node data straight from a buffer. In direct I/O mode the buffer must
+	 * be aligned (see allocateAlignedBuffer)
+	 * 
+	 * @param position
+	 *            the node position to write, at most the next empty position
+	 * @param src
+	 *            buffer with nodeDataLength bytes remaining, or a multiple of it
+	 *            to write nodes at consecutive positions
+	 * @throws IOException
+	 *             if unable to write the node data
+	 */
+	public void writeNodeData(int position, ByteBuffer src) throws IOException
+	{
+		if (position < 0 || position > nextNodePlacement)
+		{
+			throw new IllegalArgumentException("Invalid node position");
+		}
+
+		synchronized (tailLock)
+		{
+			if (position + Math.max(1, src.remaining() / nodeDataLength) > tailStart)
+			{ // at least partly in the tail
+				for (; src.hasRemaining(); ++position)
+				{
+					ByteBuffer node = src.slice(src.position(), nodeDataLength);
+					src.position(src.position() + nodeDataLength);
+					if (position < tailStart)
+					{
+						writeFully(channel(), nodeByteOffset(position), node);
+					}
+					else
+					{
+						putTail(position, node);
+					}
+				}
+				return;
+			}
+		}
+		writeFully(channel(), nodeByteOffset(position), src);
+	}
+
+	/**
+	 * Reserves the next empty position for a node without writing it. The node
+	 * must be written to the position before it is read
+	 * 
+	 * @return the reserved position
+	 */
+	public int allocateNodePosition()
+	{
+		synchronized (tailLock)
+		{
+			int position = nextNodePlacement;
+			try
+			{
+				putTail(position, ByteBuffer.allocate(nodeDataLength)); // zeros
+			}
+			catch (IOException e)
+			{
+				System.err.println("Unable to write node data before position " + position);
+				nextNodePlacement = position + 1;
+			}
+			return position;
+		}
+	}
+
+	/**
+	 * Writes the nodes staged in the tail buffer to file
+	 * 
+	 * @throws IOException
+	 *             if unable to write the nodes
+	 */
+	public void flush() throws IOException
+	{
+		synchronized (tailLock)
+		{
+			flushTail();
+		}
+	}
+
+	/**
+	 * Sets how many bytes of appended nodes are staged before they are written,
+	 * the file is also grown ahead of the data in steps of PREALLOCATION_TAIL_COUNT
+	 * tails. Files appended to side by side, like the shards of a ShardedBTree,
+	 * share DEFAULT_TAIL_BYTE_SIZE between them. Staged nodes are written first
+	 * 
+	 * @param tailByteSize
+	 *            the most bytes staged, at least one node is staged
+	 * @throws IOException
+	 *             if unable to write the staged nodes
+	 */
+	public void setTailByteSize(int tailByteSize) throws IOException
+	{
+		synchronized (tailLock)
+		{
+			flushTail();
+			tail = null; // allocated again on the next append
+			this.tailByteSize = tailByteSize;
+		}
+	}
+
+	/**
+	 * @return true if the file was opened for direct I/O
+	 */
+	public boolean isDirect()
+	{
+		return directChannel != null;
+	}
+
+	/**
+	 * @return how many bytes a node takes up in file
+	 */
+	public int getNodeDataLength()
+	{
+		return nodeDataLength;
+	}
+
+	/**
+	 * Allocates a direct buffer suitable for node I/O on this file, aligned for
+	 * direct I/O if needed
+	 * 
+	 * @param size
+	 *            capacity of the buffer in bytes
+	 * @return the buffer
+	 */
+	public ByteBuffer allocateAlignedBuffer(int size)
+	{
+		return ByteBuffer.allocateDirect(size + ioAlignment).alignedSlice(ioAlignment).limit(size).slice();
+	}
+
 	/**
 	 * Reads the BTree meta data at the beginning of the file
 	 * 
@@ -78,9 +282,8 @@ public class BTreeFile
 		try
 		{
 
-			file.seek(0);
 			byte[] retVal = new byte[treeMetaDataLength];
-			file.read(retVal);
+			read(0, retVal);
 			return retVal;
 
 		}
@@ -92,6 +295,15 @@ public class BTreeFile
 
 	}
 
+	/**
+	 * @return the storage format of the nodes in the file, null if the file was
+	 *         created without a format
+	 */
+	public NodeFormat getNodeFormat()
+	{
+		return format;
+	}
+
 	/**
 	 * @return the next empty position for a node to be written to
 	 */
@@ -111,6 +323,27 @@ public class BTreeFile
 		writeNodeData(node, nextNodePlacement);
 	}
 
+	/**
+	 * Takes the last node out of the file, so the next node appended is written
+	 * in its place. Only the node last in an opened file, before anything is
+	 * appended, can be removed
+	 * 
+	 * @throws IllegalStateException
+	 *             if the file is empty or nodes were appended
+	 */
+	public void removeLastNode()
+	{
+		synchronized (tailLock)
+		{
+			if (nextNodePlacement == 0 || tailStart != nextNodePlacement)
+			{
+				throw new IllegalStateException("Only the last node of an opened file can be removed");
+			}
+			nextNodePlacement--;
+			tailStart--;
+		}
+	}
+
 	/**
 	 * @param node
 	 *            writes node to file that already has a set location variable
@@ -152,18 +385,20 @@ public class BTreeFile
 						"Amount of Bytes to be written must equal specified node data length");
 			}
 
-			file.seek(nodeByteOffset(position));
-			file.write(bytes);
+			synchronized (tailLock)
+			{
+				if (position >= tailStart)
+				{
+					putTail(position, ByteBuffer.wrap(bytes));
+					return;
+				}
+			}
+			write(nodeByteOffset(position), bytes);
 		}
 		catch (IOException e)
 		{
 			System.err.println("Unable to write node data at position " + position);
 		}
-
-		if (position == nextNodePlacement)
-		{ // placed at the end of file
-			nextNodePlacement++;
-		}
 	}
 
 	/**
@@ -182,8 +417,7 @@ public class BTreeFile
 				throw new IllegalArgumentException(
 						"Amount of bytes to be written must equal specified meta data length");
 
-			file.seek(0);
-			file.write(bytes);
+			write(0, bytes);
 		}
 		catch (IOException e)
 		{
@@ -228,11 +462,85 @@ public class BTreeFile
 		return retVal;
 	}
 
+	/**
+	 * Creates a new BTreeFile for nodes of the specified format. Deletes any
+	 * existing file with same name
+	 * 
+	 * @param fileName
+	 *            file path to be created, can be absolute or relative
+	 * @param format
+	 *            the storage format of the nodes
+	 * @return A BtreeFile tied to the specified file path
+	 * @throws IOException
+	 *             if an error occurs in the file creation/deletion process
+	 */
+	public static BTreeFile createNewBTreeFile(String fileName, NodeFormat format) throws IOException
+	{
+		BTreeFile retVal = createNewBTreeFile(fileName, BTree.getMetaDataByteSize(format), format.getPageSize());
+		retVal.format = format;
+		return retVal;
+	}
+
+	/**
+	 * Creates a new BTreeFile for nodes of the specified format. Deletes any
+	 * existing file with same name
+	 * 
+	 * @param fileName
+	 *            file path to be created, can be absolute or relative
+	 * @param format
+	 *            the storage format of the nodes
+	 * @param direct
+	 *            true to bypass the OS page cache with direct I/O, requires a
+	 *            block aligned format
+	 * @return A BtreeFile tied to the specified file path
+	 * @throws IOException
+	 *             if an error occurs in the file creation/deletion process or
+	 *             direct I/O is not supported
+	 */
+	public static BTreeFile createNewBTreeFile(String fileName, NodeFormat format, boolean direct) throws IOException
+	{
+		BTreeFile retVal = createNewBTreeFile(fileName, format);
+		if (direct)
+		{
+			retVal.openDirect(fileName);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Opens an existing BTreeFile
+	 * 
+	 * @param fileName
+	 *            file path to existing BTreeFile
+	 * @param treeMetaDataLength
+	 *            the length of the BTree meta data in bytes for files in the
+	 *            original format
+	 * @param direct
+	 *            true to bypass the OS page cache with direct I/O, requires a
+	 *            block aligned format
+	 * @return A BTreeFile tied to the specified file path
+	 * @throws IOException
+	 *             if an error occurs during the process or direct I/O is not
+	 *             supported
+	 */
+	public static BTreeFile openBTreeFile(String fileName, int treeMetaDataLength, boolean direct) throws IOException
+	{
+		BTreeFile retVal = openBTreeFile(fileName, treeMetaDataLength);
+		if (direct)
+		{
+			retVal.openDirect(fileName);
+		}
+		return retVal;
+	}
+
 	/**
 	 * Opens an existing BTreeFile from memory
 	 * 
 	 * @param fileName
 	 *            file path to existing BTreeFile
+	 * @param treeMetaDataLength
+	 *            the length of the BTree meta data in bytes for files in the
+	 *            original format, extended formats read it from the file
 	 * @return A BTreeFile tied to the specified file path
 	 * @throws IOException
 	 *             if an error occurs during the process
@@ -247,10 +555,16 @@ public class BTreeFile
 
 		int nodeCount = file.readInt();
 		int degree = file.readInt();
-		int nodeDataLength = BTreeNode.getByteSize(degree);
+		int flags = file.readInt() >>> 16; // format flags in upper half of sequence length
+		NodeFormat format = NodeFormat.fromMetaData(degree, flags, flags == 0 ? 0 : file.readInt());
+		if (!format.isLegacy())
+		{
+			treeMetaDataLength = BTree.getMetaDataByteSize(format);
+		}
 
-		BTreeFile retVal = new BTreeFile(treeMetaDataLength, nodeDataLength, nodeCount);
+		BTreeFile retVal = new BTreeFile(treeMetaDataLength, format.getPageSize(), nodeCount);
 		retVal.file = file;
+		retVal.format = format;
 
 		if (nodeCount != 0)
 		{
@@ -268,7 +582,19 @@ public class BTreeFile
 	{
 		try
 		{
+			synchronized (tailLock)
+			{
+				flushTail();
+				if (fileLength > nodeByteOffset(nextNodePlacement))
+				{ // trim the space grown ahead of the data
+					channel().truncate(Math.max(nodeByteOffset(nextNodePlacement), treeMetaDataLength));
+				}
+			}
 			file.close();
+			if (directChannel != null)
+			{
+				directChannel.close();
+			}
 		}
 		catch (IOException e)
 		{
@@ -278,6 +604,225 @@ public class BTreeFile
 
 	// private methods
 
+	/**
+	 * Switches the file to direct I/O. All further I/O goes through an O_DIRECT
+	 * channel with block aligned buffers
+	 * 
+	 * @param fileName
+	 *            path of the file
+	 * @throws IOException
+	 *             if the format is not block aligned or direct I/O is not
+	 *             supported by the file system
+	 */
+	private void openDirect(String fileName) throws IOException
+	{
+		Path path = new File(fileName).toPath();
+		int blockSize = (int) Files.getFileStore(path).getBlockSize();
+
+		if (format == null || !format.isAligned() || format.getPageSize() % blockSize != 0)
+		{
+			throw new IOException("Direct I/O requires a block aligned format with a block size that is a multiple of "
+					+ blockSize);
+		}
+
+		try
+		{
+			directChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+					ExtendedOpenOption.DIRECT);
+		}
+		catch (UnsupportedOperationException e)
+		{
+			throw new IOException("Direct I/O is not supported for " + fileName);
+		}
+
+		file.close(); // all I/O goes through the direct channel from here on
+		ioAlignment = blockSize;
+		directBuffer = allocateAlignedBuffer(Math.max(nodeDataLength, treeMetaDataLength));
+	}
+
+	/**
+	 * @return the channel node data is read from and written to
+	 */
+	private FileChannel channel()
+	{
+		return directChannel != null ? directChannel : file.getChannel();
+	}
+
+	/**
+	 * Reads bytes from a byte offset in file
+	 * 
+	 * @param offset
+	 *            the byte offset
+	 * @param dst
+	 *            array to fill
+	 * @throws IOException
+	 *             if unable to read
+	 */
+	private void read(long offset, byte[] dst) throws IOException
+	{
+		if (directChannel == null)
+		{
+			file.seek(offset);
+			file.read(dst);
+			return;
+		}
+
+		directBuffer.clear().limit(dst.length);
+		readFully(directChannel, offset, directBuffer);
+		directBuffer.flip();
+		directBuffer.get(dst);
+	}
+
+	/**
+	 * Writes bytes at a byte offset in file
+	 * 
+	 * @param offset
+	 *            the byte offset
+	 * @param src
+	 *            bytes to write
+	 * @throws IOException
+	 *             if unable to write
+	 */
+	private void write(long offset, byte[] src) throws IOException
+	{
+		if (directChannel == null)
+		{
+			file.seek(offset);
+			file.write(src);
+			return;
+		}
+
+		directBuffer.clear();
+		directBuffer.put(src);
+		directBuffer.flip();
+		writeFully(directChannel, offset, directBuffer);
+	}
+
+	/**
+	 * Reads from a channel until the buffer is full or the end of file is reached,
+	 * the rest of the buffer is filled with 0s
+	 * 
+	 * @param channel
+	 *            channel to read from
+	 * @param offset
+	 *            byte offset to read at
+	 * @param dst
+	 *            buffer to fill
+	 * @throws IOException
+	 *             if unable to read
+	 */
+	private static void readFully(FileChannel channel, long offset, ByteBuffer dst) throws IOException
+	{
+		while (dst.hasRemaining())
+		{
+			int read = channel.read(dst, offset);
+			if (read < 0)
+			{ // reserved but unwritten space at the end of file
+				while (dst.hasRemaining())
+				{
+					dst.put((byte) 0);
+				}
+			}
+			else
+			{
+				offset += read;
+			}
+		}
+	}
+
+	/**
+	 * Writes node data to the tail buffer, appending it if the position is the
+	 * next empty position. A full tail is written to file first. Must hold the
+	 * tail lock
+	 * 
+	 * @param position
+	 *            the node position, at least tailStart
+	 * @param src
+	 *            buffer with nodeDataLength bytes remaining
+	 * @throws IOException
+	 *             if a full tail could not be written
+	 */
+	private void putTail(int position, ByteBuffer src) throws IOException
+	{
+		if (tail == null)
+		{
+			tail = allocateAlignedBuffer(Math.max(1, tailByteSize / nodeDataLength) * nodeDataLength);
+		}
+
+		if (position == nextNodePlacement && tailOffset(position) == tail.capacity())
+		{
+			flushTail();
+		}
+
+		tail.put(tailOffset(position), src, src.position(), nodeDataLength);
+		src.position(src.position() + nodeDataLength);
+
+		if (position == nextNodePlacement)
+		{ // placed at the end of file
+			nextNodePlacement++;
+		}
+	}
+
+	/**
+	 * Writes the nodes in the tail buffer to file with one write, growing the
+	 * file ahead of the data if needed. Must hold the tail lock
+	 * 
+	 * @throws IOException
+	 *             if unable to write the nodes
+	 */
+	private void flushTail() throws IOException
+	{
+		if (tailStart == nextNodePlacement)
+		{
+			return;
+		}
+
+		long end = nodeByteOffset(nextNodePlacement);
+		if (fileLength < 0)
+		{
+			fileLength = channel().size();
+		}
+		if (end > fileLength && directChannel == null)
+		{ // extend in large steps rather than a node at a time
+			fileLength = end + (long) tail.capacity() * PREALLOCATION_TAIL_COUNT;
+			file.setLength(fileLength);
+		}
+
+		writeFully(channel(), nodeByteOffset(tailStart), tail.slice(0, tailOffset(nextNodePlacement)));
+		fileLength = Math.max(fileLength, end);
+		tailStart = nextNodePlacement;
+	}
+
+	/**
+	 * @param position
+	 *            a node position in the tail
+	 * @return the byte offset of the position in the tail buffer
+	 */
+	private int tailOffset(int position)
+	{
+		return (position - tailStart) * nodeDataLength;
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer to a channel
+	 * 
+	 * @param channel
+	 *            channel to write to
+	 * @param offset
+	 *            byte offset to write at
+	 * @param src
+	 *            buffer to write
+	 * @throws IOException
+	 *             if unable to write
+	 */
+	private static void writeFully(FileChannel channel, long offset, ByteBuffer src) throws IOException
+	{
+		while (src.hasRemaining())
+		{
+			offset += channel.write(src, offset);
+		}
+	}
+
 	/**
 	 * returns the byte offset for a node position in a file
 	 * 
@@ -287,6 +832,6 @@ public class BTreeFile
 	 */
 	private long nodeByteOffset(int position)
 	{
-		return treeMetaDataLength + position * nodeDataLength;
+		return treeMetaDataLength + (long) position * nodeDataLength;
 	}
 }
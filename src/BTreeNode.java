@@ -1,5 +1,6 @@
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class BTreeNode
 {
@@ -7,6 +8,15 @@ public class BTreeNode
 	public static final int NODE_META_BYTE_SIZE = 9; // location=4, #keys=4, isLeaf=1
 	public static final int POINTER_BYTE_SIZE = 4; // int size
 	public static final int OBJECT_BYTE_SIZE = 12; // key=8, frequency=4
+	public static final int KEY_BYTE_SIZE = 8; // separator key of a B+ tree inner node
+	public static final int COMPRESSED_META_BYTE_SIZE = 18; // location=4, #keys=4, isLeaf=1, parent=4, width=1, base=4
+	private static final int COMPRESSED_SLACK_BYTE_SIZE = 8; // frequency growth after a node is filled
+
+	// estimated heap sizes, assuming compressed references
+	private static final int NODE_HEAP_BYTE_SIZE = 112; // node=32, 2 ArrayLists=48, array headers=32
+	private static final int OBJECT_HEAP_BYTE_SIZE = 36; // TreeObject=24, reference=4, key copy=8
+	private static final int CHILD_HEAP_BYTE_SIZE = 20; // Integer=16, reference=4
+	private static final int MESSAGE_HEAP_BYTE_SIZE = 12; // key=8, count=4 in the message arrays
 
 	// fields
 	// stored on disk
@@ -15,9 +25,17 @@ public class BTreeNode
 	private int parent = -1;
 	private ArrayList<TreeObject> objects;
 	private ArrayList<Integer> children;
+	private int previousLeaf = -1; // neighbour leaves of a B+ tree leaf, -1 if none
+	private int nextLeaf = -1;
+	private long[] keys; // the keys of objects for NodeSearch, null until the node is first searched
 
 	// contents
 	private int keyLimit;
+	// pending messages of a buffered inner node, sorted by key. null otherwise
+	private long[] messageKeys;
+	private int[] messageCounts;
+	private int messageCount;
+	private NodeFormat format;
 
 	// constructors
 
@@ -36,6 +54,26 @@ public class BTreeNode
 	 *            if the node is a leaf
 	 */
 	public BTreeNode(ArrayList<TreeObject> objects, ArrayList<Integer> children, int parent, int degree, boolean isLeaf)
+	{
+		this(objects, children, parent, NodeFormat.fixed(degree), isLeaf);
+	}
+
+	/**
+	 * Creates a new object from array of keys and children
+	 * 
+	 * @param objects
+	 *            keys for new node
+	 * @param children
+	 *            children pointers
+	 * @param parent
+	 *            parent pointer
+	 * @param format
+	 *            the storage format of the tree
+	 * @param isLeaf
+	 *            if the node is a leaf
+	 */
+	public BTreeNode(ArrayList<TreeObject> objects, ArrayList<Integer> children, int parent, NodeFormat format,
+			boolean isLeaf)
 	{
 		if (objects.size() != children.size() - 1)
 			throw new IllegalArgumentException("there key count must be child count + 1");
@@ -44,7 +82,9 @@ public class BTreeNode
 		this.parent = parent;
 		this.objects = objects;
 		this.children = children;
-		keyLimit = 2 * degree - 1;
+		this.format = format;
+		keyLimit = format.getKeyLimit(isLeaf);
+		initBuffer();
 
 		if (objects.size() > keyLimit)
 		{
@@ -65,6 +105,25 @@ public class BTreeNode
 	 *            degree of the tree
 	 */
 	public BTreeNode(TreeObject initial, int left, int right, int degree, boolean isLeaf)
+	{
+		this(initial, left, right, NodeFormat.fixed(degree), isLeaf);
+	}
+
+	/**
+	 * Creates a new Node in a root context
+	 * 
+	 * @param initial
+	 *            the initial tree object
+	 * @param left
+	 *            left child
+	 * @param right
+	 *            right child
+	 * @param format
+	 *            the storage format of the tree
+	 * @param isLeaf
+	 *            if the node is a leaf
+	 */
+	public BTreeNode(TreeObject initial, int left, int right, NodeFormat format, boolean isLeaf)
 	{
 		if (initial == null)
 		{
@@ -80,8 +139,9 @@ public class BTreeNode
 		children.add(left);
 		children.add(right);
 
-		keyLimit = 2 * degree - 1;
-
+		this.format = format;
+		keyLimit = format.getKeyLimit(isLeaf);
+		initBuffer();
 	}
 
 	/**
@@ -94,37 +154,75 @@ public class BTreeNode
 	 */
 	public BTreeNode(byte[] bytes, int degree)
 	{
-		keyLimit = 2 * degree - 1;
-		if (bytes.length != getByteSize(degree))
+		this(bytes, NodeFormat.fixed(degree));
+	}
+
+	/**
+	 * Instantiates a Node from existing data in storage
+	 * 
+	 * @param bytes
+	 *            data related to node
+	 * @param format
+	 *            the storage format of the tree
+	 */
+	public BTreeNode(byte[] bytes, NodeFormat format)
+	{
+		this.format = format;
+		if (bytes.length != format.getPageSize())
 		{
 			throw new IllegalArgumentException(
-					"byte array must be the amount of bytes required for a BTreeNode of specified degree");
+					"byte array must be the amount of bytes required for a BTreeNode of specified format");
 		}
 
 		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
 
+		if (format.isCompressed())
+		{
+			readCompressed(in);
+			keyLimit = format.getKeyLimit(isLeafNode);
+			return;
+		}
+
 		try
 		{
 			location = in.readInt();
 			int numOfKeys = in.readInt();
 			isLeafNode = in.readBoolean();
+			keyLimit = format.getKeyLimit(isLeafNode);
 			objects = new ArrayList<>();
 			children = new ArrayList<>();
 
-			// object data
+			// object data, separator keys only in B+ tree inner nodes
 			for (int i = 0; i < numOfKeys; ++i)
 			{
 				long key = in.readLong();
-				int frequency = in.readInt();
+				int frequency = hasFrequencies() ? in.readInt() : 0;
 				objects.add(new TreeObject(key, frequency));
 			}
 
 			parent = in.readInt();
 
-			// children
+			// children, or the neighbour links of a B+ tree leaf
+			if (isLinkedLeaf())
+			{
+				previousLeaf = in.readInt();
+				nextLeaf = in.readInt();
+			}
 			for (int i = 0; i < numOfKeys + 1; ++i)
 			{
-				children.add(in.readInt());
+				children.add(isLinkedLeaf() ? -1 : in.readInt());
+			}
+
+			// pending messages of a buffered inner node
+			initBuffer();
+			if (messageKeys != null)
+			{
+				messageCount = in.readInt();
+				for (int i = 0; i < messageCount; ++i)
+				{
+					messageKeys[i] = in.readLong();
+					messageCounts[i] = in.readInt();
+				}
 			}
 
 		}
@@ -209,6 +307,40 @@ public class BTreeNode
 		return parent;
 	}
 
+	/**
+	 * @return location of the leaf before this one in a B+ tree, -1 if none
+	 */
+	public int getPreviousLeaf()
+	{
+		return previousLeaf;
+	}
+
+	/**
+	 * @param location
+	 *            location of the leaf before this one in a B+ tree, -1 if none
+	 */
+	public void setPreviousLeaf(int location)
+	{
+		previousLeaf = location;
+	}
+
+	/**
+	 * @return location of the leaf after this one in a B+ tree, -1 if none
+	 */
+	public int getNextLeaf()
+	{
+		return nextLeaf;
+	}
+
+	/**
+	 * @param location
+	 *            location of the leaf after this one in a B+ tree, -1 if none
+	 */
+	public void setNextLeaf(int location)
+	{
+		nextLeaf = location;
+	}
+
 	/**
 	 * @return if this node is a leaf node in the BTree
 	 */
@@ -232,6 +364,24 @@ public class BTreeNode
 		children.set(index, value);
 	}
 
+	/**
+	 * Replaces an object in the node, when a separator changes as keys move
+	 * between its children
+	 * 
+	 * @param index
+	 *            index of the object
+	 * @param obj
+	 *            the object to put in its place
+	 */
+	public void setObject(int index, TreeObject obj)
+	{
+		objects.set(index, obj);
+		if (keys != null)
+		{
+			keys[index] = obj.getKey();
+		}
+	}
+
 	/**
 	 * @param index
 	 *            index of the child pointer to be returned
@@ -260,9 +410,210 @@ public class BTreeNode
 		return objects.get(index);
 	}
 
+	/**
+	 * @return true if the node must be split before another object can be added
+	 */
 	public boolean isFull()
 	{
-		return objects.size() >= keyLimit;
+		return !hasRoomFor(1);
+	}
+
+	/**
+	 * Checks if a number of objects can be added to the node while keeping it
+	 * within its page. For compressed nodes this assumes the worst case encoding
+	 * of every added object and child pointer
+	 * 
+	 * @param count
+	 *            the amount of objects to be added
+	 * @return true if count objects fit in the node
+	 */
+	public boolean hasRoomFor(int count)
+	{
+		if (objects.size() + count > keyLimit)
+		{
+			return false;
+		}
+		if (!format.isCompressed())
+		{
+			return true;
+		}
+
+		int worstCase = getCompressedByteSize();
+		worstCase += count * (VarInt.MAX_LONG_BYTE_SIZE + VarInt.MAX_INT_BYTE_SIZE + POINTER_BYTE_SIZE);
+		worstCase += children.size() * (POINTER_BYTE_SIZE - childOffsetWidth()); // offsets may widen
+		worstCase += COMPRESSED_SLACK_BYTE_SIZE;
+
+		return worstCase <= format.getPageSize();
+	}
+
+	/**
+	 * @return how many messages are pending in the buffer of the node, 0 if it
+	 *         has none
+	 */
+	public int getMessageCount()
+	{
+		return messageCount;
+	}
+
+	/**
+	 * @return true if the node buffers messages and its buffer is full
+	 */
+	public boolean isBufferFull()
+	{
+		return messageKeys != null && messageCount == messageKeys.length;
+	}
+
+	/**
+	 * @param key
+	 *            the key of the messages
+	 * @return the count pending for the key in the buffer of the node, 0 if none
+	 */
+	public int getPendingCount(long key)
+	{
+		if (messageCount == 0)
+		{
+			return 0;
+		}
+		int index = Arrays.binarySearch(messageKeys, 0, messageCount, key);
+		return index >= 0 ? messageCounts[index] : 0;
+	}
+
+	/**
+	 * Adds a message to the buffer, merged with a message for the same key
+	 * 
+	 * @param key
+	 *            the key to add the count to
+	 * @param count
+	 *            the count to add
+	 * @return false if the buffer is full and holds no message for the key
+	 */
+	public boolean addMessage(long key, int count)
+	{
+		int index = Arrays.binarySearch(messageKeys, 0, messageCount, key);
+		if (index >= 0)
+		{
+			messageCounts[index] += count;
+			return true;
+		}
+		if (isBufferFull())
+		{
+			return false;
+		}
+
+		index = -index - 1;
+		System.arraycopy(messageKeys, index, messageKeys, index + 1, messageCount - index);
+		System.arraycopy(messageCounts, index, messageCounts, index + 1, messageCount - index);
+		messageKeys[index] = key;
+		messageCounts[index] = count;
+		messageCount++;
+		return true;
+	}
+
+	/**
+	 * @param index
+	 *            index of the message in the buffer
+	 * @return the key of the message
+	 */
+	public long getMessageKey(int index)
+	{
+		return messageKeys[index];
+	}
+
+	/**
+	 * @param index
+	 *            index of the message in the buffer
+	 * @return the count the message adds to its key
+	 */
+	public int getMessageAmount(int index)
+	{
+		return messageCounts[index];
+	}
+
+	/**
+	 * The messages for a child are those between the objects left and right of
+	 * it, so the messages for child i are the ones from getMessageBound(i) up to
+	 * getMessageBound(i + 1)
+	 * 
+	 * @param child
+	 *            index of the child, up to the number of children
+	 * @return index of the first message for the child, the message count past
+	 *         the last child
+	 */
+	public int getMessageBound(int child)
+	{
+		if (child == 0 || messageCount == 0)
+		{
+			return 0;
+		}
+		if (child > objects.size())
+		{
+			return messageCount;
+		}
+		int index = Arrays.binarySearch(messageKeys, 0, messageCount, objects.get(child - 1).getKey());
+		return index >= 0 ? index : -index - 1;
+	}
+
+	/**
+	 * @return index of the child with the most messages pending for it
+	 */
+	public int getFullestChild()
+	{
+		int fullest = 0;
+		int most = 0;
+		int from = 0;
+		for (int child = 0; child < children.size(); ++child)
+		{
+			int to = getMessageBound(child + 1);
+			if (to - from > most)
+			{
+				most = to - from;
+				fullest = child;
+			}
+			from = to;
+		}
+		return fullest;
+	}
+
+	/**
+	 * Removes a range of messages from the buffer, once they are moved down
+	 * 
+	 * @param from
+	 *            index of the first message
+	 * @param to
+	 *            index past the last message
+	 */
+	public void removeMessages(int from, int to)
+	{
+		System.arraycopy(messageKeys, to, messageKeys, from, messageCount - to);
+		System.arraycopy(messageCounts, to, messageCounts, from, messageCount - to);
+		messageCount -= to - from;
+	}
+
+	/**
+	 * Adds the count pending for the key of an object to it, when the object has
+	 * just moved up into this node from a split child
+	 * 
+	 * @param index
+	 *            index of the object
+	 */
+	public void absorbMessage(int index)
+	{
+		TreeObject obj = objects.get(index);
+		int pending = getPendingCount(obj.getKey());
+		if (pending != 0)
+		{
+			obj.addFrequency(pending);
+			int message = Arrays.binarySearch(messageKeys, 0, messageCount, obj.getKey());
+			removeMessages(message, message + 1);
+		}
+	}
+
+	/**
+	 * @return the storage format of the node
+	 */
+	public NodeFormat getFormat()
+	{
+		return format;
 	}
 
 	/**
@@ -282,13 +633,8 @@ public class BTreeNode
 			throw new IllegalStateException("Node is full");
 		}
 
-		int index = 0;
+		int index = rank(obj.getKey());
 		boolean atEnd = index >= objects.size();
-		while (!atEnd && obj.compareTo(objects.get(index)) > 0)
-		{
-			index++;
-			atEnd = index >= objects.size();
-		}
 
 		if (!atEnd && obj.compareTo(objects.get(index)) == 0)
 		{
@@ -299,6 +645,14 @@ public class BTreeNode
 		{
 			objects.add(index, obj);
 			children.add(index + 1, -1);
+
+			// keep the key array in step
+			if (keys.length < objects.size())
+			{
+				keys = Arrays.copyOf(keys, Math.min(Math.max(2 * keys.length, 4), keyLimit));
+			}
+			System.arraycopy(keys, index, keys, index + 1, objects.size() - 1 - index);
+			keys[index] = obj.getKey();
 			return index;
 		}
 	}
@@ -317,15 +671,14 @@ public class BTreeNode
 	 */
 	public SearchResult searchNode(TreeObject obj)
 	{
-		int index = 0;
+		int index = rank(obj.getKey());
 		boolean atEnd = index >= objects.size();
-		while (!atEnd && obj.compareTo(objects.get(index)) > 0)
-		{
-			index++;
-			atEnd = index >= objects.size();
-		}
 
-		if (!atEnd && obj.compareTo(objects.get(index)) == 0)
+		if (!atEnd && obj.compareTo(objects.get(index)) == 0 && !hasFrequencies())
+		{ // a B+ tree separator, the key is in the subtree right of it
+			return new SearchResult(children.get(right(index)), false);
+		}
+		else if (!atEnd && obj.compareTo(objects.get(index)) == 0)
 		{ // found object
 			return new SearchResult(index, true);
 		}
@@ -342,6 +695,28 @@ public class BTreeNode
 		}
 	}
 
+	/**
+	 * Finds how many objects have a key less than a key with NodeSearch, copying
+	 * the keys into an array the first time
+	 * 
+	 * @param key
+	 *            the key to rank
+	 * @return the index of the key if the node holds it, otherwise the index of
+	 *         the child it would be under
+	 */
+	public int rank(long key)
+	{
+		if (keys == null)
+		{
+			keys = new long[objects.size()];
+			for (int i = 0; i < keys.length; ++i)
+			{
+				keys[i] = objects.get(i).getKey();
+			}
+		}
+		return NodeSearch.rank(keys, objects.size(), key);
+	}
+
 	/**
 	 * @return the middle key in the full node
 	 * @throws IllegalStateException
@@ -352,7 +727,11 @@ public class BTreeNode
 		if (!isFull())
 			throw new IllegalStateException("A node can only split when it is full");
 
-		return objects.get(keyLimit / 2);
+		if (isLinkedLeaf())
+		{ // the object stays in the right leaf, a separator is moved up
+			return new TreeObject(objects.get(splitIndex()).getKey(), 0);
+		}
+		return objects.get(splitIndex());
 	}
 
 	/**
@@ -365,10 +744,13 @@ public class BTreeNode
 		if (!isFull())
 			throw new IllegalStateException("A node can only split when it is full");
 
-		ArrayList<TreeObject> ary = new ArrayList<>(objects.subList((keyLimit / 2) + 1, objects.size()));
-		ArrayList<Integer> childs = new ArrayList<>(children.subList((keyLimit / 2) + 1, children.size()));
+		int first = isLinkedLeaf() ? splitIndex() : splitIndex() + 1; // a B+ tree leaf keeps every object
+		ArrayList<TreeObject> ary = new ArrayList<>(objects.subList(first, objects.size()));
+		ArrayList<Integer> childs = new ArrayList<>(children.subList(first, children.size()));
 
-		return new BTreeNode(ary, childs, parent, (keyLimit + 1) / 2, isLeafNode);
+		BTreeNode right = new BTreeNode(ary, childs, parent, format, isLeafNode);
+		copyMessages(right, getMessageBound(first), messageCount);
+		return right;
 	}
 
 	/**
@@ -381,10 +763,104 @@ public class BTreeNode
 		if (!isFull())
 			throw new IllegalStateException("A node can only split when it is full");
 
-		ArrayList<TreeObject> ary = new ArrayList<>(objects.subList(0, keyLimit / 2));
-		ArrayList<Integer> childs = new ArrayList<>(children.subList(0, (keyLimit / 2) + 1));
+		ArrayList<TreeObject> ary = new ArrayList<>(objects.subList(0, splitIndex()));
+		ArrayList<Integer> childs = new ArrayList<>(children.subList(0, splitIndex() + 1));
 
-		return new BTreeNode(ary, childs, parent, (keyLimit + 1) / 2, isLeafNode);
+		BTreeNode left = new BTreeNode(ary, childs, parent, format, isLeafNode);
+		copyMessages(left, 0, getMessageBound(splitIndex() + 1));
+		return left;
+	}
+
+	/**
+	 * Spreads the objects of this node and its right sibling evenly over the two,
+	 * or over the three with an empty node between them. The separator between
+	 * the nodes moves down into them and new separators move up, except between B+
+	 * tree leaves, whose separators are copies of the first key of the next leaf
+	 * 
+	 * @param right
+	 *            the sibling right of this node
+	 * @param separator
+	 *            the object between the two nodes in their parent
+	 * @param middle
+	 *            an empty node to fill, null to spread over two nodes
+	 * @return the separators between the nodes in order, null if a node would be
+	 *         full, in which case no object was moved
+	 */
+	public TreeObject[] spreadWith(BTreeNode right, TreeObject separator, BTreeNode middle)
+	{
+		BTreeNode[] nodes = middle == null ? new BTreeNode[] { this, right } : new BTreeNode[] { this, middle, right };
+
+		// every object in order, with the separator unless it is a copy of a leaf key
+		ArrayList<TreeObject> allObjects = new ArrayList<>(objects.size() + right.objects.size() + 1);
+		ArrayList<Integer> allChildren = new ArrayList<>(children.size() + right.children.size());
+		allObjects.addAll(objects);
+		allChildren.addAll(children);
+		if (!isLinkedLeaf())
+		{
+			allObjects.add(separator);
+		}
+		allObjects.addAll(right.objects);
+		allChildren.addAll(right.children.subList(isLinkedLeaf() ? 1 : 0, right.children.size()));
+
+		// the key arrays are carried over, rebuilding them would read every object
+		long[] allKeys = null;
+		if (keys != null && right.keys != null)
+		{
+			allKeys = new long[allObjects.size()];
+			System.arraycopy(keys, 0, allKeys, 0, objects.size());
+			int rightStart = allObjects.size() - right.objects.size();
+			allKeys[objects.size()] = separator.getKey(); // overwritten by the right keys of B+ tree leaves
+			System.arraycopy(right.keys, 0, allKeys, rightStart, right.objects.size());
+		}
+
+		int keyCount = isLinkedLeaf() ? allObjects.size() : allObjects.size() - (nodes.length - 1);
+		int[] starts = new int[nodes.length];
+		ArrayList<ArrayList<TreeObject>> objectLists = new ArrayList<>();
+		ArrayList<ArrayList<Integer>> childLists = new ArrayList<>();
+		TreeObject[] separators = new TreeObject[nodes.length - 1];
+		int start = 0;
+		for (int i = 0; i < nodes.length; ++i)
+		{
+			int size = keyCount / nodes.length + (i < keyCount % nodes.length ? 1 : 0);
+			if (size == 0 || size >= keyLimit)
+			{
+				return null;
+			}
+
+			// sized for a full node, as the node fills up again next
+			ArrayList<TreeObject> ary = new ArrayList<>(keyLimit);
+			ArrayList<Integer> childs = new ArrayList<>(keyLimit + 1);
+			ary.addAll(allObjects.subList(start, start + size));
+			childs.addAll(allChildren.subList(start, start + size + 1));
+			if (new BTreeNode(ary, childs, parent, format, isLeafNode).isFull())
+			{
+				return null;
+			}
+			objectLists.add(ary);
+			childLists.add(childs);
+
+			starts[i] = start;
+			start += size;
+			if (i < separators.length)
+			{
+				TreeObject next = allObjects.get(start);
+				separators[i] = isLinkedLeaf() ? new TreeObject(next.getKey(), 0) : next;
+				start += isLinkedLeaf() ? 0 : 1;
+			}
+		}
+
+		for (int i = 0; i < nodes.length; ++i)
+		{
+			nodes[i].objects = objectLists.get(i);
+			nodes[i].children = childLists.get(i);
+			nodes[i].keys = null;
+			if (allKeys != null)
+			{
+				nodes[i].keys = new long[keyLimit];
+				System.arraycopy(allKeys, starts[i], nodes[i].keys, 0, nodes[i].objects.size());
+			}
+		}
+		return separators;
 	}
 
 	/**
@@ -453,6 +929,11 @@ public class BTreeNode
 	 */
 	public byte[] getBytes() throws IOException
 	{
+		if (format.isCompressed())
+		{
+			return getCompressedBytes();
+		}
+
 		int byteSize = getByteSize();
 		ByteArrayOutputStream ary = new ByteArrayOutputStream(byteSize);
 		DataOutputStream out = new DataOutputStream(ary);
@@ -467,16 +948,36 @@ public class BTreeNode
 		for (TreeObject obj : objects)
 		{
 			out.writeLong(obj.getKey());
-			out.writeInt(obj.getFrequency());
+			if (hasFrequencies())
+				out.writeInt(obj.getFrequency());
 		}
 
 		// parent
 		out.writeInt(parent);
 
-		// children
-		for (int pointer : children)
+		// children, a B+ tree leaf has none and takes the space for its links
+		if (isLinkedLeaf())
+		{
+			out.writeInt(previousLeaf);
+			out.writeInt(nextLeaf);
+		}
+		else
+		{
+			for (int pointer : children)
+			{
+				out.writeInt(pointer);
+			}
+		}
+
+		// pending messages of a buffered inner node
+		if (messageKeys != null)
 		{
-			out.writeInt(pointer);
+			out.writeInt(messageCount);
+			for (int i = 0; i < messageCount; ++i)
+			{
+				out.writeLong(messageKeys[i]);
+				out.writeInt(messageCounts[i]);
+			}
 		}
 
 		// empty space
@@ -513,13 +1014,38 @@ public class BTreeNode
 		return byteSize;
 	}
 
+	/**
+	 * @return estimated amount of bytes this node takes up on the Java heap
+	 */
+	public long getMemoryFootprint()
+	{
+		return NODE_HEAP_BYTE_SIZE + (long) objects.size() * OBJECT_HEAP_BYTE_SIZE
+				+ (long) children.size() * CHILD_HEAP_BYTE_SIZE
+				+ (messageKeys == null ? 0 : (long) messageKeys.length * MESSAGE_HEAP_BYTE_SIZE);
+	}
+
+	/**
+	 * @param format
+	 *            the storage format of the nodes
+	 * @return estimated amount of bytes a full node of the format takes up on the
+	 *         Java heap
+	 */
+	public static long getMaxMemoryFootprint(NodeFormat format)
+	{
+		long leaf = NODE_HEAP_BYTE_SIZE + (long) format.getKeyLimit(true) * OBJECT_HEAP_BYTE_SIZE
+				+ (long) (format.getKeyLimit(true) + 1) * CHILD_HEAP_BYTE_SIZE;
+		long inner = NODE_HEAP_BYTE_SIZE + (long) format.getKeyLimit(false) * OBJECT_HEAP_BYTE_SIZE
+				+ (long) (format.getKeyLimit(false) + 1) * CHILD_HEAP_BYTE_SIZE
+				+ (long) format.getBufferLimit() * MESSAGE_HEAP_BYTE_SIZE;
+		return Math.max(leaf, inner);
+	}
+
 	/**
 	 * @return how many bytes this node will take on a storage
 	 */
 	public int getByteSize()
 	{
-		int degree = (keyLimit + 1) / 2;
-		return getByteSize(degree);
+		return format.getPageSize();
 	}
 
 	@Override
@@ -528,6 +1054,14 @@ public class BTreeNode
 		StringBuilder sb = new StringBuilder();
 		sb.append("#keys=" + objects.size() + " isLeaf=" + isLeafNode + " location=" + location + "\n");
 		sb.append("parent=" + parent + "\n");
+		if (isLinkedLeaf())
+		{
+			sb.append("previous=" + previousLeaf + " next=" + nextLeaf + "\n");
+		}
+		if (messageKeys != null)
+		{
+			sb.append("messages=" + messageCount + "\n");
+		}
 
 		sb.append("Objects:\n");
 		for (TreeObject t : objects)
@@ -547,6 +1081,247 @@ public class BTreeNode
 
 	// private methods
 
+	/**
+	 * Creates the empty message buffer of an inner node of a buffered tree
+	 */
+	private void initBuffer()
+	{
+		if (format.isBuffered() && !isLeafNode)
+		{
+			messageKeys = new long[format.getBufferLimit()];
+			messageCounts = new int[messageKeys.length];
+		}
+	}
+
+	/**
+	 * Copies a range of the messages into the empty buffer of a split half
+	 * 
+	 * @param node
+	 *            the split half
+	 * @param from
+	 *            index of the first message
+	 * @param to
+	 *            index past the last message
+	 */
+	private void copyMessages(BTreeNode node, int from, int to)
+	{
+		if (messageKeys != null)
+		{
+			System.arraycopy(messageKeys, from, node.messageKeys, 0, to - from);
+			System.arraycopy(messageCounts, from, node.messageCounts, 0, to - from);
+			node.messageCount = to - from;
+		}
+	}
+
+	/**
+	 * @return false if the node is a B+ tree inner node, which only holds
+	 *         separator keys
+	 */
+	private boolean hasFrequencies()
+	{
+		return isLeafNode || !format.isBPlusTree();
+	}
+
+	/**
+	 * @return true if the node is a B+ tree leaf, linked to its neighbours
+	 */
+	private boolean isLinkedLeaf()
+	{
+		return isLeafNode && format.isBPlusTree();
+	}
+
+	/**
+	 * @return the index of the object moved up to the parent when splitting
+	 */
+	private int splitIndex()
+	{
+		return objects.size() / 2;
+	}
+
+	/**
+	 * @return the smallest child pointer, the frame of reference for the
+	 *         compressed child pointers
+	 */
+	private int childBase()
+	{
+		int base = Integer.MAX_VALUE;
+		for (int pointer : children)
+		{
+			base = Math.min(base, pointer);
+		}
+		return base;
+	}
+
+	/**
+	 * @return how many bytes each compressed child pointer offset takes up
+	 */
+	private int childOffsetWidth()
+	{
+		int base = childBase();
+		long maxOffset = 0;
+		for (int pointer : children)
+		{
+			maxOffset = Math.max(maxOffset, (long) pointer - base);
+		}
+
+		int width = 0;
+		while (maxOffset != 0)
+		{
+			maxOffset >>>= 8;
+			width++;
+		}
+		return width;
+	}
+
+	/**
+	 * @return how many bytes the compressed encoding of this node takes up
+	 *         before padding
+	 */
+	private int getCompressedByteSize()
+	{
+		int byteSize = COMPRESSED_META_BYTE_SIZE;
+		long previous = 0;
+
+		for (TreeObject obj : objects)
+		{
+			byteSize += VarInt.byteSize(obj.getKey() - previous);
+			if (hasFrequencies())
+				byteSize += VarInt.byteSize(obj.getFrequency() & 0xFFFFFFFFL);
+			previous = obj.getKey();
+		}
+
+		byteSize += children.size() * childOffsetWidth();
+		if (isLinkedLeaf())
+		{
+			byteSize += 2 * POINTER_BYTE_SIZE;
+		}
+		return byteSize;
+	}
+
+	/**
+	 * Encodes the node in the compressed layout. Keys are stored as the varint
+	 * delta to the previous key, frequencies as varints and child pointers as
+	 * fixed width offsets from the smallest child pointer
+	 * 
+	 * @return the page of bytes that represent this node
+	 * @throws IOException
+	 *             if unable to write to byte array
+	 */
+	private byte[] getCompressedBytes() throws IOException
+	{
+		int byteSize = getByteSize();
+		ByteArrayOutputStream ary = new ByteArrayOutputStream(byteSize);
+		DataOutputStream out = new DataOutputStream(ary);
+
+		// metadata
+		out.writeInt(location);
+		out.writeInt(objects.size());
+		out.writeBoolean(isLeafNode);
+		out.writeInt(parent);
+
+		// keys, delta from previous key
+		long previous = 0;
+		for (TreeObject obj : objects)
+		{
+			VarInt.write(out, obj.getKey() - previous);
+			previous = obj.getKey();
+		}
+
+		// frequencies, none in B+ tree inner nodes
+		for (TreeObject obj : objects)
+		{
+			if (hasFrequencies())
+				VarInt.write(out, obj.getFrequency() & 0xFFFFFFFFL);
+		}
+
+		// children, frame of reference
+		int base = childBase();
+		int width = childOffsetWidth();
+		out.writeByte(width);
+		out.writeInt(base);
+		for (int pointer : children)
+		{
+			long offset = (long) pointer - base;
+			for (int shift = (width - 1) * 8; shift >= 0; shift -= 8)
+			{
+				out.writeByte((int) (offset >>> shift));
+			}
+		}
+
+		if (isLinkedLeaf())
+		{
+			out.writeInt(previousLeaf);
+			out.writeInt(nextLeaf);
+		}
+
+		if (ary.size() > byteSize)
+		{
+			throw new IllegalStateException("Compressed node does not fit in a page of " + byteSize + " bytes");
+		}
+
+		// empty space
+		while (ary.size() < byteSize)
+		{
+			out.write(0);
+		}
+
+		return ary.toByteArray();
+	}
+
+	/**
+	 * Reads the node fields from a page in the compressed layout
+	 * 
+	 * @param in
+	 *            stream over the page
+	 */
+	private void readCompressed(DataInputStream in)
+	{
+		try
+		{
+			location = in.readInt();
+			int numOfKeys = in.readInt();
+			isLeafNode = in.readBoolean();
+			parent = in.readInt();
+			objects = new ArrayList<>(numOfKeys);
+			children = new ArrayList<>(numOfKeys + 1);
+
+			long[] keys = new long[numOfKeys];
+			long previous = 0;
+			for (int i = 0; i < numOfKeys; ++i)
+			{
+				previous += VarInt.read(in);
+				keys[i] = previous;
+			}
+
+			for (int i = 0; i < numOfKeys; ++i)
+			{
+				objects.add(new TreeObject(keys[i], hasFrequencies() ? (int) VarInt.read(in) : 0));
+			}
+
+			int width = in.readUnsignedByte();
+			int base = in.readInt();
+			for (int i = 0; i < numOfKeys + 1; ++i)
+			{
+				long offset = 0;
+				for (int b = 0; b < width; ++b)
+				{
+					offset = (offset << 8) | in.readUnsignedByte();
+				}
+				children.add((int) (base + offset));
+			}
+
+			if (isLinkedLeaf())
+			{
+				previousLeaf = in.readInt();
+				nextLeaf = in.readInt();
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to build BTreeNode from byte array");
+		}
+	}
+
 	/**
 	 * Returned from the search method. The value of location represents two
 	 * different things depending on the state of wasFound
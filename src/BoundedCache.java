@@ -0,0 +1,92 @@
+/**
+ * Interface for a cache that holds a bounded amount of objects and chooses
+ * which object to evict when it is full. Objects are looked up by equality,
+ * passing an object that .equals a cached object returns the cached one.
+ *
+ * @param <T>
+ *            - class of objects stored in the cache
+ */
+public interface BoundedCache<T>
+{
+	/**
+	 * Returns the cached object that .equals the passed object and records the
+	 * access for the eviction policy
+	 *
+	 * @param object
+	 *            the object to get
+	 * @return the cached object, null if the object was not found
+	 */
+	public T getObject(T object);
+
+	/**
+	 * Adds an object to the cache, evicting another object if the cache is full.
+	 * A cache may also decline to admit the object, in which case the object
+	 * itself is returned
+	 *
+	 * @param object
+	 *            the object to be added
+	 * @throws NullPointerException
+	 *             if passed object is null
+	 * @return the object pushed out of the cache, or null if nothing was
+	 */
+	public T addObject(T object);
+
+	/**
+	 * removes an object from the cache and returns it
+	 *
+	 * @param object
+	 *            the object to be removed
+	 * @return the removed object. returns null if the object was not found
+	 */
+	public T removeObject(T object);
+
+	/**
+	 * Removes some object of the cache, used to drain the cache
+	 *
+	 * @return the removed object, null if empty
+	 */
+	public T removeFirst();
+
+	/**
+	 * @return true if cache is empty, false otherwise
+	 */
+	public boolean isEmpty();
+
+	/**
+	 * @return how many objects are in the cache
+	 */
+	public int size();
+
+	/**
+	 * @return how many objects the cache can hold
+	 */
+	public int getCapacity();
+
+	/**
+	 * Removes an object if the cache takes up more than its byte budget, for
+	 * caches limited by memory
+	 *
+	 * @return the removed object, null if the cache is within its budget
+	 */
+	public default T removeOverBudget()
+	{
+		return null;
+	}
+
+	/**
+	 * @return the total footprint in bytes of the objects in the cache, 0 if the
+	 *         cache does not weigh its objects
+	 */
+	public default long getByteSize()
+	{
+		return 0;
+	}
+
+	/**
+	 * @return the byte budget of the cache, 0 if it is limited by object count
+	 */
+	public default long getByteBudget()
+	{
+		return 0;
+	}
+}
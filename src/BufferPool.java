@@ -0,0 +1,577 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A fixed size pool of node pages kept off the Java heap in direct buffers.
+ * Pages are read straight from the BTreeFile into a frame of the pool and
+ * written back from it, so with a file opened for direct I/O the pool is the
+ * only copy of a node in memory. Nodes are decoded from their page when they
+ * are retrieved and encoded into it when they are written, evicted pages are
+ * chosen with the CLOCK algorithm and written back if dirty.
+ * 
+ * All bookkeeping is kept in primitive arrays, so a pool of any size only
+ * holds a handful of objects on the heap and adds nothing for the garbage
+ * collector to trace.
+ */
+public class BufferPool
+{
+	// the frame count used when a tree is not given a cache size
+	public static final int DEFAULT_FRAME_COUNT = 16;
+
+	// max bytes in a single direct buffer slab
+	private static final int MAX_SLAB_BYTE_SIZE = 1 << 30;
+
+	// bookkeeping bytes per frame: location=4, dirty=1, referenced=1, index=16
+	private static final int FRAME_OVERHEAD_BYTE_SIZE = 22;
+
+	// offsets in a page of the fixed slot layout, see BTreeNode.getBytes
+	private static final int NUM_OF_KEYS_OFFSET = 4; // after location=4
+	private static final int IS_LEAF_OFFSET = 8; // after #keys=4
+
+	// fields
+	private BTreeFile file;
+	private NodeFormat format;
+	private int pageSize;
+	private ByteBuffer[] frames;
+	private int[] frameLocation; // location held by each frame, -1 if free
+	private boolean[] isDirty;
+	private boolean[] isReferenced;
+	private FrameIndex frameOf; // location -> frame
+	private int clockHand;
+	private long hits;
+	private long misses;
+
+	// constructor
+
+	/**
+	 * Creates a pool and allocates all of its frames up front
+	 *
+	 * @param file
+	 *            the file the pages belong to
+	 * @param format
+	 *            the storage format of the nodes
+	 * @param frameCount
+	 *            how many pages the pool holds
+	 */
+	public BufferPool(BTreeFile file, NodeFormat format, int frameCount)
+	{
+		if (frameCount <= 0)
+		{
+			throw new IllegalArgumentException("Buffer pool must have at least one frame");
+		}
+
+		this.file = file;
+		this.format = format;
+		this.pageSize = format.getPageSize();
+
+		frames = new ByteBuffer[frameCount];
+		int framesPerSlab = Math.max(1, MAX_SLAB_BYTE_SIZE / pageSize);
+		for (int i = 0; i < frameCount; i += framesPerSlab)
+		{
+			int slabFrames = Math.min(framesPerSlab, frameCount - i);
+			ByteBuffer slab = file.allocateAlignedBuffer(slabFrames * pageSize); // preallocated off-heap
+			for (int j = 0; j < slabFrames; ++j)
+			{
+				frames[i + j] = slab.duplicate().position(j * pageSize).limit((j + 1) * pageSize).slice();
+			}
+		}
+
+		frameLocation = new int[frameCount];
+		Arrays.fill(frameLocation, -1);
+		isDirty = new boolean[frameCount];
+		isReferenced = new boolean[frameCount];
+		frameOf = new FrameIndex(frameCount);
+	}
+
+	// public methods
+
+	/**
+	 * @param memoryBudget
+	 *            the most bytes a pool may take up
+	 * @param pageSize
+	 *            size of a node page in bytes
+	 * @return how many frames a pool can have within the budget, at least 1
+	 */
+	public static int framesForBudget(long memoryBudget, int pageSize)
+	{
+		long frames = memoryBudget / (pageSize + FRAME_OVERHEAD_BYTE_SIZE);
+		return (int) Math.max(1, Math.min(frames, 1 << 29));
+	}
+
+	/**
+	 * Returns the node at a location, reading its page into the pool if needed
+	 *
+	 * @param location
+	 *            location of the node in file
+	 * @return a node decoded from the page
+	 */
+	public BTreeNode getNode(int location)
+	{
+		byte[] bytes = new byte[pageSize];
+		frames[lookUp(location)].clear().get(bytes);
+		return new BTreeNode(bytes, format);
+	}
+
+	/**
+	 * @return true if the pages of the pool can be searched in place with
+	 *         searchNode, which needs the fixed slot layout without message
+	 *         buffers
+	 */
+	public boolean canSearchInPlace()
+	{
+		return !format.isCompressed() && !format.isBuffered();
+	}
+
+	/**
+	 * Searches the page of a node for a key, reading the keys straight from the
+	 * frame instead of decoding the node. Reads the page into the pool if needed
+	 *
+	 * @param location
+	 *            location of the node in file
+	 * @param key
+	 *            the key to search for
+	 * @return the frequency of the key if the node holds it, 0 if the node is a
+	 *         leaf without the key, otherwise -1 - the location of the child to
+	 *         continue the search in
+	 * @throws IllegalStateException
+	 *             if the pages can not be searched in place
+	 */
+	public long searchNode(int location, long key)
+	{
+		if (!canSearchInPlace())
+		{
+			throw new IllegalStateException("Only pages of the fixed slot layout can be searched in place");
+		}
+
+		ByteBuffer page = frames[lookUp(location)];
+		int numOfKeys = page.getInt(NUM_OF_KEYS_OFFSET);
+		boolean isLeaf = page.get(IS_LEAF_OFFSET) != 0;
+		boolean hasFrequencies = isLeaf || !format.isBPlusTree(); // B+ tree separators have none
+		int objectSize = hasFrequencies ? BTreeNode.OBJECT_BYTE_SIZE : BTreeNode.KEY_BYTE_SIZE;
+
+		// first key not less than the key, as BTreeNode.rank
+		int low = 0;
+		int high = numOfKeys;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (page.getLong(BTreeNode.NODE_META_BYTE_SIZE + mid * objectSize) < key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		int child = low;
+		int offset = BTreeNode.NODE_META_BYTE_SIZE + low * objectSize;
+		if (low < numOfKeys && page.getLong(offset) == key)
+		{
+			if (hasFrequencies)
+			{
+				return page.getInt(offset + BTreeNode.KEY_BYTE_SIZE) & 0xFFFFFFFFL;
+			}
+			child = low + 1; // a B+ tree separator, the key is in the subtree right of it
+		}
+		if (isLeaf)
+		{
+			return 0;
+		}
+
+		// children follow the parent pointer after the keys
+		int childrenOffset = BTreeNode.NODE_META_BYTE_SIZE + numOfKeys * objectSize + BTreeNode.POINTER_BYTE_SIZE;
+		return -1L - page.getInt(childrenOffset + child * BTreeNode.POINTER_BYTE_SIZE);
+	}
+
+	/**
+	 * Returns the node at a location if its page is in the pool
+	 *
+	 * @param location
+	 *            location of the node in file
+	 * @return a node decoded from the page, null if the page is not in the pool
+	 */
+	public BTreeNode getNodeIfPresent(int location)
+	{
+		return frameOf.get(location) == -1 ? null : getNode(location);
+	}
+
+	/**
+	 * Puts a page read outside of the pool into it, as if the pool had read it
+	 *
+	 * @param location
+	 *            location of the node in file
+	 * @param page
+	 *            the page data
+	 */
+	public void install(int location, byte[] page)
+	{
+		int frame = frameOf.get(location);
+		if (frame == -1)
+		{
+			misses++;
+			frame = claimFrame(location);
+			frames[frame].clear().put(page, 0, Math.min(page.length, pageSize));
+		}
+		isReferenced[frame] = true;
+	}
+
+	/**
+	 * Reads the page at a location into the pool if it is not there yet, without
+	 * decoding it or counting a lookup
+	 *
+	 * @param location
+	 *            location of the node in file
+	 */
+	public void prefetch(int location)
+	{
+		if (frameOf.get(location) != -1)
+		{
+			return;
+		}
+
+		int frame = claimFrame(location);
+		try
+		{
+			file.readNodeData(location, frames[frame].clear());
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to read node data at position " + location);
+		}
+	}
+
+	/**
+	 * Encodes a node into its page and marks the page dirty. The page is written
+	 * to file when it is evicted or the pool is flushed
+	 *
+	 * @param node
+	 *            the node to write, its location must be set
+	 */
+	public void writeNode(BTreeNode node)
+	{
+		if (!node.hasLocation())
+		{
+			throw new IllegalArgumentException("Node's location is not set!");
+		}
+
+		int frame = frameOf.get(node.getLocation());
+		if (frame == -1)
+		{
+			frame = claimFrame(node.getLocation());
+		}
+
+		try
+		{
+			frames[frame].clear().put(node.getBytes());
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to encode node at position " + node.getLocation());
+		}
+
+		isDirty[frame] = true;
+		isReferenced[frame] = true;
+	}
+
+	/**
+	 * Reserves the next position in file for a new node and writes the node to
+	 * the pool
+	 *
+	 * @param node
+	 *            the node to append, its location is set to the reserved position
+	 */
+	public void appendNode(BTreeNode node)
+	{
+		node.setLocation(file.allocateNodePosition());
+		writeNode(node);
+	}
+
+	/**
+	 * Writes every dirty page to file in order of location, the pages stay in the
+	 * pool
+	 */
+	public void flush()
+	{
+		// sort (location, frame) pairs packed in longs by location
+		long[] dirty = new long[frames.length];
+		int count = 0;
+		for (int i = 0; i < frames.length; ++i)
+		{
+			if (isDirty[i])
+			{
+				dirty[count++] = ((long) frameLocation[i] << 32) | i;
+			}
+		}
+		Arrays.sort(dirty, 0, count);
+
+		for (int i = 0; i < count; ++i)
+		{
+			writeBack((int) dirty[i]);
+		}
+	}
+
+	/**
+	 * @return how many pages the pool holds
+	 */
+	public int getFrameCount()
+	{
+		return frames.length;
+	}
+
+	/**
+	 * @return how many frames hold a page
+	 */
+	public int getUsedFrameCount()
+	{
+		int used = 0;
+		for (int location : frameLocation)
+		{
+			if (location != -1)
+			{
+				used++;
+			}
+		}
+		return used;
+	}
+
+	/**
+	 * @return the locations of the pages in the pool, recently referenced pages
+	 *         first
+	 */
+	public int[] getLocations()
+	{
+		int[] locations = new int[getUsedFrameCount()];
+		int count = 0;
+		for (int pass = 0; pass < 2; ++pass)
+		{
+			for (int i = 0; i < frames.length; ++i)
+			{
+				if (frameLocation[i] != -1 && isReferenced[i] == (pass == 0))
+				{
+					locations[count++] = frameLocation[i];
+				}
+			}
+		}
+		return locations;
+	}
+
+	/**
+	 * @return how many bytes the pool takes up, pages and bookkeeping
+	 */
+	public long getByteSize()
+	{
+		return (long) frames.length * (pageSize + FRAME_OVERHEAD_BYTE_SIZE);
+	}
+
+	/**
+	 * @return how many node retrievals were served from the pool
+	 */
+	public long getHitCount()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return how many node retrievals had to read from file
+	 */
+	public long getMissCount()
+	{
+		return misses;
+	}
+
+	// private methods
+
+	/**
+	 * Finds the frame of a location, reading its page into the pool if needed,
+	 * and marks it referenced
+	 *
+	 * @param location
+	 *            location of the node in file
+	 * @return the frame holding the page
+	 */
+	private int lookUp(int location)
+	{
+		int frame = frameOf.get(location);
+
+		if (frame == -1)
+		{
+			misses++;
+			frame = claimFrame(location);
+			ByteBuffer page = frames[frame].clear();
+			try
+			{
+				file.readNodeData(location, page);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Unable to read node data at position " + location);
+			}
+		}
+		else
+		{
+			hits++;
+		}
+
+		isReferenced[frame] = true;
+		return frame;
+	}
+
+	/**
+	 * Finds a frame for a location, evicting the page of another location if the
+	 * pool is full
+	 *
+	 * @param location
+	 *            the location the frame will hold
+	 * @return the frame
+	 */
+	private int claimFrame(int location)
+	{
+		// CLOCK: skip over and clear referenced frames until an unreferenced one
+		while (frameLocation[clockHand] != -1 && isReferenced[clockHand])
+		{
+			isReferenced[clockHand] = false;
+			clockHand = (clockHand + 1) % frames.length;
+		}
+
+		int frame = clockHand;
+		clockHand = (clockHand + 1) % frames.length;
+
+		if (frameLocation[frame] != -1)
+		{
+			if (isDirty[frame])
+			{
+				writeBack(frame);
+			}
+			frameOf.remove(frameLocation[frame]);
+		}
+
+		frameLocation[frame] = location;
+		isDirty[frame] = false;
+		isReferenced[frame] = false;
+		frameOf.put(location, frame);
+		return frame;
+	}
+
+	/**
+	 * Writes the page of a frame to file and marks it clean
+	 *
+	 * @param frame
+	 *            the frame to write
+	 */
+	private void writeBack(int frame)
+	{
+		try
+		{
+			file.writeNodeData(frameLocation[frame], frames[frame].clear());
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to write node data at position " + frameLocation[frame]);
+		}
+		isDirty[frame] = false;
+	}
+
+	/**
+	 * Open addressing map from node location to frame with linear probing, keeps
+	 * the pool index free of boxed keys and entry objects
+	 */
+	static class FrameIndex
+	{
+		private int[] keys; // -1 marks an empty slot
+		private int[] values;
+		private int mask;
+		private int shift;
+
+		/**
+		 * @param capacity
+		 *            the most entries the index will hold
+		 */
+		FrameIndex(int capacity)
+		{
+			int slots = Integer.highestOneBit(Math.min(Math.max(capacity, 2), 1 << 29) * 2 - 1) << 1; // load <= 0.5
+			keys = new int[slots];
+			values = new int[slots];
+			mask = slots - 1;
+			shift = 32 - Integer.numberOfTrailingZeros(slots);
+			Arrays.fill(keys, -1);
+		}
+
+		/**
+		 * @param location
+		 *            location to look up
+		 * @return the frame of the location, -1 if it is not in the pool
+		 */
+		int get(int location)
+		{
+			for (int slot = slot(location); keys[slot] != -1; slot = (slot + 1) & mask)
+			{
+				if (keys[slot] == location)
+				{
+					return values[slot];
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @param location
+		 *            location to add, must not be in the index
+		 * @param frame
+		 *            frame of the location
+		 */
+		void put(int location, int frame)
+		{
+			int slot = slot(location);
+			while (keys[slot] != -1)
+			{
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = location;
+			values[slot] = frame;
+		}
+
+		/**
+		 * Removes a location, shifting back later entries of its probe run so no
+		 * tombstones are needed
+		 * 
+		 * @param location
+		 *            location to remove
+		 */
+		void remove(int location)
+		{
+			int slot = slot(location);
+			while (keys[slot] != location)
+			{
+				if (keys[slot] == -1)
+				{
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			int next = (slot + 1) & mask;
+			while (keys[next] != -1)
+			{
+				int home = slot(keys[next]);
+				// move the entry if its home is not cyclically between slot and next
+				if (((next - home) & mask) >= ((next - slot) & mask))
+				{
+					keys[slot] = keys[next];
+					values[slot] = values[next];
+					slot = next;
+				}
+				next = (next + 1) & mask;
+			}
+			keys[slot] = -1;
+		}
+
+		/**
+		 * @param location
+		 *            the location to hash
+		 * @return the home slot of the location
+		 */
+		int slot(int location)
+		{
+			return (location * 0x9E3779B9) >>> shift; // fibonacci hashing, top bits
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * Offers static methods for parsing and printing human readable byte sizes such
+ * as 4k, 16K or 2g
+ */
+public class ByteSize
+{
+	// size suffixes, index is the power of 1024
+	private static final String suffixes = "BKMGT";
+
+	/**
+	 * Parses a byte size. The number can be followed by one of the (case
+	 * insensitive) suffixes b, k, m, g or t, with an optional trailing b (eg 64kb)
+	 *
+	 * @param size
+	 *            the size to parse
+	 * @return the amount of bytes
+	 * @throws NumberFormatException
+	 *             if the size is not a valid byte size
+	 */
+	public static long parse(String size)
+	{
+		String s = size.trim().toUpperCase();
+		if (s.length() > 2 && s.endsWith("B") && suffixes.indexOf(s.charAt(s.length() - 2)) > 0)
+		{
+			s = s.substring(0, s.length() - 1);
+		}
+
+		int power = 0;
+		if (!s.isEmpty() && suffixes.indexOf(s.charAt(s.length() - 1)) != -1)
+		{
+			power = suffixes.indexOf(s.charAt(s.length() - 1));
+			s = s.substring(0, s.length() - 1);
+		}
+
+		long value = Long.parseLong(s);
+		if (value < 0 || value > (Long.MAX_VALUE >> (10 * power)))
+		{
+			throw new NumberFormatException("Invalid byte size: " + size);
+		}
+
+		return value << (10 * power);
+	}
+
+	/**
+	 * @param bytes
+	 *            amount of bytes
+	 * @return the amount in the largest unit it is at least 1 of, eg 1.5M
+	 */
+	public static String toString(long bytes)
+	{
+		int power = 0;
+		double value = bytes;
+		while (value >= 1024 && power < suffixes.length() - 1)
+		{
+			value /= 1024;
+			power++;
+		}
+
+		if (power == 0)
+		{
+			return bytes + "B";
+		}
+		return String.format("%.1f%c", value, suffixes.charAt(power));
+	}
+}
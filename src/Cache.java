@@ -1,4 +1,5 @@
-import java.util.ListIterator;
+import java.util.HashMap;
+import java.util.function.ToLongFunction;
 
 /**
  * this class stores objects up to a specified capacity. Adding objects when the
@@ -6,14 +7,28 @@ import java.util.ListIterator;
  * Objects are always added to the front of the cache. when an object is
  * retrieved from a cache, that object is move to the front of the cache.
  * 
+ * A cache can instead be limited by a byte budget, using a weigher function
+ * that returns the memory footprint of an object. Each object is weighed when
+ * it is added (and again whenever it is retrieved), objects over budget are
+ * then removed with removeOverBudget.
+ * 
+ * The objects are linked from the most to the least recently used, and a hash
+ * map from each object to its link finds an object without walking the list,
+ * so lookups take the same time in a cache of any size.
+ * 
  * @author Madeline Ross
  */
-public class Cache<T>
+public class Cache<T> implements BoundedCache<T>
 {
 
 	// fields
 	private int capacity;
-	private IUDoubleLinkedList<T> list;
+	private HashMap<T, Entry<T>> entries; // object -> its link
+	private Entry<T> first; // most recently used, null if empty
+	private Entry<T> last; // least recently used, null if empty
+	private long byteBudget; // 0 if limited by capacity
+	private long byteSize;
+	private ToLongFunction<T> weigher;
 
 	// constructor
 
@@ -26,7 +41,29 @@ public class Cache<T>
 	public Cache(int size)
 	{
 		capacity = size;
-		list = new IUDoubleLinkedList<>();
+		entries = new HashMap<>();
+		weigher = object -> 0;
+	}
+
+	/**
+	 * creates a Cache limited by the memory footprint of its objects
+	 * 
+	 * @param byteBudget
+	 *            the most bytes the objects in the cache may take up
+	 * @param weigher
+	 *            returns the footprint of an object in bytes
+	 */
+	public Cache(long byteBudget, ToLongFunction<T> weigher)
+	{
+		if (byteBudget <= 0)
+		{
+			throw new IllegalArgumentException("Byte budget must be greater than zero");
+		}
+
+		capacity = Integer.MAX_VALUE;
+		entries = new HashMap<>();
+		this.byteBudget = byteBudget;
+		this.weigher = weigher;
 	}
 
 	// public methods
@@ -39,6 +76,7 @@ public class Cache<T>
 	 *            the object to get
 	 * @return the returned object, null if the object was not found
 	 */
+	@Override
 	public T getObject(T object)
 	{
 		T retVal = removeObject(object);
@@ -52,7 +90,8 @@ public class Cache<T>
 	}
 
 	/**
-	 * Adds an object to the front of the cache
+	 * Adds an object to the front of the cache, replacing an equal object if it
+	 * is cached
 	 * 
 	 * @param object
 	 *            the object to be added
@@ -60,6 +99,7 @@ public class Cache<T>
 	 *             if passed object is null
 	 * @return the object pushed out of the cache, or null if cache was not full
 	 */
+	@Override
 	public T addObject(T object)
 	{
 		if (object == null)
@@ -69,15 +109,45 @@ public class Cache<T>
 
 		T retVal = null;
 
-		if (list.size() >= capacity)
+		removeObject(object);
+		if (entries.size() >= capacity)
 		{
-			retVal = list.removeLast();
+			retVal = removeEntry(last);
+		}
+
+		Entry<T> entry = new Entry<>(object, weigher.applyAsLong(object));
+		byteSize += entry.weight;
+		entries.put(object, entry);
+		entry.next = first;
+		if (first != null)
+		{
+			first.prev = entry;
+		}
+		first = entry;
+		if (last == null)
+		{
+			last = entry;
 		}
-		list.addToFront(object);
 
 		return retVal;
 	}
 
+	/**
+	 * Removes the last object of the cache if the cache takes up more than its
+	 * byte budget. The most recently added object is never removed
+	 * 
+	 * @return the removed object, null if the cache is within its budget
+	 */
+	@Override
+	public T removeOverBudget()
+	{
+		if (byteBudget == 0 || byteSize <= byteBudget || entries.size() <= 1)
+		{
+			return null;
+		}
+		return removeEntry(last);
+	}
+
 	/**
 	 * removes an object from the cache and returns it
 	 * 
@@ -85,48 +155,29 @@ public class Cache<T>
 	 *            the object to be removed
 	 * @return the removed object. returns null if the object was not found
 	 */
+	@Override
 	public T removeObject(T object)
 	{
-		boolean found = false;
-		ListIterator<T> itr = list.listIterator();
-		T retVal = null;
-
-		while (!found && itr.hasNext())
-		{
-			retVal = itr.next();
-
-			if (retVal.equals(object))
-			{
-				found = true;
-			}
-		}
-
-		if (!found)
-		{
-			retVal = null;
-		}
-		else
-		{
-			itr.remove();
-		}
-
-		return retVal;
+		Entry<T> entry = entries.get(object);
+		return entry == null ? null : removeEntry(entry);
 	}
 
 	/**
 	 * @return true if cache is empty, false otherwise
 	 */
+	@Override
 	public boolean isEmpty()
 	{
-		return list.isEmpty();
+		return entries.isEmpty();
 	}
 
 	/**
 	 * @return the first object in the cache, null if empty
 	 */
+	@Override
 	public T removeFirst()
 	{
-		return list.isEmpty() ? null : list.removeFirst();
+		return first == null ? null : removeEntry(first);
 	}
 
 	/**
@@ -134,6 +185,89 @@ public class Cache<T>
 	 */
 	public void clearCache()
 	{
-		list = new IUDoubleLinkedList<>();
+		entries.clear();
+		first = null;
+		last = null;
+		byteSize = 0;
+	}
+
+	/**
+	 * @return how many objects are in the cache
+	 */
+	@Override
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @return how many objects the cache can hold
+	 */
+	@Override
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return the total footprint in bytes of the objects in the cache, as
+	 *         weighed when they were last added or retrieved
+	 */
+	@Override
+	public long getByteSize()
+	{
+		return byteSize;
+	}
+
+	/**
+	 * @return the byte budget of the cache, 0 if it is limited by object count
+	 */
+	@Override
+	public long getByteBudget()
+	{
+		return byteBudget;
+	}
+
+	// private methods
+
+	/**
+	 * Unlinks an entry and removes it from the map
+	 * 
+	 * @param entry
+	 *            the entry to remove
+	 * @return the object of the entry
+	 */
+	private T removeEntry(Entry<T> entry)
+	{
+		if (entry.prev == null)
+			first = entry.next;
+		else
+			entry.prev.next = entry.next;
+		if (entry.next == null)
+			last = entry.prev;
+		else
+			entry.next.prev = entry.prev;
+
+		entries.remove(entry.object);
+		byteSize -= entry.weight;
+		return entry.object;
+	}
+
+	/**
+	 * An object in the cache, its weight when it was added and its neighbours
+	 * in order of use
+	 */
+	private static class Entry<T>
+	{
+		final T object;
+		final long weight;
+		Entry<T> prev; // more recently used
+		Entry<T> next; // less recently used
+
+		Entry(T object, long weight)
+		{
+			this.object = object;
+			this.weight = weight;
+		}
 	}
 }
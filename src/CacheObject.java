@@ -8,6 +8,9 @@
  */
 public class CacheObject
 {
+	// estimated heap size of a cache object and the list node holding it
+	public static final int HEAP_BYTE_SIZE = 64;
+
 	private BTreeNode cacheNode;
 	private int location;
 
@@ -69,6 +72,15 @@ public class CacheObject
 		return cacheNode.getLocation();
 	}
 
+	/**
+	 * @return estimated amount of bytes this object and its node take up on the
+	 *         Java heap
+	 */
+	public long getMemoryFootprint()
+	{
+		return HEAP_BYTE_SIZE + (cacheNode == null ? 0 : cacheNode.getMemoryFootprint());
+	}
+
 	@Override
 	public boolean equals(Object o)
 	{
@@ -78,4 +90,10 @@ public class CacheObject
 		}
 		return false;
 	}
+
+	@Override
+	public int hashCode()
+	{
+		return location;
+	}
 }
@@ -0,0 +1,241 @@
+/**
+ * Holds the settings for the node cache of a BTree
+ */
+public class CacheOptions
+{
+	/**
+	 * Where cached nodes are kept
+	 */
+	public enum Mode
+	{
+		/** node objects on the Java heap, in a Cache */
+		LIST,
+		/** encoded node pages in an off-heap BufferPool */
+		SLAB
+	}
+
+	/**
+	 * Which node a heap cache evicts when it is full
+	 */
+	public enum Policy
+	{
+		/** least recently used, the original policy */
+		LRU("lru"),
+		/** 2Q, nodes must be used twice to enter the main queue */
+		TWO_QUEUE("2q"),
+		/** CLOCK-Pro, nodes are hot or cold by reuse distance */
+		CLOCK_PRO("clockpro"),
+		/** W-TinyLFU, nodes are admitted by estimated frequency */
+		TINY_LFU("tinylfu");
+
+		private String name;
+
+		private Policy(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	// fields
+	private int size;
+	private long memoryBudget; // 0 if limited by size
+	private Mode mode = Mode.LIST;
+	private Policy policy = Policy.LRU;
+	private String hotSetFile; // null if the hot set is not kept
+	private int writeBackQueueSize; // 0 if evicted nodes are written synchronously
+
+	// constructor
+
+	/**
+	 * Creates options for a heap cache of the specified size
+	 * 
+	 * @param size
+	 *            how many nodes the cache holds
+	 */
+	public CacheOptions(int size)
+	{
+		if (size <= 0)
+		{
+			throw new IllegalArgumentException("Cache size must be greater than zero");
+		}
+		this.size = size;
+	}
+
+	/**
+	 * Creates options for a cache limited by memory instead of node count
+	 * 
+	 * @param memoryBudget
+	 *            the most bytes the cached nodes may take up
+	 * @return the options
+	 */
+	public static CacheOptions withMemoryBudget(long memoryBudget)
+	{
+		if (memoryBudget <= 0)
+		{
+			throw new IllegalArgumentException("Cache memory must be greater than zero");
+		}
+
+		CacheOptions options = new CacheOptions(Integer.MAX_VALUE);
+		options.memoryBudget = memoryBudget;
+		return options;
+	}
+
+	// public methods
+
+	/**
+	 * Splits the cache between several trees
+	 *
+	 * @param shareCount
+	 *            how many trees share the cache
+	 * @return the same options with a share of the nodes or memory of these, at
+	 *         least one node, and no hot set file
+	 */
+	public CacheOptions share(int shareCount)
+	{
+		CacheOptions options = memoryBudget > 0 ? withMemoryBudget(Math.max(1, memoryBudget / shareCount))
+				: new CacheOptions(Math.max(1, size / shareCount));
+		options.mode = mode;
+		options.policy = policy;
+		options.writeBackQueueSize = writeBackQueueSize;
+		return options;
+	}
+
+	/**
+	 * @return the most bytes the cached nodes may take up, 0 if the cache is
+	 *         limited by node count
+	 */
+	public long getMemoryBudget()
+	{
+		return memoryBudget;
+	}
+
+	/**
+	 * @return how many nodes the cache holds, Integer.MAX_VALUE if the cache is
+	 *         limited by memory
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return where cached nodes are kept
+	 */
+	public Mode getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * @param mode
+	 *            where cached nodes are kept
+	 */
+	public void setMode(Mode mode)
+	{
+		this.mode = mode;
+	}
+
+	/**
+	 * @return which node a heap cache evicts when it is full
+	 */
+	public Policy getPolicy()
+	{
+		return policy;
+	}
+
+	/**
+	 * @param policy
+	 *            which node a heap cache evicts when it is full
+	 */
+	public void setPolicy(Policy policy)
+	{
+		this.policy = policy;
+	}
+
+	/**
+	 * @return the sidecar file the locations of cached nodes are saved to on
+	 *         close and prefetched from on open, null if they are not kept
+	 */
+	public String getHotSetFile()
+	{
+		return hotSetFile;
+	}
+
+	/**
+	 * @param hotSetFile
+	 *            the sidecar file the locations of cached nodes are saved to on
+	 *            close and prefetched from on open, null to not keep them
+	 */
+	public void setHotSetFile(String hotSetFile)
+	{
+		this.hotSetFile = hotSetFile;
+	}
+
+	/**
+	 * @return how many evicted nodes a background thread may have queued for
+	 *         writing, 0 if evicted nodes are written synchronously
+	 */
+	public int getWriteBackQueueSize()
+	{
+		return writeBackQueueSize;
+	}
+
+	/**
+	 * Sets up writing evicted nodes on a background thread. Only applies to the
+	 * heap cache, the slab cache writes back its own pages
+	 * 
+	 * @param writeBackQueueSize
+	 *            how many evicted nodes may be queued for writing before the
+	 *            tree waits for the writer, 0 to write them synchronously
+	 */
+	public void setWriteBackQueueSize(int writeBackQueueSize)
+	{
+		if (writeBackQueueSize < 0)
+		{
+			throw new IllegalArgumentException("Write back queue size cannot be negative");
+		}
+		this.writeBackQueueSize = writeBackQueueSize;
+	}
+
+	/**
+	 * Parses a cache mode from the command line
+	 * 
+	 * @param name
+	 *            name of the mode, case insensitive
+	 * @return the mode
+	 * @throws IllegalArgumentException
+	 *             if there is no mode with the name
+	 */
+	public static Mode parseMode(String name)
+	{
+		return Mode.valueOf(name.toUpperCase());
+	}
+
+	/**
+	 * Parses a cache eviction policy from the command line
+	 * 
+	 * @param name
+	 *            name of the policy (lru, 2q, clockpro or tinylfu), case
+	 *            insensitive
+	 * @return the policy
+	 * @throws IllegalArgumentException
+	 *             if there is no policy with the name
+	 */
+	public static Policy parsePolicy(String name)
+	{
+		for (Policy policy : Policy.values())
+		{
+			if (policy.name.equalsIgnoreCase(name))
+			{
+				return policy;
+			}
+		}
+		throw new IllegalArgumentException("No cache policy " + name);
+	}
+}
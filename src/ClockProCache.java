@@ -0,0 +1,369 @@
+import java.util.HashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * A cache using the CLOCK-Pro replacement policy (Jiang, Chen and Zhang).
+ * Resident objects are either hot or cold, and cold objects that are evicted
+ * are remembered by key for a test period. An object that is accessed again
+ * within its test period has a short reuse distance and becomes hot, one that
+ * is not is simply dropped, so a scan over cold objects only replaces other
+ * cold objects. All entries are kept on one circular list swept by three
+ * hands: the cold hand evicts cold objects, the hot hand turns hot objects cold
+ * and the test hand ends test periods. The share of the capacity for cold
+ * objects adapts to the workload.
+ *
+ * @param <T>
+ *            - class of objects stored in the cache
+ */
+public class ClockProCache<T> implements BoundedCache<T>
+{
+	private static final int HOT = 0;
+	private static final int COLD = 1;
+	private static final int TEST = 2; // non-resident cold entry in its test period
+
+	// fields
+	private int capacity;
+	private int coldTarget; // adaptive target amount of resident cold objects
+	private ToIntFunction<T> keyOf;
+	private HashMap<Integer, Entry<T>> entries; // resident and test entries
+	private Entry<T> handHot;
+	private Entry<T> handCold;
+	private Entry<T> handTest;
+	private int hotCount;
+	private int coldCount;
+	private int testCount;
+	private T evicted; // object evicted by the last run of the cold hand
+
+	// constructor
+
+	/**
+	 * Creates a CLOCK-Pro cache
+	 *
+	 * @param capacity
+	 *            how many objects the cache holds
+	 * @param keyOf
+	 *            returns the key identifying an object, equal objects must have
+	 *            equal keys
+	 */
+	public ClockProCache(int capacity, ToIntFunction<T> keyOf)
+	{
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("Cache capacity must be greater than zero");
+		}
+
+		this.capacity = capacity;
+		this.coldTarget = capacity;
+		this.keyOf = keyOf;
+		entries = new HashMap<>();
+	}
+
+	// public methods
+
+	@Override
+	public T getObject(T object)
+	{
+		Entry<T> entry = entries.get(keyOf.applyAsInt(object));
+		if (entry == null || entry.status == TEST)
+		{
+			return null;
+		}
+
+		entry.referenced = true;
+		return entry.object;
+	}
+
+	@Override
+	public T addObject(T object)
+	{
+		if (object == null)
+		{
+			throw new NullPointerException("added object cannot be null");
+		}
+
+		int key = keyOf.applyAsInt(object);
+		Entry<T> entry = entries.get(key);
+		evicted = null;
+
+		if (entry == null)
+		{
+			insert(new Entry<>(key, object, COLD));
+		}
+		else if (entry.status == TEST)
+		{ // reused within its test period, more room for cold objects
+			if (coldTarget < capacity)
+			{
+				coldTarget++;
+			}
+			unlink(entry);
+			insert(new Entry<>(key, object, HOT));
+		}
+		else
+		{ // already resident
+			entry.object = object;
+			entry.referenced = true;
+		}
+
+		T retVal = evicted;
+		evicted = null;
+		return retVal;
+	}
+
+	@Override
+	public T removeObject(T object)
+	{
+		Entry<T> entry = entries.get(keyOf.applyAsInt(object));
+		if (entry == null || entry.status == TEST)
+		{
+			return null;
+		}
+
+		unlink(entry);
+		return entry.object;
+	}
+
+	@Override
+	public T removeFirst()
+	{
+		if (isEmpty())
+		{
+			return null;
+		}
+
+		// test entries passed on the way are dropped, only residents are asked for
+		while (handCold.status == TEST)
+		{
+			unlink(handCold);
+		}
+
+		Entry<T> entry = handCold;
+		unlink(entry);
+		return entry.object;
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	@Override
+	public int size()
+	{
+		return hotCount + coldCount;
+	}
+
+	@Override
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	// private methods
+
+	/**
+	 * Makes room if needed, then adds an entry to the list behind the hot hand,
+	 * the position swept last
+	 *
+	 * @param entry
+	 *            the new entry
+	 */
+	private void insert(Entry<T> entry)
+	{
+		while (hotCount + coldCount >= capacity)
+		{
+			runHandCold();
+		}
+
+		if (handHot == null)
+		{
+			entry.next = entry;
+			entry.prev = entry;
+			handHot = handCold = handTest = entry;
+		}
+		else
+		{
+			entry.next = handHot;
+			entry.prev = handHot.prev;
+			handHot.prev.next = entry;
+			handHot.prev = entry;
+			if (handCold == handHot)
+			{
+				handCold = entry;
+			}
+			if (handTest == handHot)
+			{
+				handTest = entry;
+			}
+		}
+
+		entries.put(entry.key, entry);
+		count(entry.status, 1);
+	}
+
+	/**
+	 * Removes an entry from the list and the index, moving any hand on it to the
+	 * next entry
+	 *
+	 * @param entry
+	 *            the entry to remove
+	 */
+	private void unlink(Entry<T> entry)
+	{
+		if (entry.next == entry)
+		{
+			handHot = handCold = handTest = null;
+		}
+		else
+		{
+			entry.prev.next = entry.next;
+			entry.next.prev = entry.prev;
+			if (handHot == entry)
+			{
+				handHot = entry.next;
+			}
+			if (handCold == entry)
+			{
+				handCold = entry.next;
+			}
+			if (handTest == entry)
+			{
+				handTest = entry.next;
+			}
+		}
+
+		entries.remove(entry.key);
+		count(entry.status, -1);
+	}
+
+	/**
+	 * Sweeps the cold hand one entry. A referenced cold object in its test
+	 * period becomes hot, an unreferenced one is evicted and stays in its test
+	 * period as a non-resident entry
+	 */
+	private void runHandCold()
+	{
+		Entry<T> entry = handCold;
+
+		if (entry.status == COLD)
+		{
+			if (entry.referenced)
+			{
+				entry.referenced = false;
+				setStatus(entry, HOT);
+			}
+			else
+			{
+				evicted = entry.object;
+				entry.object = null;
+				setStatus(entry, TEST);
+				while (testCount > capacity)
+				{
+					runHandTest();
+				}
+			}
+		}
+
+		handCold = handCold.next;
+
+		while (capacity - coldTarget < hotCount)
+		{
+			runHandHot();
+		}
+	}
+
+	/**
+	 * Sweeps the hot hand one entry. An unreferenced hot object becomes cold,
+	 * test entries passed end their test period
+	 */
+	private void runHandHot()
+	{
+		if (handHot == handTest)
+		{
+			runHandTest();
+		}
+
+		Entry<T> entry = handHot;
+		if (entry.status == HOT)
+		{
+			if (entry.referenced)
+			{
+				entry.referenced = false;
+			}
+			else
+			{
+				setStatus(entry, COLD);
+			}
+		}
+		handHot = handHot.next;
+	}
+
+	/**
+	 * Sweeps the test hand one entry, ending the test period of a non-resident
+	 * entry. Each test period that ends without a reuse shrinks the room for cold
+	 * objects. Unlike the paper the test hand never runs the cold hand, so only
+	 * one object is evicted per insert
+	 */
+	private void runHandTest()
+	{
+		Entry<T> entry = handTest;
+		handTest = handTest.next;
+		if (entry.status == TEST)
+		{
+			unlink(entry);
+			if (coldTarget > 1)
+			{
+				coldTarget--;
+			}
+		}
+	}
+
+	/**
+	 * @param entry
+	 *            the entry to change
+	 * @param status
+	 *            the new status of the entry
+	 */
+	private void setStatus(Entry<T> entry, int status)
+	{
+		count(entry.status, -1);
+		entry.status = status;
+		count(status, 1);
+	}
+
+	/**
+	 * @param status
+	 *            status of the counter
+	 * @param delta
+	 *            amount to add to the counter
+	 */
+	private void count(int status, int delta)
+	{
+		if (status == HOT)
+			hotCount += delta;
+		else if (status == COLD)
+			coldCount += delta;
+		else
+			testCount += delta;
+	}
+
+	/**
+	 * An entry of the clock
+	 */
+	private static class Entry<T>
+	{
+		int key;
+		T object; // null for test entries
+		int status;
+		boolean referenced;
+		Entry<T> prev;
+		Entry<T> next;
+
+		Entry(int key, T object, int status)
+		{
+			this.key = key;
+			this.object = object;
+			this.status = status;
+		}
+	}
+}
@@ -0,0 +1,361 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Counts DNA sequences in an open addressing hash table from long key to int
+ * count, kept off the Java heap in direct buffers. A slot is the 8 byte key and
+ * the 4 byte count, collisions are resolved with linear probing and the table
+ * doubles by rehashing every key once it is LOAD_FACTOR full, so it takes up
+ * 12 bytes a slot and 16 to 32 bytes a distinct key.
+ *
+ * Once all keys are counted, sort compacts the keys to the front of the table
+ * and sorts them in place, after which they can be read in order with getKey
+ * and getFrequency, eg to bulk load a BTree. The table can not be added to
+ * after it is sorted. A table is not safe for use by multiple threads.
+ */
+public class CountHashTable
+{
+	// slots are 12 bytes: key=8, count=4
+	private static final int SLOT_BYTE_SIZE = 12;
+
+	// slots in a single direct buffer, 768M
+	private static final int SLAB_SHIFT = 26;
+	private static final int SLAB_SLOTS = 1 << SLAB_SHIFT;
+
+	// the table doubles once this fraction of slots is used
+	private static final double LOAD_FACTOR = 0.75;
+
+	// largest table, 12G
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	// marks an empty slot, keys of a sequence length < 32 are never negative
+	private static final long EMPTY = -1;
+
+	// fields
+	private ByteBuffer[] slabs;
+	private int capacity; // slots, a power of two
+	private int mask;
+	private int shift;
+	private int size;
+	private int resizeThreshold;
+	private boolean isSorted;
+
+	// constructor
+
+	/**
+	 * Creates an empty table
+	 *
+	 * @param initialCapacity
+	 *            how many slots the table starts with, rounded up to a power of
+	 *            two
+	 */
+	public CountHashTable(int initialCapacity)
+	{
+		allocate(Integer.highestOneBit(Math.max(2, Math.min(initialCapacity, MAX_CAPACITY)) * 2 - 1));
+	}
+
+	// public methods
+
+	/**
+	 * Adds one occurrence of a key
+	 *
+	 * @param key
+	 *            the long representation of a sequence
+	 * @throws IllegalStateException
+	 *             if the table is sorted
+	 */
+	public void add(long key)
+	{
+		add(key, 1);
+	}
+
+	/**
+	 * Adds occurrences of a key
+	 *
+	 * @param key
+	 *            the long representation of a sequence
+	 * @param count
+	 *            how many occurrences to add
+	 * @throws IllegalStateException
+	 *             if the table is sorted
+	 */
+	public void add(long key, int count)
+	{
+		if (isSorted)
+		{
+			throw new IllegalStateException("A sorted table can not be added to");
+		}
+
+		int slot = home(key);
+		long k;
+		while ((k = getKey(slot)) != EMPTY)
+		{
+			if (k == key)
+			{
+				setFrequency(slot, getFrequency(slot) + count);
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		setKey(slot, key);
+		setFrequency(slot, count);
+		if (++size > resizeThreshold)
+		{
+			resize();
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the long representation of a sequence
+	 * @return how many times the key occurs, 0 if it does not
+	 * @throws IllegalStateException
+	 *             if the table is sorted
+	 */
+	public int search(long key)
+	{
+		if (isSorted)
+		{
+			throw new IllegalStateException("A sorted table can only be read in order");
+		}
+
+		for (int slot = home(key); getKey(slot) != EMPTY; slot = (slot + 1) & mask)
+		{
+			if (getKey(slot) == key)
+			{
+				return getFrequency(slot);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return how many distinct keys the table holds
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return how many bytes the table takes up off the heap
+	 */
+	public long getByteSize()
+	{
+		return (long) capacity * SLOT_BYTE_SIZE;
+	}
+
+	/**
+	 * Moves every key to the front of the table and sorts them, the key at index
+	 * i is then the i-th smallest
+	 */
+	public void sort()
+	{
+		if (isSorted)
+		{
+			return;
+		}
+
+		int used = 0;
+		for (int slot = 0; slot < capacity; ++slot)
+		{
+			if (getKey(slot) != EMPTY)
+			{
+				if (slot != used)
+				{
+					swap(slot, used);
+				}
+				used++;
+			}
+		}
+
+		quickSort(0, size - 1);
+		isSorted = true;
+	}
+
+	/**
+	 * @param index
+	 *            index of a key in a sorted table, less than size()
+	 * @return the key
+	 */
+	public long getKey(int index)
+	{
+		return slabs[index >>> SLAB_SHIFT].getLong((index & (SLAB_SLOTS - 1)) * SLOT_BYTE_SIZE);
+	}
+
+	/**
+	 * @param index
+	 *            index of a key in a sorted table, less than size()
+	 * @return how many times the key occurs
+	 */
+	public int getFrequency(int index)
+	{
+		return slabs[index >>> SLAB_SHIFT].getInt((index & (SLAB_SLOTS - 1)) * SLOT_BYTE_SIZE + 8);
+	}
+
+	// private methods
+
+	/**
+	 * Allocates empty slabs for a capacity
+	 *
+	 * @param newCapacity
+	 *            how many slots, a power of two
+	 */
+	private void allocate(int newCapacity)
+	{
+		capacity = newCapacity;
+		mask = capacity - 1;
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+		resizeThreshold = capacity == MAX_CAPACITY ? capacity - 1 : (int) (capacity * LOAD_FACTOR);
+
+		slabs = new ByteBuffer[(capacity + SLAB_SLOTS - 1) >>> SLAB_SHIFT];
+		for (int i = 0; i < slabs.length; ++i)
+		{
+			int slots = Math.min(SLAB_SLOTS, capacity - i * SLAB_SLOTS);
+			slabs[i] = ByteBuffer.allocateDirect(slots * SLOT_BYTE_SIZE);
+			for (int slot = 0; slot < slots; ++slot)
+			{
+				slabs[i].putLong(slot * SLOT_BYTE_SIZE, EMPTY);
+			}
+		}
+	}
+
+	/**
+	 * Doubles the capacity, adding every key to new slabs
+	 */
+	private void resize()
+	{
+		if (capacity == MAX_CAPACITY)
+		{
+			throw new IllegalStateException("Count hash table is full");
+		}
+
+		ByteBuffer[] oldSlabs = slabs;
+		int oldCapacity = capacity;
+		allocate(capacity * 2);
+
+		for (int i = 0; i < oldSlabs.length; ++i)
+		{
+			int slots = Math.min(SLAB_SLOTS, oldCapacity - i * SLAB_SLOTS);
+			for (int slot = 0; slot < slots; ++slot)
+			{
+				long key = oldSlabs[i].getLong(slot * SLOT_BYTE_SIZE);
+				if (key != EMPTY)
+				{ // keys are distinct, only an empty slot needs to be found
+					int s = home(key);
+					while (getKey(s) != EMPTY)
+					{
+						s = (s + 1) & mask;
+					}
+					setKey(s, key);
+					setFrequency(s, oldSlabs[i].getInt(slot * SLOT_BYTE_SIZE + 8));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the key to hash
+	 * @return the slot probing for the key starts at
+	 */
+	private int home(long key)
+	{
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift); // fibonacci hashing, top bits
+	}
+
+	/**
+	 * @param slot
+	 *            the slot
+	 * @param key
+	 *            the key to put in the slot
+	 */
+	private void setKey(int slot, long key)
+	{
+		slabs[slot >>> SLAB_SHIFT].putLong((slot & (SLAB_SLOTS - 1)) * SLOT_BYTE_SIZE, key);
+	}
+
+	/**
+	 * @param slot
+	 *            the slot
+	 * @param frequency
+	 *            the count to put in the slot
+	 */
+	private void setFrequency(int slot, int frequency)
+	{
+		slabs[slot >>> SLAB_SHIFT].putInt((slot & (SLAB_SLOTS - 1)) * SLOT_BYTE_SIZE + 8, frequency);
+	}
+
+	/**
+	 * Swaps the contents of two slots
+	 *
+	 * @param a
+	 *            a slot
+	 * @param b
+	 *            another slot
+	 */
+	private void swap(int a, int b)
+	{
+		long key = getKey(a);
+		int frequency = getFrequency(a);
+		setKey(a, getKey(b));
+		setFrequency(a, getFrequency(b));
+		setKey(b, key);
+		setFrequency(b, frequency);
+	}
+
+	/**
+	 * Sorts the slots from low to high, both inclusive, by key in place. Recurses
+	 * into the smaller part only, so the stack stays logarithmic
+	 *
+	 * @param low
+	 *            first slot
+	 * @param high
+	 *            last slot
+	 */
+	private void quickSort(int low, int high)
+	{
+		while (high - low > 16)
+		{
+			// median of three as pivot, moved to high
+			int mid = (low + high) >>> 1;
+			if (getKey(mid) < getKey(low))
+				swap(mid, low);
+			if (getKey(high) < getKey(low))
+				swap(high, low);
+			if (getKey(mid) < getKey(high))
+				swap(mid, high);
+			long pivot = getKey(high);
+
+			int store = low;
+			for (int i = low; i < high; ++i)
+			{
+				if (getKey(i) < pivot)
+				{
+					swap(i, store++);
+				}
+			}
+			swap(store, high);
+
+			if (store - low < high - store)
+			{
+				quickSort(low, store - 1);
+				low = store + 1;
+			}
+			else
+			{
+				quickSort(store + 1, high);
+				high = store - 1;
+			}
+		}
+
+		// insertion sort the short remainder
+		for (int i = low + 1; i <= high; ++i)
+		{
+			for (int j = i; j > low && getKey(j) < getKey(j - 1); --j)
+			{
+				swap(j, j - 1);
+			}
+		}
+	}
+}
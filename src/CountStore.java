@@ -0,0 +1,1058 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Counts DNA sequences in a log structured merge tree, for ingest that goes on
+ * as new files arrive. Added sequences are counted in a memtable, a
+ * CountHashTable, until it holds the memtable size of distinct keys. It is then
+ * sorted and handed to a background thread, which writes it as a run: an
+ * immutable file of the sorted keys and counts, followed by a sparse index of
+ * every INDEX_INTERVAL-th key and a bloom filter of the keys. Adding never
+ * reads from disk and every file is written in one sequential pass.
+ *
+ * Runs are kept on levels. Level 0 holds the runs written from memtables,
+ * which may share keys, and once it holds LEVEL0_RUN_LIMIT runs they are merged
+ * with the run of level 1, summing the counts of equal keys. Every level above
+ * holds at most one run, of up to LEVEL_RATIO times the keys of the level
+ * below, and a run that outgrows its level is merged into the next. Merges run
+ * on the background thread too and read their runs sequentially.
+ *
+ * The frequency of a sequence is the sum of its counts in the memtables and the
+ * runs. A run is only read if its bloom filter may hold the key, and then only
+ * the block of INDEX_INTERVAL entries its sparse index points to.
+ *
+ * The store file is a manifest: a header (a magic number that can not start a
+ * BTree file, the sequence length, the id of the next run and the run count)
+ * followed by the id of every run, level by level, with the level. Run i is the
+ * file named as the store followed by ".run.i". The manifest is replaced after
+ * every run written or merged, and runs are only deleted once it no longer
+ * lists them. A store is not safe for adding from multiple threads.
+ */
+public class CountStore implements FrequencyIndex
+{
+	// byte sizes, update if changing what is written to file
+	public static final int HEADER_BYTE_SIZE = 16; // magic=4, sequenceLength=4, nextRunId=4, runCount=4
+
+	// distinct keys a memtable holds before it is written as a run, 12M to 24M
+	public static final int DEFAULT_MEMTABLE_KEYS = 1 << 20;
+
+	// runs level 0 holds before they are merged into level 1
+	public static final int LEVEL0_RUN_LIMIT = 4;
+
+	// how many times the keys of the level below a level holds
+	public static final int LEVEL_RATIO = 10;
+
+	// slots each memtable starts with
+	private static final int INITIAL_CAPACITY = 1 << 16;
+
+	// entries of a run: key=8, count=4
+	private static final int ENTRY_BYTE_SIZE = 12;
+
+	// entries per sparse index key, a search reads one block of them
+	private static final int INDEX_INTERVAL = 64;
+
+	// end of a run: keyCount=8, bloomWords=4
+	private static final int FOOTER_BYTE_SIZE = 12;
+
+	// bloom filter bits per key and hashes per key, about 1% false positives
+	private static final int BLOOM_BITS_PER_KEY = 10;
+	private static final int BLOOM_HASH_COUNT = 7;
+
+	// negative, so it never matches the node count a BTree file starts with
+	private static final int MAGIC = 0xC0C0157E;
+
+	// handed to the background thread to end it
+	private static final CountHashTable END = new CountHashTable(2);
+
+	// fields
+	private String fileName;
+	private int sequenceLength;
+	private int memtableKeys;
+	private CountHashTable memtable;
+	private ArrayList<CountHashTable> flushing = new ArrayList<>(); // sorted, not yet written
+	private ArrayList<ArrayList<Run>> levels = new ArrayList<>();
+	private int nextRunId;
+	private BlockingQueue<CountHashTable> queue = new ArrayBlockingQueue<>(1);
+	private Thread compactor; // null while no memtables are handed off
+	private volatile Throwable failure; // what stopped the background thread from writing
+
+	// constructor
+
+	/**
+	 * Private constructor, use the factory methods
+	 *
+	 * @param fileName
+	 *            path of the manifest
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @param memtableKeys
+	 *            distinct keys a memtable holds before it is written
+	 */
+	private CountStore(String fileName, int sequenceLength, int memtableKeys)
+	{
+		if (sequenceLength <= 0 || sequenceLength > 31)
+		{
+			throw new IllegalArgumentException("Sequence length must be between 1 and 31");
+		}
+		if (memtableKeys <= 0)
+		{
+			throw new IllegalArgumentException("A memtable must hold at least one key");
+		}
+		this.fileName = fileName;
+		this.sequenceLength = sequenceLength;
+		this.memtableKeys = memtableKeys;
+		memtable = new CountHashTable(INITIAL_CAPACITY);
+	}
+
+	// public methods
+
+	/**
+	 * Creates an empty store with the default memtable size
+	 *
+	 * @param fileName
+	 *            path of the manifest to be created
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @return the store
+	 * @throws IOException
+	 *             if unable to create the manifest
+	 */
+	public static CountStore create(String fileName, int sequenceLength) throws IOException
+	{
+		return create(fileName, sequenceLength, DEFAULT_MEMTABLE_KEYS);
+	}
+
+	/**
+	 * Creates an empty store. Deletes any existing file with same name and any
+	 * runs of a store by that name
+	 *
+	 * @param fileName
+	 *            path of the manifest to be created
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @param memtableKeys
+	 *            distinct keys a memtable holds before it is written
+	 * @return the store
+	 * @throws IOException
+	 *             if unable to create the manifest
+	 */
+	public static CountStore create(String fileName, int sequenceLength, int memtableKeys) throws IOException
+	{
+		CountStore store = new CountStore(fileName, sequenceLength, memtableKeys);
+
+		File f = new File(fileName).getAbsoluteFile();
+		String runPrefix = f.getName() + ".run.";
+		File[] runs = f.getParentFile().listFiles((dir, name) -> name.startsWith(runPrefix));
+		for (int i = 0; runs != null && i < runs.length; ++i)
+		{
+			runs[i].delete();
+		}
+
+		store.writeManifest();
+		return store;
+	}
+
+	/**
+	 * Opens an existing store with the default memtable size
+	 *
+	 * @param fileName
+	 *            path of the manifest
+	 * @return the store
+	 * @throws IOException
+	 *             if the file is not a store or unable to read it or its runs
+	 */
+	public static CountStore open(String fileName) throws IOException
+	{
+		return open(fileName, DEFAULT_MEMTABLE_KEYS);
+	}
+
+	/**
+	 * Opens an existing store for searching and adding to
+	 *
+	 * @param fileName
+	 *            path of the manifest
+	 * @param memtableKeys
+	 *            distinct keys a memtable holds before it is written
+	 * @return the store
+	 * @throws IOException
+	 *             if the file is not a store or unable to read it or its runs
+	 */
+	public static CountStore open(String fileName, int memtableKeys) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName))))
+		{
+			if (in.readInt() != MAGIC)
+			{
+				throw new IOException(fileName + " is not a count store");
+			}
+
+			CountStore store;
+			try
+			{
+				store = new CountStore(fileName, in.readInt(), memtableKeys);
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new IOException(fileName + " has an invalid sequence length");
+			}
+
+			store.nextRunId = in.readInt();
+			int runCount = in.readInt();
+			for (int i = 0; i < runCount; ++i)
+			{
+				int id = in.readInt();
+				int level = in.readInt();
+				store.getLevel(level).add(Run.open(store.getRunFileName(id), id));
+			}
+			return store;
+		}
+	}
+
+	/**
+	 * @param fileName
+	 *            path of a file
+	 * @return true if the file is the manifest of a count store, false if it is
+	 *         not or can not be read
+	 */
+	public static boolean isCountStoreFile(String fileName)
+	{
+		try (DataInputStream in = new DataInputStream(new FileInputStream(fileName)))
+		{
+			return in.readInt() == MAGIC;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Adds one occurrence of a sequence
+	 *
+	 * @param key
+	 *            the long representation of the sequence
+	 * @throws IllegalStateException
+	 *             if the background thread was unable to write a run
+	 */
+	public void add(long key)
+	{
+		add(key, 1);
+	}
+
+	/**
+	 * Adds occurrences of a sequence. Once the memtable is full it is handed to
+	 * the background thread, waiting while the one handed before is not written
+	 * yet
+	 *
+	 * @param key
+	 *            the long representation of the sequence
+	 * @param count
+	 *            how many occurrences to add
+	 * @throws IllegalStateException
+	 *             if the background thread was unable to write a run
+	 */
+	public void add(long key, int count)
+	{
+		memtable.add(key, count);
+		if (memtable.size() >= memtableKeys)
+		{
+			handOff();
+		}
+	}
+
+	@Override
+	public int getFrequency(long key)
+	{
+		int frequency = memtable.search(key);
+		synchronized (this)
+		{
+			for (CountHashTable table : flushing)
+			{
+				frequency += searchSorted(table, key);
+			}
+
+			try
+			{
+				for (ArrayList<Run> level : levels)
+				{
+					for (Run run : level)
+					{
+						frequency += run.getFrequency(key);
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("Unable to read a run of " + fileName, e);
+			}
+		}
+		return frequency;
+	}
+
+	@Override
+	public int getSequenceLength()
+	{
+		return sequenceLength;
+	}
+
+	/**
+	 * Writes the memtable as a run and waits for the background thread to finish
+	 * every write and merge
+	 *
+	 * @throws IllegalStateException
+	 *             if the background thread was unable to write a run
+	 */
+	public void flush()
+	{
+		if (memtable.size() > 0)
+		{
+			handOff();
+		}
+		if (compactor == null)
+		{
+			return;
+		}
+
+		hand(END);
+		try
+		{
+			compactor.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while writing runs");
+		}
+		compactor = null;
+		checkFailure();
+	}
+
+	/**
+	 * @return how many runs the store is made of
+	 */
+	public synchronized int getRunCount()
+	{
+		int count = 0;
+		for (ArrayList<Run> level : levels)
+		{
+			count += level.size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the runs on each level that has any and the keys in them, or null if
+	 *         there are no runs
+	 */
+	public synchronized String getReport()
+	{
+		if (getRunCount() == 0)
+		{
+			return null;
+		}
+
+		StringBuilder report = new StringBuilder("count store: " + getRunCount() + " runs");
+		for (int i = 0; i < levels.size(); ++i)
+		{
+			if (levels.get(i).isEmpty())
+			{
+				continue;
+			}
+			long keyCount = 0;
+			for (Run run : levels.get(i))
+			{
+				keyCount += run.keyCount;
+			}
+			report.append(", level " + i + ": " + levels.get(i).size() + " with " + keyCount + " keys");
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Flushes the store, then dumps every sequence that occurs with its frequency
+	 * to file, in the same format as BTree.dumpInOrderToFile
+	 *
+	 * @param fileName
+	 *            the name of file to create
+	 */
+	public void dumpInOrderToFile(String fileName)
+	{
+		flush();
+		try (PrintWriter out = new PrintWriter(new File(fileName)))
+		{
+			ArrayList<Run> runs = new ArrayList<>();
+			for (ArrayList<Run> level : levels)
+			{
+				runs.addAll(level);
+			}
+
+			MergeReader in = new MergeReader(runs);
+			while (in.next())
+			{
+				out.println(DNAUtil.convertLongToString(in.key, sequenceLength) + ": " + in.count);
+			}
+		}
+		catch (FileNotFoundException e)
+		{
+			System.err.println("Unable to create file " + fileName);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to read the runs of " + this.fileName);
+		}
+	}
+
+	/**
+	 * Flushes the store and closes its runs. No further actions can be made with
+	 * the store after this is called
+	 *
+	 * @throws IllegalStateException
+	 *             if the background thread was unable to write a run
+	 */
+	@Override
+	public void close()
+	{
+		flush();
+		try
+		{
+			for (ArrayList<Run> level : levels)
+			{
+				for (Run run : level)
+				{
+					run.close();
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to close count store");
+		}
+	}
+
+	// private methods
+
+	/**
+	 * Sorts the memtable and hands it to the background thread, which is started
+	 * if it is not running
+	 */
+	private void handOff()
+	{
+		checkFailure();
+
+		memtable.sort();
+		synchronized (this)
+		{
+			flushing.add(memtable);
+		}
+		if (compactor == null)
+		{
+			compactor = new Thread(this::compact, "count-store-compactor");
+			compactor.setDaemon(true);
+			compactor.start();
+		}
+		hand(memtable);
+		memtable = new CountHashTable(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Hands a memtable to the background thread, waiting while the queue is full
+	 *
+	 * @param table
+	 *            the sorted memtable, END to end the thread
+	 */
+	private void hand(CountHashTable table)
+	{
+		try
+		{
+			queue.put(table);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while handing off a memtable");
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             if the background thread was unable to write a run
+	 */
+	private void checkFailure()
+	{
+		if (failure != null)
+		{
+			throw new IllegalStateException("Unable to write runs: " + failure, failure);
+		}
+	}
+
+	/**
+	 * Run by the background thread. Writes the memtables handed to it as runs of
+	 * level 0 and merges levels that are full, until END is handed to it
+	 */
+	private void compact()
+	{
+		try
+		{
+			CountHashTable table;
+			while ((table = queue.take()) != END)
+			{
+				if (failure != null)
+				{ // keep taking memtables so adding never blocks, their counts stay searchable
+					continue;
+				}
+
+				try
+				{
+					RunWriter out = new RunWriter(getRunFileName(nextRunId), table.size());
+					for (int i = 0; i < table.size(); ++i)
+					{
+						out.add(table.getKey(i), table.getFrequency(i));
+					}
+					Run run = out.finish(nextRunId++);
+
+					synchronized (this)
+					{
+						flushing.remove(table);
+						getLevel(0).add(run);
+						writeManifest();
+					}
+					mergeLevels();
+				}
+				catch (IOException | RuntimeException e)
+				{
+					failure = e;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			System.err.println("Count store compaction was interrupted");
+		}
+	}
+
+	/**
+	 * Merges the runs of level 0 into level 1 while it holds LEVEL0_RUN_LIMIT runs,
+	 * and the run of a level above into the next while it holds too many keys
+	 *
+	 * @throws IOException
+	 *             if unable to read or write a run
+	 */
+	private void mergeLevels() throws IOException
+	{
+		while (true)
+		{
+			int target = 0; // the level the merged run goes to, 0 if nothing to merge
+			ArrayList<Run> inputs = new ArrayList<>();
+			synchronized (this)
+			{
+				if (getLevel(0).size() >= LEVEL0_RUN_LIMIT)
+				{
+					target = 1;
+				}
+				for (int i = 1; target == 0 && i < levels.size(); ++i)
+				{
+					if (!levels.get(i).isEmpty() && levels.get(i).get(0).keyCount > getLevelKeyLimit(i))
+					{
+						target = i + 1;
+					}
+				}
+				if (target == 0)
+				{
+					return;
+				}
+				inputs.addAll(getLevel(target - 1));
+				inputs.addAll(getLevel(target));
+			}
+
+			long maxKeys = 0;
+			for (Run run : inputs)
+			{
+				maxKeys += run.keyCount;
+			}
+			RunWriter out = new RunWriter(getRunFileName(nextRunId), maxKeys);
+			MergeReader in = new MergeReader(inputs);
+			while (in.next())
+			{
+				out.add(in.key, in.count);
+			}
+			Run merged = out.finish(nextRunId++);
+
+			synchronized (this)
+			{
+				getLevel(target - 1).clear();
+				getLevel(target).clear();
+				getLevel(target).add(merged);
+				writeManifest();
+				for (Run run : inputs)
+				{
+					run.close();
+					new File(run.fileName).delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param level
+	 *            a level above 0
+	 * @return how many keys the run of the level may hold before it is merged into
+	 *         the next
+	 */
+	private long getLevelKeyLimit(int level)
+	{
+		long limit = memtableKeys;
+		for (int i = 0; i < level && limit < Long.MAX_VALUE / LEVEL_RATIO; ++i)
+		{
+			limit *= LEVEL_RATIO;
+		}
+		return limit;
+	}
+
+	/**
+	 * @param level
+	 *            the level
+	 * @return the runs of the level, added if the store had fewer levels
+	 */
+	private ArrayList<Run> getLevel(int level)
+	{
+		while (levels.size() <= level)
+		{
+			levels.add(new ArrayList<>());
+		}
+		return levels.get(level);
+	}
+
+	/**
+	 * @param id
+	 *            id of a run
+	 * @return the path of the run file
+	 */
+	private String getRunFileName(int id)
+	{
+		return fileName + ".run." + id;
+	}
+
+	/**
+	 * Writes the manifest to a temporary file and moves it over the manifest, so
+	 * the manifest always lists a complete set of runs
+	 *
+	 * @throws IOException
+	 *             if unable to write the manifest
+	 */
+	private void writeManifest() throws IOException
+	{
+		File temp = new File(fileName + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(sequenceLength);
+			out.writeInt(nextRunId);
+			out.writeInt(getRunCount());
+			for (int i = 0; i < levels.size(); ++i)
+			{
+				for (Run run : levels.get(i))
+				{
+					out.writeInt(run.id);
+					out.writeInt(i);
+				}
+			}
+		}
+		Files.move(temp.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @param table
+	 *            a sorted memtable
+	 * @param key
+	 *            the long representation of a sequence
+	 * @return the count of the key in the memtable, 0 if it does not hold it
+	 */
+	private static int searchSorted(CountHashTable table, long key)
+	{
+		int low = 0;
+		int high = table.size() - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			long midKey = table.getKey(mid);
+			if (midKey < key)
+				low = mid + 1;
+			else if (midKey > key)
+				high = mid - 1;
+			else
+				return table.getFrequency(mid);
+		}
+		return 0;
+	}
+
+	/**
+	 * @param key
+	 *            the long representation of a sequence
+	 * @return a 64 bit hash of the key, the halves are the two hashes the bloom
+	 *         filter bits are derived from
+	 */
+	private static long hash(long key)
+	{
+		key ^= key >>> 33;
+		key *= 0xFF51AFD7ED558CCDL;
+		key ^= key >>> 33;
+		key *= 0xC4CEB9FE1A85EC53L;
+		return key ^ key >>> 33;
+	}
+
+	/**
+	 * An immutable sorted run of keys and counts on file. The sparse index and the
+	 * bloom filter are read into memory when the run is opened
+	 */
+	private static class Run
+	{
+		private int id;
+		private String fileName;
+		private long keyCount;
+		private long[] index; // key of every INDEX_INTERVAL-th entry
+		private long[] bloom;
+		private RandomAccessFile file;
+		private ByteBuffer block = ByteBuffer.allocate(INDEX_INTERVAL * ENTRY_BYTE_SIZE);
+
+		/**
+		 * @param id
+		 *            id of the run
+		 * @param fileName
+		 *            path of the run file
+		 * @param keyCount
+		 *            how many keys the run holds
+		 * @param index
+		 *            the sparse index
+		 * @param bloom
+		 *            the bloom filter
+		 * @throws IOException
+		 *             if unable to open the file
+		 */
+		Run(int id, String fileName, long keyCount, long[] index, long[] bloom) throws IOException
+		{
+			this.id = id;
+			this.fileName = fileName;
+			this.keyCount = keyCount;
+			this.index = index;
+			this.bloom = bloom;
+			file = new RandomAccessFile(fileName, "r");
+		}
+
+		/**
+		 * Opens a run file and reads its sparse index and bloom filter
+		 *
+		 * @param fileName
+		 *            path of the run file
+		 * @param id
+		 *            id of the run
+		 * @return the run
+		 * @throws IOException
+		 *             if the run is missing or truncated
+		 */
+		static Run open(String fileName, int id) throws IOException
+		{
+			try (RandomAccessFile raf = new RandomAccessFile(fileName, "r"))
+			{
+				if (raf.length() < FOOTER_BYTE_SIZE)
+				{
+					throw new IOException(fileName + " is truncated");
+				}
+				raf.seek(raf.length() - FOOTER_BYTE_SIZE);
+				long keyCount = raf.readLong();
+				int bloomWords = raf.readInt();
+				int indexCount = (int) ((keyCount + INDEX_INTERVAL - 1) / INDEX_INTERVAL);
+				long indexOffset = keyCount * ENTRY_BYTE_SIZE;
+				if (raf.length() != indexOffset + 8L * (indexCount + bloomWords) + FOOTER_BYTE_SIZE)
+				{
+					throw new IOException(fileName + " is truncated");
+				}
+
+				long[] index = new long[indexCount];
+				long[] bloom = new long[bloomWords];
+				raf.getChannel().map(FileChannel.MapMode.READ_ONLY, indexOffset, 8L * (indexCount + bloomWords))
+						.asLongBuffer().get(index).get(bloom);
+				return new Run(id, fileName, keyCount, index, bloom);
+			}
+		}
+
+		/**
+		 * @param key
+		 *            the long representation of a sequence
+		 * @return the count of the key in the run, 0 if it does not hold it
+		 * @throws IOException
+		 *             if unable to read the run
+		 */
+		int getFrequency(long key) throws IOException
+		{
+			if (keyCount == 0 || key < index[0] || !mightContain(key))
+			{
+				return 0;
+			}
+
+			int blockIndex = Arrays.binarySearch(index, key);
+			if (blockIndex < 0)
+			{ // the last block starting below the key
+				blockIndex = -blockIndex - 2;
+			}
+			long first = (long) blockIndex * INDEX_INTERVAL;
+			int entries = (int) Math.min(INDEX_INTERVAL, keyCount - first);
+
+			block.clear();
+			block.limit(entries * ENTRY_BYTE_SIZE);
+			FileChannel channel = file.getChannel();
+			while (block.hasRemaining())
+			{
+				if (channel.read(block, first * ENTRY_BYTE_SIZE + block.position()) < 0)
+				{
+					throw new IOException(fileName + " is truncated");
+				}
+			}
+
+			int low = 0;
+			int high = entries - 1;
+			while (low <= high)
+			{
+				int mid = (low + high) >>> 1;
+				long midKey = block.getLong(mid * ENTRY_BYTE_SIZE);
+				if (midKey < key)
+					low = mid + 1;
+				else if (midKey > key)
+					high = mid - 1;
+				else
+					return block.getInt(mid * ENTRY_BYTE_SIZE + 8);
+			}
+			return 0;
+		}
+
+		/**
+		 * @param key
+		 *            the long representation of a sequence
+		 * @return false if the run does not hold the key, true if it may
+		 */
+		private boolean mightContain(long key)
+		{
+			long hash = hash(key);
+			int mask = bloom.length * 64 - 1;
+			for (int i = 0; i < BLOOM_HASH_COUNT; ++i)
+			{
+				int bit = ((int) hash + i * (int) (hash >>> 32)) & mask;
+				if ((bloom[bit >>> 6] & 1L << bit) == 0)
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Closes the run file
+		 *
+		 * @throws IOException
+		 *             if unable to close the file
+		 */
+		void close() throws IOException
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * Writes a run sequentially from keys given in order, collecting its sparse
+	 * index and bloom filter to write after the entries
+	 */
+	private static class RunWriter
+	{
+		private String fileName;
+		private DataOutputStream out;
+		private long keyCount;
+		private long[] index;
+		private long[] bloom;
+
+		/**
+		 * @param fileName
+		 *            path of the run file to be created
+		 * @param maxKeys
+		 *            at most how many keys will be added, sizes the bloom filter
+		 * @throws IOException
+		 *             if unable to create the file
+		 */
+		RunWriter(String fileName, long maxKeys) throws IOException
+		{
+			this.fileName = fileName;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+			index = new long[(int) ((maxKeys + INDEX_INTERVAL - 1) / INDEX_INTERVAL)];
+			long bits = Long.highestOneBit(Math.max(64, Math.min(1L << 30, maxKeys * BLOOM_BITS_PER_KEY)) * 2 - 1);
+			bloom = new long[(int) (bits / 64)];
+		}
+
+		/**
+		 * @param key
+		 *            the next key, greater than the one before
+		 * @param count
+		 *            the count of the key
+		 * @throws IOException
+		 *             if unable to write
+		 */
+		void add(long key, int count) throws IOException
+		{
+			if (keyCount % INDEX_INTERVAL == 0)
+			{
+				index[(int) (keyCount / INDEX_INTERVAL)] = key;
+			}
+			out.writeLong(key);
+			out.writeInt(count);
+			keyCount++;
+
+			long hash = hash(key);
+			int mask = bloom.length * 64 - 1;
+			for (int i = 0; i < BLOOM_HASH_COUNT; ++i)
+			{
+				int bit = ((int) hash + i * (int) (hash >>> 32)) & mask;
+				bloom[bit >>> 6] |= 1L << bit;
+			}
+		}
+
+		/**
+		 * Writes the sparse index, the bloom filter and the footer, and opens the
+		 * run for searching
+		 *
+		 * @param id
+		 *            id of the run
+		 * @return the run
+		 * @throws IOException
+		 *             if unable to write
+		 */
+		Run finish(int id) throws IOException
+		{
+			index = Arrays.copyOf(index, (int) ((keyCount + INDEX_INTERVAL - 1) / INDEX_INTERVAL));
+			for (long key : index)
+			{
+				out.writeLong(key);
+			}
+			for (long word : bloom)
+			{
+				out.writeLong(word);
+			}
+			out.writeLong(keyCount);
+			out.writeInt(bloom.length);
+			out.close();
+			return new Run(id, fileName, keyCount, index, bloom);
+		}
+	}
+
+	/**
+	 * Reads runs in order of key at once, summing the counts of a key in several
+	 * runs. Each run is read sequentially through its own buffer
+	 */
+	private static class MergeReader
+	{
+		private PriorityQueue<RunReader> heap = new PriorityQueue<>((a, b) -> Long.compare(a.key, b.key));
+		private long key;
+		private int count;
+
+		/**
+		 * @param runs
+		 *            the runs to read
+		 * @throws IOException
+		 *             if unable to read a run
+		 */
+		MergeReader(ArrayList<Run> runs) throws IOException
+		{
+			for (Run run : runs)
+			{
+				advance(new RunReader(run));
+			}
+		}
+
+		/**
+		 * Reads the next key and its summed count
+		 *
+		 * @return false if every run was read
+		 * @throws IOException
+		 *             if unable to read a run
+		 */
+		boolean next() throws IOException
+		{
+			if (heap.isEmpty())
+			{
+				return false;
+			}
+
+			RunReader first = heap.poll();
+			key = first.key;
+			count = first.count;
+			advance(first);
+			while (!heap.isEmpty() && heap.peek().key == key)
+			{
+				RunReader same = heap.poll();
+				count += same.count;
+				advance(same);
+			}
+			return true;
+		}
+
+		/**
+		 * Puts a run back in the heap with its next entry, or closes it after its
+		 * last
+		 *
+		 * @param in
+		 *            the run
+		 * @throws IOException
+		 *             if unable to read the run
+		 */
+		private void advance(RunReader in) throws IOException
+		{
+			if (in.remaining == 0)
+			{
+				in.in.close();
+				return;
+			}
+			in.key = in.in.readLong();
+			in.count = in.in.readInt();
+			in.remaining--;
+			heap.add(in);
+		}
+	}
+
+	/**
+	 * The entries of a run being read sequentially
+	 */
+	private static class RunReader
+	{
+		private DataInputStream in;
+		private long remaining;
+		private long key;
+		private int count;
+
+		/**
+		 * @param run
+		 *            the run to read
+		 * @throws IOException
+		 *             if unable to open the run
+		 */
+		RunReader(Run run) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.fileName), 1 << 16));
+			remaining = run.keyCount;
+		}
+	}
+}
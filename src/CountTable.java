@@ -0,0 +1,374 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Counts DNA sequences of a short sequence length in a dense table holding an
+ * int count for every possible sequence, indexed by the sequence's long
+ * representation. For a sequence length of at most MAX_SEQUENCE_LENGTH the
+ * whole table fits in memory, adding a sequence is one increment and searching
+ * for one is one lookup.
+ *
+ * A persisted table is a file of a small header (a magic number that can not
+ * start a BTree file, and the sequence length) followed by the counts, which
+ * are memory mapped so counting writes straight into the file. Tables can be
+ * exported to a standard BTree file where one is needed, and iterated in order
+ * of key like a tree.
+ */
+public class CountTable implements FrequencyIndex, Iterable<TreeObject>
+{
+	// largest sequence length a table is used for, 4^13 counts take up 256M
+	public static final int MAX_SEQUENCE_LENGTH = 13;
+
+	// byte sizes, update if changing what is written to file
+	public static final int HEADER_BYTE_SIZE = 8; // magic=4, sequenceLength=4
+
+	// negative, so it never matches the node count a BTree file starts with
+	private static final int MAGIC = 0xC0A7AB1E;
+
+	// fields
+	private int sequenceLength;
+	private IntBuffer counts;
+	private RandomAccessFile file; // null if the table is not persisted
+	private MappedByteBuffer mapped;
+
+	// constructor
+
+	/**
+	 * Private constructor, use the factory methods
+	 *
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 */
+	private CountTable(int sequenceLength)
+	{
+		if (sequenceLength <= 0 || sequenceLength > MAX_SEQUENCE_LENGTH)
+		{
+			throw new IllegalArgumentException("Sequence length must be between 1 and " + MAX_SEQUENCE_LENGTH);
+		}
+		this.sequenceLength = sequenceLength;
+	}
+
+	// public methods
+
+	/**
+	 * Creates an empty table in memory only
+	 *
+	 * @param sequenceLength
+	 *            length of DNA sequences, at most MAX_SEQUENCE_LENGTH
+	 * @return the table
+	 */
+	public static CountTable inMemory(int sequenceLength)
+	{
+		CountTable table = new CountTable(sequenceLength);
+		table.counts = IntBuffer.allocate(table.getEntryCount());
+		return table;
+	}
+
+	/**
+	 * Creates an empty table file and maps its counts. Deletes any existing file
+	 * with same name
+	 *
+	 * @param fileName
+	 *            file path to be created
+	 * @param sequenceLength
+	 *            length of DNA sequences, at most MAX_SEQUENCE_LENGTH
+	 * @return the table
+	 * @throws IOException
+	 *             if unable to create the file
+	 */
+	public static CountTable create(String fileName, int sequenceLength) throws IOException
+	{
+		CountTable table = new CountTable(sequenceLength);
+
+		File f = new File(fileName);
+		if (f.exists())
+		{
+			f.delete();
+		}
+
+		table.file = new RandomAccessFile(f, "rw");
+		table.file.writeInt(MAGIC);
+		table.file.writeInt(sequenceLength);
+		table.file.setLength(HEADER_BYTE_SIZE + 4L * table.getEntryCount()); // sparse, counts read as 0
+		table.map(FileChannel.MapMode.READ_WRITE);
+		return table;
+	}
+
+	/**
+	 * Opens an existing table file for searching
+	 *
+	 * @param fileName
+	 *            path of the file
+	 * @return the table
+	 * @throws IOException
+	 *             if the file is not a table or unable to read it
+	 */
+	public static CountTable open(String fileName) throws IOException
+	{
+		return open(fileName, false);
+	}
+
+	/**
+	 * Opens an existing table file for searching, and for adding to if writable
+	 *
+	 * @param fileName
+	 *            path of the file
+	 * @param isWritable
+	 *            true to map the counts for writing, so added sequences are
+	 *            counted in the file
+	 * @return the table
+	 * @throws IOException
+	 *             if the file is not a table or unable to read it
+	 */
+	public static CountTable open(String fileName, boolean isWritable) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(fileName, isWritable ? "rw" : "r");
+		if (raf.length() < HEADER_BYTE_SIZE || raf.readInt() != MAGIC)
+		{
+			raf.close();
+			throw new IOException(fileName + " is not a count table");
+		}
+
+		CountTable table;
+		try
+		{
+			table = new CountTable(raf.readInt());
+		}
+		catch (IllegalArgumentException e)
+		{
+			raf.close();
+			throw new IOException(fileName + " has an invalid sequence length");
+		}
+
+		if (raf.length() != HEADER_BYTE_SIZE + 4L * table.getEntryCount())
+		{
+			raf.close();
+			throw new IOException(fileName + " is truncated");
+		}
+
+		table.file = raf;
+		table.map(isWritable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY);
+		return table;
+	}
+
+	/**
+	 * @param fileName
+	 *            path of a file
+	 * @return true if the file is a count table, false if it is not or can not
+	 *         be read
+	 */
+	public static boolean isCountTableFile(String fileName)
+	{
+		try (DataInputStream in = new DataInputStream(new FileInputStream(fileName)))
+		{
+			return in.readInt() == MAGIC;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Adds one occurrence of a sequence
+	 *
+	 * @param key
+	 *            the long representation of the sequence
+	 */
+	public void add(long key)
+	{
+		int index = (int) key;
+		counts.put(index, counts.get(index) + 1);
+	}
+
+	@Override
+	public int getFrequency(long key)
+	{
+		return counts.get((int) key);
+	}
+
+	/**
+	 * @return how many different sequences occur at least once
+	 */
+	public long getDistinctCount()
+	{
+		long distinct = 0;
+		for (int i = 0; i < counts.limit(); ++i)
+		{
+			if (counts.get(i) != 0)
+			{
+				distinct++;
+			}
+		}
+		return distinct;
+	}
+
+	@Override
+	public int getSequenceLength()
+	{
+		return sequenceLength;
+	}
+
+	/**
+	 * Iterates over the sequences that occur, in order of key
+	 */
+	@Override
+	public Iterator<TreeObject> iterator()
+	{
+		return new CountIterator();
+	}
+
+	/**
+	 * Writes every sequence that occurs to a BTree, built bottom up in one
+	 * sequential pass as the table is already in order of key
+	 *
+	 * @param btf
+	 *            empty file
+	 * @param format
+	 *            the storage format of the nodes
+	 * @return the tree, which must be closed
+	 */
+	public BTree exportToBTree(BTreeFile btf, NodeFormat format)
+	{
+		BTreeBulkLoader loader = new BTreeBulkLoader(btf, sequenceLength, format, getDistinctCount());
+		for (int i = 0; i < counts.limit(); ++i)
+		{
+			int frequency = counts.get(i);
+			if (frequency != 0)
+			{
+				loader.add(i, frequency);
+			}
+		}
+		return loader.finish();
+	}
+
+	/**
+	 * Dumps every sequence that occurs with its frequency to file, in the same
+	 * format as BTree.dumpInOrderToFile
+	 *
+	 * @param fileName
+	 *            the name of file to create
+	 */
+	public void dumpInOrderToFile(String fileName)
+	{
+		try (PrintWriter out = new PrintWriter(new File(fileName)))
+		{
+			for (int i = 0; i < counts.limit(); ++i)
+			{
+				int frequency = counts.get(i);
+				if (frequency != 0)
+				{
+					out.println(DNAUtil.convertLongToString(i, sequenceLength) + ": " + frequency);
+				}
+			}
+		}
+		catch (FileNotFoundException e)
+		{
+			System.err.println("Unable to create file " + fileName);
+		}
+	}
+
+	/**
+	 * Writes the counts of a persisted table to file and closes it. No further
+	 * actions can be made with the table after this is called
+	 */
+	@Override
+	public void close()
+	{
+		if (file == null)
+		{
+			return;
+		}
+
+		try
+		{
+			if (!mapped.isReadOnly())
+			{
+				mapped.force();
+			}
+			file.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to close count table");
+		}
+	}
+
+	// private methods
+
+	/**
+	 * @return how many counts the table holds, one per possible sequence
+	 */
+	private int getEntryCount()
+	{
+		return 1 << (2 * sequenceLength);
+	}
+
+	/**
+	 * Maps the counts of the table file
+	 *
+	 * @param mode
+	 *            the map mode
+	 * @throws IOException
+	 *             if unable to map the file
+	 */
+	private void map(FileChannel.MapMode mode) throws IOException
+	{
+		mapped = file.getChannel().map(mode, HEADER_BYTE_SIZE, 4L * getEntryCount());
+		counts = mapped.asIntBuffer();
+	}
+
+	/**
+	 * Iterates over the non-zero counts of the table in order of index
+	 */
+	private class CountIterator implements Iterator<TreeObject>
+	{
+		private int next = -1; // index of the next non-zero count, limit if none
+
+		CountIterator()
+		{
+			advance();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return next < counts.limit();
+		}
+
+		@Override
+		public TreeObject next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+
+			TreeObject obj = new TreeObject(next, counts.get(next));
+			advance();
+			return obj;
+		}
+
+		/**
+		 * Moves to the next non-zero count
+		 */
+		private void advance()
+		{
+			do
+			{
+				next++;
+			}
+			while (next < counts.limit() && counts.get(next) == 0);
+		}
+	}
+}
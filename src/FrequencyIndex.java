@@ -0,0 +1,26 @@
+/**
+ * Interface for a read-only index from DNA sequence to frequency, as served by
+ * GeneBankSearch from a file that is not a BTree. Each kind of index file
+ * starts with its own magic number, which is negative so it never matches the
+ * node count a BTree file starts with.
+ */
+public interface FrequencyIndex
+{
+	/**
+	 * @param key
+	 *            the long representation of a sequence
+	 * @return how many times the sequence occurs, 0 if it does not
+	 */
+	public int getFrequency(long key);
+
+	/**
+	 * @return the sequence length of the DNA sequences in the index
+	 */
+	public int getSequenceLength();
+
+	/**
+	 * Closes the index file. No further actions can be made with the index after
+	 * this is called
+	 */
+	public void close();
+}
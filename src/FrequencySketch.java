@@ -0,0 +1,109 @@
+/**
+ * A count-min sketch estimating how often keys were recorded, using a fixed
+ * amount of memory. Each key increments one 4 bit counter in each of 4 rows,
+ * its frequency is the smallest of the 4 counters. Once as many increments as
+ * the sample size have been recorded all counters are halved, so the sketch
+ * reflects recent history.
+ */
+public class FrequencySketch
+{
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final long[] SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+			0xD6E8FEB86659FD93L };
+
+	// fields
+	private byte[][] counters;
+	private int widthBits;
+	private int sampleSize;
+	private int additions;
+
+	/**
+	 * Creates a sketch sized for a cache
+	 *
+	 * @param capacity
+	 *            how many objects the cache holds
+	 */
+	public FrequencySketch(int capacity)
+	{
+		int width = Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 26)) * 2 - 1) << 1;
+		widthBits = Integer.numberOfTrailingZeros(width);
+		counters = new byte[DEPTH][width];
+		sampleSize = 10 * Math.max(16, Math.min(capacity, 1 << 26));
+	}
+
+	/**
+	 * Records an occurrence of a key. Only the smallest counters are incremented
+	 * (conservative update), which keeps over estimation low
+	 *
+	 * @param key
+	 *            the key
+	 */
+	public void increment(int key)
+	{
+		int frequency = frequency(key);
+		if (frequency < MAX_COUNT)
+		{
+			for (int row = 0; row < DEPTH; ++row)
+			{
+				int index = index(key, row);
+				if (counters[row][index] == frequency)
+				{
+					counters[row][index]++;
+				}
+			}
+		}
+
+		if (++additions >= sampleSize)
+		{
+			age();
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the key
+	 * @return estimated amount of recent occurrences of the key, at most 15
+	 */
+	public int frequency(int key)
+	{
+		int min = MAX_COUNT;
+		for (int row = 0; row < DEPTH; ++row)
+		{
+			min = Math.min(min, counters[row][index(key, row)]);
+		}
+		return min;
+	}
+
+	// private methods
+
+	/**
+	 * Halves every counter
+	 */
+	private void age()
+	{
+		for (byte[] row : counters)
+		{
+			for (int i = 0; i < row.length; ++i)
+			{
+				row[i] >>= 1;
+			}
+		}
+		additions /= 2;
+	}
+
+	/**
+	 * @param key
+	 *            the key
+	 * @param row
+	 *            the row of counters
+	 * @return the counter of the key in the row
+	 */
+	private int index(int key, int row)
+	{
+		long hash = (key + SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+		hash ^= hash >>> 29;
+		return (int) (hash * SEEDS[row] >>> (64 - widthBits));
+	}
+
+}
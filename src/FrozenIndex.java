@@ -0,0 +1,963 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A read-only index frozen from a BTree. The keys of the tree are packed in a
+ * sorted array with a parallel array of frequencies, and a static search tree
+ * of fences is kept over them: the bottom level of fences holds the first key
+ * of each block of keys, every level above the first of each FENCE_FANOUT
+ * fences below it, up to a top level of at most FENCE_FANOUT fences. A block of
+ * keys and a node of fences each take up one 64 byte cache line, so a lookup
+ * reads one line per level, and only the bottom levels are not hot in cache.
+ *
+ * An index can also hold a learned model of the keys, a linear spline from key
+ * to position in the key array built greedily so every key is predicted within
+ * an error bound (RadixSpline). A radix table over the top bits of the keys
+ * narrows the spline points to search, the spline segment of a key gives its
+ * predicted position, and the key is searched for within the error bound of
+ * the prediction. With a model the fences are not used.
+ *
+ * Instead of the fence tree the block fences can be stored in Eytzinger order,
+ * the breadth first order of a complete binary search tree over them, padded
+ * to a perfect tree with fences greater than every key. The children of fence
+ * k are fences 2k and 2k + 1, so a lookup descends without branching on the
+ * comparisons, the descent ends at the number of fences not greater than the
+ * key, and the fences of the next 4 levels below share 2 cache lines.
+ *
+ * The file is a header (magic number, sequence length and key count) followed
+ * by the keys, the frequencies, the fence levels top first and the model if
+ * there is one, all memory mapped. Format flags are kept in the upper half of
+ * the sequence length int. Keys of a sequence length of at most 16 fit in 32
+ * bits and are stored as ints. There are no pointers, padding or empty slots,
+ * so the file takes up about 12 bytes a key, or 8 for the narrow keys.
+ */
+public class FrozenIndex implements FrequencyIndex
+{
+	// byte sizes, update if changing what is written to file
+	public static final int HEADER_BYTE_SIZE = 16; // magic=4, sequenceLength=4, keyCount=8
+
+	// fences in a node of the fence tree, 8 longs are a cache line
+	public static final int FENCE_FANOUT = 8;
+
+	// format flags, stored in the upper half of the sequence length int
+	public static final int FLAG_LEARNED = 1;
+	public static final int FLAG_EYTZINGER = 2;
+
+	// the default error bound of a learned model, 17 narrow keys are about a cache line
+	public static final int DEFAULT_ERROR_BOUND = 8;
+
+	// byte size of the model header: errorBound=4, radixBits=4, pointCount=4, padding=4
+	private static final int MODEL_HEADER_BYTE_SIZE = 16;
+
+	// most bits of the radix table of a model
+	private static final int MAX_RADIX_BITS = 20;
+
+	// bytes in a block of keys
+	private static final int BLOCK_BYTE_SIZE = 64;
+
+	// longest sequence length whose keys are stored as ints
+	private static final int MAX_NARROW_SEQUENCE_LENGTH = 16;
+
+	// negative, so it never matches the node count a BTree file starts with
+	private static final int MAGIC = 0xF0F0F1DE;
+
+	// fields
+	private int sequenceLength;
+	private int keyCount;
+	private int blockKeys; // keys in a block
+	private LongBuffer keys; // null for narrow keys
+	private IntBuffer narrowKeys; // null for wide keys
+	private IntBuffer frequencies;
+	private LongBuffer[] fences; // levels of the fence tree, top first
+	private boolean isEytzinger; // if the only fence level is in Eytzinger order
+	private long fetched; // sink for the fences fetched ahead, so the reads are kept
+	private RandomAccessFile file;
+	// learned model, splineKeys is null without one
+	private int errorBound;
+	private int radixShift;
+	private long minKey;
+	private long maxKey;
+	private IntBuffer radixTable; // prefix -> first spline point with that prefix or greater
+	private LongBuffer splineKeys;
+	private IntBuffer splinePositions;
+
+	// constructor
+
+	/**
+	 * Private constructor, use open
+	 *
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @param keyCount
+	 *            how many keys the index holds
+	 * @param isEytzinger
+	 *            if the block fences are in Eytzinger order
+	 */
+	private FrozenIndex(int sequenceLength, int keyCount, boolean isEytzinger)
+	{
+		this.sequenceLength = sequenceLength;
+		this.keyCount = keyCount;
+		this.isEytzinger = isEytzinger;
+		blockKeys = BLOCK_BYTE_SIZE / getKeyByteSize(sequenceLength);
+	}
+
+	// public methods
+
+	/**
+	 * Writes the keys of a tree to a frozen index file without a learned model
+	 *
+	 * @param tree
+	 *            the tree to freeze
+	 * @param fileName
+	 *            file path to be created
+	 * @return how many keys were written
+	 * @throws IOException
+	 *             if unable to write the file, or the tree has too many keys to
+	 *             map
+	 */
+	public static long freeze(BTree tree, String fileName) throws IOException
+	{
+		return freeze(tree, fileName, 0, false);
+	}
+
+	/**
+	 * Writes the keys of a tree to a frozen index file. The tree is read in order
+	 * twice, to count the keys and to write them. Deletes any existing file with
+	 * same name
+	 *
+	 * @param tree
+	 *            the tree to freeze
+	 * @param fileName
+	 *            file path to be created
+	 * @param errorBound
+	 *            how far the learned model may be off from the position of a
+	 *            key, 0 for no model
+	 * @param isEytzinger
+	 *            true to store the block fences in Eytzinger order instead of
+	 *            the fence tree
+	 * @return how many keys were written
+	 * @throws IOException
+	 *             if unable to write the file, or the tree has too many keys to
+	 *             map
+	 */
+	public static long freeze(BTree tree, String fileName, int errorBound, boolean isEytzinger) throws IOException
+	{
+		return freeze(tree, tree.getSequenceLength(), fileName, errorBound, isEytzinger);
+	}
+
+	/**
+	 * Writes keys given in order of key to a frozen index file. The keys are
+	 * read twice, to count them and to write them. Deletes any existing file
+	 * with same name
+	 *
+	 * @param objects
+	 *            the keys with their frequencies, in ascending order of key, such
+	 *            as a tree or a count table
+	 * @param sequenceLength
+	 *            length of the DNA sequences of the keys
+	 * @param fileName
+	 *            file path to be created
+	 * @param errorBound
+	 *            how far the learned model may be off from the position of a
+	 *            key, 0 for no model
+	 * @param isEytzinger
+	 *            true to store the block fences in Eytzinger order instead of
+	 *            the fence tree
+	 * @return how many keys were written
+	 * @throws IOException
+	 *             if unable to write the file, or there are too many keys to map
+	 */
+	public static long freeze(Iterable<TreeObject> objects, int sequenceLength, String fileName, int errorBound,
+			boolean isEytzinger) throws IOException
+	{
+		long count = 0;
+		for (TreeObject obj : objects)
+		{
+			count++;
+		}
+
+		int keyBytes = getKeyByteSize(sequenceLength);
+		if (count * keyBytes > Integer.MAX_VALUE)
+		{
+			throw new IOException("A frozen index can hold at most " + Integer.MAX_VALUE / keyBytes + " keys");
+		}
+
+		FrozenIndex layout = new FrozenIndex(sequenceLength, (int) count, isEytzinger);
+		long[] blockFences = new long[layout.getBlockCount()];
+
+		File f = new File(fileName);
+		if (f.exists())
+		{
+			f.delete();
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw"))
+		{
+			FileChannel channel = raf.getChannel();
+			SectionWriter header = new SectionWriter(channel, 0);
+			header.putInt(MAGIC);
+			int flags = (errorBound > 0 ? FLAG_LEARNED : 0) | (isEytzinger ? FLAG_EYTZINGER : 0);
+			header.putInt(sequenceLength | (flags << 16));
+			header.putLong(count);
+			header.flush();
+
+			SectionWriter keyWriter = new SectionWriter(channel, HEADER_BYTE_SIZE);
+			SectionWriter frequencyWriter = new SectionWriter(channel, layout.getFrequencyOffset());
+			SplineBuilder spline = new SplineBuilder(errorBound);
+			int index = 0;
+			for (TreeObject obj : objects)
+			{
+				if (errorBound > 0)
+				{
+					spline.add(obj.getKey(), index);
+				}
+				if (index % layout.blockKeys == 0)
+				{
+					blockFences[index / layout.blockKeys] = obj.getKey();
+				}
+				if (keyBytes == 4)
+					keyWriter.putInt((int) obj.getKey());
+				else
+					keyWriter.putLong(obj.getKey());
+				frequencyWriter.putInt(obj.getFrequency());
+				index++;
+			}
+			keyWriter.flush();
+			frequencyWriter.flush();
+
+			SectionWriter fenceWriter = new SectionWriter(channel, layout.getFenceOffset());
+			long[][] levels = isEytzinger ? new long[][] { buildEytzinger(blockFences) }
+					: buildFenceLevels(blockFences);
+			for (long[] level : levels)
+			{
+				for (long fence : level)
+				{
+					fenceWriter.putLong(fence);
+				}
+			}
+			fenceWriter.flush();
+
+			if (errorBound > 0)
+			{
+				spline.write(new SectionWriter(channel, layout.getModelOffset()));
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Opens a frozen index file and maps it
+	 *
+	 * @param fileName
+	 *            path of the file
+	 * @return the index
+	 * @throws IOException
+	 *             if the file is not a frozen index or unable to read it
+	 */
+	public static FrozenIndex open(String fileName) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+		if (raf.length() < HEADER_BYTE_SIZE || raf.readInt() != MAGIC)
+		{
+			raf.close();
+			throw new IOException(fileName + " is not a frozen index");
+		}
+
+		int lengthAndFlags = raf.readInt();
+		int sequenceLength = lengthAndFlags & 0xFFFF;
+		boolean isLearned = ((lengthAndFlags >>> 16) & FLAG_LEARNED) != 0;
+		boolean isEytzinger = ((lengthAndFlags >>> 16) & FLAG_EYTZINGER) != 0;
+		long count = raf.readLong();
+		if (sequenceLength <= 0 || sequenceLength > 31 || count < 0 || count > Integer.MAX_VALUE)
+		{
+			raf.close();
+			throw new IOException(fileName + " has an invalid header");
+		}
+
+		FrozenIndex index = new FrozenIndex(sequenceLength, (int) count, isEytzinger);
+		long[] levelSizes = index.getFenceLevelSizes();
+		if (raf.length() < index.getModelOffset() + (isLearned ? MODEL_HEADER_BYTE_SIZE : 0)
+				|| (!isLearned && raf.length() != index.getModelOffset()))
+		{
+			raf.close();
+			throw new IOException(fileName + " is truncated");
+		}
+
+		FileChannel channel = raf.getChannel();
+		ByteBuffer keyBytes = map(channel, HEADER_BYTE_SIZE, index.getFrequencyOffset() - HEADER_BYTE_SIZE);
+		if (getKeyByteSize(sequenceLength) == 4)
+			index.narrowKeys = keyBytes.asIntBuffer();
+		else
+			index.keys = keyBytes.asLongBuffer();
+		index.frequencies = map(channel, index.getFrequencyOffset(), 4L * count).asIntBuffer();
+
+		index.fences = new LongBuffer[levelSizes.length];
+		long offset = index.getFenceOffset();
+		for (int i = 0; i < levelSizes.length; ++i)
+		{
+			index.fences[i] = map(channel, offset, 8 * levelSizes[i]).asLongBuffer();
+			offset += 8 * levelSizes[i];
+		}
+
+		index.file = raf;
+		if (isLearned)
+		{
+			index.mapModel(channel);
+		}
+		return index;
+	}
+
+	/**
+	 * @param fileName
+	 *            path of a file
+	 * @return true if the file is a frozen index, false if it is not or can not
+	 *         be read
+	 */
+	public static boolean isFrozenIndexFile(String fileName)
+	{
+		try (DataInputStream in = new DataInputStream(new FileInputStream(fileName)))
+		{
+			return in.readInt() == MAGIC;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	@Override
+	public int getFrequency(long key)
+	{
+		int index = indexOf(key);
+		return index < 0 ? 0 : frequencies.get(index);
+	}
+
+	/**
+	 * Finds the position of a key in the sorted key array by descending the fence
+	 * tree or the Eytzinger fences, then scanning the key's block, or with the
+	 * learned model if the index has one
+	 *
+	 * @param key
+	 *            the long representation of a sequence
+	 * @return the position of the key, -1 if it is not in the index
+	 */
+	public int indexOf(long key)
+	{
+		if (keyCount == 0)
+		{
+			return -1;
+		}
+		if (splineKeys != null)
+		{
+			return indexOfByModel(key);
+		}
+
+		int block = isEytzinger ? getEytzingerBlock(key) : getFenceBlock(key);
+		if (block < 0)
+		{
+			return -1;
+		}
+
+		int end = Math.min((block + 1) * blockKeys, keyCount);
+		for (int i = block * blockKeys; i < end; ++i)
+		{
+			long k = getKey(i);
+			if (k >= key)
+			{
+				return k == key ? i : -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param index
+	 *            position in the sorted key array
+	 * @return the key at the position
+	 */
+	public long getKey(int index)
+	{
+		return keys != null ? keys.get(index) : Integer.toUnsignedLong(narrowKeys.get(index));
+	}
+
+	/**
+	 * @param index
+	 *            position in the sorted key array
+	 * @return the frequency of the key at the position
+	 */
+	public int getFrequencyAt(int index)
+	{
+		return frequencies.get(index);
+	}
+
+	/**
+	 * @return how many keys the index holds
+	 */
+	public int getKeyCount()
+	{
+		return keyCount;
+	}
+
+	@Override
+	public int getSequenceLength()
+	{
+		return sequenceLength;
+	}
+
+	@Override
+	public void close()
+	{
+		try
+		{
+			file.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to close frozen index");
+		}
+	}
+
+	// private methods
+
+	/**
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @return how many bytes a key takes up in file
+	 */
+	private static int getKeyByteSize(int sequenceLength)
+	{
+		return sequenceLength <= MAX_NARROW_SEQUENCE_LENGTH ? 4 : 8;
+	}
+
+	/**
+	 * @return how many blocks the keys take up, at least 1
+	 */
+	private int getBlockCount()
+	{
+		return Math.max(1, (keyCount + blockKeys - 1) / blockKeys);
+	}
+
+	/**
+	 * @return byte offset of the frequency array
+	 */
+	private long getFrequencyOffset()
+	{
+		return HEADER_BYTE_SIZE + (long) keyCount * getKeyByteSize(sequenceLength);
+	}
+
+	/**
+	 * @return byte offset of the fence levels, 8 byte aligned, or cache line
+	 *         aligned for Eytzinger fences
+	 */
+	private long getFenceOffset()
+	{
+		int alignment = isEytzinger ? BLOCK_BYTE_SIZE : 8;
+		return (getFrequencyOffset() + 4L * keyCount + alignment - 1) & -alignment;
+	}
+
+	/**
+	 * @return byte offset of the learned model, the end of the file without one
+	 */
+	private long getModelOffset()
+	{
+		long offset = getFenceOffset();
+		for (long size : getFenceLevelSizes())
+		{
+			offset += 8 * size;
+		}
+		return offset;
+	}
+
+	/**
+	 * Maps the learned model at the end of the file
+	 *
+	 * @param channel
+	 *            channel of the file
+	 * @throws IOException
+	 *             if the model is truncated or unable to map it
+	 */
+	private void mapModel(FileChannel channel) throws IOException
+	{
+		long offset = getModelOffset();
+		ByteBuffer header = map(channel, offset, MODEL_HEADER_BYTE_SIZE);
+		errorBound = header.getInt();
+		int radixBits = header.getInt();
+		int pointCount = header.getInt();
+		offset += MODEL_HEADER_BYTE_SIZE;
+
+		long radixSize = (1L << radixBits) + 1;
+		if (radixBits < 0 || radixBits > MAX_RADIX_BITS || pointCount < 1
+				|| channel.size() != offset + 12L * pointCount + 4 * radixSize)
+		{
+			throw new IOException("Frozen index model is truncated");
+		}
+
+		splineKeys = map(channel, offset, 8L * pointCount).asLongBuffer();
+		offset += 8L * pointCount;
+		splinePositions = map(channel, offset, 4L * pointCount).asIntBuffer();
+		offset += 4L * pointCount;
+		radixTable = map(channel, offset, 4 * radixSize).asIntBuffer();
+
+		minKey = splineKeys.get(0);
+		maxKey = splineKeys.get(pointCount - 1);
+		radixShift = getRadixShift(minKey, maxKey, radixBits);
+	}
+
+	/**
+	 * Finds the position of a key with the learned model: the radix table gives
+	 * the spline points to search for the key's segment, the segment predicts the
+	 * position, and the key is searched for within the error bound of it
+	 *
+	 * @param key
+	 *            the long representation of a sequence
+	 * @return the position of the key, -1 if it is not in the index
+	 */
+	private int indexOfByModel(long key)
+	{
+		if (key < minKey || key > maxKey)
+		{
+			return -1;
+		}
+
+		// first spline point not less than the key
+		int prefix = (int) ((key - minKey) >>> radixShift);
+		int low = radixTable.get(prefix);
+		int high = Math.min(radixTable.get(prefix + 1), splineKeys.limit() - 1);
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (splineKeys.get(mid) < key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		if (splineKeys.get(low) == key)
+		{
+			return splinePositions.get(low);
+		}
+
+		// interpolate on the segment ending at the point
+		long x0 = splineKeys.get(low - 1);
+		int y0 = splinePositions.get(low - 1);
+		double slope = (double) (splinePositions.get(low) - y0) / (splineKeys.get(low) - x0);
+		int predicted = y0 + (int) ((key - x0) * slope);
+
+		// rounding may take the prediction just past the bound
+		low = Math.max(0, predicted - errorBound - 1);
+		high = Math.min(keyCount - 1, predicted + errorBound + 1);
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			long k = getKey(mid);
+			if (k < key)
+				low = mid + 1;
+			else if (k > key)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param minKey
+	 *            smallest key of a model
+	 * @param maxKey
+	 *            largest key of a model
+	 * @param radixBits
+	 *            bits of the radix table
+	 * @return how far a key less minKey is shifted right to get its radix prefix
+	 */
+	private static int getRadixShift(long minKey, long maxKey, int radixBits)
+	{
+		int rangeBits = 64 - Long.numberOfLeadingZeros(maxKey - minKey);
+		return Math.max(0, rangeBits - radixBits);
+	}
+
+	/**
+	 * Finds the block a key would be in by descending the fence tree
+	 *
+	 * @param key
+	 *            the long representation of a sequence
+	 * @return the block of the key, the first block if the key is less than every
+	 *         key
+	 */
+	private int getFenceBlock(long key)
+	{
+		// the last fence of a node not greater than the key leads down
+		int node = 0;
+		for (LongBuffer level : fences)
+		{
+			int start = node * FENCE_FANOUT;
+			int end = Math.min(start + FENCE_FANOUT, level.limit());
+			node = start;
+			while (node + 1 < end && level.get(node + 1) <= key)
+			{
+				node++;
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Finds the block a key would be in by descending the Eytzinger fences. Every
+	 * level is descended, the fences are a perfect tree, so the descent ends at
+	 * the number of fences not greater than the key past the last fence
+	 *
+	 * @param key
+	 *            the long representation of a sequence
+	 * @return the block of the key, -1 if the key is less than every key
+	 */
+	private int getEytzingerBlock(long key)
+	{
+		LongBuffer tree = fences[0];
+		int size = tree.limit();
+		int k = 1;
+		long ahead = 0;
+		while (k < size)
+		{
+			// fetch the fences 4 levels down, they are read 4 steps from now
+			ahead += tree.get(Math.min(k << 4, size - 1));
+			k = 2 * k + (int) ((tree.get(k) - key - 1) >>> 63); // 1 if the fence is not greater
+		}
+		fetched = ahead;
+		return k - size - 1;
+	}
+
+	/**
+	 * @return how many fences each level holds, top first
+	 */
+	private long[] getFenceLevelSizes()
+	{
+		if (isEytzinger)
+		{ // one level, slot 0 is unused
+			return new long[] { Integer.highestOneBit(getBlockCount()) << 1 };
+		}
+
+		int levels = 1;
+		for (long size = getBlockCount(); size > FENCE_FANOUT; size = (size + FENCE_FANOUT - 1) / FENCE_FANOUT)
+		{
+			levels++;
+		}
+
+		long[] sizes = new long[levels];
+		long size = getBlockCount();
+		for (int i = levels - 1; i >= 0; --i)
+		{
+			sizes[i] = size;
+			size = (size + FENCE_FANOUT - 1) / FENCE_FANOUT;
+		}
+		return sizes;
+	}
+
+	/**
+	 * @param blockFences
+	 *            the first key of every block
+	 * @return the fence levels, top first
+	 */
+	private static long[][] buildFenceLevels(long[] blockFences)
+	{
+		int levels = 1;
+		for (int size = blockFences.length; size > FENCE_FANOUT; size = (size + FENCE_FANOUT - 1) / FENCE_FANOUT)
+		{
+			levels++;
+		}
+
+		long[][] fences = new long[levels][];
+		fences[levels - 1] = blockFences;
+		for (int i = levels - 2; i >= 0; --i)
+		{
+			long[] below = fences[i + 1];
+			fences[i] = new long[(below.length + FENCE_FANOUT - 1) / FENCE_FANOUT];
+			for (int j = 0; j < fences[i].length; ++j)
+			{
+				fences[i][j] = below[j * FENCE_FANOUT];
+			}
+		}
+		return fences;
+	}
+
+	/**
+	 * @param blockFences
+	 *            the first key of every block
+	 * @return the fences in Eytzinger order from index 1, padded to a perfect
+	 *         tree with fences greater than every key
+	 */
+	private static long[] buildEytzinger(long[] blockFences)
+	{
+		long[] tree = new long[Integer.highestOneBit(blockFences.length) << 1];
+		fillEytzinger(blockFences, tree, 0, 1);
+		return tree;
+	}
+
+	/**
+	 * Fills a subtree of Eytzinger fences in order
+	 *
+	 * @param sorted
+	 *            the fences in order
+	 * @param tree
+	 *            the fences in Eytzinger order
+	 * @param next
+	 *            index of the next fence in order
+	 * @param k
+	 *            the root of the subtree
+	 * @return index of the next fence in order after the subtree
+	 */
+	private static int fillEytzinger(long[] sorted, long[] tree, int next, int k)
+	{
+		if (k >= tree.length)
+		{
+			return next;
+		}
+		next = fillEytzinger(sorted, tree, next, 2 * k);
+		tree[k] = next < sorted.length ? sorted[next] : Long.MAX_VALUE;
+		return fillEytzinger(sorted, tree, next + 1, 2 * k + 1);
+	}
+
+	/**
+	 * Maps a read-only section of a file
+	 *
+	 * @param channel
+	 *            channel of the file
+	 * @param offset
+	 *            byte offset of the section
+	 * @param size
+	 *            byte size of the section
+	 * @return the mapped section
+	 * @throws IOException
+	 *             if unable to map the section
+	 */
+	private static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException
+	{
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+	}
+
+	/**
+	 * Builds the spline of a learned model from keys given in order with the
+	 * greedy spline corridor: a segment is extended for as long as a line from its
+	 * first point can pass within the error bound of every key since, otherwise
+	 * the previous key ends it and starts the next
+	 */
+	private static class SplineBuilder
+	{
+		private int errorBound;
+		private long[] keys = new long[16];
+		private int[] positions = new int[16];
+		private int pointCount;
+		private long baseKey; // first point of the current segment
+		private int basePosition;
+		private long lastKey;
+		private int lastPosition;
+		private double upperSlope;
+		private double lowerSlope;
+		private long count;
+
+		/**
+		 * @param errorBound
+		 *            how far a prediction may be off from the position of a key
+		 */
+		SplineBuilder(int errorBound)
+		{
+			this.errorBound = errorBound;
+		}
+
+		/**
+		 * @param key
+		 *            the next key, greater than the one before
+		 * @param position
+		 *            the position of the key
+		 */
+		void add(long key, int position)
+		{
+			if (count == 0)
+			{
+				addPoint(key, position);
+				baseKey = key;
+				basePosition = position;
+			}
+			else if (count == 1)
+			{
+				setCorridor(key, position);
+			}
+			else
+			{
+				double slope = (double) (position - basePosition) / (key - baseKey);
+				if (slope > upperSlope || slope < lowerSlope)
+				{ // no line through the corridor reaches the key, the segment ends
+					addPoint(lastKey, lastPosition);
+					baseKey = lastKey;
+					basePosition = lastPosition;
+					setCorridor(key, position);
+				}
+				else
+				{
+					double dx = key - baseKey;
+					upperSlope = Math.min(upperSlope, (position + errorBound - basePosition) / dx);
+					lowerSlope = Math.max(lowerSlope, (position - errorBound - basePosition) / dx);
+				}
+			}
+
+			lastKey = key;
+			lastPosition = position;
+			count++;
+		}
+
+		/**
+		 * Ends the spline at the last key and writes the model: its header, the
+		 * spline points and the radix table
+		 *
+		 * @param out
+		 *            writer positioned at the model offset
+		 * @throws IOException
+		 *             if unable to write
+		 */
+		void write(SectionWriter out) throws IOException
+		{
+			if (count > 1)
+			{
+				addPoint(lastKey, lastPosition);
+			}
+			else if (count == 0)
+			{ // a single point that matches no key
+				addPoint(0, 0);
+			}
+
+			// about one radix slot per spline point
+			int radixBits = Math.min(MAX_RADIX_BITS, 32 - Integer.numberOfLeadingZeros(pointCount));
+			long minKey = keys[0];
+			int shift = getRadixShift(minKey, keys[pointCount - 1], radixBits);
+
+			out.putInt(errorBound);
+			out.putInt(radixBits);
+			out.putInt(pointCount);
+			out.putInt(0);
+			for (int i = 0; i < pointCount; ++i)
+			{
+				out.putLong(keys[i]);
+			}
+			for (int i = 0; i < pointCount; ++i)
+			{
+				out.putInt(positions[i]);
+			}
+
+			int point = 0;
+			for (long prefix = 0; prefix <= 1L << radixBits; ++prefix)
+			{
+				while (point < pointCount && ((keys[point] - minKey) >>> shift) < prefix)
+				{
+					point++;
+				}
+				out.putInt(point);
+			}
+			out.flush();
+		}
+
+		/**
+		 * Sets the corridor of the current segment to the lines from its first point
+		 * passing within the error bound of a key
+		 *
+		 * @param key
+		 *            the key
+		 * @param position
+		 *            the position of the key
+		 */
+		private void setCorridor(long key, int position)
+		{
+			double dx = key - baseKey;
+			upperSlope = (position + errorBound - basePosition) / dx;
+			lowerSlope = (position - errorBound - basePosition) / dx;
+		}
+
+		/**
+		 * @param key
+		 *            key of a spline point
+		 * @param position
+		 *            position of the key
+		 */
+		private void addPoint(long key, int position)
+		{
+			if (pointCount == keys.length)
+			{
+				keys = Arrays.copyOf(keys, pointCount * 2);
+				positions = Arrays.copyOf(positions, pointCount * 2);
+			}
+			keys[pointCount] = key;
+			positions[pointCount] = position;
+			pointCount++;
+		}
+	}
+
+	/**
+	 * Writes a section of a file sequentially through a buffer, independent of
+	 * the other sections being written
+	 */
+	private static class SectionWriter
+	{
+		private FileChannel channel;
+		private long position;
+		private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+		/**
+		 * @param channel
+		 *            channel of the file
+		 * @param position
+		 *            byte offset the section starts at
+		 */
+		SectionWriter(FileChannel channel, long position)
+		{
+			this.channel = channel;
+			this.position = position;
+		}
+
+		/**
+		 * @param value
+		 *            the int to write next
+		 * @throws IOException
+		 *             if unable to write
+		 */
+		void putInt(int value) throws IOException
+		{
+			if (buffer.remaining() < 4)
+				flush();
+			buffer.putInt(value);
+		}
+
+		/**
+		 * @param value
+		 *            the long to write next
+		 * @throws IOException
+		 *             if unable to write
+		 */
+		void putLong(long value) throws IOException
+		{
+			if (buffer.remaining() < 8)
+				flush();
+			buffer.putLong(value);
+		}
+
+		/**
+		 * Writes the buffered bytes to file
+		 *
+		 * @throws IOException
+		 *             if unable to write
+		 */
+		void flush() throws IOException
+		{
+			buffer.flip();
+			while (buffer.hasRemaining())
+			{
+				position += channel.write(buffer, position);
+			}
+			buffer.clear();
+		}
+	}
+}
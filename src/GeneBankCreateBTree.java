@@ -2,6 +2,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 
 /**
  * 
@@ -19,6 +20,24 @@ class GeneBankCreateBTree
 	private static String bTreeFileName = "";
 	private static boolean useCache;
 	private static int debugLevel;
+	private static boolean compress;
+	private static int blockSize = 0; // 0 if nodes are not block aligned
+	private static boolean direct;
+	private static boolean inMemory;
+	private static boolean bPlusTree;
+	private static boolean sharingSplits;
+	private static boolean buffered;
+	private static String appendFileName; // null to create a new tree
+	private static String engine = "auto"; // auto, btree, table, hash or lsm
+	private static boolean exportBTree;
+	private static boolean hasTreeLayout; // an option only a btree file can have was given
+	private static boolean hasTreeIngest; // an option that makes auto pick the btree engine was given
+	private static int shardCount = 1; // hash table shards, or tree files with the btree engine
+	private static CacheOptions.Mode cacheMode = CacheOptions.Mode.LIST;
+	private static CacheOptions.Policy cachePolicy = CacheOptions.Policy.LRU;
+	private static int writeBackQueueSize = 0; // 0 to write evicted nodes synchronously
+	private static long cacheMemory = 0; // 0 if the cache is sized in nodes
+	private static NodeFormat format;
 
 	public static void main(String[] args)
 	{
@@ -41,25 +60,59 @@ class GeneBankCreateBTree
 		gbkFileName = gbkName[gbkName.length - 1];
 
 		bTreeFileName += gbkFileName + ".btree.data." + kSequenceLength + "." + tDegree;
+		if (appendFileName != null)
+		{
+			bTreeFileName = appendFileName;
+		}
+
+		if (engine.equals("table"))
+		{
+			countInTable(gbf);
+			return;
+		}
+		else if (engine.equals("hash"))
+		{
+			countInHashTable(gbf);
+			return;
+		}
+		else if (engine.equals("lsm"))
+		{
+			countInStore(gbf);
+			return;
+		}
+		else if (shardCount > 1)
+		{
+			buildShards(gbf);
+			return;
+		}
 
 		// create empty BTree
 		BTree bt = null;
 		try
 		{
-			BTreeFile btf = BTreeFile.createNewBTreeFile(bTreeFileName, BTree.METADATA_BYTE_SIZE,
-					BTreeNode.getByteSize(tDegree));
-			if (useCache)
+			BTreeFile btf = appendFileName != null
+					? BTreeFile.openBTreeFile(bTreeFileName, BTree.METADATA_BYTE_SIZE, direct)
+					: BTreeFile.createNewBTreeFile(bTreeFileName, format, direct);
+			CacheOptions options = getCacheOptions();
+			if (appendFileName != null)
+			{
+				bt = BTree.openForAppend(btf, options);
+				checkAppendedTree(bt);
+			}
+			else if (inMemory)
 			{
-				bt = new BTree(btf, kSequenceLength, tDegree, cacheSize); //
+				bt = BTree.inMemory(btf, kSequenceLength, format);
 			}
 			else
 			{
-				bt = new BTree(btf, kSequenceLength, tDegree); //
+				bt = new BTree(btf, kSequenceLength, format, options); //
 			}
+			bt.setSharingSplits(sharingSplits);
 		}
 		catch (IOException e)
 		{
-			System.err.println("Critical Error while creating BTree file " + bTreeFileName);
+			System.err.println("Critical Error while " + (appendFileName != null ? "opening" : "creating")
+					+ " BTree file " + bTreeFileName);
 			printUsage();
 		}
 
@@ -89,13 +142,18 @@ class GeneBankCreateBTree
 			System.err.println(gbkFileName + " contained no DNA sequences!");
 			bt.close();
 			File f = new File(bTreeFileName);
-			if (f.exists())
-			{
+			if (f.exists() && appendFileName == null)
+			{ // a tree appended to is kept as it was
 				f.delete();
 			}
 			System.exit(1);
 		}
 
+		if (bt.getCacheReport() != null)
+		{
+			System.err.println("\n" + bt.getCacheReport());
+		}
+
 		// if debug 1, print dump file
 		if (debugLevel == 1)
 		{
@@ -107,8 +165,371 @@ class GeneBankCreateBTree
 		bt.close();
 	}
 
+	/**
+	 * Exits if the file to append to is one of the index files that can not be
+	 * added to
+	 * 
+	 * @return the engine that adds to the file, table for a count table, lsm for
+	 *         a count store and btree for any other file
+	 */
+	private static String getAppendedEngine()
+	{
+		String kind = null;
+		if (CountTable.isCountTableFile(appendFileName))
+			return "table";
+		else if (CountStore.isCountStoreFile(appendFileName))
+			return "lsm";
+		else if (ShardedBTree.isShardedBTreeFile(appendFileName))
+			kind = "a sharded tree manifest";
+		else if (FrozenIndex.isFrozenIndexFile(appendFileName))
+			kind = "a frozen index";
+
+		if (kind != null)
+		{
+			System.err.println(appendFileName + " is " + kind
+					+ ", only btree files, count tables and count stores can be appended to");
+			System.exit(-1);
+		}
+		return "btree";
+	}
+
+	/**
+	 * Exits if a tree opened to append to was not built with the sequence length
+	 * and node format of the arguments, as its keys would not mean the same
+	 * sequences or its nodes would not be read back
+	 * 
+	 * @param bt
+	 *            the opened tree
+	 */
+	private static void checkAppendedTree(BTree bt)
+	{
+		if (bt.getSequenceLength() != kSequenceLength || !bt.getFormat().equals(format))
+		{
+			System.err.println(bTreeFileName + " holds sequences of length " + bt.getSequenceLength() + " in "
+					+ bt.getFormat() + " nodes, not of length " + kSequenceLength + " in " + format + " nodes");
+			bt.close();
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * @return the cache options of the arguments, null if running without cache
+	 */
+	private static CacheOptions getCacheOptions()
+	{
+		if (!useCache)
+		{
+			return null;
+		}
+
+		CacheOptions options = cacheMemory > 0 ? CacheOptions.withMemoryBudget(cacheMemory) : new CacheOptions(cacheSize);
+		options.setMode(cacheMode);
+		options.setPolicy(cachePolicy);
+		options.setWriteBackQueueSize(writeBackQueueSize);
+		return options;
+	}
+
+	/**
+	 * Adds the sequences to a ShardedBTree instead of a single BTree: a tree file
+	 * per key prefix, each added to by its own thread, and a manifest as the
+	 * output file
+	 * 
+	 * @param gbf
+	 *            the file to add the sequences of
+	 */
+	private static void buildShards(GeneBankFile gbf)
+	{
+		ShardedBTree tree = null;
+		try
+		{
+			tree = ShardedBTree.create(bTreeFileName, kSequenceLength, shardCount, format, direct, getCacheOptions());
+			tree.setSharingSplits(sharingSplits);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Critical Error while creating sharded BTree files " + bTreeFileName);
+			printUsage();
+		}
+
+		int sequenceCount = 0;
+		while (gbf.hasNextDataBlock())
+		{
+			sequenceCount++;
+			int count = 0;
+			System.err.println("\nStarting data block " + sequenceCount + " in " + gbkFileName);
+			while (gbf.hasNextDNA())
+			{
+				tree.add(gbf.nextDNAasLong());
+				count++;
+			}
+
+			System.err.println("\nData block " + sequenceCount + " contained " + count + " sequences");
+		}
+
+		if (sequenceCount == 0)
+		{ // there were no sequences in the file
+			System.err.println(gbkFileName + " contained no DNA sequences!");
+			tree.close();
+			new File(bTreeFileName).delete();
+			for (int i = 0; i < shardCount; ++i)
+			{
+				new File(ShardedBTree.getShardFileName(bTreeFileName, i)).delete();
+			}
+			System.exit(1);
+		}
+
+		if (debugLevel == 1)
+		{
+			System.err.println("\nCreating debug dump file");
+			tree.dumpInOrderToFile("dump");
+			System.err.println("");
+		}
+
+		tree.close();
+
+		long smallest = Long.MAX_VALUE;
+		long largest = 0;
+		for (int i = 0; i < shardCount; ++i)
+		{
+			long length = new File(ShardedBTree.getShardFileName(bTreeFileName, i)).length();
+			smallest = Math.min(smallest, length);
+			largest = Math.max(largest, length);
+		}
+		System.err.println("\n" + shardCount + " tree shards of " + ByteSize.toString(smallest) + " to "
+				+ ByteSize.toString(largest));
+	}
+
+	/**
+	 * Counts the sequences in a CountTable instead of a BTree. The table is
+	 * written as the output file, or opened and added to with --append, unless a
+	 * BTree file is wanted, in which case it is only kept in memory and exported
+	 * to the BTree at the end
+	 * 
+	 * @param gbf
+	 *            the file to count the sequences of
+	 */
+	private static void countInTable(GeneBankFile gbf)
+	{
+		boolean isExported = exportBTree || hasTreeLayout;
+
+		CountTable table = null;
+		try
+		{
+			if (isExported)
+				table = CountTable.inMemory(kSequenceLength);
+			else if (appendFileName != null)
+				table = CountTable.open(bTreeFileName, true);
+			else
+				table = CountTable.create(bTreeFileName, kSequenceLength);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Critical Error while " + (appendFileName != null ? "opening" : "creating")
+					+ " count table file " + bTreeFileName);
+			printUsage();
+		}
+
+		if (table.getSequenceLength() != kSequenceLength)
+		{
+			System.err.println(bTreeFileName + " holds sequences of length " + table.getSequenceLength()
+					+ ", not of length " + kSequenceLength);
+			table.close();
+			System.exit(-1);
+		}
+
+		int sequenceCount = 0;
+		while (gbf.hasNextDataBlock())
+		{
+			sequenceCount++;
+			int count = 0;
+			System.err.println("\nStarting data block " + sequenceCount + " in " + gbkFileName);
+			while (gbf.hasNextDNA())
+			{
+				table.add(gbf.nextDNAasLong());
+				count++;
+			}
+
+			System.err.println("\nData block " + sequenceCount + " contained " + count + " sequences");
+		}
+
+		if (sequenceCount == 0)
+		{ // there were no sequences in the file
+			System.err.println(gbkFileName + " contained no DNA sequences!");
+			table.close();
+			File f = new File(bTreeFileName);
+			if (f.exists() && appendFileName == null)
+			{ // a table appended to is kept as it was
+				f.delete();
+			}
+			System.exit(1);
+		}
+
+		if (!isExported)
+		{
+			if (debugLevel == 1)
+			{
+				System.err.println("\nCreating debug dump file");
+				table.dumpInOrderToFile("dump");
+				System.err.println("");
+			}
+			table.close();
+			return;
+		}
+
+		BTree bt = null;
+		try
+		{
+			bt = table.exportToBTree(BTreeFile.createNewBTreeFile(bTreeFileName, format, direct), format);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Critical Error while creating BTree file " + bTreeFileName);
+			printUsage();
+		}
+
+		if (debugLevel == 1)
+		{
+			System.err.println("\nCreating debug dump file");
+			bt.dumpInOrderToFile("dump");
+			System.err.println("");
+		}
+
+		bt.close();
+	}
+
+	/**
+	 * Counts the sequences in a ShardedCountHashTable instead of a BTree, then
+	 * writes the BTree bottom up from the sorted keys
+	 * 
+	 * @param gbf
+	 *            the file to count the sequences of
+	 */
+	private static void countInHashTable(GeneBankFile gbf)
+	{
+		ShardedCountHashTable table = new ShardedCountHashTable(kSequenceLength, shardCount);
+
+		int sequenceCount = 0;
+		while (gbf.hasNextDataBlock())
+		{
+			sequenceCount++;
+			int count = 0;
+			System.err.println("\nStarting data block " + sequenceCount + " in " + gbkFileName);
+			while (gbf.hasNextDNA())
+			{
+				table.add(gbf.nextDNAasLong());
+				count++;
+			}
+
+			System.err.println("\nData block " + sequenceCount + " contained " + count + " sequences");
+		}
+
+		if (sequenceCount == 0)
+		{ // there were no sequences in the file
+			System.err.println(gbkFileName + " contained no DNA sequences!");
+			System.exit(1);
+		}
+
+		BTree bt = null;
+		try
+		{
+			bt = table.exportToBTree(BTreeFile.createNewBTreeFile(bTreeFileName, format, direct), format);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Critical Error while creating BTree file " + bTreeFileName);
+			printUsage();
+		}
+
+		System.err.println("\nhash table: " + table.getDistinctCount() + " sequences, "
+				+ ByteSize.toString(table.getByteSize()) + " in " + shardCount + " shards");
+
+		if (debugLevel == 1)
+		{
+			System.err.println("\nCreating debug dump file");
+			bt.dumpInOrderToFile("dump");
+			System.err.println("");
+		}
+
+		bt.close();
+	}
+
+	/**
+	 * Counts the sequences in a CountStore instead of a BTree, which is written as
+	 * the output file, or opened and added to with --append
+	 * 
+	 * @param gbf
+	 *            the file to count the sequences of
+	 */
+	private static void countInStore(GeneBankFile gbf)
+	{
+		CountStore store = null;
+		try
+		{
+			store = appendFileName != null ? CountStore.open(bTreeFileName)
+					: CountStore.create(bTreeFileName, kSequenceLength);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Critical Error while " + (appendFileName != null ? "opening" : "creating")
+					+ " count store " + bTreeFileName);
+			printUsage();
+		}
+
+		if (store.getSequenceLength() != kSequenceLength)
+		{
+			System.err.println(bTreeFileName + " holds sequences of length " + store.getSequenceLength()
+					+ ", not of length " + kSequenceLength);
+			store.close();
+			System.exit(-1);
+		}
+
+		int sequenceCount = 0;
+		while (gbf.hasNextDataBlock())
+		{
+			sequenceCount++;
+			int count = 0;
+			System.err.println("\nStarting data block " + sequenceCount + " in " + gbkFileName);
+			while (gbf.hasNextDNA())
+			{
+				store.add(gbf.nextDNAasLong());
+				count++;
+			}
+
+			System.err.println("\nData block " + sequenceCount + " contained " + count + " sequences");
+		}
+
+		if (sequenceCount == 0)
+		{ // there were no sequences in the file
+			System.err.println(gbkFileName + " contained no DNA sequences!");
+			store.close();
+			File f = new File(bTreeFileName);
+			if (f.exists() && appendFileName == null)
+			{ // a store appended to is kept as it was
+				f.delete();
+			}
+			System.exit(1);
+		}
+
+		store.flush();
+		if (store.getReport() != null)
+		{
+			System.err.println("\n" + store.getReport());
+		}
+
+		if (debugLevel == 1)
+		{
+			System.err.println("\nCreating debug dump file");
+			store.dumpInOrderToFile("dump");
+			System.err.println("");
+		}
+
+		store.close();
+	}
+
 	public static void parseArgs(String[] args)
 	{
+		args = parseOptions(args);
+
 		// check for min # of args
 		if (args.length < 4)
 		{
@@ -143,19 +564,49 @@ class GeneBankCreateBTree
 		try
 		{
 			tDegree = Integer.parseInt(args[1]);
-			if (tDegree == 0)
+			if (tDegree < 0 || tDegree == 1)
+				throw new Exception();
+
+			if (blockSize != 0)
+			{ // degree is derived from the block size if 0
+				format = compress ? NodeFormat.compressedAligned(blockSize) : NodeFormat.fixed(tDegree, blockSize);
+			}
+			else if (tDegree == 0)
 			{
 
 				// brute force love
-				int blockSize = 4096;
+				int pageSize = NodeFormat.DEFAULT_PAGE_SIZE;
 				tDegree = 2;
-				while (BTreeNode.getByteSize(tDegree + 1) < blockSize)
+				while (BTreeNode.getByteSize(tDegree + 1) < pageSize)
 					tDegree++;
+
+				format = compress ? NodeFormat.compressed(pageSize) : NodeFormat.fixed(tDegree);
+			}
+			else
+			{ // compressed nodes get the page a fixed node of the degree would take up
+				format = compress ? NodeFormat.compressed(BTreeNode.getByteSize(tDegree)) : NodeFormat.fixed(tDegree);
+			}
+			tDegree = format.getDegree();
+			if (bPlusTree)
+			{
+				format = format.toBPlusTree();
+			}
+			if (buffered)
+			{
+				format = format.toBuffered();
 			}
-			else if (tDegree <= 1)
-				throw new Exception();
 
 		}
+		catch (NumberFormatException e)
+		{
+			System.err.println("Degree must be an integer t such that, 1 < t. Choose 0 to determine optimal degree");
+			printUsage();
+		}
+		catch (IllegalArgumentException e)
+		{ // degree does not fit the block size
+			System.err.println(e.getMessage());
+			printUsage();
+		}
 		catch (Exception e)
 		{
 			System.err.println("Degree must be an integer t such that, 1 < t. Choose 0 to determine optimal degree");
@@ -181,7 +632,92 @@ class GeneBankCreateBTree
 			printUsage();
 		}
 
-		// get cache size
+		String appendedEngine = appendFileName != null ? getAppendedEngine() : null;
+		if (engine.equals("auto"))
+		{ // a file appended to keeps its engine, btree ingest options keep the btree engine, the hash
+			// engine is only used when asked for
+			if (appendedEngine != null)
+				engine = appendedEngine;
+			else if (hasTreeIngest || kSequenceLength > CountTable.MAX_SEQUENCE_LENGTH)
+				engine = "btree";
+			else
+				engine = "table";
+		}
+
+		if (engine.equals("table") && kSequenceLength > CountTable.MAX_SEQUENCE_LENGTH)
+		{
+			System.err.println("The table engine needs a sequence length of at most " + CountTable.MAX_SEQUENCE_LENGTH);
+			printUsage();
+		}
+		else if (appendedEngine != null && !engine.equals(appendedEngine))
+		{
+			System.err.println("--append to " + appendFileName + " needs the " + appendedEngine + " engine");
+			printUsage();
+		}
+		else if (bPlusTree && !engine.equals("btree"))
+		{
+			System.err.println("--bplus needs the btree engine");
+			printUsage();
+		}
+		else if (sharingSplits && !engine.equals("btree"))
+		{
+			System.err.println("--bstar needs the btree engine");
+			printUsage();
+		}
+		else if (buffered && !engine.equals("btree"))
+		{
+			System.err.println("--buffered needs the btree engine");
+			printUsage();
+		}
+		else if (buffered && sharingSplits)
+		{
+			System.err.println("--buffered and --bstar can not be combined");
+			printUsage();
+		}
+		else if (appendFileName != null && inMemory)
+		{
+			System.err.println("--append and --in-memory can not be combined");
+			printUsage();
+		}
+		else if (shardCount > 1 && (appendFileName != null || inMemory))
+		{
+			System.err.println("--shards can not be combined with --append or --in-memory");
+			printUsage();
+		}
+		else if (shardCount > 1 && (engine.equals("table") || engine.equals("lsm")))
+		{
+			System.err.println("--shards only applies to the hash and btree engines");
+			printUsage();
+		}
+		else if (engine.equals("lsm") && (hasTreeIngest || hasTreeLayout || exportBTree))
+		{
+			System.err.println("The lsm engine writes a count store, btree options do not apply");
+			printUsage();
+		}
+		else if (engine.equals("table") && appendFileName != null && (hasTreeLayout || exportBTree))
+		{
+			System.err.println("--append adds to the count table, it can not be exported to a btree");
+			printUsage();
+		}
+
+		if (shardCount > 1L << (2 * kSequenceLength))
+		{
+			System.err.println("There can be at most 4^k shards");
+			printUsage();
+		}
+
+		// get cache size, unless the cache is sized by memory
+		if (useCache && cacheMemory > 0)
+		{
+			getDebugLevel(4, args);
+			return;
+		}
+		else if (cacheMemory > 0)
+		{
+			System.err.println("--cache-mem requires running the program with cache");
+			printUsage();
+		}
+
 		if (useCache)
 		{
 			try
@@ -219,6 +755,202 @@ class GeneBankCreateBTree
 
 	}
 
+	/**
+	 * Handles the optional --options and returns the remaining positional
+	 * arguments
+	 * 
+	 * @param args
+	 *            the command line arguments
+	 * @return the arguments that are not options
+	 */
+	private static String[] parseOptions(String[] args)
+	{
+		ArrayList<String> positional = new ArrayList<>();
+
+		for (int i = 0; i < args.length; ++i)
+		{
+			String arg = args[i];
+			String name = arg.contains("=") ? arg.substring(0, arg.indexOf('=')) : arg;
+
+			if (!arg.startsWith("--"))
+			{
+				positional.add(arg);
+			}
+			else if (name.equals("--compress"))
+			{
+				compress = true;
+				hasTreeLayout = true;
+			}
+			else if (name.equals("--direct"))
+			{
+				direct = true;
+				hasTreeLayout = true;
+			}
+			else if (name.equals("--in-memory"))
+			{
+				inMemory = true;
+				hasTreeIngest = true;
+			}
+			else if (name.equals("--bplus"))
+			{
+				bPlusTree = true;
+				hasTreeIngest = true;
+			}
+			else if (name.equals("--bstar"))
+			{
+				sharingSplits = true;
+				hasTreeIngest = true;
+			}
+			else if (name.equals("--buffered"))
+			{
+				buffered = true;
+				hasTreeIngest = true;
+			}
+			else if (name.equals("--append"))
+			{
+				appendFileName = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+			}
+			else if (name.equals("--export-btree"))
+			{
+				exportBTree = true;
+			}
+			else if (name.equals("--engine"))
+			{
+				engine = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				if (!engine.equals("auto") && !engine.equals("btree") && !engine.equals("table")
+						&& !engine.equals("hash") && !engine.equals("lsm"))
+				{
+					System.err.println("Engine must be auto, btree, table, hash or lsm");
+					printUsage();
+				}
+			}
+			else if (name.equals("--shards"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				try
+				{
+					shardCount = Integer.parseInt(value);
+					if (shardCount < 1 || Integer.bitCount(shardCount) != 1)
+						throw new NumberFormatException();
+					hasTreeIngest |= shardCount > 1; // sharded trees, unless the hash engine is asked for
+				}
+				catch (NumberFormatException e)
+				{
+					System.err.println("Shard count must be a power of two");
+					printUsage();
+				}
+			}
+			else if (name.equals("--cache-mode"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				try
+				{
+					cacheMode = CacheOptions.parseMode(value);
+					hasTreeIngest = true;
+				}
+				catch (IllegalArgumentException e)
+				{
+					System.err.println("Cache mode must be list or slab");
+					printUsage();
+				}
+			}
+			else if (name.equals("--write-back"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				try
+				{
+					writeBackQueueSize = Integer.parseInt(value);
+					if (writeBackQueueSize < 1)
+						throw new NumberFormatException();
+					hasTreeIngest = true;
+				}
+				catch (NumberFormatException e)
+				{
+					System.err.println("Write back queue size must be at least 1");
+					printUsage();
+				}
+			}
+			else if (name.equals("--cache-policy"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				try
+				{
+					cachePolicy = CacheOptions.parsePolicy(value);
+					hasTreeIngest = true;
+				}
+				catch (IllegalArgumentException e)
+				{
+					System.err.println("Cache policy must be lru, 2q, clockpro or tinylfu");
+					printUsage();
+				}
+			}
+			else if (name.equals("--cache-mem"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				try
+				{
+					cacheMemory = ByteSize.parse(value);
+					if (cacheMemory <= 0)
+						throw new NumberFormatException();
+					hasTreeIngest = true;
+				}
+				catch (NumberFormatException e)
+				{
+					System.err.println("Cache memory must be a byte size greater than zero, such as 512m or 2g");
+					printUsage();
+				}
+			}
+			else if (name.equals("--block-size"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				try
+				{
+					long size = ByteSize.parse(value);
+					if (size < NodeFormat.MIN_BLOCK_SIZE || size > NodeFormat.MAX_BLOCK_SIZE || Long.bitCount(size) != 1)
+						throw new NumberFormatException();
+					blockSize = (int) size;
+					hasTreeLayout = true;
+				}
+				catch (NumberFormatException e)
+				{
+					System.err.println("Block size must be a power of two from 512 to 1g, such as 4096, 16k or 64k");
+					printUsage();
+				}
+			}
+			else
+			{
+				System.err.println("Unknown option " + arg);
+				printUsage();
+			}
+		}
+
+		if (direct && blockSize == 0)
+		{ // direct I/O needs block aligned nodes
+			blockSize = NodeFormat.DEFAULT_PAGE_SIZE;
+		}
+
+		return positional.toArray(new String[0]);
+	}
+
+	/**
+	 * Returns the value of an option given as a separate argument
+	 * 
+	 * @param args
+	 *            the command line arguments
+	 * @param index
+	 *            index of the value
+	 * @return the value
+	 */
+	private static String nextArg(String[] args, int index)
+	{
+		if (index >= args.length)
+		{
+			System.err.println("Option " + args[index - 1] + " requires a value");
+			printUsage();
+		}
+		return args[index];
+	}
+
 	/**
 	 * Assigns the proper debug level to the debugLevel static field
 	 * 
@@ -258,6 +990,48 @@ class GeneBankCreateBTree
 	{
 		System.err.println(
 				"Usage: java GeneBankCreateBTree <0/1(no/with Cache)> <degree> <gbk file> <sequence length> [<cache size>] [<debug level>]");
+		System.err.println("Options:");
+		System.err.println("  --compress          store nodes as compressed pages (delta encoded keys, varint counts)");
+		System.err.println("  --block-size=<size> align nodes to blocks of size bytes (eg 4k, 16k, 64k), degree 0");
+		System.err.println("                      uses the largest degree that fits a block");
+		System.err.println("  --direct            bypass the OS page cache with direct I/O, nodes are cached in an");
+		System.err.println("                      off-heap buffer pool of <cache size> pages (implies --block-size=4k)");
+		System.err.println("  --in-memory         build the whole tree in memory and write it in one sequential pass");
+		System.err.println("                      at the end, the cache is not used");
+		System.err.println("  --bplus             build a B+ tree: every sequence is kept in a leaf, inner nodes only");
+		System.err.println("                      hold separator keys and leaves are linked for in order scans");
+		System.err.println("  --bstar             move keys of a full node to a sibling with room, and split two full");
+		System.err.println("                      nodes into three, so nodes are about 88% full instead of 69%");
+		System.err.println("  --buffered          keep buffers of pending counts in inner nodes and move them down");
+		System.err.println("                      in batches, fewer node writes per sequence (not with --compress,");
+		System.err.println("                      --bplus or --bstar)");
+		System.err.println("  --append=<file>     add the sequences to an existing btree file, count table or count");
+		System.err.println("                      store instead of creating one, with the engine that wrote it; the");
+		System.err.println("                      sequence length, and for a btree file the degree and node format");
+		System.err.println("                      options, must match (not sharded trees or frozen indexes)");
+		System.err.println("  --engine=<e>        btree: add sequences to the btree one by one");
+		System.err.println("                      table: count in a table of every possible sequence (k <= 13)");
+		System.err.println("                      hash: count in an off-heap hash table, then build the btree");
+		System.err.println("                      lsm: count in a log structured merge tree of sorted runs,");
+		System.err.println("                      written sequentially and merged in the background");
+		System.err.println("                      auto (default): the engine of the --append file, else table up to");
+		System.err.println("                      k = 13, btree above or if any of --in-memory, --bplus, --bstar,");
+		System.err.println("                      --buffered, --shards or any of the cache options below is given");
+		System.err.println("  --shards=<n>        split the keys in n shards by key prefix, each on its own thread");
+		System.err.println("                      (a power of two, default 1, n = 4^p splits on the first p bases)");
+		System.err.println("                      hash: a hash table per shard, then one btree is built");
+		System.err.println("                      btree: a btree file per shard and a manifest as the output file,");
+		System.err.println("                      which GeneBankSearch routes each query by");
+		System.err.println("  --export-btree      write the counts of the table engine as a btree file instead of");
+		System.err.println("                      a table file, implied by --compress, --block-size and --direct");
+		System.err.println("  --cache-mode=<mode> list: cache node objects on the heap (default)");
+		System.err.println("                      slab: cache encoded pages in a preallocated off-heap buffer pool");
+		System.err.println("  --cache-policy=<p>  node eviction policy of the list cache: lru (default), 2q,");
+		System.err.println("                      clockpro or tinylfu, the last three resist scans of cold nodes");
+		System.err.println("  --write-back=<n>    write nodes evicted from the list cache on a background thread,");
+		System.err.println("                      sorted and coalesced, queueing at most n nodes");
+		System.err.println("  --cache-mem=<size>  size the cache by memory (eg 512m, 2g) instead of node count, the");
+		System.err.println("                      <cache size> argument is then left out");
 		System.exit(-1);
 	}
 
@@ -0,0 +1,123 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Converts a BTree file into a FrozenIndex file for read-only searching with
+ * GeneBankSearch
+ */
+public class GeneBankFreeze
+{
+	// node cache while reading the tree, every node is read once
+	private static final int CACHE_SIZE = 64;
+
+	public static void main(String[] args)
+	{
+		int errorBound = 0;
+		boolean isEytzinger = false;
+		ArrayList<String> positional = new ArrayList<>();
+		for (String arg : args)
+		{
+			if (!arg.startsWith("--"))
+			{
+				positional.add(arg);
+			}
+			else if (arg.equals("--eytzinger"))
+			{
+				isEytzinger = true;
+			}
+			else if (arg.equals("--learned"))
+			{
+				errorBound = FrozenIndex.DEFAULT_ERROR_BOUND;
+			}
+			else if (arg.startsWith("--learned="))
+			{
+				try
+				{
+					errorBound = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+					if (errorBound < 1)
+						throw new NumberFormatException();
+				}
+				catch (NumberFormatException e)
+				{
+					System.err.println("The error bound of the learned model must be at least 1");
+					printUsage();
+				}
+			}
+			else
+			{
+				System.err.println("Unknown option: " + arg);
+				printUsage();
+			}
+		}
+
+		if (positional.size() < 1 || positional.size() > 2)
+		{
+			printUsage();
+		}
+
+		String btreeFileName = positional.get(0);
+		String frozenFileName = positional.size() == 2 ? positional.get(1) : btreeFileName + ".frozen";
+
+		if (FrozenIndex.isFrozenIndexFile(btreeFileName) || CountStore.isCountStoreFile(btreeFileName)
+				|| ShardedBTree.isShardedBTreeFile(btreeFileName))
+		{
+			System.err.println(btreeFileName + " is not a btree file or count table, only those can be frozen");
+			printUsage();
+		}
+
+		// a count table is read in order of key like a tree
+		boolean isTable = CountTable.isCountTableFile(btreeFileName);
+		BTree tree = null;
+		CountTable table = null;
+		try
+		{
+			if (isTable)
+				table = CountTable.open(btreeFileName);
+			else
+				tree = new BTree(BTreeFile.openBTreeFile(btreeFileName, BTree.METADATA_BYTE_SIZE), CACHE_SIZE);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Critical Error while opening " + (isTable ? "count table" : "BTree") + " file: "
+					+ btreeFileName);
+			System.err.println(e.getMessage());
+			printUsage();
+		}
+
+		try
+		{
+			long count = isTable
+					? FrozenIndex.freeze(table, table.getSequenceLength(), frozenFileName, errorBound, isEytzinger)
+					: FrozenIndex.freeze(tree, frozenFileName, errorBound, isEytzinger);
+			System.err.println("froze " + count + " sequences: " + ByteSize.toString(new File(btreeFileName).length())
+					+ " -> " + ByteSize.toString(new File(frozenFileName).length()));
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to write frozen index file: " + frozenFileName);
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+
+		if (isTable)
+			table.close();
+		else
+			tree.close();
+	}
+
+	/**
+	 * Prints correct program usage and exits
+	 */
+	private static void printUsage()
+	{
+		System.err.println("Usage: java GeneBankFreeze <btree file> [<frozen file>] [--eytzinger] [--learned[=<error>]]");
+		System.err.println("  writes a compact read-only index of the btree for GeneBankSearch, by default to");
+		System.err.println("  <btree file>.frozen, the btree file may also be a count table");
+		System.err.println("  --eytzinger          store the block fences in Eytzinger order instead of a fence tree");
+		System.err.println("  --learned[=<error>]  also store a learned model that predicts the position of a key");
+		System.err.println("                       within <error> keys (default " + FrozenIndex.DEFAULT_ERROR_BOUND
+				+ ") and search with it");
+		System.exit(-1);
+	}
+}
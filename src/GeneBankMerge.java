@@ -0,0 +1,159 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Merges several BTree files of the same sequence length into one, adding up
+ * the frequencies of sequences found in more than one of them. The trees are
+ * read in order side by side and the merged tree is built bottom up, so memory
+ * grows with the amount of trees and not with their keys
+ */
+public class GeneBankMerge
+{
+	// node cache while reading a tree, every node is read once per pass
+	private static final int CACHE_SIZE = 64;
+
+	public static void main(String[] args)
+	{
+		ArrayList<String> positional = new ArrayList<>();
+		for (String arg : args)
+		{
+			if (!arg.startsWith("--"))
+			{
+				positional.add(arg);
+			}
+			else
+			{
+				System.err.println("Unknown option: " + arg);
+				printUsage();
+			}
+		}
+
+		if (positional.size() < 2)
+		{
+			printUsage();
+		}
+
+		String mergedFileName = positional.get(0);
+		ArrayList<BTree> trees = new ArrayList<>();
+		ArrayList<CountTable> tables = new ArrayList<>();
+		ArrayList<Iterable<TreeObject>> sources = new ArrayList<>(); // trees and tables in argument order
+		int sequenceLength = 0;
+		long inputBytes = 0;
+		for (String btreeFileName : positional.subList(1, positional.size()))
+		{
+			if (new File(btreeFileName).getAbsoluteFile().equals(new File(mergedFileName).getAbsoluteFile()))
+			{
+				System.err.println("The merged file can not be one of the trees: " + mergedFileName);
+				printUsage();
+			}
+			if (CountStore.isCountStoreFile(btreeFileName) || ShardedBTree.isShardedBTreeFile(btreeFileName)
+					|| FrozenIndex.isFrozenIndexFile(btreeFileName))
+			{
+				System.err.println(btreeFileName + " is not a btree file or count table, build the inputs with"
+						+ " --engine=btree, --engine=table or --export-btree");
+				printUsage();
+			}
+
+			// a count table is read in order of key like a tree
+			boolean isTable = CountTable.isCountTableFile(btreeFileName);
+			int length = 0;
+			try
+			{
+				if (isTable)
+				{
+					CountTable table = CountTable.open(btreeFileName);
+					tables.add(table);
+					sources.add(table);
+					length = table.getSequenceLength();
+				}
+				else
+				{
+					BTreeFile file = BTreeFile.openBTreeFile(btreeFileName, BTree.METADATA_BYTE_SIZE);
+					BTree tree = new BTree(file, CACHE_SIZE);
+					trees.add(tree);
+					sources.add(tree);
+					length = tree.getSequenceLength();
+				}
+				inputBytes += new File(btreeFileName).length();
+			}
+			catch (IOException e)
+			{
+				System.err.println("Critical Error while opening " + (isTable ? "count table" : "BTree") + " file: "
+						+ btreeFileName);
+				System.err.println(e.getMessage());
+				printUsage();
+			}
+
+			if (sequenceLength != 0 && length != sequenceLength)
+			{
+				System.err.println(btreeFileName + " holds sequences of length " + length + ", not "
+						+ sequenceLength);
+				printUsage();
+			}
+			sequenceLength = length;
+		}
+
+		// the merged tree takes the node layout of the first tree, as a classic tree
+		NodeFormat format = getDefaultFormat();
+		if (!trees.isEmpty())
+		{
+			NodeFormat first = trees.get(0).getFormat();
+			int flags = first.getFlags() & ~(NodeFormat.FLAG_BPLUS_TREE | NodeFormat.FLAG_BUFFERED);
+			format = NodeFormat.fromMetaData(first.getDegree(), flags, first.getPageSize());
+		}
+
+		try
+		{
+			BTree merged = BTreeBulkLoader.merge(sources, sequenceLength,
+					BTreeFile.createNewBTreeFile(mergedFileName, format), format);
+			merged.close();
+			System.err.println("merged " + sources.size() + " files: " + ByteSize.toString(inputBytes) + " -> "
+					+ ByteSize.toString(new File(mergedFileName).length()));
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to write merged BTree file: " + mergedFileName);
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+
+		for (BTree tree : trees)
+		{
+			tree.close();
+		}
+		for (CountTable table : tables)
+		{
+			table.close();
+		}
+	}
+
+	/**
+	 * @return the fixed format of the largest degree whose nodes fit the default
+	 *         page size, as GeneBankCreateBTree uses for degree 0
+	 */
+	private static NodeFormat getDefaultFormat()
+	{
+		int degree = 2;
+		while (BTreeNode.getByteSize(degree + 1) < NodeFormat.DEFAULT_PAGE_SIZE)
+			degree++;
+		return NodeFormat.fixed(degree);
+	}
+
+	/**
+	 * Prints correct program usage and exits
+	 */
+	private static void printUsage()
+	{
+		System.err.println("Usage: java GeneBankMerge <merged btree file> <btree file>...");
+		System.err.println("  writes one btree with the sequences of all of the btree files and the sum of their");
+		System.err.println("  frequencies, in the node format of the first btree file. Count tables of the table");
+		System.err.println("  engine are merged too, a merge of only tables gets the format of degree 0");
+		System.exit(-1);
+	}
+}
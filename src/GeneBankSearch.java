@@ -1,6 +1,8 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
 
 /**
  * 
@@ -18,6 +20,17 @@ public class GeneBankSearch
 	private static String btreeFileName;
 	private static String queryFileName;
 	private static boolean debug;
+	private static boolean direct;
+	private static CacheOptions.Mode cacheMode = CacheOptions.Mode.LIST;
+	private static CacheOptions.Policy cachePolicy = CacheOptions.Policy.LRU;
+	private static int writeBackQueueSize = 0; // 0 to write evicted nodes synchronously
+	private static long cacheMemory = 0; // 0 if the cache is sized in nodes
+	private static int pinLevels = 1; // only the root
+	private static long pinMemory = 0; // 0 if pinning is not limited by memory
+	private static int batchSize = 1; // queries in flight at once
+	private static int ioThreadCount = 4;
+	private static boolean keepHotSet;
+	private static String hotSetFileName; // null for the default next to the btree file
 
 	public static void main(String[] args) throws IOException
 	{
@@ -36,27 +49,40 @@ public class GeneBankSearch
 			printUsage();
 		}
 
+		// a count table, frozen index or count store is searched with a lookup per query
+		if (CountTable.isCountTableFile(btreeFileName) || FrozenIndex.isFrozenIndexFile(btreeFileName)
+				|| CountStore.isCountStoreFile(btreeFileName))
+		{
+			searchIndex(qFile);
+			return;
+		}
+
+		// a sharded tree is searched on the tree of each query's prefix
+		if (ShardedBTree.isShardedBTreeFile(btreeFileName))
+		{
+			searchShards(qFile);
+			return;
+		}
+
 		// instantiate a BTree (add constructor later)
 		BTree tree = null;
 		try
 		{
-			BTreeFile file = BTreeFile.openBTreeFile(btreeFileName, BTree.METADATA_BYTE_SIZE);
-			tree = null;
-			if (useCache)
-			{
-				tree = new BTree(file, cacheSize);
-			}
-			else
-			{
-				tree = new BTree(file);
-			}
+			BTreeFile file = BTreeFile.openBTreeFile(btreeFileName, BTree.METADATA_BYTE_SIZE, direct);
+			tree = useCache ? new BTree(file, getCacheOptions()) : new BTree(file);
 		}
 		catch (IOException e)
 		{
 			System.err.println("Critical Error while creating BTree file: " + btreeFileName);
+			System.err.println(e.getMessage());
 			printUsage();
 		}
 
+		if (pinLevels > 1)
+		{
+			tree.pinTopLevels(pinLevels, pinMemory);
+		}
+
 		// ensure that the sequence length matches on both
 		if (qFile.getSequenceLength() != tree.getSequenceLength())
 		{
@@ -67,18 +93,199 @@ public class GeneBankSearch
 		// for each query in file, search BTree for query and print TreeObject into a
 		// file
 		// o/p file name is gbkfile_queryfilename_result
+		if (batchSize > 1)
+		{
+			searchInBatches(tree, qFile);
+		}
+		else
+		{
+			for (String stringSearchSequence : qFile)
+			{
+				long longSearchSequence = DNAUtil.convertStringToLong(stringSearchSequence,
+						stringSearchSequence.length());
+				TreeObject tObj = tree.search(longSearchSequence);
+				if (tObj != null)
+				{
+					System.out.println(stringSearchSequence.toLowerCase() + ": " + tObj.getFrequency());
+				}
+			}
+		}
+
+		if (tree.getPinnedReport() != null)
+		{
+			System.err.println(tree.getPinnedReport());
+		}
+		if (tree.getCacheReport() != null)
+		{
+			System.err.println(tree.getCacheReport());
+		}
+
+		tree.close();
+
+	}
+
+	/**
+	 * Searches the queries in a CountTable, FrozenIndex or CountStore file, the
+	 * cache and tree options do not apply
+	 * 
+	 * @param qFile
+	 *            the queries
+	 */
+	private static void searchIndex(QueryFile qFile)
+	{
+		FrequencyIndex table = null;
+		try
+		{
+			if (CountTable.isCountTableFile(btreeFileName))
+				table = CountTable.open(btreeFileName);
+			else if (CountStore.isCountStoreFile(btreeFileName))
+				table = CountStore.open(btreeFileName);
+			else
+				table = FrozenIndex.open(btreeFileName);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Critical Error while opening index file: " + btreeFileName);
+			System.err.println(e.getMessage());
+			printUsage();
+		}
+
+		if (qFile.getSequenceLength() != table.getSequenceLength())
+		{
+			System.err.println("Non-matching sequence lengths. Exiting..");
+			System.exit(-1);
+		}
+
 		for (String stringSearchSequence : qFile)
 		{
 			long longSearchSequence = DNAUtil.convertStringToLong(stringSearchSequence, stringSearchSequence.length());
-			TreeObject tObj = tree.search(longSearchSequence);
-			if (tObj != null)
+			int frequency = table.getFrequency(longSearchSequence);
+			if (frequency != 0)
 			{
-				System.out.println(stringSearchSequence.toLowerCase() + ": " + tObj.getFrequency());
+				System.out.println(stringSearchSequence.toLowerCase() + ": " + frequency);
+			}
+		}
+
+		table.close();
+	}
+
+	/**
+	 * Searches the queries in a ShardedBTree. With batches, the queries of a
+	 * batch are grouped by shard and up to ioThreadCount shards are searched at
+	 * once
+	 * 
+	 * @param qFile
+	 *            the queries
+	 */
+	private static void searchShards(QueryFile qFile)
+	{
+		ShardedBTree tree = null;
+		try
+		{
+			tree = ShardedBTree.open(btreeFileName, direct, getCacheOptions());
+		}
+		catch (IOException e)
+		{
+			System.err.println("Critical Error while opening sharded BTree files: " + btreeFileName);
+			System.err.println(e.getMessage());
+			printUsage();
+		}
+
+		if (qFile.getSequenceLength() != tree.getSequenceLength())
+		{
+			System.err.println("Non-matching sequence lengths. Exiting..");
+			System.exit(-1);
+		}
+
+		ArrayList<String> batch = new ArrayList<>(batchSize);
+		Iterator<String> queries = qFile.iterator();
+		while (queries.hasNext())
+		{
+			batch.clear();
+			while (queries.hasNext() && batch.size() < batchSize)
+			{
+				batch.add(queries.next());
+			}
+
+			long[] keys = new long[batch.size()];
+			for (int i = 0; i < keys.length; ++i)
+			{
+				keys[i] = DNAUtil.convertStringToLong(batch.get(i), batch.get(i).length());
+			}
+
+			TreeObject[] found = keys.length == 1 ? new TreeObject[] { tree.search(keys[0]) }
+					: tree.search(keys, ioThreadCount);
+			for (int i = 0; i < found.length; ++i)
+			{
+				if (found[i] != null)
+				{
+					System.out.println(batch.get(i).toLowerCase() + ": " + found[i].getFrequency());
+				}
 			}
 		}
 
 		tree.close();
+	}
 
+	/**
+	 * @return the cache options of the arguments, null if running without cache
+	 */
+	private static CacheOptions getCacheOptions()
+	{
+		if (!useCache)
+		{
+			return null;
+		}
+
+		CacheOptions options = cacheMemory > 0 ? CacheOptions.withMemoryBudget(cacheMemory)
+				: new CacheOptions(cacheSize);
+		options.setMode(cacheMode);
+		options.setPolicy(cachePolicy);
+		options.setWriteBackQueueSize(writeBackQueueSize);
+		if (keepHotSet)
+		{
+			options.setHotSetFile(hotSetFileName != null ? hotSetFileName : btreeFileName + ".hot");
+		}
+		return options;
+	}
+
+	/**
+	 * Searches the queries batchSize at a time, interleaving the descents of a
+	 * batch so their node reads overlap. Prints the results in query order
+	 * 
+	 * @param tree
+	 *            the tree to search
+	 * @param qFile
+	 *            the queries
+	 */
+	private static void searchInBatches(BTree tree, QueryFile qFile)
+	{
+		ArrayList<String> batch = new ArrayList<>(batchSize);
+		Iterator<String> queries = qFile.iterator();
+
+		while (queries.hasNext())
+		{
+			batch.clear();
+			while (queries.hasNext() && batch.size() < batchSize)
+			{
+				batch.add(queries.next());
+			}
+
+			long[] keys = new long[batch.size()];
+			for (int i = 0; i < keys.length; ++i)
+			{
+				keys[i] = DNAUtil.convertStringToLong(batch.get(i), batch.get(i).length());
+			}
+
+			TreeObject[] found = tree.search(keys, ioThreadCount);
+			for (int i = 0; i < found.length; ++i)
+			{
+				if (found[i] != null)
+				{
+					System.out.println(batch.get(i).toLowerCase() + ": " + found[i].getFrequency());
+				}
+			}
+		}
 	}
 
 	/**
@@ -89,6 +296,8 @@ public class GeneBankSearch
 	 */
 	private static void checkCommandLineArgs(String[] args)
 	{
+		args = parseOptions(args);
+
 		if (args.length < 3 || args.length > 5)
 		{
 			printUsage();
@@ -158,11 +367,35 @@ public class GeneBankSearch
 			}
 		}
 
+		/*
+		 * If the cache is sized by memory there is no cache size argument, argument 4
+		 * if present must be the debug level
+		 */
+		if (keepHotSet && !useCache)
+		{
+			System.err.println("--hot-set requires running the program with cache");
+			printUsage();
+		}
+
+		if (cacheMemory > 0)
+		{
+			if (!useCache)
+			{
+				System.err.println("--cache-mem requires running the program with cache");
+				printUsage();
+			}
+			else if (args.length == 5 || (args.length == 4 && !args[3].equals("0")))
+			{
+				System.err.println("Debug level by default is 0 and if present can only be 0!");
+				printUsage();
+			}
+		}
+
 		/*
 		 * If useCache == true, then argument 3 must be the cache size, and argument 5
 		 * if present must be the debug level
 		 */
-		if (useCache == true)
+		else if (useCache == true)
 		{
 			// if no debug level
 			if (args.length == 4 && isAnInteger(args[3]))
@@ -206,6 +439,161 @@ public class GeneBankSearch
 		}
 	}
 
+	/**
+	 * Handles the optional --options and returns the remaining positional
+	 * arguments
+	 * 
+	 * @param args
+	 *            the command line arguments
+	 * @return the arguments that are not options
+	 */
+	private static String[] parseOptions(String[] args)
+	{
+		ArrayList<String> positional = new ArrayList<>();
+
+		for (int i = 0; i < args.length; ++i)
+		{
+			String arg = args[i];
+			String name = arg.contains("=") ? arg.substring(0, arg.indexOf('=')) : arg;
+
+			if (!arg.startsWith("--"))
+			{
+				positional.add(arg);
+			}
+			else if (name.equals("--direct"))
+			{
+				direct = true;
+			}
+			else if (name.equals("--cache-mem"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				try
+				{
+					cacheMemory = ByteSize.parse(value);
+					if (cacheMemory <= 0)
+						throw new NumberFormatException();
+				}
+				catch (NumberFormatException e)
+				{
+					System.err.println("Cache memory must be a byte size greater than zero, such as 512m or 2g");
+					printUsage();
+				}
+			}
+			else if (name.equals("--batch") || name.equals("--io-threads"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				if (!isAnInteger(value) || Integer.parseInt(value) < 1)
+				{
+					System.err.println(name + " must be at least 1");
+					printUsage();
+				}
+				if (name.equals("--batch"))
+					batchSize = Integer.parseInt(value);
+				else
+					ioThreadCount = Integer.parseInt(value);
+			}
+			else if (name.equals("--hot-set"))
+			{
+				keepHotSet = true;
+				if (arg.contains("="))
+				{
+					hotSetFileName = arg.substring(arg.indexOf('=') + 1);
+				}
+			}
+			else if (name.equals("--pin-levels"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				if (!isAnInteger(value) || Integer.parseInt(value) < 1)
+				{
+					System.err.println("Pinned levels must be at least 1");
+					printUsage();
+				}
+				pinLevels = Integer.parseInt(value);
+			}
+			else if (name.equals("--pin-mem"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				try
+				{
+					pinMemory = ByteSize.parse(value);
+					if (pinMemory <= 0)
+						throw new NumberFormatException();
+				}
+				catch (NumberFormatException e)
+				{
+					System.err.println("Pinned memory must be a byte size greater than zero, such as 64m");
+					printUsage();
+				}
+				if (pinLevels == 1)
+				{
+					pinLevels = Integer.MAX_VALUE; // as many levels as fit
+				}
+			}
+			else if (name.equals("--cache-mode"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				try
+				{
+					cacheMode = CacheOptions.parseMode(value);
+				}
+				catch (IllegalArgumentException e)
+				{
+					System.err.println("Cache mode must be list or slab");
+					printUsage();
+				}
+			}
+			else if (name.equals("--write-back"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				if (!isAnInteger(value) || Integer.parseInt(value) < 1)
+				{
+					System.err.println("Write back queue size must be at least 1");
+					printUsage();
+				}
+				writeBackQueueSize = Integer.parseInt(value);
+			}
+			else if (name.equals("--cache-policy"))
+			{
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : nextArg(args, ++i);
+				try
+				{
+					cachePolicy = CacheOptions.parsePolicy(value);
+				}
+				catch (IllegalArgumentException e)
+				{
+					System.err.println("Cache policy must be lru, 2q, clockpro or tinylfu");
+					printUsage();
+				}
+			}
+			else
+			{
+				System.err.println("Unknown option " + arg);
+				printUsage();
+			}
+		}
+
+		return positional.toArray(new String[0]);
+	}
+
+	/**
+	 * Returns the value of an option given as a separate argument
+	 * 
+	 * @param args
+	 *            the command line arguments
+	 * @param index
+	 *            index of the value
+	 * @return the value
+	 */
+	private static String nextArg(String[] args, int index)
+	{
+		if (index >= args.length)
+		{
+			System.err.println("Option " + args[index - 1] + " requires a value");
+			printUsage();
+		}
+		return args[index];
+	}
+
 	/**
 	 * Prints an error message and exits
 	 */
@@ -213,6 +601,27 @@ public class GeneBankSearch
 	{
 		System.err.println("java GeneBankSearch <0/1(no/with Cache)> <btree file>"
 				+ " <query file> [<cache size>] [<debug level>]");
+		System.err.println("Options:");
+		System.err.println("  --direct             bypass the OS page cache with direct I/O, nodes are cached in an");
+		System.err.println("                       off-heap buffer pool of <cache size> pages (block aligned trees only)");
+		System.err.println("  --cache-mode=<mode>  list: cache node objects on the heap (default)");
+		System.err.println("                       slab: cache encoded pages in a preallocated off-heap buffer pool");
+		System.err.println("  --cache-policy=<p>   node eviction policy of the list cache: lru (default), 2q,");
+		System.err.println("                       clockpro or tinylfu, the last three resist scans of cold nodes");
+		System.err.println("  --write-back=<n>     write nodes evicted from the list cache on a background thread,");
+		System.err.println("                       sorted and coalesced, queueing at most n nodes");
+		System.err.println("  --cache-mem=<size>   size the cache by memory (eg 512m, 2g) instead of node count, the");
+		System.err.println("                       <cache size> argument is then left out");
+		System.err.println("  --batch=<n>          search n queries at a time, interleaving their descents so the");
+		System.err.println("                       node reads of a batch are done concurrently");
+		System.err.println("  --io-threads=<n>     how many node reads a batch may have in progress (default 4), or");
+		System.err.println("                       how many shards of a sharded btree are searched at once");
+		System.err.println("  --hot-set[=<file>]   save the locations of cached nodes on exit and prefetch them on the");
+		System.err.println("                       next run (default file: <btree file>.hot)");
+		System.err.println("  --pin-levels=<n>     keep the top n levels of the tree (counting the root) in memory,");
+		System.err.println("                       the cache then only holds deeper levels");
+		System.err.println("  --pin-mem=<size>     pin top levels until they take up size bytes, the last level may");
+		System.err.println("                       be pinned in part");
 		System.exit(-1);
 	}
 
@@ -0,0 +1,84 @@
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several iterators, each returning keys in ascending order, into one
+ * iterator in ascending order of key. A key returned by more than one of them
+ * is returned once, with the sum of its frequencies. Only the next object of
+ * each iterator is held, in a heap ordered by key.
+ */
+public class MergingIterator implements Iterator<TreeObject>
+{
+	// fields
+	private PriorityQueue<Source> heap;
+
+	// constructor
+
+	/**
+	 * Creates an iterator over the keys of all of the given iterators
+	 *
+	 * @param sources
+	 *            iterators returning keys in ascending order, each key at most
+	 *            once
+	 */
+	public MergingIterator(List<? extends Iterator<TreeObject>> sources)
+	{
+		heap = new PriorityQueue<>(Math.max(1, sources.size()),
+				(a, b) -> Long.compare(a.next.getKey(), b.next.getKey()));
+		for (Iterator<TreeObject> it : sources)
+		{
+			if (it.hasNext())
+			{
+				heap.add(new Source(it));
+			}
+		}
+	}
+
+	// public methods
+
+	@Override
+	public boolean hasNext()
+	{
+		return !heap.isEmpty();
+	}
+
+	@Override
+	public TreeObject next()
+	{
+		if (heap.isEmpty())
+		{
+			throw new NoSuchElementException();
+		}
+
+		long key = heap.peek().next.getKey();
+		int frequency = 0;
+		while (!heap.isEmpty() && heap.peek().next.getKey() == key)
+		{
+			Source source = heap.poll();
+			frequency += source.next.getFrequency();
+			if (source.it.hasNext())
+			{
+				source.next = source.it.next();
+				heap.add(source);
+			}
+		}
+		return new TreeObject(key, frequency);
+	}
+
+	/**
+	 * An iterator and the object it returned last, which is not merged yet
+	 */
+	private static class Source
+	{
+		Iterator<TreeObject> it;
+		TreeObject next;
+
+		Source(Iterator<TreeObject> it)
+		{
+			this.it = it;
+			next = it.next();
+		}
+	}
+}
@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Writes nodes evicted from the node cache to a BTreeFile on a background
+ * thread. Nodes are encoded when they are queued, and a node queued again
+ * before it was written replaces its earlier data. The flusher thread takes the
+ * whole queue at once and writes it in order of location, nodes at
+ * consecutive locations in a single write. The thread queueing nodes only
+ * blocks while the queue is full.
+ * 
+ * Until a queued node is written its data must be read with getPending, the
+ * file still holds the older data.
+ */
+public class NodeFlusher
+{
+	// most consecutive nodes written at once
+	private static final int MAX_RUN_LENGTH = 64;
+
+	// fields
+	private BTreeFile file;
+	private int capacity;
+	private HashMap<Integer, byte[]> pending = new HashMap<>(); // queued nodes
+	private HashMap<Integer, byte[]> writing; // nodes being written, null when idle
+	private boolean isClosed;
+	private Thread thread;
+	private ByteBuffer buffer;
+	private long writtenCount;
+	private long writeCount;
+
+	// constructor
+
+	/**
+	 * Creates a flusher and starts its thread
+	 * 
+	 * @param file
+	 *            the file nodes are written to
+	 * @param capacity
+	 *            how many nodes can be queued before queueing blocks. As many
+	 *            more may be in the middle of being written
+	 */
+	public NodeFlusher(BTreeFile file, int capacity)
+	{
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("Write back queue size must be greater than zero");
+		}
+
+		this.file = file;
+		this.capacity = capacity;
+		buffer = file.allocateAlignedBuffer(file.getNodeDataLength() * Math.min(capacity, MAX_RUN_LENGTH));
+
+		thread = new Thread(this::run, "btree-flusher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// public methods
+
+	/**
+	 * Queues a node to be written, waiting while the queue is full
+	 * 
+	 * @param node
+	 *            the node to write, its location must be set
+	 */
+	public void enqueue(BTreeNode node)
+	{
+		if (!node.hasLocation())
+		{
+			throw new IllegalArgumentException("Node's location is not set!");
+		}
+
+		byte[] data;
+		try
+		{
+			data = node.getBytes();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to encode node at position " + node.getLocation());
+			return;
+		}
+
+		synchronized (this)
+		{
+			while (pending.size() >= capacity && !pending.containsKey(node.getLocation()))
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			pending.put(node.getLocation(), data);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @param location
+	 *            location of a node
+	 * @return the queued data of the node, null if it is not waiting to be
+	 *         written
+	 */
+	public synchronized byte[] getPending(int location)
+	{
+		byte[] data = pending.get(location);
+		if (data == null && writing != null)
+		{
+			data = writing.get(location);
+		}
+		return data;
+	}
+
+	/**
+	 * Waits until every queued node is written
+	 */
+	public synchronized void flush()
+	{
+		while (!pending.isEmpty() || writing != null)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes every queued node and stops the flusher thread
+	 */
+	public void close()
+	{
+		synchronized (this)
+		{
+			isClosed = true;
+			notifyAll();
+		}
+
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return how many nodes were written
+	 */
+	public synchronized long getWrittenCount()
+	{
+		return writtenCount;
+	}
+
+	/**
+	 * @return how many writes the nodes were written with
+	 */
+	public synchronized long getWriteCount()
+	{
+		return writeCount;
+	}
+
+	// private methods
+
+	/**
+	 * Body of the flusher thread, writes the queue until the flusher is closed
+	 */
+	private void run()
+	{
+		while (true)
+		{
+			synchronized (this)
+			{
+				while (pending.isEmpty() && !isClosed)
+				{
+					try
+					{
+						wait();
+					}
+					catch (InterruptedException e)
+					{
+						// only stopped by close
+					}
+				}
+
+				if (pending.isEmpty())
+				{
+					return;
+				}
+
+				writing = pending;
+				pending = new HashMap<>();
+				notifyAll(); // the queue has room again
+			}
+
+			int runs = write(writing);
+
+			synchronized (this)
+			{
+				writtenCount += writing.size();
+				writeCount += runs;
+				writing = null;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes nodes in order of location, consecutive nodes with one write. Runs
+	 * on the flusher thread while the nodes are still readable with getPending
+	 * 
+	 * @param nodes
+	 *            data of the nodes by location
+	 * @return how many writes were made
+	 */
+	int write(HashMap<Integer, byte[]> nodes)
+	{
+		int[] locations = new int[nodes.size()];
+		int count = 0;
+		for (int location : nodes.keySet())
+		{
+			locations[count++] = location;
+		}
+		Arrays.sort(locations);
+
+		int runs = 0;
+		int maxRunLength = buffer.capacity() / file.getNodeDataLength();
+		for (int start = 0; start < locations.length; ++runs)
+		{
+			int end = start + 1;
+			while (end < locations.length && end - start < maxRunLength
+					&& locations[end] == locations[end - 1] + 1)
+			{
+				end++;
+			}
+
+			buffer.clear();
+			for (int i = start; i < end; ++i)
+			{
+				buffer.put(nodes.get(locations[i]));
+			}
+			buffer.flip();
+
+			try
+			{
+				file.writeNodeData(locations[start], buffer);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Unable to write node data at position " + locations[start]);
+			}
+			start = end;
+		}
+		return runs;
+	}
+}
@@ -0,0 +1,389 @@
+/**
+ * Describes how the nodes of a BTree are laid out on storage. A format is
+ * either the original fixed slot layout, where every key/frequency pair and
+ * child pointer takes up a fixed amount of bytes, or the compressed layout,
+ * where keys are delta encoded varints, frequencies are varints and child
+ * pointers are stored frame-of-reference. Every node of a format takes up
+ * exactly getPageSize() bytes in the BTreeFile.
+ * 
+ * Either layout can be block aligned, in which case the page size is a block
+ * size and the BTree meta data is padded to take up the first block, so every
+ * node starts on a block boundary of the file.
+ *
+ * A format can also be of a B+ tree, where every key/frequency pair is held by
+ * a leaf, inner nodes only hold separator keys without frequencies, so more of
+ * them fit a page, and leaves store links to their neighbours instead of child
+ * pointers.
+ *
+ * A fixed slot format can be buffered: inner nodes hold about the square root
+ * of the keys of a leaf and use the rest of their page as a buffer of pending
+ * messages, each a key and a count to add to it, which are moved down to the
+ * children in batches.
+ */
+public class NodeFormat
+{
+	// format flags, stored in the upper half of the sequence length int of the
+	// BTree meta data. Legacy files have no flags set
+	public static final int FLAG_COMPRESSED = 1;
+	public static final int FLAG_ALIGNED = 2;
+	public static final int FLAG_BPLUS_TREE = 4;
+	public static final int FLAG_BUFFERED = 8;
+
+	// the default amount of bytes a compressed node page takes up
+	public static final int DEFAULT_PAGE_SIZE = 4096;
+
+	// smallest block size an aligned format can use
+	public static final int MIN_BLOCK_SIZE = 512;
+
+	// largest block size an aligned format can use
+	public static final int MAX_BLOCK_SIZE = 1 << 30;
+
+	// smallest page of a compressed B+ tree, so a leaf holds a few keys before it splits
+	public static final int MIN_BPLUS_TREE_PAGE_SIZE = 128;
+
+	// smallest possible compressed entry: key delta=1, frequency=1, child=0
+	private static final int MIN_COMPRESSED_ENTRY_BYTE_SIZE = 2;
+
+	// a buffered message: key=8, count=4, and the message count of a buffer
+	public static final int MESSAGE_BYTE_SIZE = 12;
+	private static final int BUFFER_META_BYTE_SIZE = 4;
+
+	// fields
+	private int degree;
+	private boolean isCompressed;
+	private boolean isAligned;
+	private int pageSize;
+	private boolean isBPlusTree;
+	private boolean isBuffered;
+
+	// constructors
+
+	/**
+	 * Private constructor, use the factory methods fixed or compressed
+	 *
+	 * @param degree
+	 *            degree of the tree
+	 * @param isCompressed
+	 *            if the nodes are stored compressed
+	 * @param isAligned
+	 *            if the nodes are aligned to pageSize blocks
+	 * @param pageSize
+	 *            the amount of bytes a node takes up in file
+	 * @param isBPlusTree
+	 *            if the nodes are of a B+ tree
+	 * @param isBuffered
+	 *            if inner nodes buffer messages
+	 */
+	private NodeFormat(int degree, boolean isCompressed, boolean isAligned, int pageSize, boolean isBPlusTree,
+			boolean isBuffered)
+	{
+		if (degree <= 1)
+		{
+			throw new IllegalArgumentException("Degree must be > 1");
+		}
+
+		this.degree = degree;
+		this.isCompressed = isCompressed;
+		this.isAligned = isAligned;
+		this.pageSize = pageSize;
+		this.isBPlusTree = isBPlusTree;
+		this.isBuffered = isBuffered;
+	}
+
+	// public methods
+
+	/**
+	 * @param degree
+	 *            degree of the tree
+	 * @return the original fixed slot format for the degree
+	 */
+	public static NodeFormat fixed(int degree)
+	{
+		return new NodeFormat(degree, false, false, BTreeNode.getByteSize(degree), false, false);
+	}
+
+	/**
+	 * Creates a block aligned fixed slot format, each node is padded to take up
+	 * exactly one block
+	 * 
+	 * @param degree
+	 *            degree of the tree, 0 to use the largest degree that fits a block
+	 * @param blockSize
+	 *            the block size in bytes, a power of two
+	 * @return the aligned fixed slot format
+	 * @throws IllegalArgumentException
+	 *             if the block size is invalid or a node of the degree does not fit
+	 */
+	public static NodeFormat fixed(int degree, int blockSize)
+	{
+		checkBlockSize(blockSize);
+
+		if (degree == 0)
+		{
+			degree = 2;
+			while (BTreeNode.getByteSize(degree + 1) <= blockSize)
+				degree++;
+		}
+
+		if (BTreeNode.getByteSize(degree) > blockSize)
+		{
+			throw new IllegalArgumentException("A node of degree " + degree + " does not fit a block of " + blockSize
+					+ " bytes");
+		}
+
+		return new NodeFormat(degree, false, true, blockSize, false, false);
+	}
+
+	/**
+	 * Creates a compressed format. The key limit of a compressed node is only an
+	 * upper bound, nodes are considered full once their encoded form would no
+	 * longer fit in the page
+	 *
+	 * @param pageSize
+	 *            the amount of bytes a node takes up in file
+	 * @return the compressed format for the page size
+	 */
+	public static NodeFormat compressed(int pageSize)
+	{
+		if (pageSize < BTreeNode.getByteSize(2))
+		{
+			throw new IllegalArgumentException("Page size must be at least " + BTreeNode.getByteSize(2) + " bytes");
+		}
+
+		int degree = (pageSize / MIN_COMPRESSED_ENTRY_BYTE_SIZE + 1) / 2;
+		return new NodeFormat(degree, true, false, pageSize, false, false);
+	}
+
+	/**
+	 * Creates a block aligned compressed format, each node page is one block
+	 * 
+	 * @param blockSize
+	 *            the block size in bytes, a power of two
+	 * @return the aligned compressed format
+	 * @throws IllegalArgumentException
+	 *             if the block size is invalid
+	 */
+	public static NodeFormat compressedAligned(int blockSize)
+	{
+		checkBlockSize(blockSize);
+		return new NodeFormat(compressed(blockSize).getDegree(), true, true, blockSize, false, false);
+	}
+
+	/**
+	 * Rebuilds a format from the values stored in the BTree meta data
+	 *
+	 * @param degree
+	 *            degree stored in the meta data
+	 * @param flags
+	 *            format flags stored in the meta data
+	 * @param pageSize
+	 *            page size stored in the meta data, ignored if no flags are set
+	 * @return the format the values describe
+	 */
+	public static NodeFormat fromMetaData(int degree, int flags, int pageSize)
+	{
+		if (flags == 0)
+		{
+			return fixed(degree);
+		}
+		return new NodeFormat(degree, (flags & FLAG_COMPRESSED) != 0, (flags & FLAG_ALIGNED) != 0, pageSize,
+				(flags & FLAG_BPLUS_TREE) != 0, (flags & FLAG_BUFFERED) != 0);
+	}
+
+	/**
+	 * @return the same format for the nodes of a B+ tree
+	 * @throws IllegalArgumentException
+	 *             if the format is compressed with a page smaller than
+	 *             MIN_BPLUS_TREE_PAGE_SIZE
+	 */
+	public NodeFormat toBPlusTree()
+	{
+		if (isCompressed && pageSize < MIN_BPLUS_TREE_PAGE_SIZE)
+		{ // a leaf split must leave a key on either side
+			throw new IllegalArgumentException("A compressed B+ tree needs pages of at least "
+					+ MIN_BPLUS_TREE_PAGE_SIZE + " bytes");
+		}
+		if (isBuffered)
+		{
+			throw new IllegalArgumentException("A buffered tree can not be a B+ tree");
+		}
+		return new NodeFormat(degree, isCompressed, isAligned, pageSize, true, false);
+	}
+
+	/**
+	 * @return the same format with message buffers in inner nodes
+	 * @throws IllegalArgumentException
+	 *             if the format is compressed or of a B+ tree, or an inner node
+	 *             page has no room for a buffer of at least two messages per
+	 *             child
+	 */
+	public NodeFormat toBuffered()
+	{
+		if (isCompressed || isBPlusTree)
+		{
+			throw new IllegalArgumentException("Only the fixed slot layout of a classic tree can be buffered");
+		}
+
+		NodeFormat format = new NodeFormat(degree, false, isAligned, pageSize, false, true);
+		if (format.getBufferLimit() < 2 * (format.getKeyLimit(false) + 1))
+		{
+			throw new IllegalArgumentException("Pages of " + pageSize + " bytes are too small for message buffers");
+		}
+		return format;
+	}
+
+	/**
+	 * @return the format flags to be stored in the BTree meta data
+	 */
+	public int getFlags()
+	{
+		return (isCompressed ? FLAG_COMPRESSED : 0) | (isAligned ? FLAG_ALIGNED : 0)
+				| (isBPlusTree ? FLAG_BPLUS_TREE : 0) | (isBuffered ? FLAG_BUFFERED : 0);
+	}
+
+	/**
+	 * @return true if the format is the original 12 byte header format
+	 */
+	public boolean isLegacy()
+	{
+		return getFlags() == 0;
+	}
+
+	/**
+	 * @return the degree of the tree
+	 */
+	public int getDegree()
+	{
+		return degree;
+	}
+
+	/**
+	 * @return the max amount of keys a node can hold
+	 */
+	public int getKeyLimit()
+	{
+		return 2 * degree - 1;
+	}
+
+	/**
+	 * @param isLeaf
+	 *            if the node is a leaf
+	 * @return the max amount of keys a leaf or inner node can hold. Fixed slot
+	 *         inner nodes of a B+ tree hold as many separator keys and child
+	 *         pointers as fit the page, inner nodes of a buffered tree the
+	 *         square root of the keys of a leaf
+	 */
+	public int getKeyLimit(boolean isLeaf)
+	{
+		if (!isLeaf && isBuffered)
+		{ // at least 3 so a split leaves a key on either side
+			return Math.max(3, (int) Math.sqrt(getKeyLimit()));
+		}
+		if (isLeaf || !isBPlusTree || isCompressed)
+		{
+			return getKeyLimit();
+		}
+		return (pageSize - BTreeNode.NODE_META_BYTE_SIZE - 2 * BTreeNode.POINTER_BYTE_SIZE)
+				/ (BTreeNode.KEY_BYTE_SIZE + BTreeNode.POINTER_BYTE_SIZE);
+	}
+
+	/**
+	 * @return how many messages the buffer of an inner node can hold, 0 if the
+	 *         format is not buffered
+	 */
+	public int getBufferLimit()
+	{
+		if (!isBuffered)
+		{
+			return 0;
+		}
+
+		int keyLimit = getKeyLimit(false);
+		int used = BTreeNode.NODE_META_BYTE_SIZE + BTreeNode.POINTER_BYTE_SIZE + keyLimit * BTreeNode.OBJECT_BYTE_SIZE
+				+ (keyLimit + 1) * BTreeNode.POINTER_BYTE_SIZE + BUFFER_META_BYTE_SIZE;
+		return Math.max(0, (pageSize - used) / MESSAGE_BYTE_SIZE);
+	}
+
+	/**
+	 * @return true if nodes are stored in the compressed layout
+	 */
+	public boolean isCompressed()
+	{
+		return isCompressed;
+	}
+
+	/**
+	 * @return true if every node is aligned to a page size block in file
+	 */
+	public boolean isAligned()
+	{
+		return isAligned;
+	}
+
+	/**
+	 * @return true if the nodes are of a B+ tree
+	 */
+	public boolean isBPlusTree()
+	{
+		return isBPlusTree;
+	}
+
+	/**
+	 * @return true if inner nodes buffer messages for their children
+	 */
+	public boolean isBuffered()
+	{
+		return isBuffered;
+	}
+
+	/**
+	 * @return how many bytes a node takes up in file
+	 */
+	public int getPageSize()
+	{
+		return pageSize;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (o instanceof NodeFormat)
+		{
+			NodeFormat other = (NodeFormat) o;
+			return degree == other.degree && isCompressed == other.isCompressed && isAligned == other.isAligned
+					&& pageSize == other.pageSize && isBPlusTree == other.isBPlusTree && isBuffered == other.isBuffered;
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return (degree * 31 + pageSize) * 16 + getFlags();
+	}
+
+	@Override
+	public String toString()
+	{
+		return (isCompressed ? "compressed" : "fixed") + (isAligned ? " aligned" : "") + (isBPlusTree ? " B+" : "")
+				+ (isBuffered ? " buffered" : "") + " degree=" + degree + " pageSize=" + pageSize;
+	}
+
+	// private methods
+
+	/**
+	 * @param blockSize
+	 *            the block size to check
+	 * @throws IllegalArgumentException
+	 *             if the block size is not a power of two from MIN_BLOCK_SIZE
+	 *             to MAX_BLOCK_SIZE
+	 */
+	private static void checkBlockSize(int blockSize)
+	{
+		if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1)
+		{
+			throw new IllegalArgumentException("Block size must be a power of two from " + MIN_BLOCK_SIZE + " to "
+					+ MAX_BLOCK_SIZE);
+		}
+	}
+}
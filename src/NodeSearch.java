@@ -0,0 +1,126 @@
+/**
+ * Searches the sorted keys of a node for the rank of a key, the number of keys
+ * less than it. The rank is the index of the key if the node holds it, and the
+ * index of the child to descend to if it does not.
+ *
+ * Small nodes are scanned, comparing every key without branching on the result
+ * so the loop never mispredicts. Larger nodes are narrowed down by binary search
+ * to a window of at most SCAN_WINDOW keys, which is then scanned. When the
+ * VectorNodeSearch kernel (src/vector) is compiled and the jdk.incubator.vector
+ * module is added to the JVM, the scan compares a vector of keys per
+ * instruction and the window is wider, otherwise the scalar scan is used.
+ */
+public class NodeSearch
+{
+	// most keys scanned without binary search, measured for degrees 2 to 512
+	public static final int SCAN_WINDOW = 16;
+	public static final int VECTOR_SCAN_WINDOW = 64;
+
+	// name of the vector kernel, loaded by reflection as its module is optional
+	private static final String VECTOR_CLASS_NAME = "VectorNodeSearch";
+
+	private static final Scanner VECTOR_SCANNER = loadVectorScanner();
+	private static final int WINDOW = VECTOR_SCANNER != null ? VECTOR_SCAN_WINDOW : SCAN_WINDOW;
+
+	/**
+	 * Counts the keys less than a key in a range of sorted keys
+	 */
+	public interface Scanner
+	{
+		/**
+		 * @param keys
+		 *            sorted keys
+		 * @param from
+		 *            first index of the range
+		 * @param to
+		 *            index past the end of the range
+		 * @param key
+		 *            the key to rank
+		 * @return from plus the number of keys in the range less than key
+		 */
+		int scan(long[] keys, int from, int to, long key);
+	}
+
+	/**
+	 * Private constructor, all methods are static
+	 */
+	private NodeSearch()
+	{
+	}
+
+	// public methods
+
+	/**
+	 * @param keys
+	 *            sorted keys, at least count long
+	 * @param count
+	 *            how many keys are in the node
+	 * @param key
+	 *            the key to rank
+	 * @return the number of keys less than key
+	 */
+	public static int rank(long[] keys, int count, long key)
+	{
+		int from = 0;
+		int to = count;
+		while (to - from > WINDOW)
+		{
+			int mid = (from + to) >>> 1;
+			if (keys[mid] < key)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+
+		return VECTOR_SCANNER != null ? VECTOR_SCANNER.scan(keys, from, to, key) : scan(keys, from, to, key);
+	}
+
+	/**
+	 * Counts the keys less than a key by comparing every key in the range
+	 *
+	 * @param keys
+	 *            sorted keys
+	 * @param from
+	 *            first index of the range
+	 * @param to
+	 *            index past the end of the range
+	 * @param key
+	 *            the key to rank
+	 * @return from plus the number of keys in the range less than key
+	 */
+	public static int scan(long[] keys, int from, int to, long key)
+	{
+		int rank = from;
+		for (int i = from; i < to; ++i)
+		{
+			rank += (int) ((keys[i] - key) >>> 63); // 1 if less, keys are not negative
+		}
+		return rank;
+	}
+
+	/**
+	 * @return true if keys are compared with vector instructions
+	 */
+	public static boolean isVectorized()
+	{
+		return VECTOR_SCANNER != null;
+	}
+
+	// private methods
+
+	/**
+	 * @return the vector scanner, null if it was not compiled or the vector
+	 *         module is not available
+	 */
+	private static Scanner loadVectorScanner()
+	{
+		try
+		{
+			return (Scanner) Class.forName(VECTOR_CLASS_NAME).getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError e)
+		{
+			return null;
+		}
+	}
+}
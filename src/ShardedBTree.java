@@ -0,0 +1,548 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Counts DNA sequences in BTrees sharded by key prefix. Shard i is a tree of
+ * its own file holding the keys whose top bits are i, so with 4^p shards a
+ * sequence goes to the shard of its first p bases. Each shard is a standard
+ * BTree file and holds a share of the cache, small enough to stay cached when
+ * the whole tree would not.
+ *
+ * While building, each shard is added to by its own thread. Added keys are
+ * collected in a batch per shard, and full batches are handed to the shard's
+ * thread through a bounded queue, as in ShardedCountHashTable, so the shards
+ * grow in parallel and the thread adding keys only blocks while a shard falls
+ * behind. With a single shard keys are added to the tree directly.
+ *
+ * The file is a manifest: a magic number that can not start a BTree file, the
+ * sequence length and the shard count. Shard i is the file named as the
+ * manifest followed by ".shard.i". A search is routed to one shard by the
+ * prefix of its key, and a batch of searches is searched on the shards in
+ * parallel.
+ */
+public class ShardedBTree implements FrequencyIndex
+{
+	// byte sizes, update if changing what is written to file
+	public static final int HEADER_BYTE_SIZE = 12; // magic=4, sequenceLength=4, shardCount=4
+
+	// keys handed to a shard's thread at once
+	private static final int BATCH_SIZE = 4096;
+
+	// full batches a shard's thread may fall behind by
+	private static final int QUEUE_LENGTH = 4;
+
+	// negative, so it never matches the node count a BTree file starts with
+	private static final int MAGIC = 0xB7EE5A4D;
+
+	// fields
+	private int sequenceLength;
+	private BTree[] shards;
+	private int prefixShift; // key bits below the shard prefix
+	private long[][] batches; // batch being collected for each shard, null once finished
+	private int[] batchSizes;
+	private BlockingQueue<long[]>[] queues; // full batches, an empty one ends the thread
+	private Thread[] threads; // null with a single shard or when opened for searching
+	private boolean isFinished;
+	private volatile Throwable failure; // what stopped a shard's thread from adding
+
+	// constructor
+
+	/**
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @param shards
+	 *            the tree of each shard
+	 */
+	private ShardedBTree(int sequenceLength, BTree[] shards)
+	{
+		this.sequenceLength = sequenceLength;
+		this.shards = shards;
+		prefixShift = 2 * sequenceLength - Integer.numberOfTrailingZeros(shards.length);
+	}
+
+	// public methods
+
+	/**
+	 * Creates the manifest and an empty tree for every shard, and starts the
+	 * threads of the shards. Deletes any existing files with the same names
+	 *
+	 * @param fileName
+	 *            file path of the manifest
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @param shardCount
+	 *            how many shards, a power of two of at most 4^sequenceLength
+	 * @param format
+	 *            the storage format of the nodes of every shard
+	 * @param direct
+	 *            true to open the shard files with direct I/O
+	 * @param options
+	 *            the cache of all of the shards, split evenly between them, null
+	 *            for no cache
+	 * @return the sharded tree, which must be closed
+	 * @throws IOException
+	 *             if unable to create the files
+	 */
+	@SuppressWarnings("unchecked")
+	public static ShardedBTree create(String fileName, int sequenceLength, int shardCount, NodeFormat format,
+			boolean direct, CacheOptions options) throws IOException
+	{
+		if (!isValidShardCount(shardCount, sequenceLength))
+		{
+			throw new IllegalArgumentException("Shard count must be a power of two of at most 4^sequenceLength");
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(sequenceLength);
+			out.writeInt(shardCount);
+		}
+
+		BTree[] shards = new BTree[shardCount];
+		for (int i = 0; i < shardCount; ++i)
+		{
+			BTreeFile file = BTreeFile.createNewBTreeFile(getShardFileName(fileName, i), format, direct);
+			file.setTailByteSize(BTreeFile.DEFAULT_TAIL_BYTE_SIZE / shardCount); // the shards grow side by side
+			shards[i] = new BTree(file, sequenceLength, format, options == null ? null : options.share(shardCount));
+		}
+
+		ShardedBTree tree = new ShardedBTree(sequenceLength, shards);
+		if (shardCount == 1)
+		{
+			return tree;
+		}
+
+		tree.batches = new long[shardCount][BATCH_SIZE];
+		tree.batchSizes = new int[shardCount];
+		tree.queues = (BlockingQueue<long[]>[]) new BlockingQueue<?>[shardCount];
+		tree.threads = new Thread[shardCount];
+		for (int i = 0; i < shardCount; ++i)
+		{
+			tree.queues[i] = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+			final int shard = i;
+			tree.threads[i] = new Thread(() -> tree.update(shard), "tree-shard-" + i);
+			tree.threads[i].setDaemon(true);
+			tree.threads[i].start();
+		}
+		return tree;
+	}
+
+	/**
+	 * Opens the trees of a manifest for searching
+	 *
+	 * @param fileName
+	 *            file path of the manifest
+	 * @param direct
+	 *            true to open the shard files with direct I/O
+	 * @param options
+	 *            the cache of all of the shards, split evenly between them, null
+	 *            for no cache
+	 * @return the sharded tree, which must be closed
+	 * @throws IOException
+	 *             if unable to read the files, or the file is not a manifest
+	 */
+	public static ShardedBTree open(String fileName, boolean direct, CacheOptions options) throws IOException
+	{
+		int sequenceLength;
+		int shardCount;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName))))
+		{
+			if (in.readInt() != MAGIC)
+			{
+				throw new IOException(fileName + " is not a sharded tree manifest");
+			}
+			sequenceLength = in.readInt();
+			shardCount = in.readInt();
+		}
+		if (sequenceLength <= 0 || sequenceLength > 31 || !isValidShardCount(shardCount, sequenceLength))
+		{
+			throw new IOException(fileName + " has an invalid header");
+		}
+
+		BTree[] shards = new BTree[shardCount];
+		for (int i = 0; i < shardCount; ++i)
+		{
+			BTreeFile file = BTreeFile.openBTreeFile(getShardFileName(fileName, i), BTree.METADATA_BYTE_SIZE, direct);
+			CacheOptions shardOptions = null;
+			if (options != null)
+			{
+				shardOptions = options.share(shardCount);
+				if (options.getHotSetFile() != null)
+				{
+					shardOptions.setHotSetFile(options.getHotSetFile() + "." + i);
+				}
+			}
+			shards[i] = new BTree(file, shardOptions);
+			if (shards[i].getSequenceLength() != sequenceLength)
+			{
+				throw new IOException(getShardFileName(fileName, i) + " does not hold sequences of length "
+						+ sequenceLength);
+			}
+		}
+
+		ShardedBTree tree = new ShardedBTree(sequenceLength, shards);
+		tree.isFinished = true;
+		return tree;
+	}
+
+	/**
+	 * @param fileName
+	 *            the file to check
+	 * @return true if the file starts with the magic number of a sharded tree
+	 *         manifest
+	 */
+	public static boolean isShardedBTreeFile(String fileName)
+	{
+		try (DataInputStream in = new DataInputStream(new FileInputStream(fileName)))
+		{
+			return in.readInt() == MAGIC;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * @param fileName
+	 *            file path of the manifest
+	 * @param shard
+	 *            the shard
+	 * @return file path of the tree of the shard
+	 */
+	public static String getShardFileName(String fileName, int shard)
+	{
+		return fileName + ".shard." + shard;
+	}
+
+	/**
+	 * Turns B* style inserts on or off for every shard
+	 *
+	 * @param isSharingSplits
+	 *            true to share keys with siblings before splitting
+	 */
+	public void setSharingSplits(boolean isSharingSplits)
+	{
+		for (BTree shard : shards)
+		{
+			shard.setSharingSplits(isSharingSplits);
+		}
+	}
+
+	/**
+	 * Adds one occurrence of a key to the tree of its shard
+	 *
+	 * @param key
+	 *            the long representation of a sequence
+	 * @throws IllegalStateException
+	 *             if the tree is finished
+	 */
+	public void add(long key)
+	{
+		if (isFinished)
+		{
+			throw new IllegalStateException("A finished tree can not be added to");
+		}
+
+		int shard = (int) (key >>> prefixShift);
+		if (threads == null)
+		{
+			shards[shard].add(key);
+			return;
+		}
+
+		batches[shard][batchSizes[shard]++] = key;
+		if (batchSizes[shard] == BATCH_SIZE)
+		{
+			hand(shard, batches[shard]);
+			batches[shard] = new long[BATCH_SIZE];
+			batchSizes[shard] = 0;
+		}
+	}
+
+	/**
+	 * Waits for every added key to be added to its shard. No keys can be added
+	 * afterwards
+	 *
+	 * @throws IllegalStateException
+	 *             if a shard's thread was unable to add its keys
+	 */
+	public void finish()
+	{
+		if (isFinished)
+		{
+			return;
+		}
+		isFinished = true;
+
+		if (threads == null)
+		{
+			return;
+		}
+
+		for (int i = 0; i < shards.length; ++i)
+		{
+			if (batchSizes[i] > 0)
+			{
+				hand(i, Arrays.copyOf(batches[i], batchSizes[i]));
+			}
+			hand(i, new long[0]);
+		}
+		for (Thread thread : threads)
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while adding");
+			}
+		}
+		batches = null;
+
+		if (failure != null)
+		{
+			throw new IllegalStateException("Unable to add keys: " + failure, failure);
+		}
+	}
+
+	/**
+	 * Searches the shard of a key. Not safe to call from multiple threads
+	 *
+	 * @param key
+	 *            the key to search for
+	 * @return the tree object with the matching key, null if nothing is found
+	 */
+	public TreeObject search(long key)
+	{
+		finish();
+		return shards[(int) (key >>> prefixShift)].search(key);
+	}
+
+	/**
+	 * Searches for many keys at once. The keys are grouped by shard and the
+	 * shards are searched in parallel, each by one thread of a pool. The results
+	 * are the same as calling search for each key
+	 *
+	 * @param keys
+	 *            the keys to search for
+	 * @param threadCount
+	 *            how many shards may be searched at once
+	 * @return the tree object with the matching key for each key, null where
+	 *         nothing is found
+	 */
+	public TreeObject[] search(long[] keys, int threadCount)
+	{
+		finish();
+
+		// the index of every key of a shard, in the order of the keys
+		int[] counts = new int[shards.length];
+		for (long key : keys)
+		{
+			counts[(int) (key >>> prefixShift)]++;
+		}
+		int[][] indexes = new int[shards.length][];
+		for (int i = 0; i < shards.length; ++i)
+		{
+			indexes[i] = new int[counts[i]];
+			counts[i] = 0;
+		}
+		for (int i = 0; i < keys.length; ++i)
+		{
+			int shard = (int) (keys[i] >>> prefixShift);
+			indexes[shard][counts[shard]++] = i;
+		}
+
+		TreeObject[] results = new TreeObject[keys.length];
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, shards.length)));
+		try
+		{
+			ArrayList<Future<?>> searches = new ArrayList<>();
+			for (int i = 0; i < shards.length; ++i)
+			{
+				if (indexes[i].length == 0)
+				{
+					continue;
+				}
+				final BTree shard = shards[i];
+				final int[] shardIndexes = indexes[i];
+				searches.add(pool.submit(() -> {
+					for (int index : shardIndexes)
+					{
+						results[index] = shard.search(keys[index]);
+					}
+				}));
+			}
+			for (Future<?> search : searches)
+			{
+				search.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while searching");
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException("Unable to search a shard: " + e.getCause(), e.getCause());
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		return results;
+	}
+
+	@Override
+	public int getFrequency(long key)
+	{
+		TreeObject obj = search(key);
+		return obj == null ? 0 : obj.getFrequency();
+	}
+
+	@Override
+	public int getSequenceLength()
+	{
+		return sequenceLength;
+	}
+
+	/**
+	 * @return how many shards the keys are split in
+	 */
+	public int getShardCount()
+	{
+		return shards.length;
+	}
+
+	/**
+	 * Dumps every sequence with its frequency to file, shard after shard, in the
+	 * same format as BTree.dumpInOrderToFile
+	 *
+	 * @param fileName
+	 *            the name of file to create
+	 */
+	public void dumpInOrderToFile(String fileName)
+	{
+		finish();
+		try (PrintWriter out = new PrintWriter(new File(fileName)))
+		{
+			for (BTree shard : shards)
+			{
+				for (TreeObject obj : shard)
+				{
+					out.println(DNAUtil.convertLongToString(obj.getKey(), sequenceLength) + ": " + obj.getFrequency());
+				}
+			}
+		}
+		catch (FileNotFoundException e)
+		{
+			System.err.println("Unable to create file " + fileName);
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		finish();
+		for (BTree shard : shards)
+		{
+			shard.close();
+		}
+	}
+
+	// private methods
+
+	/**
+	 * @param shardCount
+	 *            how many shards
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @return true if the shard count is a power of two of at most
+	 *         4^sequenceLength
+	 */
+	private static boolean isValidShardCount(int shardCount, int sequenceLength)
+	{
+		return shardCount >= 1 && Integer.bitCount(shardCount) == 1
+				&& Integer.numberOfTrailingZeros(shardCount) <= 2 * sequenceLength;
+	}
+
+	/**
+	 * Hands a batch to a shard's thread, waiting while its queue is full
+	 *
+	 * @param shard
+	 *            the shard
+	 * @param batch
+	 *            the keys, an empty batch ends the thread
+	 */
+	private void hand(int shard, long[] batch)
+	{
+		try
+		{
+			queues[shard].put(batch);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while adding");
+		}
+	}
+
+	/**
+	 * Run by the thread of a shard. Adds the batches handed to it to the tree of
+	 * the shard until an empty one
+	 *
+	 * @param shard
+	 *            the shard
+	 */
+	private void update(int shard)
+	{
+		BTree tree = shards[shard];
+		try
+		{
+			long[] batch;
+			while ((batch = queues[shard].take()).length > 0)
+			{
+				if (failure != null)
+				{ // keep taking batches so adding never blocks, finish reports the failure
+					continue;
+				}
+
+				try
+				{
+					for (long key : batch)
+					{
+						tree.add(key);
+					}
+				}
+				catch (RuntimeException | OutOfMemoryError e)
+				{
+					failure = e;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			System.err.println("Tree shard " + shard + " was interrupted");
+		}
+	}
+}
@@ -0,0 +1,280 @@
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Counts DNA sequences in CountHashTables sharded by key prefix. Shard i holds
+ * the keys whose top bits are i, so keys of different shards never compare out
+ * of order and the shards read one after the other, each sorted, are every key
+ * in order.
+ *
+ * With more than one shard, each shard is updated by its own thread. Added keys
+ * are collected in a batch per shard, and full batches are handed to the
+ * shard's thread through a bounded queue, so the thread adding keys only
+ * blocks while a shard falls behind. With a single shard keys are added to the
+ * table directly.
+ */
+public class ShardedCountHashTable
+{
+	// keys handed to a shard's thread at once
+	private static final int BATCH_SIZE = 4096;
+
+	// full batches a shard's thread may fall behind by
+	private static final int QUEUE_LENGTH = 16;
+
+	// slots each shard starts with
+	private static final int INITIAL_CAPACITY = 1 << 16;
+
+	// fields
+	private int sequenceLength;
+	private CountHashTable[] shards;
+	private int prefixShift; // key bits below the shard prefix
+	private long[][] batches; // batch being collected for each shard
+	private int[] batchSizes;
+	private BlockingQueue<long[]>[] queues; // full batches, an empty one ends the thread
+	private Thread[] threads; // null with a single shard
+	private boolean isFinished;
+	private volatile Throwable failure; // what stopped a shard's thread from counting
+
+	// constructor
+
+	/**
+	 * Creates empty shards and starts their threads
+	 *
+	 * @param sequenceLength
+	 *            length of DNA sequences
+	 * @param shardCount
+	 *            how many shards, a power of two of at most 4^sequenceLength
+	 */
+	@SuppressWarnings("unchecked")
+	public ShardedCountHashTable(int sequenceLength, int shardCount)
+	{
+		int prefixBits = Integer.numberOfTrailingZeros(shardCount);
+		if (shardCount < 1 || Integer.bitCount(shardCount) != 1 || prefixBits > 2 * sequenceLength)
+		{
+			throw new IllegalArgumentException("Shard count must be a power of two of at most 4^sequenceLength");
+		}
+
+		this.sequenceLength = sequenceLength;
+		prefixShift = 2 * sequenceLength - prefixBits;
+		shards = new CountHashTable[shardCount];
+		for (int i = 0; i < shardCount; ++i)
+		{
+			shards[i] = new CountHashTable(INITIAL_CAPACITY);
+		}
+
+		if (shardCount == 1)
+		{
+			return;
+		}
+
+		batches = new long[shardCount][BATCH_SIZE];
+		batchSizes = new int[shardCount];
+		queues = (BlockingQueue<long[]>[]) new BlockingQueue<?>[shardCount];
+		threads = new Thread[shardCount];
+		for (int i = 0; i < shardCount; ++i)
+		{
+			queues[i] = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+			final int shard = i;
+			threads[i] = new Thread(() -> update(shard), "count-shard-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	// public methods
+
+	/**
+	 * Adds one occurrence of a key
+	 *
+	 * @param key
+	 *            the long representation of a sequence
+	 * @throws IllegalStateException
+	 *             if the table is finished
+	 */
+	public void add(long key)
+	{
+		if (isFinished)
+		{
+			throw new IllegalStateException("A finished table can not be added to");
+		}
+
+		int shard = (int) (key >>> prefixShift);
+		if (threads == null)
+		{
+			shards[shard].add(key);
+			return;
+		}
+
+		batches[shard][batchSizes[shard]++] = key;
+		if (batchSizes[shard] == BATCH_SIZE)
+		{
+			hand(shard, batches[shard]);
+			batches[shard] = new long[BATCH_SIZE];
+			batchSizes[shard] = 0;
+		}
+	}
+
+	/**
+	 * Waits for every added key to be counted, then sorts each shard, on its own
+	 * thread. No keys can be added afterwards
+	 */
+	public void finish()
+	{
+		if (isFinished)
+		{
+			return;
+		}
+		isFinished = true;
+
+		if (threads == null)
+		{
+			shards[0].sort();
+			return;
+		}
+
+		for (int i = 0; i < shards.length; ++i)
+		{
+			if (batchSizes[i] > 0)
+			{
+				hand(i, Arrays.copyOf(batches[i], batchSizes[i]));
+			}
+			hand(i, new long[0]);
+		}
+		for (Thread thread : threads)
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while counting");
+			}
+		}
+		batches = null;
+
+		if (failure != null)
+		{
+			throw new IllegalStateException("Unable to count keys: " + failure, failure);
+		}
+	}
+
+	/**
+	 * @return how many distinct keys were added
+	 */
+	public long getDistinctCount()
+	{
+		long count = 0;
+		for (CountHashTable shard : shards)
+		{
+			count += shard.size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return how many bytes the shards take up off the heap
+	 */
+	public long getByteSize()
+	{
+		long bytes = 0;
+		for (CountHashTable shard : shards)
+		{
+			bytes += shard.getByteSize();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Finishes the table and writes every key to a BTree, built bottom up in one
+	 * sequential pass from the sorted shards
+	 *
+	 * @param btf
+	 *            empty file
+	 * @param format
+	 *            the storage format of the nodes
+	 * @return the tree, which must be closed
+	 */
+	public BTree exportToBTree(BTreeFile btf, NodeFormat format)
+	{
+		finish();
+
+		BTreeBulkLoader loader = new BTreeBulkLoader(btf, sequenceLength, format, getDistinctCount());
+		for (CountHashTable shard : shards)
+		{
+			for (int i = 0; i < shard.size(); ++i)
+			{
+				loader.add(shard.getKey(i), shard.getFrequency(i));
+			}
+		}
+		return loader.finish();
+	}
+
+	// private methods
+
+	/**
+	 * Hands a batch to a shard's thread, waiting while its queue is full
+	 *
+	 * @param shard
+	 *            the shard
+	 * @param batch
+	 *            the keys, an empty batch ends the thread
+	 */
+	private void hand(int shard, long[] batch)
+	{
+		try
+		{
+			queues[shard].put(batch);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while counting");
+		}
+	}
+
+	/**
+	 * Run by the thread of a shard. Counts the batches handed to it until an
+	 * empty one, then sorts the shard
+	 *
+	 * @param shard
+	 *            the shard
+	 */
+	private void update(int shard)
+	{
+		CountHashTable table = shards[shard];
+		try
+		{
+			long[] batch;
+			while ((batch = queues[shard].take()).length > 0)
+			{
+				if (failure != null)
+				{ // keep taking batches so adding never blocks, finish reports the failure
+					continue;
+				}
+
+				try
+				{
+					for (long key : batch)
+					{
+						table.add(key);
+					}
+				}
+				catch (RuntimeException | OutOfMemoryError e)
+				{
+					failure = e;
+				}
+			}
+			if (failure == null)
+			{
+				table.sort();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			System.err.println("Count shard " + shard + " was interrupted");
+		}
+	}
+}
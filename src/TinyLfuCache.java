@@ -0,0 +1,199 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * A cache using the W-TinyLFU policy (Einziger, Friedman and Manes). New
+ * objects enter a small LRU window. An object leaving the window is only
+ * admitted to the main area if a FrequencySketch estimates it has been used
+ * more often recently than the object the main area would evict for it, so
+ * objects seen once by a scan are turned away at the door. The main area is a
+ * segmented LRU, objects are moved from its probation segment to its
+ * protected segment when they are used again.
+ *
+ * Accesses are recorded by getObject, which the tree calls before every add.
+ *
+ * @param <T>
+ *            - class of objects stored in the cache
+ */
+public class TinyLfuCache<T> implements BoundedCache<T>
+{
+	// fields
+	private int capacity;
+	private int windowCapacity; // 1% of the capacity
+	private int mainCapacity;
+	private int protectedCapacity; // 80% of the main area
+	private ToIntFunction<T> keyOf;
+	private FrequencySketch sketch;
+	// each segment is ordered least recently used first
+	private LinkedHashMap<Integer, T> window;
+	private LinkedHashMap<Integer, T> probation;
+	private LinkedHashMap<Integer, T> protectedSegment;
+
+	// constructor
+
+	/**
+	 * Creates a W-TinyLFU cache
+	 *
+	 * @param capacity
+	 *            how many objects the cache holds
+	 * @param keyOf
+	 *            returns the key identifying an object, equal objects must have
+	 *            equal keys
+	 */
+	public TinyLfuCache(int capacity, ToIntFunction<T> keyOf)
+	{
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("Cache capacity must be greater than zero");
+		}
+
+		this.capacity = capacity;
+		this.windowCapacity = Math.max(1, capacity / 100);
+		this.mainCapacity = capacity - windowCapacity;
+		this.protectedCapacity = mainCapacity * 4 / 5;
+		this.keyOf = keyOf;
+		sketch = new FrequencySketch(capacity);
+		window = new LinkedHashMap<>();
+		probation = new LinkedHashMap<>();
+		protectedSegment = new LinkedHashMap<>();
+	}
+
+	// public methods
+
+	@Override
+	public T getObject(T object)
+	{
+		int key = keyOf.applyAsInt(object);
+		sketch.increment(key);
+
+		T retVal = window.remove(key);
+		if (retVal != null)
+		{
+			window.put(key, retVal);
+			return retVal;
+		}
+
+		retVal = protectedSegment.remove(key);
+		if (retVal != null)
+		{
+			protectedSegment.put(key, retVal);
+			return retVal;
+		}
+
+		retVal = probation.remove(key);
+		if (retVal != null)
+		{ // used again on probation, promote
+			protectedSegment.put(key, retVal);
+			if (protectedSegment.size() > protectedCapacity)
+			{
+				Iterator<Integer> itr = protectedSegment.keySet().iterator();
+				int demoted = itr.next();
+				probation.put(demoted, protectedSegment.get(demoted));
+				itr.remove();
+			}
+		}
+		return retVal;
+	}
+
+	@Override
+	public T addObject(T object)
+	{
+		if (object == null)
+		{
+			throw new NullPointerException("added object cannot be null");
+		}
+
+		removeObject(object);
+		window.put(keyOf.applyAsInt(object), object);
+		if (window.size() <= windowCapacity)
+		{
+			return null;
+		}
+
+		T candidate = removeEldest(window);
+		if (probation.size() + protectedSegment.size() < mainCapacity)
+		{
+			probation.put(keyOf.applyAsInt(candidate), candidate);
+			return null;
+		}
+		if (mainCapacity == 0)
+		{
+			return candidate;
+		}
+
+		LinkedHashMap<Integer, T> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+		int victimKey = victimSegment.keySet().iterator().next();
+		if (sketch.frequency(keyOf.applyAsInt(candidate)) > sketch.frequency(victimKey))
+		{
+			T victim = victimSegment.remove(victimKey);
+			probation.put(keyOf.applyAsInt(candidate), candidate);
+			return victim;
+		}
+
+		return candidate; // not admitted
+	}
+
+	@Override
+	public T removeObject(T object)
+	{
+		int key = keyOf.applyAsInt(object);
+		T retVal = window.remove(key);
+		if (retVal == null)
+		{
+			retVal = probation.remove(key);
+		}
+		if (retVal == null)
+		{
+			retVal = protectedSegment.remove(key);
+		}
+		return retVal;
+	}
+
+	@Override
+	public T removeFirst()
+	{
+		if (!window.isEmpty())
+		{
+			return removeEldest(window);
+		}
+		if (!probation.isEmpty())
+		{
+			return removeEldest(probation);
+		}
+		return protectedSegment.isEmpty() ? null : removeEldest(protectedSegment);
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	@Override
+	public int size()
+	{
+		return window.size() + probation.size() + protectedSegment.size();
+	}
+
+	@Override
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	// private methods
+
+	/**
+	 * @param segment
+	 *            a non empty segment
+	 * @return the removed least recently used object of the segment
+	 */
+	private T removeEldest(LinkedHashMap<Integer, T> segment)
+	{
+		Iterator<T> itr = segment.values().iterator();
+		T retVal = itr.next();
+		itr.remove();
+		return retVal;
+	}
+}
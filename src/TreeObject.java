@@ -49,6 +49,18 @@ public class TreeObject implements Comparable<TreeObject>
 		frequency++;
 	}
 
+	/**
+	 * Adds to the frequency, when pending occurrences of the DNA sequence are
+	 * applied at once
+	 * 
+	 * @param count
+	 *            the occurrences to add
+	 */
+	public void addFrequency(int count)
+	{
+		frequency += count;
+	}
+
 	/**
 	 * @return the DNA sequence
 	 */
@@ -0,0 +1,173 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.function.ToIntFunction;
+
+/**
+ * A cache using the full 2Q replacement policy (Johnson and Shasha). New
+ * objects enter a FIFO queue, A1in. Objects pushed out of A1in are remembered by
+ * key only in a ghost queue, A1out, and only an object that is added again
+ * while its key is still in A1out enters the LRU queue Am. A single scan over
+ * cold objects therefore only cycles through A1in and leaves the frequently
+ * used objects in Am alone.
+ *
+ * @param <T>
+ *            - class of objects stored in the cache
+ */
+public class TwoQueueCache<T> implements BoundedCache<T>
+{
+	// fields
+	private int capacity;
+	private int inCapacity; // A1in is trimmed first while above this size
+	private int outCapacity; // keys remembered in A1out
+	private ToIntFunction<T> keyOf;
+	private LinkedHashMap<Integer, T> in; // A1in, oldest first
+	private LinkedHashMap<Integer, T> main; // Am, least recently used first
+	private LinkedHashSet<Integer> ghosts; // A1out, oldest first
+
+	// constructor
+
+	/**
+	 * Creates a 2Q cache with the recommended queue sizes, a quarter of the
+	 * capacity for A1in and half the capacity of keys for A1out
+	 *
+	 * @param capacity
+	 *            how many objects the cache holds
+	 * @param keyOf
+	 *            returns the key identifying an object, equal objects must have
+	 *            equal keys
+	 */
+	public TwoQueueCache(int capacity, ToIntFunction<T> keyOf)
+	{
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("Cache capacity must be greater than zero");
+		}
+
+		this.capacity = capacity;
+		this.inCapacity = Math.max(1, capacity / 4);
+		this.outCapacity = Math.max(1, capacity / 2);
+		this.keyOf = keyOf;
+		in = new LinkedHashMap<>();
+		main = new LinkedHashMap<>();
+		ghosts = new LinkedHashSet<>();
+	}
+
+	// public methods
+
+	@Override
+	public T getObject(T object)
+	{
+		int key = keyOf.applyAsInt(object);
+
+		T retVal = main.remove(key);
+		if (retVal != null)
+		{ // move to most recently used
+			main.put(key, retVal);
+			return retVal;
+		}
+
+		return in.get(key); // A1in is FIFO, hits do not reorder
+	}
+
+	@Override
+	public T addObject(T object)
+	{
+		if (object == null)
+		{
+			throw new NullPointerException("added object cannot be null");
+		}
+
+		int key = keyOf.applyAsInt(object);
+		removeObject(object);
+
+		T retVal = null;
+		if (size() >= capacity)
+		{
+			retVal = reclaim();
+		}
+
+		if (ghosts.remove(key))
+		{ // referenced again after leaving A1in
+			main.put(key, object);
+		}
+		else
+		{
+			in.put(key, object);
+		}
+
+		return retVal;
+	}
+
+	@Override
+	public T removeObject(T object)
+	{
+		int key = keyOf.applyAsInt(object);
+		T retVal = in.remove(key);
+		return retVal != null ? retVal : main.remove(key);
+	}
+
+	@Override
+	public T removeFirst()
+	{
+		LinkedHashMap<Integer, T> queue = in.isEmpty() ? main : in;
+		return queue.isEmpty() ? null : removeEldest(queue);
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return in.isEmpty() && main.isEmpty();
+	}
+
+	@Override
+	public int size()
+	{
+		return in.size() + main.size();
+	}
+
+	@Override
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	// private methods
+
+	/**
+	 * Evicts an object to make room, from A1in if it is above its size and from
+	 * Am otherwise
+	 *
+	 * @return the evicted object
+	 */
+	private T reclaim()
+	{
+		if (in.size() > inCapacity || main.isEmpty())
+		{
+			int key = in.keySet().iterator().next();
+			ghosts.add(key);
+			if (ghosts.size() > outCapacity)
+			{
+				Iterator<Integer> itr = ghosts.iterator();
+				itr.next();
+				itr.remove();
+			}
+			return in.remove(key);
+		}
+
+		return removeEldest(main);
+	}
+
+	/**
+	 * @param queue
+	 *            a non empty queue
+	 * @return the removed oldest object of the queue
+	 */
+	private T removeEldest(LinkedHashMap<Integer, T> queue)
+	{
+		Iterator<T> itr = queue.values().iterator();
+		T retVal = itr.next();
+		itr.remove();
+		return retVal;
+	}
+}
@@ -0,0 +1,81 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Offers static methods for reading and writing unsigned variable length
+ * integers (LEB128). Each byte holds 7 bits of the value, the high bit is set
+ * when more bytes follow.
+ */
+public class VarInt
+{
+	// the most bytes a varint encoded long or int can take up
+	public static final int MAX_LONG_BYTE_SIZE = 10;
+	public static final int MAX_INT_BYTE_SIZE = 5;
+
+	/**
+	 * @param value
+	 *            the value to be encoded, treated as unsigned
+	 * @return how many bytes the value takes up when encoded
+	 */
+	public static int byteSize(long value)
+	{
+		int size = 1;
+		while ((value & ~0x7FL) != 0)
+		{
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes a value as a varint
+	 *
+	 * @param out
+	 *            the output to write to
+	 * @param value
+	 *            the value to be written, treated as unsigned
+	 * @throws IOException
+	 *             if unable to write
+	 */
+	public static void write(DataOutput out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Reads a varint
+	 *
+	 * @param in
+	 *            the input to read from
+	 * @return the decoded value
+	 * @throws IOException
+	 *             if unable to read or the varint is malformed
+	 */
+	public static long read(DataInput in) throws IOException
+	{
+		long value = 0;
+		int shift = 0;
+		int b;
+
+		do
+		{
+			if (shift >= 64)
+			{
+				throw new IOException("Malformed varint");
+			}
+			b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		}
+		while ((b & 0x80) != 0);
+
+		return value;
+	}
+}
@@ -0,0 +1,27 @@
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Scans the keys of a node with the Vector API, comparing a whole vector of keys
+ * to the searched key per instruction. Only compiled and loaded with the
+ * jdk.incubator.vector module, NodeSearch scans without it otherwise
+ */
+public class VectorNodeSearch implements NodeSearch.Scanner
+{
+	private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+	@Override
+	public int scan(long[] keys, int from, int to, long key)
+	{
+		int i = from;
+		int upper = from + SPECIES.loopBound(to - from);
+		for (; i < upper; i += SPECIES.length())
+		{
+			VectorMask<Long> less = LongVector.fromArray(SPECIES, keys, i).compare(VectorOperators.LT, key);
+			from += less.trueCount();
+		}
+		return NodeSearch.scan(keys, i, to, key) - i + from;
+	}
+}
@@ -0,0 +1,138 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test class for adding keys to a tree or a count table read back from file,
+ * in several sessions
+ */
+public class Test_AppendTree
+{
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("Append Tests:\n");
+
+		NodeFormat[] formats = { NodeFormat.fixed(2), NodeFormat.fixed(7), NodeFormat.compressed(256),
+				NodeFormat.fixed(7).toBPlusTree(), NodeFormat.fixed(20).toBuffered() };
+		for (NodeFormat format : formats)
+		{
+			testAppend(format, 0, 1, 2000);
+			testAppend(format, 10, 1, 2000);
+			testAppend(format, 10, 3, 2000); // the root is a leaf after the first session
+			testAppend(format, 0, 4, 3000);
+		}
+
+		testTable(6, 2000);
+		testTable(12, 50000);
+	}
+
+	/**
+	 * Adds keys to a count table file over several sessions, each reopening the
+	 * table for writing, and checks the table read back against a sorted map
+	 */
+	private static void testTable(int sequenceLength, int count) throws IOException
+	{
+		String name = "table k=" + sequenceLength + " adds=" + count;
+		TreeMap<Long, Integer> expected = new TreeMap<>();
+		Random rand = new Random(count);
+		long range = 1L << (2 * sequenceLength);
+
+		CountTable table = CountTable.create("dumps/append.table", sequenceLength);
+		for (int session = 0; session < 3; ++session)
+		{
+			for (int i = 0; i < count / 3; ++i)
+			{
+				long key = (long) (rand.nextDouble() * range);
+				table.add(key);
+				expected.merge(key, 1, Integer::sum);
+			}
+			table.close();
+			table = CountTable.open("dumps/append.table", true);
+		}
+		table.close();
+
+		table = CountTable.open("dumps/append.table");
+		BTest.testInt(name + " sequence length", table.getSequenceLength(), sequenceLength);
+		BTest.testLong(name + " distinct", table.getDistinctCount(), expected.size());
+		Iterator<Map.Entry<Long, Integer>> entries = expected.entrySet().iterator();
+		boolean isSame = true;
+		for (TreeObject obj : table)
+		{
+			Map.Entry<Long, Integer> entry = entries.hasNext() ? entries.next() : null;
+			isSame &= entry != null && entry.getKey() == obj.getKey() && entry.getValue() == obj.getFrequency();
+		}
+		BTest.testBoolean(name + " in order", isSame && !entries.hasNext(), true);
+		table.close();
+	}
+
+	/**
+	 * Adds keys over several sessions, each reopening the tree the last one
+	 * closed, and checks the tree against a sorted map
+	 */
+	private static void testAppend(NodeFormat format, int cacheSize, int firstCount, int count) throws IOException
+	{
+		String name = format + " cache=" + cacheSize + " first=" + firstCount + " adds=" + count;
+		TreeMap<Long, Integer> expected = new TreeMap<>();
+		Random rand = new Random(count);
+
+		BTree tree = new BTree(BTreeFile.createNewBTreeFile("dumps/append.tree", format), 12, format);
+		for (int i = 0; i < firstCount; ++i)
+		{
+			long key = rand.nextInt(count);
+			tree.add(key);
+			expected.merge(key, 1, Integer::sum);
+		}
+		tree.close();
+
+		for (int session = 0; session < 3; ++session)
+		{
+			BTreeFile file = BTreeFile.openBTreeFile("dumps/append.tree", BTree.METADATA_BYTE_SIZE);
+			tree = BTree.openForAppend(file, cacheSize > 0 ? new CacheOptions(cacheSize) : null);
+			for (int i = 0; i < count / 3; ++i)
+			{
+				long key = rand.nextInt(count);
+				tree.add(key);
+				expected.merge(key, 1, Integer::sum);
+			}
+			tree.close();
+		}
+
+		tree = new BTree(BTreeFile.openBTreeFile("dumps/append.tree", BTree.METADATA_BYTE_SIZE), 5);
+		BTest.testObject(name + " format", tree.getFormat(), format);
+		boolean allFound = true;
+		for (Map.Entry<Long, Integer> entry : expected.entrySet())
+		{
+			TreeObject obj = tree.search(entry.getKey());
+			allFound &= obj != null && obj.getFrequency() == entry.getValue();
+		}
+		BTest.testBoolean(name + " search", allFound && tree.search(count) == null, true);
+
+		Iterator<Map.Entry<Long, Integer>> entries = expected.entrySet().iterator();
+		boolean isSame = true;
+		for (TreeObject obj : tree)
+		{
+			Map.Entry<Long, Integer> entry = entries.hasNext() ? entries.next() : null;
+			isSame &= entry != null && entry.getKey() == obj.getKey() && entry.getValue() == obj.getFrequency();
+		}
+		BTest.testBoolean(name + " in order", isSame && !entries.hasNext(), true);
+
+		// the dump of a classic tree climbs the parent pointers
+		tree.dumpInOrderToFile("dumps/append.dump");
+		isSame = true;
+		try (BufferedReader in = new BufferedReader(new FileReader("dumps/append.dump")))
+		{
+			for (Map.Entry<Long, Integer> entry : expected.entrySet())
+			{
+				String line = DNAUtil.convertLongToString(entry.getKey(), 12) + ": " + entry.getValue();
+				isSame &= line.equals(in.readLine());
+			}
+			isSame &= in.readLine() == null;
+		}
+		BTest.testBoolean(name + " dump", isSame, true);
+		tree.close();
+	}
+}
@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test class for B+ trees and for scanning ranges of keys of either kind of tree
+ */
+public class Test_BPlusTree
+{
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("B+ tree Tests:\n");
+
+		NodeFormat[] formats = { NodeFormat.fixed(2), NodeFormat.fixed(7),
+				NodeFormat.compressed(NodeFormat.MIN_BPLUS_TREE_PAGE_SIZE) };
+		for (NodeFormat format : formats)
+		{
+			testTree(format.toBPlusTree(), 0);
+			testTree(format.toBPlusTree(), 1);
+			testTree(format.toBPlusTree(), 3000);
+			testTree(format, 3000);
+		}
+
+		BTest.testBoolean("fanout of inner nodes",
+				NodeFormat.fixed(85).toBPlusTree().getKeyLimit(false) > NodeFormat.fixed(85).getKeyLimit(), true);
+		BTest.testException("small compressed pages", IllegalArgumentException.class,
+				() -> NodeFormat.compressed(BTreeNode.getByteSize(2)).toBPlusTree() != null);
+	}
+
+	/**
+	 * Adds random keys, some several times, and checks the tree after reopening
+	 * against a sorted map: every key is found, iterating returns every key in
+	 * order and ranges return the keys between their bounds
+	 */
+	private static void testTree(NodeFormat format, int count) throws IOException
+	{
+		String name = format + " adds=" + count;
+		TreeMap<Long, Integer> expected = new TreeMap<>();
+		Random rand = new Random(count);
+
+		BTree tree = new BTree(BTreeFile.createNewBTreeFile("dumps/bplus.tree", format), 12, format, 5);
+		for (int i = 0; i < count; ++i)
+		{
+			long key = rand.nextInt(count);
+			tree.add(key);
+			expected.merge(key, 1, Integer::sum);
+		}
+		tree.close();
+
+		tree = new BTree(BTreeFile.openBTreeFile("dumps/bplus.tree", BTree.METADATA_BYTE_SIZE), 5);
+		BTest.testObject(name + " format", tree.getFormat(), format);
+
+		boolean allFound = true;
+		for (Map.Entry<Long, Integer> entry : expected.entrySet())
+		{
+			TreeObject obj = tree.search(entry.getKey());
+			allFound &= obj != null && obj.getFrequency() == entry.getValue();
+		}
+		BTest.testBoolean(name + " search", allFound && tree.search(count) == null, true);
+
+		Iterator<Map.Entry<Long, Integer>> entries = expected.entrySet().iterator();
+		boolean isSame = true;
+		for (TreeObject obj : tree)
+		{
+			Map.Entry<Long, Integer> entry = entries.hasNext() ? entries.next() : null;
+			isSame &= entry != null && entry.getKey() == obj.getKey() && entry.getValue() == obj.getFrequency();
+		}
+		BTest.testBoolean(name + " in order", isSame && !entries.hasNext(), true);
+
+		isSame = true;
+		for (int i = 0; i < 50; ++i)
+		{
+			long low = rand.nextInt(count + 2);
+			long high = low + rand.nextInt(count / 10 + 2);
+			ArrayList<TreeObject> range = tree.searchRange(low, high);
+			isSame &= range.size() == expected.subMap(low, true, high, true).size();
+			for (TreeObject obj : range)
+			{
+				isSame &= obj.getKey() >= low && obj.getKey() <= high
+						&& expected.get(obj.getKey()) == obj.getFrequency();
+			}
+		}
+		BTest.testBoolean(name + " ranges", isSame, true);
+		tree.close();
+	}
+}
@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test class for the tail buffer of BTreeFile, reading nodes that are staged in
+ * the tail and writing runs of nodes that straddle the start of the tail
+ */
+public class Test_BTreeFile
+{
+	private static final NodeFormat FORMAT = NodeFormat.fixed(3);
+
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("BTreeFile Tests:\n");
+
+		testStraddle();
+		testRandom(1, 2000);
+		testRandom(4, 2000);
+		testRandom(64, 4000);
+		testRandom(BTreeFile.DEFAULT_TAIL_BYTE_SIZE / FORMAT.getPageSize(), 2000); // the default tail
+	}
+
+	/**
+	 * Writes runs of nodes before, across and past the start of a tail of four
+	 * nodes, appending and writing the tail in the middle of a run
+	 */
+	private static void testStraddle() throws IOException
+	{
+		BTreeFile file = BTreeFile.createNewBTreeFile("dumps/tail.tree", FORMAT);
+		file.setTailByteSize(4 * FORMAT.getPageSize());
+		ArrayList<byte[]> expected = new ArrayList<>();
+		for (int i = 0; i < 10; ++i)
+		{ // the tail is written at 4 and 8, nodes 8 and 9 are in it
+			append(file, expected, i);
+		}
+		BTest.testBoolean("tail reads", isSame(file, expected), true);
+
+		write(file, expected, 6, 3, 100); // 6 and 7 in file, 8 in the tail
+		BTest.testBoolean("straddle", isSame(file, expected), true);
+		write(file, expected, 7, 5, 200); // 10 and 11 appended, the tail fills up
+		BTest.testBoolean("straddle and append", isSame(file, expected), true);
+		write(file, expected, 11, 3, 300); // 12 appended after writing the full tail
+		BTest.testBoolean("straddle and write tail", isSame(file, expected), true);
+		write(file, expected, 0, 14, 400); // every node
+		BTest.testBoolean("rewrite all", isSame(file, expected), true);
+
+		file.close();
+		BTest.testBoolean("straddle file", isSameFile("dumps/tail.tree", expected), true);
+	}
+
+	/**
+	 * Appends nodes and writes single nodes and runs of nodes at random
+	 * positions, checking every node now and then and the file after close
+	 */
+	private static void testRandom(int tailNodes, int changes) throws IOException
+	{
+		String name = "tail=" + tailNodes + " changes=" + changes;
+		BTreeFile file = BTreeFile.createNewBTreeFile("dumps/tail.tree", FORMAT);
+		file.setTailByteSize(tailNodes * FORMAT.getPageSize());
+		ArrayList<byte[]> expected = new ArrayList<>();
+		Random rand = new Random(changes);
+		boolean isSame = true;
+		for (int i = 0; i < changes; ++i)
+		{
+			int choice = rand.nextInt(3);
+			if (choice == 0 || expected.isEmpty())
+			{
+				append(file, expected, i);
+			}
+			else
+			{
+				int position = rand.nextInt(expected.size() + 1);
+				int count = choice == 1 ? 1 : 1 + rand.nextInt(Math.min(2 * tailNodes + 2, 200));
+				write(file, expected, position, count, i);
+			}
+
+			if (i % 50 == 0)
+			{
+				file.setTailByteSize(tailNodes * FORMAT.getPageSize()); // writes the tail
+			}
+			if (i % 20 == 0)
+			{
+				isSame &= isSame(file, expected);
+			}
+		}
+		isSame &= isSame(file, expected);
+		BTest.testBoolean(name + " reads", isSame, true);
+		file.close();
+		BTest.testBoolean(name + " file", isSameFile("dumps/tail.tree", expected), true);
+	}
+
+	/**
+	 * Appends a leaf holding a key
+	 */
+	private static void append(BTreeFile file, ArrayList<byte[]> expected, long key) throws IOException
+	{
+		BTreeNode node = new BTreeNode(new TreeObject(key), -1, -1, FORMAT, true);
+		file.appendNodeData(node);
+		expected.add(node.getBytes());
+	}
+
+	/**
+	 * Writes leaves holding consecutive keys at consecutive positions with one
+	 * call, the run may reach past the last node
+	 */
+	private static void write(BTreeFile file, ArrayList<byte[]> expected, int position, int count, long key)
+			throws IOException
+	{
+		ByteBuffer run = ByteBuffer.allocate(count * FORMAT.getPageSize());
+		for (int i = 0; i < count; ++i)
+		{
+			BTreeNode node = new BTreeNode(new TreeObject(key + i), -1, -1, FORMAT, true);
+			node.setLocation(position + i);
+			byte[] bytes = node.getBytes();
+			run.put(bytes);
+			if (position + i < expected.size())
+				expected.set(position + i, bytes);
+			else
+				expected.add(bytes);
+		}
+		file.writeNodeData(position, run.flip());
+	}
+
+	/**
+	 * @return true if both ways of reading a node give the expected data for
+	 *         every node
+	 */
+	private static boolean isSame(BTreeFile file, ArrayList<byte[]> expected) throws IOException
+	{
+		ByteBuffer page = ByteBuffer.allocate(FORMAT.getPageSize());
+		for (int i = 0; i < expected.size(); ++i)
+		{
+			file.readNodeData(i, page.clear());
+			if (!Arrays.equals(file.readNodeData(i), expected.get(i)) || !Arrays.equals(page.array(), expected.get(i)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the closed file holds exactly the expected nodes after the
+	 *         meta data
+	 */
+	private static boolean isSameFile(String fileName, ArrayList<byte[]> expected) throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(fileName, "r"))
+		{
+			long metaData = BTree.getMetaDataByteSize(FORMAT);
+			if (raf.length() != metaData + (long) expected.size() * FORMAT.getPageSize())
+			{
+				return false;
+			}
+			raf.seek(metaData);
+			byte[] data = new byte[FORMAT.getPageSize()];
+			for (byte[] node : expected)
+			{
+				raf.readFully(data);
+				if (!Arrays.equals(data, node))
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -1,5 +1,3 @@
-import sun.reflect.generics.tree.Tree;
-
 import java.util.ArrayList;
 
 /**
@@ -12,9 +10,56 @@ public class Test_BTreeNode
 		System.out.println("BTreeNode Test:");
 		testAdd();
 		testSearch();
+		testCompressed();
 
 	}
 
+	static void testCompressed()
+	{
+		System.out.println("\ncompressed page Tests:");
+		NodeFormat format = NodeFormat.compressed(BTreeNode.getByteSize(3));
+		long[] key = { 3, 70000, 70001, 1L << 61 };
+		int[] children = { 12, 7, 300, 9, 8 };
+
+		BTreeNode tNode = initNode(key, children, 4, format, false);
+		tNode.setLocation(11);
+		tNode.incrementFrequency(1);
+
+		try
+		{
+			BTreeNode rNode = new BTreeNode(tNode.getBytes(), format);
+			BTest.testString("Round trip", rNode.toString(), tNode.toString());
+		}
+		catch (Exception e)
+		{
+			BTest.testString("Round trip", e.toString(), tNode.toString());
+		}
+
+		BTest.testBoolean("More keys than fixed degree", format.getKeyLimit() > NodeFormat.fixed(3).getKeyLimit(), true);
+
+		// fill until the page runs out of room
+		BTreeNode leaf = initNode(new long[] { 0 }, new int[] { -1, -1 }, -1, format, true);
+		long next = 1;
+		while (!leaf.isFull())
+		{
+			leaf.addObject(new TreeObject(next * next * next));
+			next++;
+		}
+		BTest.testBoolean("Full page encodes", encodes(leaf), true);
+	}
+
+	static boolean encodes(BTreeNode node)
+	{
+		try
+		{
+			return node.getBytes().length == node.getByteSize();
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
+	}
+
 	static void testSearch()
 	{
 		System.out.println("\nsearchNode Tests:");
@@ -102,6 +147,11 @@ public class Test_BTreeNode
 	}
 
 	static BTreeNode initNode(long[] keys, int[] children, int parent, int degree, boolean leaf)
+	{
+		return initNode(keys, children, parent, NodeFormat.fixed(degree), leaf);
+	}
+
+	static BTreeNode initNode(long[] keys, int[] children, int parent, NodeFormat format, boolean leaf)
 	{
 		ArrayList<TreeObject> ary = new ArrayList<>();
 		for (long l : keys)
@@ -115,6 +165,6 @@ public class Test_BTreeNode
 			cAry.add(i);
 		}
 
-		return new BTreeNode(ary, cAry, parent, degree, leaf);
+		return new BTreeNode(ary, cAry, parent, format, leaf);
 	}
 }
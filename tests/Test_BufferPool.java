@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test class for BufferPool, evicting dirty pages with CLOCK and keeping its
+ * location index consistent while probe runs wrap around the index
+ */
+public class Test_BufferPool
+{
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("Buffer pool Tests:\n");
+
+		testWrapAround();
+		testFrameIndex(8, 64, 20000);
+		testFrameIndex(64, 1000, 50000);
+
+		testEvictions(1, 300);
+		testEvictions(8, 300);
+		testEvictions(64, 2000);
+		testEvictions(512, 300); // never evicts
+
+		// fixed slot pages are searched in place, the other formats are decoded
+		testSlab(NodeFormat.fixed(3), 8, 3000);
+		testSlab(NodeFormat.fixed(0, 4096), 4, 20000);
+		testSlab(NodeFormat.fixed(7).toBPlusTree(), 16, 20000);
+		testSlab(NodeFormat.compressed(256), 16, 3000);
+		testSlab(NodeFormat.fixed(20).toBuffered(), 16, 20000);
+	}
+
+	/**
+	 * Builds a tree with a slab cache of a few pages, reopens it and checks every
+	 * search against a sorted map
+	 */
+	private static void testSlab(NodeFormat format, int cacheSize, int count) throws IOException
+	{
+		String name = "slab " + format + " cache=" + cacheSize + " adds=" + count;
+		TreeMap<Long, Integer> expected = new TreeMap<>();
+		Random rand = new Random(count);
+		CacheOptions options = new CacheOptions(cacheSize);
+		options.setMode(CacheOptions.Mode.SLAB);
+
+		BTree tree = new BTree(BTreeFile.createNewBTreeFile("dumps/slab.tree", format), 12, format, options);
+		for (int i = 0; i < count; ++i)
+		{
+			long key = rand.nextInt(count * 2);
+			tree.add(key);
+			expected.merge(key, 1, Integer::sum);
+		}
+		tree.close();
+
+		tree = new BTree(BTreeFile.openBTreeFile("dumps/slab.tree", BTree.METADATA_BYTE_SIZE), options);
+		boolean isSame = true;
+		for (long key = 0; key <= count * 2; ++key)
+		{
+			TreeObject obj = tree.search(key);
+			Integer frequency = expected.get(key);
+			isSame &= frequency == null ? obj == null
+					: obj != null && obj.getKey() == key && obj.getFrequency() == frequency;
+		}
+		BTest.testBoolean(name + " search", isSame, true);
+		tree.close();
+	}
+
+	/**
+	 * Fills the index with probe runs that wrap from the last slot to the first
+	 * and removes them one at a time
+	 */
+	private static void testWrapAround()
+	{
+		BufferPool.FrameIndex index = new BufferPool.FrameIndex(8); // 16 slots
+		int[] second = homedAt(index, 14, 2);
+		int[] last = homedAt(index, 15, 3);
+		int[] first = homedAt(index, 0, 2);
+		int[] order = { second[0], last[0], last[1], second[1], first[0], last[2], first[1] };
+
+		HashMap<Integer, Integer> expected = new HashMap<>();
+		for (int i = 0; i < order.length; ++i)
+		{
+			index.put(order[i], i);
+			expected.put(order[i], i);
+		}
+		BTest.testBoolean("wrapped runs", isSame(index, expected, order), true);
+
+		int[] removals = { last[0], second[0], first[0], last[2], second[1], last[1], first[1] };
+		boolean isSame = true;
+		for (int location : removals)
+		{
+			index.remove(location);
+			expected.remove(location);
+			isSame &= isSame(index, expected, order);
+		}
+		BTest.testBoolean("wrapped removals", isSame, true);
+	}
+
+	/**
+	 * Adds and removes random locations and checks the index against a map after
+	 * every change
+	 */
+	private static void testFrameIndex(int capacity, int locations, int changes)
+	{
+		BufferPool.FrameIndex index = new BufferPool.FrameIndex(capacity);
+		HashMap<Integer, Integer> expected = new HashMap<>();
+		ArrayList<Integer> held = new ArrayList<>();
+		int[] all = new int[locations];
+		for (int i = 0; i < locations; ++i)
+		{
+			all[i] = i;
+		}
+
+		Random rand = new Random(changes);
+		boolean isSame = true;
+		for (int i = 0; i < changes; ++i)
+		{
+			if (held.size() < capacity && rand.nextBoolean())
+			{
+				int location = rand.nextInt(locations);
+				if (!expected.containsKey(location))
+				{
+					index.put(location, i);
+					expected.put(location, i);
+					held.add(location);
+				}
+			}
+			else if (!held.isEmpty())
+			{
+				int location = held.remove(rand.nextInt(held.size()));
+				index.remove(location);
+				expected.remove(location);
+			}
+			else
+			{
+				index.remove(rand.nextInt(locations)); // not in the index
+			}
+			isSame &= isSame(index, expected, all);
+		}
+		BTest.testBoolean("index capacity=" + capacity + " changes=" + changes, isSame, true);
+	}
+
+	/**
+	 * Appends nodes through a pool of a few frames and updates them in random
+	 * order, so dirty pages are evicted and read back over and over
+	 */
+	private static void testEvictions(int frameCount, int nodeCount) throws IOException
+	{
+		String name = "frames=" + frameCount + " nodes=" + nodeCount;
+		NodeFormat format = NodeFormat.fixed(0, NodeFormat.MIN_BLOCK_SIZE);
+		BTreeFile file = BTreeFile.createNewBTreeFile("dumps/pool.tree", format);
+		BufferPool pool = new BufferPool(file, format, frameCount);
+
+		int[] locations = new int[nodeCount];
+		int[] frequencies = new int[nodeCount];
+		for (int i = 0; i < nodeCount; ++i)
+		{
+			BTreeNode node = new BTreeNode(new TreeObject(i), -1, -1, format, true);
+			pool.appendNode(node);
+			locations[i] = node.getLocation();
+			frequencies[i] = 1;
+		}
+
+		Random rand = new Random(nodeCount);
+		boolean isSame = true;
+		for (int i = 0; i < nodeCount * 10; ++i)
+		{
+			int n = rand.nextInt(nodeCount);
+			BTreeNode node = pool.getNode(locations[n]);
+			isSame &= node.getObject(0).getKey() == n && node.getObject(0).getFrequency() == frequencies[n];
+			node.setLocation(locations[n]);
+			node.incrementFrequency(0);
+			frequencies[n]++;
+			pool.writeNode(node);
+		}
+		BTest.testBoolean(name + " pool reads", isSame, true);
+		BTest.testInt(name + " used frames", pool.getUsedFrameCount(), Math.min(frameCount, nodeCount));
+		BTest.testBoolean(name + " misses", pool.getMissCount() > 0, frameCount < nodeCount);
+
+		pool.flush();
+		isSame = true;
+		for (int i = 0; i < nodeCount; ++i)
+		{
+			BTreeNode node = new BTreeNode(file.readNodeData(locations[i]), format);
+			isSame &= node.getObject(0).getKey() == i && node.getObject(0).getFrequency() == frequencies[i];
+		}
+		BTest.testBoolean(name + " file reads", isSame, true);
+		file.close();
+	}
+
+	/**
+	 * @return the first locations whose home is a slot of the index
+	 */
+	private static int[] homedAt(BufferPool.FrameIndex index, int slot, int count)
+	{
+		int[] locations = new int[count];
+		int found = 0;
+		for (int location = 0; found < count; ++location)
+		{
+			if (index.slot(location) == slot)
+			{
+				locations[found++] = location;
+			}
+		}
+		return locations;
+	}
+
+	/**
+	 * @return true if the index finds the frame of every location the map holds
+	 *         and no frame for the other locations
+	 */
+	private static boolean isSame(BufferPool.FrameIndex index, Map<Integer, Integer> expected, int[] locations)
+	{
+		for (int location : locations)
+		{
+			Integer frame = expected.get(location);
+			if (index.get(location) != (frame == null ? -1 : frame))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
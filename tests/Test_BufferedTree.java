@@ -0,0 +1,102 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test class for buffered trees, which keep pending counts in the inner nodes
+ * and move them down in batches
+ */
+public class Test_BufferedTree
+{
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("Buffered tree Tests:\n");
+
+		BTest.testException("small pages", IllegalArgumentException.class,
+				() -> NodeFormat.fixed(5).toBuffered() != null);
+		BTest.testException("compressed", IllegalArgumentException.class,
+				() -> NodeFormat.compressed(4096).toBuffered() != null);
+		BTest.testException("b+ tree", IllegalArgumentException.class,
+				() -> NodeFormat.fixed(64).toBuffered().toBPlusTree() != null);
+		NodeFormat buffered = NodeFormat.fixed(64).toBuffered();
+		BTest.testObject("meta data",
+				NodeFormat.fromMetaData(64, buffered.getFlags(), buffered.getPageSize()), buffered);
+
+		NodeFormat[] formats = { NodeFormat.fixed(6).toBuffered(), NodeFormat.fixed(20).toBuffered(),
+				NodeFormat.fixed(7, 4096).toBuffered() };
+		for (NodeFormat format : formats)
+		{
+			testTree(format, 5000, 0, false);
+			testTree(format, 5000, 0, true);
+			testTree(format, 5000, 5, false); // nodes are read back from disk
+		}
+	}
+
+	/**
+	 * Adds keys to a buffered tree, searches it while counts are still pending and
+	 * again after reopening, and checks it against a sorted map
+	 */
+	private static void testTree(NodeFormat format, int count, int cacheSize, boolean isAscending) throws IOException
+	{
+		String name = format + " adds=" + count + (isAscending ? " ascending" : " random")
+				+ (cacheSize > 0 ? " cache=" + cacheSize : "");
+		TreeMap<Long, Integer> expected = new TreeMap<>();
+		Random rand = new Random(count);
+
+		BTreeFile file = BTreeFile.createNewBTreeFile("dumps/buffered.tree", format);
+		BTree tree = cacheSize > 0 ? new BTree(file, 12, format, cacheSize) : new BTree(file, 12, format);
+		for (int i = 0; i < count; ++i)
+		{
+			long key = isAscending ? i / 3 : rand.nextInt(count);
+			tree.add(key);
+			expected.merge(key, 1, Integer::sum);
+		}
+		BTest.testBoolean(name + " pending search", isSame(tree, expected, count), true);
+		tree.close();
+
+		tree = new BTree(BTreeFile.openBTreeFile("dumps/buffered.tree", BTree.METADATA_BYTE_SIZE), 5);
+		BTest.testBoolean(name + " search", isSame(tree, expected, count), true);
+
+		Iterator<Map.Entry<Long, Integer>> entries = expected.entrySet().iterator();
+		boolean isSame = true;
+		for (TreeObject obj : tree)
+		{
+			Map.Entry<Long, Integer> entry = entries.hasNext() ? entries.next() : null;
+			isSame &= entry != null && entry.getKey() == obj.getKey() && entry.getValue() == obj.getFrequency();
+		}
+		BTest.testBoolean(name + " in order", isSame && !entries.hasNext(), true);
+
+		tree.dumpInOrderToFile("dumps/buffered.dump");
+		isSame = true;
+		try (BufferedReader in = new BufferedReader(new FileReader("dumps/buffered.dump")))
+		{
+			for (Map.Entry<Long, Integer> entry : expected.entrySet())
+			{
+				String line = DNAUtil.convertLongToString(entry.getKey(), 12) + ": " + entry.getValue();
+				isSame &= line.equals(in.readLine());
+			}
+			isSame &= in.readLine() == null;
+		}
+		BTest.testBoolean(name + " dump", isSame, true);
+		tree.close();
+	}
+
+	/**
+	 * @return true if every key of the map has its count in the tree and a key
+	 *         past them is not found
+	 */
+	private static boolean isSame(BTree tree, TreeMap<Long, Integer> expected, long missing)
+	{
+		boolean isSame = tree.search(missing) == null;
+		for (Map.Entry<Long, Integer> entry : expected.entrySet())
+		{
+			TreeObject obj = tree.search(entry.getKey());
+			isSame &= obj != null && obj.getFrequency() == entry.getValue();
+		}
+		return isSame;
+	}
+}
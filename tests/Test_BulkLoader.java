@@ -0,0 +1,87 @@
+import java.io.IOException;
+
+/**
+ * Test class for BTrees built bottom up by BTreeBulkLoader and exported from a
+ * CountTable
+ */
+public class Test_BulkLoader
+{
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("Bulk loader Tests:\n");
+
+		int[] counts = { 0, 1, 2, 3, 4, 7, 8, 100, 1000, 5000 };
+		for (int count : counts)
+		{
+			testLoad(NodeFormat.fixed(2), count);
+			testLoad(NodeFormat.fixed(5), count);
+			testLoad(NodeFormat.compressed(BTreeNode.getByteSize(8)), count);
+		}
+
+		testTable();
+	}
+
+	/**
+	 * Loads every third key below 3 * count, checks that the tree finds them after
+	 * reopening, and that keys added to it afterwards are found as well
+	 */
+	private static void testLoad(NodeFormat format, int count) throws IOException
+	{
+		String name = format + " keys=" + count;
+
+		BTreeFile f = BTreeFile.createNewBTreeFile("dumps/bulk.tree", format);
+		BTreeBulkLoader loader = new BTreeBulkLoader(f, 15, format, count);
+		for (int i = 0; i < count; ++i)
+		{
+			loader.add(3 * i, i + 1);
+		}
+		loader.finish().close();
+
+		BTree tree = new BTree(BTreeFile.openBTreeFile("dumps/bulk.tree", BTree.METADATA_BYTE_SIZE), 10);
+		boolean allFound = true;
+		for (int i = 0; i < count; ++i)
+		{
+			TreeObject obj = tree.search(3 * i);
+			allFound &= obj != null && obj.getFrequency() == i + 1 && tree.search(3 * i + 1) == null;
+		}
+		BTest.testBoolean(name + " finds loaded keys", allFound, true);
+
+		// the tree must take inserts like any other
+		for (int i = 0; i < count; ++i)
+		{
+			tree.add(3 * i + 1);
+			tree.add(3 * i);
+		}
+		allFound = true;
+		for (int i = 0; i < count; ++i)
+		{
+			allFound &= tree.search(3 * i).getFrequency() == i + 2 && tree.search(3 * i + 1).getFrequency() == 1;
+		}
+		BTest.testBoolean(name + " takes inserts", allFound, true);
+		tree.close();
+	}
+
+	/**
+	 * Counts keys in a table and checks its export against it
+	 */
+	private static void testTable() throws IOException
+	{
+		CountTable table = CountTable.inMemory(6);
+		for (int i = 0; i < 20000; ++i)
+		{
+			table.add((i * 7919L) % 1500);
+		}
+		BTest.testLong("table distinct count", table.getDistinctCount(), 1500);
+
+		NodeFormat format = NodeFormat.fixed(3);
+		BTree tree = table.exportToBTree(BTreeFile.createNewBTreeFile("dumps/table.tree", format), format);
+		boolean isSame = true;
+		for (long key = 0; key < 4096; ++key)
+		{
+			TreeObject obj = tree.search(key);
+			isSame &= table.getFrequency(key) == (obj == null ? 0 : obj.getFrequency());
+		}
+		BTest.testBoolean("table export", isSame, true);
+		tree.close();
+	}
+}
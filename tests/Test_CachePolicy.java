@@ -0,0 +1,137 @@
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+public class Test_CachePolicy
+{
+	private static final int CAPACITY = 100;
+
+	public static void main(String[] args)
+	{
+		System.out.println("Cache policy Tests:\n");
+
+		testPolicy("LRU", new Cache<Integer>(CAPACITY));
+		testPolicy("2Q", new TwoQueueCache<Integer>(CAPACITY, Integer::intValue));
+		testPolicy("CLOCK-Pro", new ClockProCache<Integer>(CAPACITY, Integer::intValue));
+		testPolicy("W-TinyLFU", new TinyLfuCache<Integer>(CAPACITY, Integer::intValue));
+
+		// a hot set that fits the cache, mixed with a scan of cold keys
+		System.out.println("\nScan resistance\n");
+		double lru = hitRatio(new Cache<Integer>(CAPACITY));
+		System.out.println(String.format("LRU hit ratio %.3f", lru));
+		testScan("2Q", new TwoQueueCache<Integer>(CAPACITY, Integer::intValue), lru);
+		testScan("CLOCK-Pro", new ClockProCache<Integer>(CAPACITY, Integer::intValue), lru);
+		testScan("W-TinyLFU", new TinyLfuCache<Integer>(CAPACITY, Integer::intValue), lru);
+
+		testBudget();
+	}
+
+	/**
+	 * Fills a cache limited by bytes with far more objects than a capacity would
+	 * allow and checks that it removes the same objects as an access ordered map
+	 */
+	private static void testBudget()
+	{
+		int count = 200000;
+		Cache<Integer> cache = new Cache<>(count / 2 * 8L, object -> 8);
+		LinkedHashMap<Integer, Integer> expected = new LinkedHashMap<>(16, 0.75f, true);
+		Random rand = new Random(count);
+		boolean isSame = true;
+		for (int i = 0; i < count * 2; ++i)
+		{
+			int key = rand.nextInt(count);
+			if (expected.get(key) != null)
+			{
+				Integer cached = cache.getObject(key);
+				isSame &= cached != null && cached == key;
+				continue;
+			}
+			isSame &= cache.getObject(key) == null;
+			cache.addObject(key);
+			expected.put(key, key);
+			Integer removed = cache.removeOverBudget();
+			if (expected.size() > count / 2)
+			{
+				Integer eldest = expected.keySet().iterator().next();
+				expected.remove(eldest);
+				isSame &= eldest.equals(removed);
+			}
+			isSame &= removed == null || expected.size() == count / 2;
+			isSame &= cache.removeOverBudget() == null && cache.size() == expected.size();
+		}
+		BTest.testBoolean("budget removes least recently used", isSame, true);
+		BTest.testInt("budget size", cache.size(), count / 2);
+	}
+
+	/**
+	 * Checks that a cache never holds more than its capacity and that every
+	 * added object is either still cached or was handed back exactly once
+	 */
+	private static void testPolicy(String name, BoundedCache<Integer> cache)
+	{
+		HashSet<Integer> resident = new HashSet<>();
+		Random rand = new Random(7);
+		boolean isConsistent = true;
+
+		for (int i = 0; i < 20000 && isConsistent; ++i)
+		{
+			int key = rand.nextInt(4) == 0 ? rand.nextInt(50) : rand.nextInt(1000);
+			if (cache.getObject(key) == null)
+			{
+				isConsistent &= !resident.contains(key);
+				Integer removed = cache.addObject(key);
+				resident.add(key);
+				if (removed != null)
+				{
+					isConsistent &= resident.remove(removed);
+				}
+			}
+			isConsistent &= cache.size() == resident.size() && cache.size() <= CAPACITY;
+		}
+		BTest.testBoolean(name + " keeps every object or hands it back", isConsistent, true);
+
+		BTest.testInt(name + " removeObject", cache.removeObject(resident.iterator().next()) == null ? 0 : 1, 1);
+		int drained = 0;
+		while (!cache.isEmpty())
+		{
+			cache.removeFirst();
+			drained++;
+		}
+		BTest.testInt(name + " drains", drained, resident.size() - 1);
+		BTest.testBoolean(name + " removeFirst when empty", cache.removeFirst() == null, true);
+	}
+
+	private static void testScan(String name, BoundedCache<Integer> cache, double lruHitRatio)
+	{
+		double hitRatio = hitRatio(cache);
+		System.out.println(String.format("%s hit ratio %.3f", name, hitRatio));
+		BTest.testBoolean(name + " beats LRU under a scan", hitRatio > lruHitRatio, true);
+	}
+
+	/**
+	 * @return the hit ratio of a cache for 80 hot keys accessed in between a
+	 *         scan of never repeated keys
+	 */
+	private static double hitRatio(BoundedCache<Integer> cache)
+	{
+		Random rand = new Random(42);
+		int scanKey = 1000;
+		int hits = 0;
+		int lookups = 0;
+
+		for (int i = 0; i < 50000; ++i)
+		{
+			int key = i % 3 == 0 ? rand.nextInt(80) : scanKey++;
+			lookups++;
+			if (cache.getObject(key) != null)
+			{
+				hits++;
+			}
+			else
+			{
+				cache.addObject(key);
+			}
+		}
+		return (double) hits / lookups;
+	}
+}
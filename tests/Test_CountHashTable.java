@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test class for the off-heap count hash table and its sharded form
+ */
+public class Test_CountHashTable
+{
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("Count hash table Tests:\n");
+
+		// starts small so it resizes several times
+		CountHashTable table = new CountHashTable(4);
+		HashMap<Long, Integer> expected = new HashMap<>();
+		Random rand = new Random(3);
+		for (int i = 0; i < 200000; ++i)
+		{
+			long key = rand.nextInt(4) == 0 ? rand.nextInt(100) : rand.nextLong() & ((1L << 40) - 1);
+			table.add(key);
+			expected.merge(key, 1, Integer::sum);
+		}
+		BTest.testInt("size", table.size(), expected.size());
+
+		boolean isSame = true;
+		for (Long key : expected.keySet())
+		{
+			isSame &= table.search(key) == expected.get(key);
+		}
+		BTest.testBoolean("counts", isSame, true);
+		BTest.testInt("missing key", table.search(1L << 41), 0);
+
+		table.sort();
+		boolean isSorted = true;
+		for (int i = 1; i < table.size(); ++i)
+		{
+			isSorted &= table.getKey(i - 1) < table.getKey(i);
+		}
+		BTest.testBoolean("sorted", isSorted, true);
+		BTest.testInt("sorted count", table.getFrequency(0), expected.get(table.getKey(0)));
+		BTest.testException("add after sort", IllegalStateException.class, () -> {
+			table.add(5);
+			return true;
+		});
+
+		testSharded(1);
+		testSharded(8);
+	}
+
+	/**
+	 * Counts keys of sequence length 14 in shards and checks the exported tree
+	 */
+	private static void testSharded(int shardCount) throws IOException
+	{
+		ShardedCountHashTable table = new ShardedCountHashTable(14, shardCount);
+		TreeMap<Long, Integer> expected = new TreeMap<>();
+		Random rand = new Random(5);
+		for (int i = 0; i < 100000; ++i)
+		{
+			long key = rand.nextInt(1 << 28) % 20000 * 13421; // spread over all prefixes
+			table.add(key);
+			expected.merge(key, 1, Integer::sum);
+		}
+
+		NodeFormat format = NodeFormat.fixed(4);
+		BTree tree = table.exportToBTree(BTreeFile.createNewBTreeFile("dumps/hash.tree", format), format);
+		BTest.testLong(shardCount + " shards distinct count", table.getDistinctCount(), expected.size());
+
+		boolean isSame = true;
+		for (Long key : expected.keySet())
+		{
+			TreeObject obj = tree.search(key);
+			isSame &= obj != null && obj.getFrequency() == expected.get(key);
+		}
+		BTest.testBoolean(shardCount + " shards export", isSame, true);
+		tree.close();
+	}
+}
@@ -0,0 +1,163 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test class for CountStore, counting in small memtables so keys are spread
+ * over many runs and levels
+ */
+public class Test_CountStore
+{
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("Count store Tests:\n");
+
+		BTest.testBoolean("not a store", CountStore.isCountStoreFile("dumps/missing.store"), false);
+
+		testStore(12, 1, 200);
+		testStore(12, 50, 20000);
+		testStore(31, 200, 50000);
+		testStore(5, 64, 30000); // few distinct keys, every run holds most of them
+
+		testIngestTwice();
+	}
+
+	/**
+	 * Ingests a gbk file into a new store with GeneBankCreateBTree and a second
+	 * one into the same store with --append, each in a JVM of its own, and checks
+	 * the counts of both files
+	 */
+	private static void testIngestTwice() throws IOException
+	{
+		String first = new File("res/test1.gbk").getAbsolutePath();
+		String second = new File("res/test2.gbk").getAbsolutePath();
+		String append = "--append=test1.gbk.btree.data.7.127";
+		BTest.testInt("ingest", createBTree("0", "0", first, "7", "--engine=lsm"), 0);
+		BTest.testInt("ingest appended", createBTree("0", "0", second, "7", append), 0);
+		BTest.testInt("append other length", createBTree("0", "0", second, "6", append), 255);
+		BTest.testInt("append with btree", createBTree("0", "0", second, "7", append, "--engine=btree"), 255);
+
+		TreeMap<Long, Integer> expected = new TreeMap<>();
+		for (String fileName : new String[] { first, second })
+		{
+			GeneBankFile gbf = new GeneBankFile(fileName, 7);
+			while (gbf.hasNextDataBlock())
+			{
+				while (gbf.hasNextDNA())
+				{
+					expected.merge(gbf.nextDNAasLong(), 1, Integer::sum);
+				}
+			}
+		}
+
+		CountStore store = CountStore.open("dumps/test1.gbk.btree.data.7.127");
+		BTest.testBoolean("ingested twice", isSame(store, expected), true);
+		store.close();
+	}
+
+	/**
+	 * Runs GeneBankCreateBTree in the dumps directory
+	 *
+	 * @return the exit status
+	 */
+	private static int createBTree(String... args) throws IOException
+	{
+		String[] command = new String[args.length + 4];
+		command[0] = System.getProperty("java.home") + "/bin/java";
+		command[1] = "-cp";
+		command[2] = System.getProperty("java.class.path");
+		command[3] = "GeneBankCreateBTree";
+		System.arraycopy(args, 0, command, 4, args.length);
+		Process process = new ProcessBuilder(command).directory(new File("dumps")).redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+		try
+		{
+			return process.waitFor();
+		}
+		catch (InterruptedException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Adds random keys, searching while runs are being written, then reopens the
+	 * store, adds as many again and checks the counts and the dump
+	 */
+	private static void testStore(int sequenceLength, int memtableKeys, int count) throws IOException
+	{
+		String name = "k=" + sequenceLength + " memtable=" + memtableKeys + " adds=" + count;
+		TreeMap<Long, Integer> expected = new TreeMap<>();
+		Random rand = new Random(count);
+		long range = Math.min(1L << (2 * sequenceLength), count);
+		long stride = (1L << (2 * sequenceLength)) / range; // keys spread over the key space
+
+		CountStore store = CountStore.create("dumps/counts.store", sequenceLength, memtableKeys);
+		boolean isSame = true;
+		for (int i = 0; i < count; ++i)
+		{
+			long key = (long) (rand.nextDouble() * range) * stride;
+			store.add(key);
+			expected.merge(key, 1, Integer::sum);
+			if (i % (count / 10) == 0)
+			{
+				isSame &= store.getFrequency(key) == expected.get(key);
+			}
+		}
+		BTest.testBoolean(name + " ingest search", isSame, true);
+		store.close();
+
+		store = CountStore.open("dumps/counts.store", memtableKeys);
+		BTest.testInt(name + " sequence length", store.getSequenceLength(), sequenceLength);
+		BTest.testBoolean(name + " reopened", isSame(store, expected), true);
+		for (int i = 0; i < count; ++i)
+		{
+			long key = (long) (rand.nextDouble() * range) * stride;
+			store.add(key);
+			expected.merge(key, 1, Integer::sum);
+		}
+		store.flush();
+		BTest.testBoolean(name + " merged levels", store.getRunCount() < CountStore.LEVEL0_RUN_LIMIT + 4, true);
+		store.close();
+
+		store = CountStore.open("dumps/counts.store");
+		BTest.testBoolean(name + " search", isSame(store, expected), true);
+
+		store.dumpInOrderToFile("dumps/counts.dump");
+		isSame = true;
+		try (BufferedReader in = new BufferedReader(new FileReader("dumps/counts.dump")))
+		{
+			for (Map.Entry<Long, Integer> entry : expected.entrySet())
+			{
+				String line = DNAUtil.convertLongToString(entry.getKey(), sequenceLength) + ": " + entry.getValue();
+				isSame &= line.equals(in.readLine());
+			}
+			isSame &= in.readLine() == null;
+		}
+		BTest.testBoolean(name + " dump", isSame, true);
+		store.close();
+	}
+
+	/**
+	 * @return true if every key of the map has its count in the store and the
+	 *         keys next to them are not found
+	 */
+	private static boolean isSame(CountStore store, TreeMap<Long, Integer> expected)
+	{
+		boolean isSame = true;
+		for (Map.Entry<Long, Integer> entry : expected.entrySet())
+		{
+			long key = entry.getKey();
+			isSame &= store.getFrequency(key) == entry.getValue();
+			if (!expected.containsKey(key + 1))
+			{
+				isSame &= store.getFrequency(key + 1) == 0;
+			}
+		}
+		return isSame;
+	}
+}
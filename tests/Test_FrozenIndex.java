@@ -0,0 +1,92 @@
+import java.io.IOException;
+
+/**
+ * Test class for freezing BTrees into FrozenIndex files
+ */
+public class Test_FrozenIndex
+{
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("Frozen index Tests:\n");
+
+		int[] counts = { 0, 1, 15, 16, 17, 129, 5000 };
+		for (int count : counts)
+		{
+			testFreeze(10, count, 0, false); // keys stored as ints
+			testFreeze(20, count, 0, false);
+			testFreeze(10, count, 1, false); // learned model
+			testFreeze(20, count, FrozenIndex.DEFAULT_ERROR_BOUND, false);
+			testFreeze(10, count, 0, true);
+			testFreeze(20, count, 0, true);
+		}
+		testFreezeTable();
+	}
+
+	/**
+	 * Freezes a count table, which is read in order of key like a tree
+	 */
+	private static void testFreezeTable() throws IOException
+	{
+		CountTable table = CountTable.create("dumps/freeze.table", 7);
+		for (int i = 0; i < 3000; ++i)
+		{
+			table.add((i * 37L) % 5000);
+		}
+		long distinct = table.getDistinctCount();
+		BTest.testLong("table freeze", FrozenIndex.freeze(table, 7, "dumps/freeze.frozen", 0, false), distinct);
+
+		FrozenIndex index = FrozenIndex.open("dumps/freeze.frozen");
+		boolean isSame = true;
+		for (long key = 0; key < 1 << 14; ++key)
+		{
+			isSame &= index.getFrequency(key) == table.getFrequency(key);
+		}
+		BTest.testBoolean("table lookups", isSame, true);
+		index.close();
+		table.close();
+	}
+
+	/**
+	 * Freezes a tree of every fifth key, every seventh key also skipping ahead, and
+	 * checks every key around them
+	 */
+	private static void testFreeze(int sequenceLength, int count, int errorBound, boolean isEytzinger)
+			throws IOException
+	{
+		String name = "k=" + sequenceLength + " keys=" + count + " error=" + errorBound
+				+ (isEytzinger ? " eytzinger" : "");
+		long step = sequenceLength > 16 ? 5L << 32 : 5; // wide keys need all 64 bits
+
+		NodeFormat format = NodeFormat.fixed(3);
+		BTreeBulkLoader loader = new BTreeBulkLoader(BTreeFile.createNewBTreeFile("dumps/freeze.tree", format),
+				sequenceLength, format, count);
+		for (int i = 0; i < count; ++i)
+		{
+			loader.add(getKey(step, i), i + 1);
+		}
+		BTree tree = loader.finish();
+		BTest.testLong(name + " freeze", FrozenIndex.freeze(tree, "dumps/freeze.frozen", errorBound, isEytzinger), count);
+		tree.close();
+
+		FrozenIndex index = FrozenIndex.open("dumps/freeze.frozen");
+		boolean isSame = index.getFrequency(0) == 0;
+		for (int i = 0; i < count; ++i)
+		{
+			long key = getKey(step, i);
+			isSame &= index.getFrequency(key) == i + 1 && index.getFrequency(key + 1) == 0
+					&& index.getFrequency(key - 1) == 0 && index.indexOf(key) == i;
+		}
+		BTest.testBoolean(name + " lookups", isSame, true);
+		BTest.testBoolean(name + " past the end", index.getFrequency(getKey(step, count)) == 0, true);
+		index.close();
+	}
+
+	/**
+	 * @return the key at position i of a tree, unevenly spaced so a model needs
+	 *         several segments
+	 */
+	private static long getKey(long step, int i)
+	{
+		return 2 + step * i + step * 100 * (i / 7);
+	}
+}
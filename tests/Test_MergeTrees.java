@@ -0,0 +1,158 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test class for merging trees into one with MergingIterator,
+ * BTreeBulkLoader.merge and GeneBankMerge
+ */
+public class Test_MergeTrees
+{
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("Merge Tests:\n");
+
+		List<TreeObject> a = Arrays.asList(new TreeObject(1, 2), new TreeObject(4, 1), new TreeObject(9, 3));
+		List<TreeObject> b = Arrays.asList(new TreeObject(4, 5), new TreeObject(7, 1));
+		List<TreeObject> empty = new ArrayList<>();
+		StringBuilder merged = new StringBuilder();
+		for (MergingIterator it = new MergingIterator(Arrays.asList(a.iterator(), empty.iterator(), b.iterator())); it
+				.hasNext();)
+		{
+			TreeObject obj = it.next();
+			merged.append(obj.getKey()).append(':').append(obj.getFrequency()).append(' ');
+		}
+		BTest.testString("iterators", merged.toString(), "1:2 4:6 7:1 9:3 ");
+
+		BTree shorter = new BTree(BTreeFile.createNewBTreeFile("dumps/merge0.tree", NodeFormat.fixed(4)), 11,
+				NodeFormat.fixed(4));
+		BTree longer = new BTree(BTreeFile.createNewBTreeFile("dumps/merge1.tree", NodeFormat.fixed(4)), 12,
+				NodeFormat.fixed(4));
+		BTreeFile target = BTreeFile.createNewBTreeFile("dumps/merged.tree", NodeFormat.fixed(4));
+		BTest.testException("sequence lengths", IllegalArgumentException.class,
+				() -> BTreeBulkLoader.merge(Arrays.asList(shorter, longer), target, NodeFormat.fixed(4)) != null);
+		shorter.close();
+		longer.close();
+
+		NodeFormat[] formats = { NodeFormat.fixed(2), NodeFormat.compressed(256), NodeFormat.fixed(7).toBPlusTree(),
+				NodeFormat.fixed(20).toBuffered() };
+		testMerge(formats, NodeFormat.fixed(3), 1, 3000);
+		testMerge(formats, NodeFormat.fixed(3), 4, 0);
+		testMerge(formats, NodeFormat.compressed(512), 4, 3000);
+		testMerge(formats, NodeFormat.fixed(16), 4, 20000);
+		testMergeTable();
+	}
+
+	/**
+	 * Merges a count table file and a tree file with GeneBankMerge, the table is
+	 * read in order of key like a tree
+	 */
+	private static void testMergeTable() throws IOException
+	{
+		TreeMap<Long, Integer> expected = new TreeMap<>();
+		Random rand = new Random(8);
+		CountTable table = CountTable.create("dumps/merge.table", 8);
+		BTree tree = new BTree(BTreeFile.createNewBTreeFile("dumps/merge0.tree", NodeFormat.fixed(5)), 8,
+				NodeFormat.fixed(5));
+		for (int i = 0; i < 6000; ++i)
+		{
+			long key = rand.nextInt(1 << 16);
+			if (i % 2 == 0)
+				table.add(key);
+			else
+				tree.add(key);
+			expected.merge(key, 1, Integer::sum);
+		}
+		table.close();
+		tree.close();
+
+		GeneBankMerge.main(new String[] { "dumps/merged.tree", "dumps/merge.table", "dumps/merge0.tree" });
+		tree = new BTree(BTreeFile.openBTreeFile("dumps/merged.tree", BTree.METADATA_BYTE_SIZE), 5);
+		BTest.testObject("table merge format", tree.getFormat(), NodeFormat.fixed(5));
+		Iterator<Map.Entry<Long, Integer>> entries = expected.entrySet().iterator();
+		boolean isSame = true;
+		for (TreeObject obj : tree)
+		{
+			Map.Entry<Long, Integer> entry = entries.hasNext() ? entries.next() : null;
+			isSame &= entry != null && entry.getKey() == obj.getKey() && entry.getValue() == obj.getFrequency();
+		}
+		BTest.testBoolean("table merge in order", isSame && !entries.hasNext(), true);
+		tree.close();
+	}
+
+	/**
+	 * Fills trees of several formats with overlapping random keys, merges them
+	 * and checks the merged tree against a sorted map
+	 */
+	private static void testMerge(NodeFormat[] formats, NodeFormat format, int treeCount, int count)
+			throws IOException
+	{
+		String name = format + " trees=" + treeCount + " adds=" + count;
+		TreeMap<Long, Integer> expected = new TreeMap<>();
+		Random rand = new Random(count);
+
+		ArrayList<BTree> trees = new ArrayList<>();
+		for (int i = 0; i < treeCount; ++i)
+		{
+			NodeFormat treeFormat = formats[i % formats.length];
+			BTree tree = new BTree(BTreeFile.createNewBTreeFile("dumps/merge" + i + ".tree", treeFormat), 12,
+					treeFormat);
+			for (int j = 0; j < count / treeCount; ++j)
+			{
+				long key = rand.nextInt(count);
+				tree.add(key);
+				expected.merge(key, 1, Integer::sum);
+			}
+			tree.close();
+			trees.add(new BTree(BTreeFile.openBTreeFile("dumps/merge" + i + ".tree", BTree.METADATA_BYTE_SIZE), 5));
+		}
+
+		BTree tree = BTreeBulkLoader.merge(trees, BTreeFile.createNewBTreeFile("dumps/merged.tree", format), format);
+		tree.close();
+		for (BTree input : trees)
+		{
+			input.close();
+		}
+
+		tree = new BTree(BTreeFile.openBTreeFile("dumps/merged.tree", BTree.METADATA_BYTE_SIZE), 5);
+		BTest.testInt(name + " sequence length", tree.getSequenceLength(), 12);
+		boolean allFound = tree.search(count) == null;
+		for (Map.Entry<Long, Integer> entry : expected.entrySet())
+		{
+			TreeObject obj = tree.search(entry.getKey());
+			allFound &= obj != null && obj.getFrequency() == entry.getValue();
+		}
+		BTest.testBoolean(name + " search", allFound, true);
+
+		Iterator<Map.Entry<Long, Integer>> entries = expected.entrySet().iterator();
+		boolean isSame = true;
+		for (TreeObject obj : tree)
+		{
+			Map.Entry<Long, Integer> entry = entries.hasNext() ? entries.next() : null;
+			isSame &= entry != null && entry.getKey() == obj.getKey() && entry.getValue() == obj.getFrequency();
+		}
+		BTest.testBoolean(name + " in order", isSame && !entries.hasNext(), true);
+
+		// the dump climbs the parent pointers the loader wrote
+		tree.dumpInOrderToFile("dumps/merged.dump");
+		isSame = true;
+		try (BufferedReader in = new BufferedReader(new FileReader("dumps/merged.dump")))
+		{
+			for (Map.Entry<Long, Integer> entry : expected.entrySet())
+			{
+				String line = DNAUtil.convertLongToString(entry.getKey(), 12) + ": " + entry.getValue();
+				isSame &= line.equals(in.readLine());
+			}
+			isSame &= in.readLine() == null;
+		}
+		BTest.testBoolean(name + " dump", isSame, true);
+		tree.close();
+	}
+}
@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Test class for NodeFlusher, reading nodes through the flusher while they are
+ * queued or being written and checking the file it leaves behind
+ */
+public class Test_NodeFlusher
+{
+	private static final NodeFormat FORMAT = NodeFormat.fixed(3);
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		System.out.println("Node flusher Tests:\n");
+
+		testReadThrough();
+		testRuns();
+
+		testSameAsSynchronous(1, 3000);
+		testSameAsSynchronous(4, 20000);
+		testSameAsSynchronous(64, 20000);
+	}
+
+	/**
+	 * Holds the flusher in the middle of a write and reads nodes that are being
+	 * written, queued, and queued again while the queue is full
+	 */
+	private static void testReadThrough() throws IOException, InterruptedException
+	{
+		BTreeFile file = BTreeFile.createNewBTreeFile("dumps/flusher.tree", FORMAT);
+		int[] locations = new int[3];
+		for (int i = 0; i < locations.length; ++i)
+		{
+			locations[i] = file.allocateNodePosition();
+		}
+
+		HeldFlusher flusher = new HeldFlusher(file, 2);
+		byte[] written = enqueue(flusher, locations[0], 1);
+		flusher.awaitWrite();
+		BTest.testBoolean("being written", Arrays.equals(flusher.getPending(locations[0]), written), true);
+		BTest.testBoolean("being written not in file", Arrays.equals(file.readNodeData(locations[0]), written),
+				false);
+
+		byte[] replaced = enqueue(flusher, locations[0], 2);
+		byte[] queued = enqueue(flusher, locations[1], 3);
+		BTest.testBoolean("queued", Arrays.equals(flusher.getPending(locations[1]), queued), true);
+		BTest.testBoolean("queued over being written", Arrays.equals(flusher.getPending(locations[0]), replaced),
+				true);
+
+		// the queue is full, a queued location is replaced without waiting
+		byte[] requeued = leaf(locations[0], 4).getBytes();
+		Thread requeue = enqueueOnThread(flusher, locations[0], 4);
+		requeue.join(5000);
+		BTest.testBoolean("requeue while full", requeue.isAlive(), false);
+		BTest.testBoolean("requeued", Arrays.equals(flusher.getPending(locations[0]), requeued), true);
+
+		byte[] waited = leaf(locations[2], 5).getBytes();
+		Thread waiting = enqueueOnThread(flusher, locations[2], 5);
+		waiting.join(200);
+		BTest.testBoolean("enqueue waits while full", waiting.isAlive(), true);
+
+		flusher.isHeld = false;
+		flusher.release();
+		waiting.join(5000);
+		BTest.testBoolean("enqueue after write", waiting.isAlive(), false);
+
+		flusher.flush();
+		BTest.testBoolean("flushed", flusher.getPending(locations[0]) == null
+				&& flusher.getPending(locations[1]) == null && flusher.getPending(locations[2]) == null, true);
+		BTest.testBoolean("flushed data", Arrays.equals(file.readNodeData(locations[0]), requeued)
+				&& Arrays.equals(file.readNodeData(locations[1]), queued)
+				&& Arrays.equals(file.readNodeData(locations[2]), waited), true);
+		flusher.close();
+		file.close();
+	}
+
+	/**
+	 * Queues a long run of consecutive nodes and a few scattered ones behind a
+	 * held write, so they are written together in runs of at most MAX_RUN_LENGTH
+	 */
+	private static void testRuns() throws IOException
+	{
+		BTreeFile file = BTreeFile.createNewBTreeFile("dumps/flusher.tree", FORMAT);
+		int[] locations = new int[171];
+		for (int i = 0; i < locations.length; ++i)
+		{
+			locations[i] = file.allocateNodePosition();
+		}
+
+		HeldFlusher flusher = new HeldFlusher(file, 256);
+		enqueue(flusher, locations[0], 0);
+		flusher.awaitWrite();
+
+		HashMap<Integer, byte[]> expected = new HashMap<>();
+		for (int i = 1; i < locations.length; ++i)
+		{
+			if (i <= 150 || i % 2 == 0) // 150 consecutive nodes, then every other one
+			{
+				expected.put(locations[i], enqueue(flusher, locations[i], i));
+			}
+		}
+		flusher.isHeld = false;
+		flusher.release();
+		flusher.flush();
+
+		BTest.testLong("nodes written", flusher.getWrittenCount(), 1 + 150 + 10);
+		BTest.testLong("runs written", flusher.getWriteCount(), 1 + 3 + 10); // 150 = 64 + 64 + 22
+		boolean isSame = true;
+		for (int location : expected.keySet())
+		{
+			isSame &= Arrays.equals(file.readNodeData(location), expected.get(location));
+		}
+		BTest.testBoolean("runs data", isSame, true);
+		flusher.close();
+		file.close();
+	}
+
+	/**
+	 * Builds the same tree with and without a write back queue, flushing the
+	 * cache half way, and checks that the files are identical
+	 */
+	private static void testSameAsSynchronous(int queueSize, int count) throws IOException
+	{
+		String name = "queue=" + queueSize + " adds=" + count;
+		buildTree("dumps/synchronous.tree", 0, count);
+		buildTree("dumps/flushed.tree", queueSize, count);
+
+		byte[] expected = Files.readAllBytes(Paths.get("dumps/synchronous.tree"));
+		byte[] flushed = Files.readAllBytes(Paths.get("dumps/flushed.tree"));
+		BTest.testBoolean(name + " same file", Arrays.equals(flushed, expected), true);
+	}
+
+	/**
+	 * Adds random keys to a new tree with a small cache
+	 */
+	private static void buildTree(String fileName, int queueSize, int count) throws IOException
+	{
+		CacheOptions options = new CacheOptions(8);
+		options.setWriteBackQueueSize(queueSize);
+		BTree tree = new BTree(BTreeFile.createNewBTreeFile(fileName, FORMAT), 12, FORMAT, options);
+		Random rand = new Random(count);
+		for (int i = 0; i < count; ++i)
+		{
+			tree.add(rand.nextInt(count));
+			if (i == count / 2)
+			{
+				tree.writeCacheToDisk();
+			}
+		}
+		tree.close();
+	}
+
+	/**
+	 * Queues a leaf holding a key at a location
+	 *
+	 * @return the data of the queued node
+	 */
+	private static byte[] enqueue(NodeFlusher flusher, int location, long key) throws IOException
+	{
+		BTreeNode node = leaf(location, key);
+		flusher.enqueue(node);
+		return node.getBytes();
+	}
+
+	/**
+	 * Queues a leaf holding a key at a location on a thread of its own
+	 *
+	 * @return the started thread
+	 */
+	private static Thread enqueueOnThread(NodeFlusher flusher, int location, long key)
+	{
+		Thread thread = new Thread(() -> {
+			try
+			{
+				enqueue(flusher, location, key);
+			}
+			catch (IOException e)
+			{
+				System.err.println(e.getMessage());
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * @return a leaf holding a key at a location
+	 */
+	private static BTreeNode leaf(int location, long key)
+	{
+		BTreeNode node = new BTreeNode(new TreeObject(key), -1, -1, FORMAT, true);
+		node.setLocation(location);
+		return node;
+	}
+
+	/**
+	 * A flusher whose thread waits before every write while it is held, so nodes
+	 * stay in the middle of being written until the test releases them
+	 */
+	private static class HeldFlusher extends NodeFlusher
+	{
+		volatile boolean isHeld = true;
+		private Semaphore entered = new Semaphore(0);
+		private Semaphore released = new Semaphore(0);
+
+		HeldFlusher(BTreeFile file, int capacity)
+		{
+			super(file, capacity);
+		}
+
+		@Override
+		int write(HashMap<Integer, byte[]> nodes)
+		{
+			if (isHeld)
+			{
+				entered.release();
+				released.acquireUninterruptibly();
+			}
+			return super.write(nodes);
+		}
+
+		/**
+		 * Waits until the flusher thread is held in a write
+		 */
+		void awaitWrite()
+		{
+			entered.acquireUninterruptibly();
+		}
+
+		/**
+		 * Lets the held write go on
+		 */
+		void release()
+		{
+			released.release();
+		}
+	}
+}
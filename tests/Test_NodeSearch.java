@@ -0,0 +1,41 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test class for ranking keys in a node with NodeSearch
+ */
+public class Test_NodeSearch
+{
+	public static void main(String[] args)
+	{
+		System.out.println("Node search Tests (vectorized: " + NodeSearch.isVectorized() + "):\n");
+
+		Random rand = new Random(5);
+		int[] counts = { 0, 1, 2, 3, 15, 16, 17, 63, 64, 65, 255, 1023 };
+		for (int count : counts)
+		{
+			long[] keys = new long[count + 8]; // spare room as in a node
+			for (int i = 0; i < count; ++i)
+			{
+				keys[i] = rand.nextInt(3 * count + 1);
+			}
+			Arrays.sort(keys, 0, count);
+
+			boolean isSame = true;
+			for (long key = -1; key <= 3 * count + 2; ++key)
+			{
+				int expected = 0;
+				while (expected < count && keys[expected] < key)
+				{
+					expected++;
+				}
+				isSame &= NodeSearch.rank(keys, count, Math.max(key, 0)) == (key < 0 ? 0 : expected);
+			}
+			BTest.testBoolean("rank of " + count + " keys", isSame, true);
+		}
+
+		long[] wide = { 0, 1L << 40, (1L << 62) - 1 };
+		BTest.testInt("rank of wide keys", NodeSearch.rank(wide, 3, 1L << 61), 2);
+		BTest.testInt("rank past the end", NodeSearch.rank(wide, 3, 1L << 62), 3);
+	}
+}
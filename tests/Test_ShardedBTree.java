@@ -0,0 +1,119 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test class for ShardedBTree, building the shards on their threads and
+ * searching them one key and one batch at a time
+ */
+public class Test_ShardedBTree
+{
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("Sharded tree Tests:\n");
+
+		BTest.testBoolean("not a manifest", ShardedBTree.isShardedBTreeFile("dumps/missing.shards"), false);
+		BTest.testInt("cache share", new CacheOptions(100).share(16).getSize(), 6);
+		BTest.testInt("smallest cache share", new CacheOptions(10).share(16).getSize(), 1);
+
+		testShards(NodeFormat.fixed(3), 1, null, 2000);
+		testShards(NodeFormat.fixed(3), 4, null, 2000);
+		testShards(NodeFormat.compressed(256), 16, new CacheOptions(64), 20000);
+		testShards(NodeFormat.fixed(7).toBPlusTree(), 64, new CacheOptions(640), 20000);
+		testShards(NodeFormat.fixed(20).toBuffered(), 16, null, 20000);
+		testShards(NodeFormat.fixed(4), 256, null, 300); // most shards are empty
+
+		BTest.testBoolean("negative shard count", isRefused(12, -4), true);
+		BTest.testBoolean("shard count not a power of two", isRefused(12, 12), true);
+		BTest.testBoolean("more shards than keys", isRefused(2, 32), true);
+		BTest.testBoolean("sequence length", isRefused(40, 4), true);
+	}
+
+	/**
+	 * @return true if a manifest of the header values is refused with an
+	 *         IOException when opened
+	 */
+	private static boolean isRefused(int sequenceLength, int shardCount) throws IOException
+	{
+		ShardedBTree.create("dumps/sharded.tree", 12, 1, NodeFormat.fixed(3), false, null).close();
+		try (RandomAccessFile raf = new RandomAccessFile("dumps/sharded.tree", "rw"))
+		{ // overwrite the header values after the magic number
+			raf.seek(4);
+			raf.writeInt(sequenceLength);
+			raf.writeInt(shardCount);
+		}
+		try
+		{
+			ShardedBTree.open("dumps/sharded.tree", false, null).close();
+			return false;
+		}
+		catch (IOException e)
+		{
+			return e.getMessage().endsWith("has an invalid header");
+		}
+	}
+
+	/**
+	 * Adds random keys to a sharded tree, reopens it and checks it against a
+	 * sorted map
+	 */
+	private static void testShards(NodeFormat format, int shardCount, CacheOptions options, int count)
+			throws IOException
+	{
+		String name = format + " shards=" + shardCount + " adds=" + count;
+		TreeMap<Long, Integer> expected = new TreeMap<>();
+		Random rand = new Random(count);
+
+		ShardedBTree tree = ShardedBTree.create("dumps/sharded.tree", 12, shardCount, format, false, options);
+		for (int i = 0; i < count; ++i)
+		{
+			long key = (long) (rand.nextDouble() * count) * ((1L << 24) / count); // spread over every prefix
+			tree.add(key);
+			expected.merge(key, 1, Integer::sum);
+		}
+		tree.close();
+
+		tree = ShardedBTree.open("dumps/sharded.tree", false, options);
+		BTest.testInt(name + " shard count", tree.getShardCount(), shardCount);
+		BTest.testInt(name + " sequence length", tree.getSequenceLength(), 12);
+
+		boolean isSame = true;
+		long[] keys = new long[expected.size() * 2];
+		int index = 0;
+		for (Map.Entry<Long, Integer> entry : expected.entrySet())
+		{
+			isSame &= tree.getFrequency(entry.getKey()) == entry.getValue();
+			keys[index++] = entry.getKey();
+			keys[index++] = entry.getKey() + 1;
+		}
+		BTest.testBoolean(name + " search", isSame, true);
+
+		TreeObject[] found = tree.search(keys, 4);
+		isSame = true;
+		for (int i = 0; i < keys.length; ++i)
+		{
+			Integer frequency = expected.get(keys[i]);
+			isSame &= frequency == null ? found[i] == null
+					: found[i] != null && found[i].getKey() == keys[i] && found[i].getFrequency() == frequency;
+		}
+		BTest.testBoolean(name + " batch search", isSame, true);
+
+		tree.dumpInOrderToFile("dumps/sharded.dump");
+		isSame = true;
+		try (BufferedReader in = new BufferedReader(new FileReader("dumps/sharded.dump")))
+		{
+			for (Map.Entry<Long, Integer> entry : expected.entrySet())
+			{
+				String line = DNAUtil.convertLongToString(entry.getKey(), 12) + ": " + entry.getValue();
+				isSame &= line.equals(in.readLine());
+			}
+			isSame &= in.readLine() == null;
+		}
+		BTest.testBoolean(name + " dump", isSame, true);
+		tree.close();
+	}
+}
@@ -0,0 +1,94 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test class for B* style inserts, which share keys with siblings and split two
+ * nodes into three
+ */
+public class Test_SharingSplits
+{
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("Sharing splits Tests:\n");
+
+		NodeFormat[] formats = { NodeFormat.fixed(2), NodeFormat.fixed(7), NodeFormat.compressed(256),
+				NodeFormat.fixed(7).toBPlusTree(), NodeFormat.compressed(256).toBPlusTree() };
+		for (NodeFormat format : formats)
+		{
+			testTree(format, 3000, false);
+			testTree(format, 3000, true);
+		}
+	}
+
+	/**
+	 * Adds keys with and without sharing splits, checks the shared tree after
+	 * reopening against a sorted map and checks it takes up fewer nodes
+	 */
+	private static void testTree(NodeFormat format, int count, boolean isAscending) throws IOException
+	{
+		String name = format + " adds=" + count + (isAscending ? " ascending" : " random");
+		TreeMap<Long, Integer> expected = new TreeMap<>();
+		int[] nodeCounts = new int[2];
+
+		for (int shared = 0; shared < 2; ++shared)
+		{
+			Random rand = new Random(count);
+			BTree tree = new BTree(BTreeFile.createNewBTreeFile("dumps/bstar.tree", format), 12, format, 5);
+			tree.setSharingSplits(shared == 1);
+			for (int i = 0; i < count; ++i)
+			{
+				long key = isAscending ? i / 2 : rand.nextInt(count);
+				tree.add(key);
+				if (shared == 1)
+					expected.merge(key, 1, Integer::sum);
+			}
+			tree.close();
+
+			// the node count is the first int of the meta data
+			tree = new BTree(BTreeFile.openBTreeFile("dumps/bstar.tree", BTree.METADATA_BYTE_SIZE), 5);
+			nodeCounts[shared] = ByteBuffer.wrap(tree.getMetaDataBytes()).getInt();
+			tree.close();
+		}
+
+		BTree tree = new BTree(BTreeFile.openBTreeFile("dumps/bstar.tree", BTree.METADATA_BYTE_SIZE), 5);
+		boolean allFound = true;
+		for (Map.Entry<Long, Integer> entry : expected.entrySet())
+		{
+			TreeObject obj = tree.search(entry.getKey());
+			allFound &= obj != null && obj.getFrequency() == entry.getValue();
+		}
+		BTest.testBoolean(name + " search", allFound && tree.search(count) == null, true);
+
+		Iterator<Map.Entry<Long, Integer>> entries = expected.entrySet().iterator();
+		boolean isSame = true;
+		for (TreeObject obj : tree)
+		{
+			Map.Entry<Long, Integer> entry = entries.hasNext() ? entries.next() : null;
+			isSame &= entry != null && entry.getKey() == obj.getKey() && entry.getValue() == obj.getFrequency();
+		}
+		BTest.testBoolean(name + " in order", isSame && !entries.hasNext(), true);
+
+		// the dump of a classic tree climbs the parent pointers
+		tree.dumpInOrderToFile("dumps/bstar.dump");
+		isSame = true;
+		try (BufferedReader in = new BufferedReader(new FileReader("dumps/bstar.dump")))
+		{
+			for (Map.Entry<Long, Integer> entry : expected.entrySet())
+			{
+				String line = DNAUtil.convertLongToString(entry.getKey(), 12) + ": " + entry.getValue();
+				isSame &= line.equals(in.readLine());
+			}
+			isSame &= in.readLine() == null;
+		}
+		BTest.testBoolean(name + " dump", isSame, true);
+		tree.close();
+
+		BTest.testBoolean(name + " fewer nodes", nodeCounts[1] < nodeCounts[0], true);
+	}
+}